@@ -39,16 +39,14 @@
 -keep class eu.faircode.netguard.Allowed { *; }
 -keep class eu.faircode.netguard.Packet { *; }
 -keep class eu.faircode.netguard.ResourceRecord { *; }
--keep class eu.faircode.netguard.Usage { *; }
 -keep class eu.faircode.netguard.ServiceSinkhole {
     void nativeExit(int, java.lang.String);
     void nativeError(int, java.lang.String);
-    void logPacket(eu.faircode.netguard.Packet);
+    void logRingReady();
     void dnsResolved(eu.faircode.netguard.ResourceRecord);
     boolean isDomainBlocked(java.lang.String);
     int getUidQ(int, int, java.lang.String, int, java.lang.String, int);
     eu.faircode.netguard.Allowed isAddressAllowed(eu.faircode.netguard.Packet);
-    void accountUsage(eu.faircode.netguard.Usage);
 }
 
 # wgbridge (Rust/gotatun) JNI: classes and callback interfaces invoked by name
@@ -56,7 +56,6 @@ import androidx.preference.PreferenceManager;
 import net.kollnig.missioncontrol.R;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.net.InetAddress;
@@ -340,7 +339,7 @@ public class ActivityLog extends AppCompatActivity implements SharedPreferences.
         SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
 
         // https://gist.github.com/granoeste/5574148
-        File pcap_file = new File(getDir("data", MODE_PRIVATE), "netguard.pcap");
+        File pcap_dir = PcapSegments.getDir(this);
 
         boolean export = (getPackageManager().resolveActivity(getIntentPCAPDocument(), 0) != null);
 
@@ -354,7 +353,7 @@ public class ActivityLog extends AppCompatActivity implements SharedPreferences.
         menu.findItem(R.id.menu_log_resolve).setChecked(prefs.getBoolean("resolve", false));
         menu.findItem(R.id.menu_log_organization).setChecked(prefs.getBoolean("organization", false));
         menu.findItem(R.id.menu_pcap_enabled).setChecked(prefs.getBoolean("pcap", false));
-        menu.findItem(R.id.menu_pcap_export).setEnabled(pcap_file.exists() && export);
+        menu.findItem(R.id.menu_pcap_export).setEnabled(PcapSegments.exists(pcap_dir) && export);
 
         return super.onPrepareOptionsMenu(menu);
     }
@@ -362,7 +361,7 @@ public class ActivityLog extends AppCompatActivity implements SharedPreferences.
     @Override
     public boolean onOptionsItemSelected(MenuItem item) {
         final SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
-        final File pcap_file = new File(getDir("data", MODE_PRIVATE), "netguard.pcap");
+        final File pcap_dir = PcapSegments.getDir(this);
 
         int itemId = item.getItemId();
         if (itemId == android.R.id.home) {
@@ -455,11 +454,11 @@ public class ActivityLog extends AppCompatActivity implements SharedPreferences.
                     DatabaseHelper.getInstance(ActivityLog.this).clearLog(-1);
                     if (prefs.getBoolean("pcap", false)) {
                         ServiceSinkhole.setPcap(false, ActivityLog.this);
-                        if (pcap_file.exists() && !pcap_file.delete())
+                        if (!PcapSegments.clear(pcap_dir))
                             Log.w(TAG, "Delete PCAP failed");
                         ServiceSinkhole.setPcap(true, ActivityLog.this);
                     } else {
-                        if (pcap_file.exists() && !pcap_file.delete())
+                        if (!PcapSegments.clear(pcap_dir))
                             Log.w(TAG, "Delete PCAP failed");
                     }
                     return null;
@@ -523,7 +522,7 @@ public class ActivityLog extends AppCompatActivity implements SharedPreferences.
         intent = new Intent(Intent.ACTION_CREATE_DOCUMENT);
         intent.addCategory(Intent.CATEGORY_OPENABLE);
         intent.setType("application/octet-stream");
-        intent.putExtra(Intent.EXTRA_TITLE, "netguard_" + new SimpleDateFormat("yyyyMMdd").format(new Date().getTime()) + ".pcap");
+        intent.putExtra(Intent.EXTRA_TITLE, "netguard_" + new SimpleDateFormat("yyyyMMdd").format(new Date().getTime()) + ".pcapng");
         return intent;
     }
 
@@ -546,27 +545,24 @@ public class ActivityLog extends AppCompatActivity implements SharedPreferences.
             @Override
             protected Throwable doInBackground(Object... objects) {
                 OutputStream out = null;
-                FileInputStream in = null;
                 try {
                     // Stop capture
                     ServiceSinkhole.setPcap(false, ActivityLog.this);
 
                     Uri target = data.getData();
                     if (data.hasExtra("org.openintents.extra.DIR_PATH"))
-                        target = Uri.parse(target + "/netguard.pcap");
+                        target = Uri.parse(target + "/netguard.pcapng");
                     Log.i(TAG, "Export PCAP URI=" + target);
                     out = getContentResolver().openOutputStream(target);
 
-                    File pcap = new File(getDir("data", MODE_PRIVATE), "netguard.pcap");
-                    in = new FileInputStream(pcap);
-
-                    int len;
-                    long total = 0;
-                    byte[] buf = new byte[4096];
-                    while ((len = in.read(buf)) > 0) {
-                        out.write(buf, 0, len);
-                        total += len;
-                    }
+                    // Name the packages behind the uids the tunnel wrote
+                    final PackageManager pm = getPackageManager();
+                    long total = PcapSegments.export(
+                            PcapSegments.list(PcapSegments.getDir(ActivityLog.this)), out,
+                            uid -> {
+                                String[] pkgs = pm.getPackagesForUid(uid);
+                                return (pkgs == null ? null : TextUtils.join(",", pkgs));
+                            });
                     Log.i(TAG, "Copied bytes=" + total);
 
                     return null;
@@ -580,12 +576,6 @@ public class ActivityLog extends AppCompatActivity implements SharedPreferences.
                         } catch (IOException ex) {
                             Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
                         }
-                    if (in != null)
-                        try {
-                            in.close();
-                        } catch (IOException ex) {
-                            Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
-                        }
 
                     // Resume capture
                     SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(ActivityLog.this);
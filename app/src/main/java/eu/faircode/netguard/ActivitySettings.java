@@ -90,7 +90,6 @@ import org.xml.sax.helpers.DefaultHandler;
 import org.xmlpull.v1.XmlSerializer;
 
 import java.io.BufferedOutputStream;
-import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -814,10 +813,10 @@ public class ActivitySettings extends AppCompatActivity implements SharedPrefere
         } else if ("doh_endpoint".equals(name)) {
             String endpoint = prefs.getString(name, BuildConfig.DEFAULT_DOH_ENDPOINT);
             try {
-                // Validate URL format
-                if (!TextUtils.isEmpty(endpoint)) {
-                    new URL(endpoint);
-                    if (!endpoint.startsWith("https://")) {
+                // Validate URL format; several endpoints may be given
+                for (String url : net.kollnig.missioncontrol.dns.DnsOverHttpsClient.splitEndpoints(endpoint)) {
+                    new URL(url);
+                    if (!url.startsWith("https://")) {
                         throw new MalformedURLException("DoH endpoint must use HTTPS");
                     }
                 }
@@ -945,8 +944,7 @@ public class ActivitySettings extends AppCompatActivity implements SharedPrefere
 
             ServiceSinkhole.setPcap(false, this);
 
-            File pcap_file = new File(getDir("data", MODE_PRIVATE), "netguard.pcap");
-            if (pcap_file.exists() && !pcap_file.delete())
+            if (!PcapSegments.clear(PcapSegments.getDir(this)))
                 Log.w(TAG, "Delete PCAP failed");
 
             if (prefs.getBoolean("pcap", false))
@@ -0,0 +1,47 @@
+/*
+ * TrackerControl is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TrackerControl is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with TrackerControl. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright © 2026
+ */
+
+package eu.faircode.netguard;
+
+/**
+ * What the app list needs to know of a package from the package manager, as
+ * stored in the app table. Valid for as long as the package keeps its version
+ * code and update time.
+ */
+public class AppMetadata {
+    public String packageName;
+    public long versionCode;
+    public long lastUpdateTime;
+    public String label;
+    public boolean system;
+    public boolean internet;
+    public boolean enabled;
+
+    /**
+     * @return Whether this was resolved for the given version of the package
+     */
+    public boolean isCurrent(long versionCode, long lastUpdateTime) {
+        return (this.versionCode == versionCode && this.lastUpdateTime == lastUpdateTime);
+    }
+
+    @Override
+    public String toString() {
+        return packageName + " v" + versionCode + " @" + lastUpdateTime +
+                " " + label +
+                " system " + system + " internet " + internet + " enabled " + enabled;
+    }
+}
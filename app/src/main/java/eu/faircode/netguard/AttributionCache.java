@@ -0,0 +1,350 @@
+package eu.faircode.netguard;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * What a destination address was attributed to, the name it was resolved
+ * from and its tracker, so that blockKnownTracker() weighs the DNS evidence
+ * of an address once rather than for every new connection.
+ * <p>
+ * Addresses are packed into two longs, IPv4 as IPv4-mapped IPv6, and kept with
+ * their expiry in an open-addressing table of arrays, so that an entry costs
+ * no objects beyond its address as it was given, its name and its tracker. The table is bounded. When it is
+ * full, an expired entry makes room if one of a few sampled entries is;
+ * otherwise a new address is admitted only if it has been asked for more
+ * often than the least asked for of the sampled entries, which it replaces
+ * (TinyLFU admission with sampled eviction). How often an address is asked
+ * for is estimated by a count-min sketch whose counts are halved regularly,
+ * so that they follow what is asked for now. A scan of addresses that are
+ * seen once cannot push out those that connections keep going to.
+ * <p>
+ * Attribution is per address and not per uid: the DNS records it is derived
+ * from do not say which app resolved them.
+ */
+final class AttributionCache<T> {
+    static final int MAX_ENTRIES = 4096;
+    // Entries looked at to find one to evict
+    static final int SAMPLES = 8;
+
+    interface Filter<T> {
+        boolean drop(T value);
+    }
+
+    private final int maxEntries;
+    private final int mask;
+    private final long[] his;
+    private final long[] los;
+    private final long[] expires;
+    private final String[] addresses;
+    private final String[] hosts;
+    private final Object[] values;
+    private final boolean[] used;
+    private int size = 0;
+    private final FrequencySketch sketch;
+    // Where to start sampling next
+    private int cursor = 0;
+    private final long[] key = new long[2];
+
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+    private long rejections = 0;
+
+    AttributionCache() {
+        this(MAX_ENTRIES);
+    }
+
+    AttributionCache(int maxEntries) {
+        this.maxEntries = maxEntries;
+        // At most half full, so that probe sequences stay short
+        int capacity = Integer.highestOneBit(Math.max(maxEntries, 2) - 1) << 2;
+        this.mask = capacity - 1;
+        this.his = new long[capacity];
+        this.los = new long[capacity];
+        this.expires = new long[capacity];
+        this.addresses = new String[capacity];
+        this.hosts = new String[capacity];
+        this.values = new Object[capacity];
+        this.used = new boolean[capacity];
+        this.sketch = new FrequencySketch(maxEntries);
+    }
+
+    /**
+     * @return The tracker the address was attributed to, or null if it was
+     * not, or no longer is, cached
+     */
+    @SuppressWarnings("unchecked")
+    synchronized T get(String address, long now) {
+        if (!IPUtil.pack(address, key)) {
+            misses++;
+            return null;
+        }
+        long hash = hash(key[0], key[1]);
+        sketch.increment(hash);
+        int slot = find(key[0], key[1], hash);
+        if (slot < 0) {
+            misses++;
+            return null;
+        }
+        if (expires[slot] < now) {
+            removeAt(slot);
+            misses++;
+            return null;
+        }
+        hits++;
+        return (T) values[slot];
+    }
+
+    /**
+     * @return The name the address was attributed to, or null if it was not,
+     * or no longer is, cached; does not count as a use of the entry
+     */
+    synchronized String getHost(String address, long now) {
+        if (!IPUtil.pack(address, key))
+            return null;
+        int slot = find(key[0], key[1], hash(key[0], key[1]));
+        return (slot < 0 || expires[slot] < now ? null : hosts[slot]);
+    }
+
+    /**
+     * @param expires Time after which the attribution no longer holds
+     * @return False if the address is not numeric, or was not admitted
+     */
+    synchronized boolean put(String address, String host, T value, long expires, long now) {
+        if (!IPUtil.pack(address, key))
+            return false;
+        long hi = key[0];
+        long lo = key[1];
+        long hash = hash(hi, lo);
+        int slot = find(hi, lo, hash);
+        if (slot < 0) {
+            if (size >= maxEntries && !evictFor(hash, now)) {
+                rejections++;
+                return false;
+            }
+            slot = (int) hash & mask;
+            while (used[slot])
+                slot = (slot + 1) & mask;
+            used[slot] = true;
+            his[slot] = hi;
+            los[slot] = lo;
+            size++;
+        }
+        this.expires[slot] = expires;
+        addresses[slot] = address;
+        hosts[slot] = host;
+        values[slot] = value;
+        return true;
+    }
+
+    synchronized void remove(String address) {
+        if (!IPUtil.pack(address, key))
+            return;
+        int slot = find(key[0], key[1], hash(key[0], key[1]));
+        if (slot >= 0)
+            removeAt(slot);
+    }
+
+    /**
+     * @return The addresses attributed, as they were put
+     */
+    synchronized List<String> getAddresses(long now) {
+        List<String> result = new ArrayList<>(size);
+        for (int slot = 0; slot <= mask; slot++)
+            if (used[slot] && expires[slot] >= now)
+                result.add(addresses[slot]);
+        return result;
+    }
+
+    /**
+     * Drops expired entries, and those the filter drops.
+     *
+     * @return Number of entries dropped
+     */
+    @SuppressWarnings("unchecked")
+    synchronized int removeIf(Filter<T> filter, long now) {
+        int dropped = 0;
+        int slot = 0;
+        while (slot <= mask)
+            // Removing can move a later entry into this slot, so look again
+            if (used[slot] && (expires[slot] < now || filter.drop((T) values[slot]))) {
+                removeAt(slot);
+                dropped++;
+            } else
+                slot++;
+        return dropped;
+    }
+
+    /**
+     * Drops expired entries.
+     *
+     * @return Number of entries dropped
+     */
+    int purge(long now) {
+        return removeIf(value -> false, now);
+    }
+
+    synchronized void clear() {
+        for (int slot = 0; slot <= mask; slot++)
+            if (used[slot]) {
+                used[slot] = false;
+                addresses[slot] = null;
+                hosts[slot] = null;
+                values[slot] = null;
+            }
+        size = 0;
+    }
+
+    synchronized int size() {
+        return size;
+    }
+
+    /**
+     * @return Share of lookups answered from the cache
+     */
+    synchronized double getHitRatio() {
+        long lookups = hits + misses;
+        return (lookups == 0 ? 0 : (double) hits / lookups);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(Locale.ROOT,
+                "entries=%d hits=%d misses=%d ratio=%.2f evicted=%d rejected=%d",
+                size, hits, misses, getHitRatio(), evictions, rejections);
+    }
+
+    /**
+     * Makes room for an address by evicting an expired entry, or else the
+     * least asked for of the sampled ones if the address is asked for more.
+     */
+    private boolean evictFor(long hash, long now) {
+        int victim = -1;
+        int victimFrequency = Integer.MAX_VALUE;
+        int seen = 0;
+        int slot = cursor;
+        while (seen < SAMPLES) {
+            slot = (slot + 1) & mask;
+            if (!used[slot])
+                continue;
+            seen++;
+            if (expires[slot] < now) {
+                victim = slot;
+                break;
+            }
+            int frequency = sketch.frequency(hash(his[slot], los[slot]));
+            if (frequency < victimFrequency) {
+                victim = slot;
+                victimFrequency = frequency;
+            }
+        }
+        // Sample elsewhere next time
+        cursor = (slot + (mask + 1) / 3) & mask;
+
+        if (expires[victim] >= now && sketch.frequency(hash) <= victimFrequency)
+            return false;
+        removeAt(victim);
+        evictions++;
+        return true;
+    }
+
+    private int find(long hi, long lo, long hash) {
+        int slot = (int) hash & mask;
+        while (used[slot]) {
+            if (his[slot] == hi && los[slot] == lo)
+                return slot;
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    /**
+     * Empties a slot and moves later entries of the probe sequence back, so
+     * that no tombstones are needed.
+     */
+    private void removeAt(int slot) {
+        int gap = slot;
+        int next = slot;
+        while (true) {
+            next = (next + 1) & mask;
+            if (!used[next])
+                break;
+            int home = (int) hash(his[next], los[next]) & mask;
+            // An entry can move back if the gap lies between its home and it
+            boolean movable = (gap <= next
+                    ? home <= gap || home > next
+                    : home <= gap && home > next);
+            if (!movable)
+                continue;
+            his[gap] = his[next];
+            los[gap] = los[next];
+            expires[gap] = expires[next];
+            addresses[gap] = addresses[next];
+            hosts[gap] = hosts[next];
+            values[gap] = values[next];
+            gap = next;
+        }
+        used[gap] = false;
+        addresses[gap] = null;
+        hosts[gap] = null;
+        values[gap] = null;
+        size--;
+    }
+
+    private static long hash(long hi, long lo) {
+        long h = hi * 0x9E3779B97F4A7C15L + lo;
+        h = (h ^ (h >>> 33)) * 0xFF51AFD7ED558CCDL;
+        h = (h ^ (h >>> 33)) * 0xC4CEB9FE1A85EC53L;
+        return h ^ (h >>> 33);
+    }
+
+    /**
+     * Count-min sketch of counters up to 15, four per key in a table of 16
+     * per entry, halved once ten times as many keys as the cache holds have
+     * been counted.
+     */
+    static final class FrequencySketch {
+        private final byte[] counters;
+        private final int mask;
+        private final int sampleSize;
+        private int additions = 0;
+
+        FrequencySketch(int maxEntries) {
+            int width = Integer.highestOneBit(Math.max(maxEntries, 16) - 1) << 5;
+            this.counters = new byte[width];
+            this.mask = width - 1;
+            this.sampleSize = 10 * Math.max(maxEntries, 16);
+        }
+
+        void increment(long hash) {
+            boolean added = false;
+            for (int i = 0; i < 4; i++) {
+                int index = index(hash, i);
+                if (counters[index] < 15) {
+                    counters[index]++;
+                    added = true;
+                }
+            }
+            if (added && ++additions >= sampleSize) {
+                for (int i = 0; i < counters.length; i++)
+                    counters[i] >>>= 1;
+                additions /= 2;
+            }
+        }
+
+        int frequency(long hash) {
+            int frequency = 15;
+            for (int i = 0; i < 4; i++)
+                frequency = Math.min(frequency, counters[index(hash, i)]);
+            return frequency;
+        }
+
+        private int index(long hash, int i) {
+            int h1 = (int) hash;
+            int h2 = (int) (hash >>> 32) | 1;
+            return (h1 + i * h2) & mask;
+        }
+    }
+}
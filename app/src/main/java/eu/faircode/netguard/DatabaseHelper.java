@@ -26,11 +26,13 @@ import android.content.SharedPreferences;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteDoneException;
+import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteStatement;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Message;
+import android.os.SystemClock;
 import android.util.Log;
 
 import androidx.preference.PreferenceManager;
@@ -38,12 +40,15 @@ import androidx.preference.PreferenceManager;
 import java.io.File;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 public class DatabaseHelper extends SQLiteOpenHelper {
@@ -85,7 +90,7 @@ public class DatabaseHelper extends SQLiteOpenHelper {
     private static final String TAG = "TrackerControl.Database";
 
     private static final String DB_NAME = "Netguard";
-    private static final int DB_VERSION = 23;
+    private static final int DB_VERSION = 26;
 
     private static boolean once = true;
     private static List<LogChangedListener> logChangedListeners = new ArrayList<>();
@@ -126,6 +131,22 @@ public class DatabaseHelper extends SQLiteOpenHelper {
     private final Runnable accessFlushRunnable = this::flushAccessBatch;
     private final Runnable usageFlushRunnable = this::flushUsageBatch;
 
+    // DNS attribution for the packet path, see getQARecords()
+    private final DnsIndex dnsIndex = new DnsIndex();
+    private volatile boolean dnsIndexRestored = false;
+    private final Object dnsRestoreLock = new Object();
+
+    // Tracker companies contacted per app, see TrackerList. Maintained from the
+    // access batches, so the main list does not need to rescan access rows.
+    private static final String PREF_TRACKER_SUMMARY = "tracker_summary";
+    private volatile TrackerSummaryListener trackerSummaryListener = null;
+    private boolean trackerSummaryStale = false;
+
+    // Daily rollup of tracker contacts for the insights, see getInsightsData7Days()
+    private static final long DAY_MS = 24 * 3600 * 1000L;
+    private static final int INSIGHTS_DAYS = 7;
+    private long insightsPrunedDay = -1;
+
     private static final int USAGE_BATCH_SIZE = 50;
     private static final long USAGE_BATCH_FLUSH_MS = 2000;
     private final Map<AccessKey, long[]> usageBatch = new LinkedHashMap<>();
@@ -196,6 +217,12 @@ public class DatabaseHelper extends SQLiteOpenHelper {
     @Override
     public void close() {
         Log.w(TAG, "Database is being closed");
+        lock.writeLock().lock();
+        try {
+            closeStatements();
+        } finally {
+            lock.writeLock().unlock();
+        }
     }
 
     private DatabaseHelper(Context context) {
@@ -227,6 +254,8 @@ public class DatabaseHelper extends SQLiteOpenHelper {
         createTableDns(db);
         createTableForward(db);
         createTableApp(db);
+        createTableTracker(db);
+        createTableInsights(db);
     }
 
     @Override
@@ -319,10 +348,40 @@ public class DatabaseHelper extends SQLiteOpenHelper {
                 ", system INTEGER  NOT NULL" +
                 ", internet INTEGER NOT NULL" +
                 ", enabled INTEGER NOT NULL" +
+                ", version INTEGER" +
+                ", updated INTEGER" +
                 ");");
         db.execSQL("CREATE UNIQUE INDEX idx_package ON app(package)");
     }
 
+    private void createTableTracker(SQLiteDatabase db) {
+        Log.i(TAG, "Creating tracker table");
+        db.execSQL("CREATE TABLE tracker (" +
+                " ID INTEGER PRIMARY KEY AUTOINCREMENT" +
+                ", uid INTEGER NOT NULL" +
+                ", company TEXT NOT NULL" +
+                ", time INTEGER NOT NULL" +
+                ");");
+        db.execSQL("CREATE UNIQUE INDEX idx_tracker ON tracker(uid, company)");
+    }
+
+    private void createTableInsights(SQLiteDatabase db) {
+        Log.i(TAG, "Creating insights table");
+        db.execSQL("CREATE TABLE insights (" +
+                " ID INTEGER PRIMARY KEY AUTOINCREMENT" +
+                ", day INTEGER NOT NULL" +
+                ", uid INTEGER NOT NULL" +
+                ", company TEXT NOT NULL" +
+                ", daddr TEXT NOT NULL" +
+                ", time INTEGER NOT NULL" +
+                ", allowed INTEGER" +
+                ", uncertain INTEGER" +
+                ", allowed_count INTEGER NOT NULL" +
+                ", blocked_count INTEGER NOT NULL" +
+                ");");
+        db.execSQL("CREATE UNIQUE INDEX idx_insights ON insights(day, uid, daddr)");
+    }
+
     private boolean columnExists(SQLiteDatabase db, String table, String column) {
         try (Cursor cursor = db.rawQuery("SELECT * FROM " + table + " LIMIT 0", null)) {
             return (cursor.getColumnIndex(column) >= 0);
@@ -335,6 +394,7 @@ public class DatabaseHelper extends SQLiteOpenHelper {
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
         Log.i(TAG, DB_NAME + " upgrading from version " + oldVersion + " to " + newVersion);
+        closeStatements();
 
         db.beginTransaction();
         try {
@@ -466,6 +526,23 @@ public class DatabaseHelper extends SQLiteOpenHelper {
                 db.execSQL("UPDATE dns SET qname = lower(qname), aname = lower(aname)");
                 oldVersion = 23;
             }
+            if (oldVersion < 24) {
+                // Filled from the access table on first use
+                createTableTracker(db);
+                oldVersion = 24;
+            }
+            if (oldVersion < 25) {
+                // Filled from the access table on first use
+                createTableInsights(db);
+                prefs.edit().remove(PREF_TRACKER_SUMMARY).apply();
+                oldVersion = 25;
+            }
+            if (oldVersion < 26) {
+                // Only a cache of the package manager, filled again on first use
+                db.execSQL("DROP TABLE IF EXISTS app");
+                createTableApp(db);
+                oldVersion = 26;
+            }
 
             if (oldVersion == DB_VERSION) {
                 db.setVersion(oldVersion);
@@ -702,6 +779,10 @@ public class DatabaseHelper extends SQLiteOpenHelper {
             lastAccessFlush = System.currentTimeMillis();
         }
 
+        TrackerSummaryListener listener = trackerSummaryListener;
+        Map<Integer, Map<String, Long>> seen = new HashMap<>();
+        List<ContentValues> contacts = new ArrayList<>();
+
         lock.writeLock().lock();
         try {
             SQLiteDatabase db = this.getWritableDatabase();
@@ -741,6 +822,22 @@ public class DatabaseHelper extends SQLiteOpenHelper {
                             Log.e(TAG, "Insert access failed");
                     } else if (rows != 1)
                         Log.e(TAG, "Update access failed rows=" + rows);
+
+                    if (listener != null) {
+                        String company = listener.getCompany(key.daddr);
+                        if (company != null) {
+                            addTrackerSeen(seen, key.uid, company, p.time);
+                            contacts.add(getInsightsContact(key.uid, company, key.daddr,
+                                    p.time, p.allowed ? 1 : 0, p.uncertain));
+                        }
+                    }
+                }
+
+                if (listener == null)
+                    markTrackerSummaryStale();
+                else {
+                    updateTrackerSummary(db, seen);
+                    updateInsights(db, contacts);
                 }
 
                 db.setTransactionSuccessful();
@@ -751,6 +848,9 @@ public class DatabaseHelper extends SQLiteOpenHelper {
             lock.writeLock().unlock();
         }
 
+        if (listener != null && !seen.isEmpty())
+            listener.onTrackersSeen(seen);
+
         notifyAccessChanged();
     }
 
@@ -880,11 +980,17 @@ public class DatabaseHelper extends SQLiteOpenHelper {
             db.beginTransactionNonExclusive();
             try {
                 db.delete("access", null, null);
+                db.delete("tracker", null, null);
+                db.delete("insights", null, null);
 
                 db.setTransactionSuccessful();
             } finally {
                 db.endTransaction();
             }
+
+            TrackerSummaryListener listener = trackerSummaryListener;
+            if (listener != null)
+                listener.onTrackersReplaced(-1, new HashMap<>());
         } finally {
             lock.writeLock().unlock();
         }
@@ -895,6 +1001,8 @@ public class DatabaseHelper extends SQLiteOpenHelper {
     public void clearAccess(int uid, boolean keeprules) {
         flushAccessBatch();
         flushUsageBatch();
+        TrackerSummaryListener listener = trackerSummaryListener;
+        Map<Integer, Map<String, Long>> summary;
         lock.writeLock().lock();
         try {
             SQLiteDatabase db = this.getWritableDatabase();
@@ -906,11 +1014,16 @@ public class DatabaseHelper extends SQLiteOpenHelper {
                     db.delete("access", "uid = ? AND block < 0", new String[] { Integer.toString(uid) });
                 else
                     db.delete("access", "uid = ?", new String[] { Integer.toString(uid) });
+                summary = rebuildTrackerSummary(db, uid, listener);
+                rebuildInsights(db, uid, listener);
 
                 db.setTransactionSuccessful();
             } finally {
                 db.endTransaction();
             }
+
+            if (listener != null)
+                listener.onTrackersReplaced(uid, summary);
         } finally {
             lock.writeLock().unlock();
         }
@@ -1009,41 +1122,48 @@ public class DatabaseHelper extends SQLiteOpenHelper {
                     return mapUidHosts.get(uid);
             }
 
+        long start = System.nanoTime();
         lock.readLock().lock();
         try {
-            SQLiteDatabase db = this.getReadableDatabase();
             // There is a segmented index on uid
             // There is an index on block
-            long hosts = db.compileStatement("SELECT COUNT(*) FROM access WHERE block >= 0 AND uid =" + uid)
-                    .simpleQueryForLong();
+            SQLiteStatement stmt = getStatements().get(SQL_HOST_COUNT);
+            stmt.bindLong(1, uid);
+            long hosts = stmt.simpleQueryForLong();
             synchronized (mapUidHosts) {
                 mapUidHosts.put(uid, hosts);
             }
             return hosts;
         } finally {
             lock.readLock().unlock();
+            statHostCount.add(start);
         }
     }
 
     /**
-     * Get recent tracker access rows for the Insights screen.
-     * The provider deduplicates these rows into the latest app-host contact.
+     * Get the tracker contacts of the past week for the Insights screen, one
+     * row per app and host, from the daily rollup rather than the access table.
      *
-     * @return Cursor with columns: uid, daddr, allowed, time, uncertain
+     * @return Cursor with columns: uid, daddr, company, allowed, time, uncertain,
+     * allowed and uncertain being those of the latest contact
      */
     public Cursor getInsightsData7Days() {
         flushAccessBatch();
         lock.readLock().lock();
         try {
             SQLiteDatabase db = this.getReadableDatabase();
-            long sevenDaysAgo = System.currentTimeMillis() - (7L * 24 * 60 * 60 * 1000);
-
-            String query = "SELECT uid, daddr, allowed, time, uncertain " +
-                    "FROM access " +
-                    "WHERE time >= ? " +
-                    "ORDER BY time DESC, ID DESC";
-
-            return db.rawQuery(query, new String[] { Long.toString(sevenDaysAgo) });
+            long since = System.currentTimeMillis() - INSIGHTS_DAYS * DAY_MS;
+
+            // There is a segmented index on day
+            // With MAX(), the other columns are those of the latest row
+            String query = "SELECT uid, daddr, company, allowed, MAX(time) AS time, uncertain" +
+                    " FROM insights" +
+                    " WHERE day >= ?" +
+                    " GROUP BY uid, daddr" +
+                    " HAVING MAX(time) >= ?";
+
+            return db.rawQuery(query, new String[] {
+                    Long.toString(since / DAY_MS), Long.toString(since) });
         } finally {
             lock.readLock().unlock();
         }
@@ -1070,6 +1190,226 @@ public class DatabaseHelper extends SQLiteOpenHelper {
         }
     }
 
+    // Tracker summary
+
+    /**
+     * Set what attributes hosts to tracker companies and keeps the summary in
+     * memory. Until it is set, access updates leave the summary stale.
+     */
+    public void setTrackerSummaryListener(TrackerSummaryListener listener) {
+        trackerSummaryListener = listener;
+    }
+
+    /**
+     * Hands the tracker summary to the listener, rebuilding it from the access
+     * table first if it was built under other tracker lists or went stale.
+     *
+     * @param key Identifies the tracker lists the summary is attributed with
+     */
+    public void loadTrackerSummary(String key) {
+        TrackerSummaryListener listener = trackerSummaryListener;
+        if (listener == null)
+            return;
+        flushAccessBatch();
+
+        if (key.equals(prefs.getString(PREF_TRACKER_SUMMARY, null))) {
+            lock.readLock().lock();
+            try {
+                SQLiteDatabase db = this.getReadableDatabase();
+                Map<Integer, Map<String, Long>> summary = new HashMap<>();
+                try (Cursor cursor = db.query("tracker", new String[] { "uid", "company", "time" },
+                        null, null, null, null, null)) {
+                    while (cursor.moveToNext())
+                        addTrackerSeen(summary, cursor.getInt(0), cursor.getString(1), cursor.getLong(2));
+                }
+                // Under the lock, so that no flush lands in between
+                listener.onTrackersReplaced(-1, summary);
+            } finally {
+                lock.readLock().unlock();
+            }
+            return;
+        }
+
+        long start = System.currentTimeMillis();
+        lock.writeLock().lock();
+        try {
+            SQLiteDatabase db = this.getWritableDatabase();
+            Map<Integer, Map<String, Long>> summary;
+            db.beginTransactionNonExclusive();
+            try {
+                summary = rebuildTrackerSummary(db, -1, listener);
+                rebuildInsights(db, -1, listener);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            listener.onTrackersReplaced(-1, summary);
+            prefs.edit().putString(PREF_TRACKER_SUMMARY, key).apply();
+            trackerSummaryStale = false;
+            Log.i(TAG, "Rebuilt tracker summary apps=" + summary.size() +
+                    " elapsed=" + (System.currentTimeMillis() - start) + " ms");
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Caller holds the write lock
+    private Map<Integer, Map<String, Long>> rebuildTrackerSummary(
+            SQLiteDatabase db, int uid, TrackerSummaryListener listener) {
+        String[] args = (uid < 0 ? null : new String[] { Integer.toString(uid) });
+        Map<Integer, Map<String, Long>> summary = new HashMap<>();
+        db.delete("tracker", (uid < 0 ? null : "uid = ?"), args);
+        if (listener == null) {
+            markTrackerSummaryStale();
+            return summary;
+        }
+
+        // There is a segmented index on uid
+        try (Cursor cursor = db.rawQuery("SELECT uid, daddr, MAX(time) FROM access" +
+                (uid < 0 ? "" : " WHERE uid = ?") +
+                " GROUP BY uid, daddr", args)) {
+            while (cursor.moveToNext()) {
+                String company = listener.getCompany(cursor.getString(1));
+                if (company != null)
+                    addTrackerSeen(summary, cursor.getInt(0), company, cursor.getLong(2));
+            }
+        }
+        updateTrackerSummary(db, summary);
+        return summary;
+    }
+
+    // Caller holds the write lock
+    private void updateTrackerSummary(SQLiteDatabase db, Map<Integer, Map<String, Long>> seen) {
+        if (seen.isEmpty())
+            return;
+        SQLiteStatement update = db.compileStatement(
+                "UPDATE tracker SET time = MAX(time, ?) WHERE uid = ? AND company = ?");
+        SQLiteStatement insert = db.compileStatement(
+                "INSERT INTO tracker (uid, company, time) VALUES (?, ?, ?)");
+        try {
+            for (Map.Entry<Integer, Map<String, Long>> app : seen.entrySet())
+                for (Map.Entry<String, Long> company : app.getValue().entrySet()) {
+                    update.bindLong(1, company.getValue());
+                    update.bindLong(2, app.getKey());
+                    update.bindString(3, company.getKey());
+                    if (update.executeUpdateDelete() == 0) {
+                        insert.bindLong(1, app.getKey());
+                        insert.bindString(2, company.getKey());
+                        insert.bindLong(3, company.getValue());
+                        if (insert.executeInsert() == -1)
+                            Log.e(TAG, "Insert tracker failed");
+                    }
+                }
+        } finally {
+            update.close();
+            insert.close();
+        }
+    }
+
+    private static ContentValues getInsightsContact(
+            int uid, String company, String daddr, long time, int allowed, int uncertain) {
+        ContentValues cv = new ContentValues();
+        cv.put("day", time / DAY_MS);
+        cv.put("uid", uid);
+        cv.put("company", company);
+        cv.put("daddr", daddr);
+        cv.put("time", time);
+        cv.put("allowed", allowed);
+        cv.put("uncertain", uncertain);
+        cv.put("allowed_count", allowed > 0 ? 1 : 0);
+        cv.put("blocked_count", allowed == 0 ? 1 : 0);
+        return cv;
+    }
+
+    // Caller holds the write lock
+    private void updateInsights(SQLiteDatabase db, List<ContentValues> contacts) {
+        // Drop the days that slid out of the window, once a day
+        long today = System.currentTimeMillis() / DAY_MS;
+        if (insightsPrunedDay != today) {
+            db.delete("insights", "day < ?", new String[] { Long.toString(today - INSIGHTS_DAYS) });
+            insightsPrunedDay = today;
+        }
+
+        if (contacts.isEmpty())
+            return;
+        // The latest contact decides allowed and uncertain; in SET, time is
+        // still the old value
+        SQLiteStatement update = db.compileStatement("UPDATE insights SET" +
+                " allowed = CASE WHEN ? >= time THEN ? ELSE allowed END" +
+                ", uncertain = CASE WHEN ? >= time THEN ? ELSE uncertain END" +
+                ", time = MAX(time, ?)" +
+                ", company = ?" +
+                ", allowed_count = allowed_count + ?" +
+                ", blocked_count = blocked_count + ?" +
+                " WHERE day = ? AND uid = ? AND daddr = ?");
+        try {
+            for (ContentValues cv : contacts) {
+                long time = cv.getAsLong("time");
+                update.bindLong(1, time);
+                update.bindLong(2, cv.getAsInteger("allowed"));
+                update.bindLong(3, time);
+                update.bindLong(4, cv.getAsInteger("uncertain"));
+                update.bindLong(5, time);
+                update.bindString(6, cv.getAsString("company"));
+                update.bindLong(7, cv.getAsInteger("allowed_count"));
+                update.bindLong(8, cv.getAsInteger("blocked_count"));
+                update.bindLong(9, cv.getAsLong("day"));
+                update.bindLong(10, cv.getAsInteger("uid"));
+                update.bindString(11, cv.getAsString("daddr"));
+                if (update.executeUpdateDelete() == 0 && db.insert("insights", null, cv) == -1)
+                    Log.e(TAG, "Insert insights failed");
+            }
+        } finally {
+            update.close();
+        }
+    }
+
+    // Caller holds the write lock
+    private void rebuildInsights(SQLiteDatabase db, int uid, TrackerSummaryListener listener) {
+        String[] args = (uid < 0 ? null : new String[] { Integer.toString(uid) });
+        db.delete("insights", (uid < 0 ? null : "uid = ?"), args);
+        if (listener == null)
+            return;
+
+        // The access table only keeps the latest contact of each host, so
+        // earlier days of the window start out empty
+        long since = System.currentTimeMillis() - INSIGHTS_DAYS * DAY_MS;
+        List<ContentValues> contacts = new ArrayList<>();
+        try (Cursor cursor = db.rawQuery("SELECT uid, daddr, time, allowed, uncertain FROM access" +
+                " WHERE time >= ?" + (uid < 0 ? "" : " AND uid = ?"),
+                (uid < 0 ? new String[] { Long.toString(since) }
+                        : new String[] { Long.toString(since), Integer.toString(uid) }))) {
+            while (cursor.moveToNext()) {
+                String company = listener.getCompany(cursor.getString(1));
+                if (company != null)
+                    contacts.add(getInsightsContact(cursor.getInt(0), company, cursor.getString(1),
+                            cursor.getLong(2),
+                            (cursor.isNull(3) ? -1 : cursor.getInt(3)),
+                            (cursor.isNull(4) ? ACCESS_UNCERTAIN_NONE : cursor.getInt(4))));
+            }
+        }
+        updateInsights(db, contacts);
+    }
+
+    // Rows were written without attribution, so the summary must be rebuilt
+    private void markTrackerSummaryStale() {
+        if (!trackerSummaryStale) {
+            trackerSummaryStale = true;
+            prefs.edit().remove(PREF_TRACKER_SUMMARY).apply();
+        }
+    }
+
+    private static void addTrackerSeen(Map<Integer, Map<String, Long>> seen, int uid, String company, long time) {
+        Map<String, Long> companies = seen.get(uid);
+        if (companies == null) {
+            companies = new HashMap<>();
+            seen.put(uid, companies);
+        }
+        Long last = companies.get(company);
+        if (last == null || last < time)
+            companies.put(company, time);
+    }
+
     // DNS
 
     private static String lower(String name) {
@@ -1077,56 +1417,113 @@ public class DatabaseHelper extends SQLiteOpenHelper {
     }
 
     public boolean insertDns(ResourceRecord rr) {
+        return (insertDns(Collections.singletonList(rr)) > 0);
+    }
+
+    /**
+     * Writes resolutions in one transaction, as insertDns(ResourceRecord) does
+     * one by one.
+     *
+     * @return Number of records written
+     */
+    public int insertDns(Collection<ResourceRecord> records) {
         lock.writeLock().lock();
         try {
             SQLiteDatabase db = this.getWritableDatabase();
+            int min = Integer.parseInt(prefs.getString("ttl", "259200"));
+            List<ResourceRecord> indexed = new ArrayList<>();
+            List<Integer> ttls = new ArrayList<>();
             db.beginTransactionNonExclusive();
             try {
-                int ttl = rr.TTL;
-
-                int min = Integer.parseInt(prefs.getString("ttl", "259200"));
-                if (ttl < min)
-                    ttl = min;
-
-                ContentValues cv = new ContentValues();
-                cv.put("time", rr.Time);
-                cv.put("ttl", ttl * 1000L);
-
-                // DNS names are case-insensitive, but the tracker and hosts lookups
-                // are keyed in lowercase (see TrackerList.findTracker). Storing the
-                // wire case verbatim made a server-chosen CNAME case — or a resolver
-                // using 0x20 randomisation — a distinct row under the BINARY-collated
-                // idx_dns, splitting one domain across several rows and making
-                // getQAName report it as several qnames sharing an IP.
-                String qname = lower(rr.QName);
-                String aname = lower(rr.AName);
-
-                int rows = db.update("dns", cv, "qname = ? AND aname = ? AND resource = ?",
-                        new String[] { qname, aname, rr.Resource });
-
-                if (rows == 0) {
-                    cv.put("qname", qname);
-                    cv.put("aname", aname);
-                    cv.put("resource", rr.Resource);
-
-                    if (db.insert("dns", null, cv) == -1)
-                        Log.e(TAG, "Insert dns failed");
-                    else
-                        rows = 1;
-                } else if (rows != 1)
-                    Log.e(TAG, "Update dns failed rows=" + rows);
+                // An UPSERT would need SQLite 3.24 (Android 11), so update, then
+                // insert what did not exist, with the statements compiled once
+                SQLiteStatement update = db.compileStatement(
+                        "UPDATE dns SET time = ?, ttl = ? WHERE qname = ? AND aname = ? AND resource = ?");
+                SQLiteStatement insert = db.compileStatement(
+                        "INSERT INTO dns (time, ttl, qname, aname, resource) VALUES (?, ?, ?, ?, ?)");
+                try {
+                    for (ResourceRecord rr : records) {
+                        int ttl = rr.TTL;
+                        if (ttl < min)
+                            ttl = min;
+
+                        // DNS names are case-insensitive, but the tracker and hosts lookups
+                        // are keyed in lowercase (see TrackerList.findTracker). Storing the
+                        // wire case verbatim made a server-chosen CNAME case — or a resolver
+                        // using 0x20 randomisation — a distinct row under the BINARY-collated
+                        // idx_dns, splitting one domain across several rows and making
+                        // getQARecords report it as several qnames sharing an IP.
+                        String qname = lower(rr.QName);
+                        String aname = lower(rr.AName);
+
+                        update.clearBindings();
+                        update.bindLong(1, rr.Time);
+                        update.bindLong(2, ttl * 1000L);
+                        bindString(update, 3, qname);
+                        bindString(update, 4, aname);
+                        bindString(update, 5, rr.Resource);
+                        int rows = update.executeUpdateDelete();
+
+                        if (rows == 0) {
+                            insert.clearBindings();
+                            insert.bindLong(1, rr.Time);
+                            insert.bindLong(2, ttl * 1000L);
+                            bindString(insert, 3, qname);
+                            bindString(insert, 4, aname);
+                            bindString(insert, 5, rr.Resource);
+                            try {
+                                insert.executeInsert();
+                                rows = 1;
+                            } catch (SQLiteException ex) {
+                                Log.e(TAG, "Insert dns failed " + ex);
+                            }
+                        } else if (rows != 1)
+                            Log.e(TAG, "Update dns failed rows=" + rows);
+
+                        if (rows > 0) {
+                            indexed.add(rr);
+                            ttls.add(ttl);
+                        }
+                    }
+                } finally {
+                    update.close();
+                    insert.close();
+                }
 
                 db.setTransactionSuccessful();
-
-                return (rows > 0);
             } finally {
                 db.endTransaction();
             }
+
+            // Only what was committed; still under the lock, see restoreDnsIndex()
+            for (int i = 0; i < indexed.size(); i++) {
+                ResourceRecord rr = indexed.get(i);
+                dnsIndex.put(rr.Resource, lower(rr.QName), lower(rr.AName), rr.Time, ttls.get(i) * 1000L);
+            }
+            return indexed.size();
         } finally {
             lock.writeLock().unlock();
         }
     }
 
+    private static void bindString(SQLiteStatement stmt, int index, String value) {
+        if (value == null)
+            stmt.bindNull(index);
+        else
+            stmt.bindString(index, value);
+    }
+
+    /**
+     * Makes a resolution visible to getQARecords() right away, ahead of the
+     * insertDns() that writes it.
+     *
+     * @param ttl Time to live in seconds, at least the configured minimum
+     * @return False if the attribution of the address stays as it was
+     */
+    boolean indexDns(ResourceRecord rr, int ttl) {
+        return dnsIndex.put(rr.Resource, lower(rr.QName), lower(rr.AName), rr.Time, ttl * 1000L);
+    }
+
     public void cleanupDns() {
         lock.writeLock().lock();
         try {
@@ -1136,6 +1533,7 @@ public class DatabaseHelper extends SQLiteOpenHelper {
                 // There is no index on time for write performance
                 long now = new Date().getTime();
                 db.execSQL("DELETE FROM dns WHERE time + ttl < " + now);
+                dnsIndex.purge(now);
                 Log.i(TAG, "Cleanup DNS");
 
                 db.setTransactionSuccessful();
@@ -1159,83 +1557,201 @@ public class DatabaseHelper extends SQLiteOpenHelper {
             } finally {
                 db.endTransaction();
             }
+
+            dnsIndex.clear(true);
+            dnsIndexRestored = true;
         } finally {
             lock.writeLock().unlock();
         }
     }
 
     private SQLiteDatabase readableDb;
+    private StatementPool statements;
+
+    // Lookups run per connection or per logged packet, see getQueryStats()
+    private final QueryStats queryStats = new QueryStats();
+    private final QueryStats.Counter statQName = queryStats.counter("getQName");
+    private final QueryStats.Counter statQARecords = queryStats.counter("getQARecords");
+    private final QueryStats.Counter statAName = queryStats.counter("getAName");
+    private final QueryStats.Counter statHostCount = queryStats.counter("getHostCount");
+
+    private static final String SQL_QNAME =
+            "SELECT qname FROM dns WHERE resource = ? ORDER BY qname LIMIT 1";
+    private static final String SQL_HOST_COUNT =
+            "SELECT COUNT(*) FROM access WHERE block >= 0 AND uid = ?";
+
+    private synchronized SQLiteDatabase getReadableDb() {
+        if (readableDb == null || !readableDb.isOpen())
+            readableDb = this.getReadableDatabase();
+        return readableDb;
+    }
+
+    private synchronized StatementPool getStatements() {
+        SQLiteDatabase db = getReadableDb();
+        if (statements == null || !statements.isFor(db)) {
+            // Statements of a closed connection must not be reused
+            if (statements != null)
+                statements.close();
+            statements = new StatementPool(db);
+        }
+        return statements;
+    }
+
+    private synchronized void closeStatements() {
+        if (statements != null) {
+            statements.close();
+            statements = null;
+        }
+        readableDb = null;
+    }
+
+    /**
+     * @return Call counts and timings of the frequent lookups, for the log
+     */
+    public String getQueryStats() {
+        return queryStats.toString();
+    }
 
     public String getQName(int uid, String ip) {
+        long start = System.nanoTime();
         lock.readLock().lock();
         try {
-            if (readableDb == null)
-                readableDb = this.getReadableDatabase();
-            SQLiteDatabase db = readableDb;
             // There is a segmented index on resource
-            String query = "SELECT d.qname";
-            query += " FROM dns AS d";
-            query += " WHERE d.resource = '" + ip.replace("'", "''") + "'";
-            query += " ORDER BY d.qname";
-            query += " LIMIT 1";
             // There is no way to known for sure which domain name an app used, so just pick
             // the first one
-            return db.compileStatement(query).simpleQueryForString();
+            SQLiteStatement stmt = getStatements().get(SQL_QNAME);
+            stmt.bindString(1, ip);
+            return stmt.simpleQueryForString();
         } catch (SQLiteDoneException ignored) {
             // Not found
             return null;
         } finally {
             lock.readLock().unlock();
+            statQName.add(start);
         }
     }
 
     /**
-     * DNS evidence for an IP, freshest qname first, one row per qname.
+     * DNS evidence for an IP, freshest qname first, one record per qname.
      *
-     * <p>Expired rows are always excluded. Both callers — the runtime
+     * <p>Expired records are always excluded. Both callers — the runtime
      * blocking decision in {@code blockKnownTracker()} and the UI
      * classification in {@code ServiceSinkhole.log()} — must answer "is this
-     * IP shared, and whose is it?" from the same row set. When the UI alone
+     * IP shared, and whose is it?" from the same records. When the UI alone
      * saw the full history (see issue #759), it drew the shared-IP marker and
      * the ALLOWED/BLOCKED text from evidence the blocker had already
      * discarded, so the log contradicted what actually happened.
+     *
+     * <p>This runs for every new connection and every logged packet, so it
+     * reads the in-memory {@link DnsIndex} that insertDns() keeps up to date.
+     * The table is read until restoreDnsIndex() has loaded it into the index,
+     * and afterwards only for an address that was evicted from it.
      */
-    public Cursor getQAName(int uid, String ip) {
+    List<DnsIndex.Record> getQARecords(String ip) {
         long now = new Date().getTime();
+        List<DnsIndex.Record> records = (dnsIndexRestored ? dnsIndex.lookup(ip, now) : null);
+        if (records != null)
+            return records;
+
+        long start = System.nanoTime();
         lock.readLock().lock();
         try {
-            if (readableDb == null)
-                readableDb = this.getReadableDatabase();
-            SQLiteDatabase db = readableDb;
-            String escapedIp = ip.replace("'", "''");
-            String aliveFilter = " AND (d.time IS NULL OR d.time + d.ttl >= " + now + ")";
-            // There is a segmented index on resource. A shared IP can carry
-            // DNS evidence for several qnames; keep only the most recently
-            // observed row per qname (dedup) and order qnames by recency, so
-            // the freshest resolution — most likely tied to the connection
-            // that's actually being made now — is attributed first instead
-            // of an alphabetically-first but possibly stale one.
-            //
-            // The dedup deliberately uses a single MAX(time) aggregate: with
-            // exactly one min/max aggregate, SQLite takes the bare columns
-            // from the row that supplied the maximum, so this is one index
-            // range scan over the IP's rows. A correlated per-row subquery
-            // here re-scans the IP's rows once per candidate row — O(n²) —
-            // and this query runs for every new connection (log() and
-            // blockKnownTracker()), where it grows with DNS history until
-            // it shows up as battery drain and heat.
-            String query = "SELECT d.qname, d.aname, d.time, d.ttl, MAX(d.time)" +
-                    " FROM dns AS d" +
-                    " WHERE d.resource = '" + escapedIp + "'" +
-                    aliveFilter +
-                    " GROUP BY d.qname" +
-                    " ORDER BY d.time DESC, d.ID DESC";
-            return db.rawQuery(query, new String[] {});
+            // There is a segmented index on resource
+            try (Cursor cursor = getReadableDb().query("dns",
+                    new String[] { "qname", "aname", "time", "ttl" },
+                    "resource = ? AND (time IS NULL OR time + ttl >= ?)",
+                    new String[] { ip, Long.toString(now) },
+                    null, null, "ID")) {
+                List<DnsIndex.Record> rows = new ArrayList<>();
+                while (cursor.moveToNext())
+                    rows.add(getDnsRecord(cursor, now));
+                // Under the read lock, so that no clearDns() comes in between
+                dnsIndex.merge(ip, rows);
+            }
         } finally {
             lock.readLock().unlock();
+            statQARecords.add(start);
+        }
+
+        records = dnsIndex.lookup(ip, now);
+        return (records == null ? new ArrayList<DnsIndex.Record>() : records);
+    }
+
+    /**
+     * Addresses resolved from, or aliased to, one of the names, as far as the
+     * {@link DnsIndex} knows: an address evicted from it, or not restored into
+     * it yet, is missed.
+     *
+     * @param names Lowercase names
+     */
+    List<String> getResolvedAddresses(Set<String> names) {
+        return dnsIndex.getAddresses(names, new Date().getTime());
+    }
+
+    /**
+     * Loads the dns table into the index, off the packet path. The table is
+     * read into an index of its own, which is then merged into the one in use,
+     * so that lookups and resolutions go on meanwhile.
+     */
+    void restoreDnsIndex() {
+        synchronized (dnsRestoreLock) {
+            if (dnsIndexRestored)
+                return;
+
+            long start = SystemClock.elapsedRealtime();
+            DnsIndex restored = new DnsIndex();
+            lock.readLock().lock();
+            try {
+                long now = new Date().getTime();
+                try (Cursor cursor = getReadableDb().query("dns",
+                        new String[] { "resource", "qname", "aname", "time", "ttl" },
+                        "time IS NULL OR time + ttl >= ?",
+                        new String[] { Long.toString(now) },
+                        null, null, "ID")) {
+                    while (cursor.moveToNext()) {
+                        DnsIndex.Record record = getDnsRecord(cursor, now);
+                        restored.put(cursor.getString(0),
+                                record.qname, record.aname, record.time, record.ttl);
+                    }
+                }
+
+                // Under the read lock, so that no clearDns() comes in between
+                dnsIndex.restore(restored);
+                dnsIndexRestored = true;
+            } finally {
+                lock.readLock().unlock();
+            }
+            Log.i(TAG, "Restored DNS index addresses=" + dnsIndex.size() +
+                    " complete=" + dnsIndex.isComplete() +
+                    " elapsed=" + (SystemClock.elapsedRealtime() - start) + " ms");
+        }
+    }
+
+    /**
+     * Drops the index and loads the dns table into it again, as on a restart.
+     */
+    void reloadDnsIndex() {
+        synchronized (dnsRestoreLock) {
+            dnsIndexRestored = false;
+            dnsIndex.clear(false);
+            restoreDnsIndex();
         }
     }
 
+    private static DnsIndex.Record getDnsRecord(Cursor cursor, long now) {
+        int colTime = cursor.getColumnIndexOrThrow("time");
+        int colTtl = cursor.getColumnIndexOrThrow("ttl");
+        // A row without a time never expires in the table; give it the week
+        // blockKnownTracker() used to cache such rows for
+        long time = (cursor.isNull(colTime) ? now : cursor.getLong(colTime));
+        long ttl = (cursor.isNull(colTime) || cursor.isNull(colTtl)
+                ? 7 * 24 * 3600 * 1000L : cursor.getLong(colTtl));
+        return new DnsIndex.Record(
+                cursor.getString(cursor.getColumnIndexOrThrow("qname")),
+                cursor.getString(cursor.getColumnIndexOrThrow("aname")),
+                time, ttl, 0);
+    }
+
     public Cursor getAlternateQNames(String qname) {
         lock.readLock().lock();
         try {
@@ -1255,19 +1771,27 @@ public class DatabaseHelper extends SQLiteOpenHelper {
 
     public Cursor getAName(String qname, boolean alive) {
         long now = new Date().getTime();
+        long start = System.nanoTime();
         lock.readLock().lock();
         try {
-            SQLiteDatabase db = this.getReadableDatabase();
+            SQLiteDatabase db = getReadableDb();
             qname = lower(qname);
             String query = "SELECT d.qname, d.aname, d.time, d.ttl";
             query += " FROM dns d";
             query += " WHERE d.qname = ?";
             if (alive)
-                query += " AND (d.time IS NULL OR d.time + d.ttl >= " + now + ")";
+                query += " AND (d.time IS NULL OR d.time + d.ttl >= ?)";
             query += " LIMIT 1";
-            return db.rawQuery(query, new String[] { qname });
+            Cursor cursor = db.rawQuery(query, alive
+                    ? new String[] { qname, Long.toString(now) }
+                    : new String[] { qname });
+            // The query runs when the cursor is first filled, so fill it here,
+            // under the lock and within the timing
+            cursor.getCount();
+            return cursor;
         } finally {
             lock.readLock().unlock();
+            statAName.add(start);
         }
     }
 
@@ -1286,32 +1810,6 @@ public class DatabaseHelper extends SQLiteOpenHelper {
         }
     }
 
-    public Cursor getAccessDns(String dname) {
-        long now = new Date().getTime();
-        lock.readLock().lock();
-        try {
-            SQLiteDatabase db = this.getReadableDatabase();
-            // dns.qname is stored lowercase; access.daddr is written from it, so
-            // the parameter is matched against the indexed column as-is.
-            dname = lower(dname);
-
-            // There is a segmented index on dns.qname
-            // There is an index on access.daddr and access.block
-            String query = "SELECT a.uid, a.version, a.protocol, a.daddr, d.resource, a.dport, a.block, d.time, d.ttl";
-            query += " FROM access AS a";
-            query += " LEFT JOIN dns AS d";
-            query += "   ON d.qname = lower(a.daddr)";
-            query += " WHERE a.block >= 0";
-            query += " AND (d.time IS NULL OR d.time + d.ttl >= " + now + ")";
-            if (dname != null)
-                query += " AND a.daddr = ?";
-
-            return db.rawQuery(query, dname == null ? new String[] {} : new String[] { dname });
-        } finally {
-            lock.readLock().unlock();
-        }
-    }
-
     // Forward
 
     public void addForward(int protocol, int dport, String raddr, int rport, int ruid) {
@@ -1393,24 +1891,34 @@ public class DatabaseHelper extends SQLiteOpenHelper {
         }
     }
 
-    public void addApp(String packageName, String label, boolean system, boolean internet, boolean enabled) {
+    /**
+     * Store the metadata of packages, replacing what was stored for them
+     */
+    public void addApps(Collection<AppMetadata> apps) {
+        if (apps.isEmpty())
+            return;
         lock.writeLock().lock();
         try {
             SQLiteDatabase db = this.getWritableDatabase();
             db.beginTransactionNonExclusive();
             try {
-                ContentValues cv = new ContentValues();
-                cv.put("package", packageName);
-                if (label == null)
-                    cv.putNull("label");
-                else
-                    cv.put("label", label);
-                cv.put("system", system ? 1 : 0);
-                cv.put("internet", internet ? 1 : 0);
-                cv.put("enabled", enabled ? 1 : 0);
-
-                if (db.insert("app", null, cv) < 0)
-                    Log.e(TAG, "Insert app failed");
+                for (AppMetadata app : apps) {
+                    ContentValues cv = new ContentValues();
+                    cv.put("package", app.packageName);
+                    if (app.label == null)
+                        cv.putNull("label");
+                    else
+                        cv.put("label", app.label);
+                    cv.put("system", app.system ? 1 : 0);
+                    cv.put("internet", app.internet ? 1 : 0);
+                    cv.put("enabled", app.enabled ? 1 : 0);
+                    cv.put("version", app.versionCode);
+                    cv.put("updated", app.lastUpdateTime);
+
+                    // There is a unique index on package
+                    if (db.insertWithOnConflict("app", null, cv, SQLiteDatabase.CONFLICT_REPLACE) < 0)
+                        Log.e(TAG, "Insert app failed");
+                }
 
                 db.setTransactionSuccessful();
             } finally {
@@ -1421,18 +1929,50 @@ public class DatabaseHelper extends SQLiteOpenHelper {
         }
     }
 
-    public Cursor getApp(String packageName) {
+    /**
+     * @return Stored metadata by package name
+     */
+    public Map<String, AppMetadata> getApps() {
+        Map<String, AppMetadata> apps = new HashMap<>();
         lock.readLock().lock();
         try {
             SQLiteDatabase db = this.getReadableDatabase();
-
-            // There is an index on package
-            String query = "SELECT * FROM app WHERE package = ?";
-
-            return db.rawQuery(query, new String[] { packageName });
+            try (Cursor cursor = db.query("app",
+                    new String[] { "package", "label", "system", "internet", "enabled", "version", "updated" },
+                    null, null, null, null, null)) {
+                while (cursor.moveToNext()) {
+                    AppMetadata app = new AppMetadata();
+                    app.packageName = cursor.getString(0);
+                    app.label = cursor.getString(1);
+                    app.system = cursor.getInt(2) > 0;
+                    app.internet = cursor.getInt(3) > 0;
+                    app.enabled = cursor.getInt(4) > 0;
+                    app.versionCode = cursor.getLong(5);
+                    app.lastUpdateTime = cursor.getLong(6);
+                    apps.put(app.packageName, app);
+                }
+            }
         } finally {
             lock.readLock().unlock();
         }
+        return apps;
+    }
+
+    public void deleteApp(String packageName) {
+        lock.writeLock().lock();
+        try {
+            SQLiteDatabase db = this.getWritableDatabase();
+            db.beginTransactionNonExclusive();
+            try {
+                // There is an index on package
+                db.delete("app", "package = ?", new String[] { packageName });
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
     }
 
     public void clearApps() {
@@ -1529,4 +2069,23 @@ public class DatabaseHelper extends SQLiteOpenHelper {
     public interface ForwardChangedListener {
         void onChanged();
     }
+
+    public interface TrackerSummaryListener {
+        /**
+         * @param daddr Host as stored in the access table
+         * @return Tracker company of the host, or null if it is none
+         */
+        String getCompany(String daddr);
+
+        /**
+         * @param seen Contacts just added, by uid and company
+         */
+        void onTrackersSeen(Map<Integer, Map<String, Long>> seen);
+
+        /**
+         * @param uid     Uid whose contacts were replaced, or negative for all
+         * @param summary Contacts by uid and company
+         */
+        void onTrackersReplaced(int uid, Map<Integer, Map<String, Long>> summary);
+    }
 }
@@ -0,0 +1,276 @@
+package eu.faircode.netguard;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * In-memory view of the dns table, keyed by resolved address, for attributing
+ * a connection to the names it was resolved from without a query per
+ * connection.
+ * <p>
+ * An address maps to its (qname, aname) records with their time and TTL, the
+ * same rows the dns table holds for it. Addresses are kept in LRU order and
+ * the least recently used one is evicted beyond a bound. Once anything has
+ * been evicted, an address that is not indexed may still have rows in the
+ * table, so {@link #lookup} tells this apart from an address that is known to
+ * have none, and the caller reads the table and {@link #merge}s its rows.
+ * <p>
+ * The table stays the source of truth: whoever writes it updates the index
+ * once the write is committed. Resolutions may be indexed ahead of the write,
+ * so rows read from the table are merged in rather than replacing what is
+ * indexed.
+ */
+final class DnsIndex {
+    static final int MAX_ADDRESSES = 8192;
+    // A CDN address can carry many names; drop the least recently seen beyond this
+    static final int MAX_RECORDS = 32;
+
+    static final class Record {
+        final String qname;
+        final String aname;
+        final long time;
+        final long ttl;
+        // Order of first observation, the row ID of the dns table
+        final long sequence;
+
+        Record(String qname, String aname, long time, long ttl, long sequence) {
+            this.qname = qname;
+            this.aname = aname;
+            this.time = time;
+            this.ttl = ttl;
+            this.sequence = sequence;
+        }
+
+        boolean isAlive(long now) {
+            return time + ttl >= now;
+        }
+
+        @Override
+        public String toString() {
+            return qname + "/" + aname + " time=" + time + " ttl=" + ttl;
+        }
+    }
+
+    private final int maxAddresses;
+    private final LinkedHashMap<String, List<Record>> addresses;
+    private long sequence = 0;
+    // Whether every address with rows in the table is indexed
+    private boolean complete = true;
+
+    DnsIndex() {
+        this(MAX_ADDRESSES);
+    }
+
+    DnsIndex(int maxAddresses) {
+        this.maxAddresses = maxAddresses;
+        this.addresses = new LinkedHashMap<String, List<Record>>(256, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, List<Record>> eldest) {
+                if (size() <= DnsIndex.this.maxAddresses)
+                    return false;
+                if (!eldest.getValue().isEmpty())
+                    complete = false;
+                return true;
+            }
+        };
+    }
+
+    /**
+     * Records a resolution, as insertDns() does for the table: a (qname, aname)
+     * pair already known for the address gets the new time and TTL.
+     *
+     * @param qname Lowercase name
+     * @param aname Lowercase name
+     * @param ttl   Time to live in milliseconds
+     * @return False if the resolution only refreshed the freshest alive record
+     * of the address, which leaves its attribution as it was
+     */
+    synchronized boolean put(String address, String qname, String aname, long time, long ttl) {
+        List<Record> records = addresses.get(address);
+        if (records == null) {
+            records = new ArrayList<>(2);
+            addresses.put(address, records);
+        }
+        return put(records, qname, aname, time, ttl, ++sequence);
+    }
+
+    private static boolean put(List<Record> records, String qname, String aname,
+                               long time, long ttl, long sequence) {
+        for (int i = 0; i < records.size(); i++) {
+            Record record = records.get(i);
+            if (equals(record.qname, qname) && equals(record.aname, aname)) {
+                records.set(i, new Record(qname, aname, time, ttl, record.sequence));
+                if (!record.isAlive(time))
+                    return true;
+                for (Record other : records)
+                    if (other != records.get(i) && isFresher(other, record))
+                        return true;
+                return false;
+            }
+        }
+
+        if (records.size() >= MAX_RECORDS) {
+            int oldest = 0;
+            for (int i = 1; i < records.size(); i++)
+                if (records.get(i).time < records.get(oldest).time)
+                    oldest = i;
+            records.remove(oldest);
+        }
+        records.add(new Record(qname, aname, time, ttl, sequence));
+        return true;
+    }
+
+    /**
+     * Adds the rows of an address read from the table, which may be none, to
+     * what is indexed for it. A (qname, aname) pair that is indexed already
+     * was indexed since the rows were read, so it is kept as it is.
+     *
+     * @param rows Rows in the order they were inserted
+     */
+    synchronized void merge(String address, List<Record> rows) {
+        List<Record> records = addresses.get(address);
+        if (records == null) {
+            records = new ArrayList<>(Math.max(rows.size(), 2));
+            addresses.put(address, records);
+        }
+        merge(records, rows);
+    }
+
+    private void merge(List<Record> records, List<Record> rows) {
+        for (Record row : rows) {
+            boolean known = false;
+            for (Record record : records)
+                if (equals(record.qname, row.qname) && equals(record.aname, row.aname)) {
+                    known = true;
+                    break;
+                }
+            if (!known)
+                put(records, row.qname, row.aname, row.time, row.ttl, ++sequence);
+        }
+    }
+
+    /**
+     * Takes over an index read from the whole table, keeping what was indexed
+     * meanwhile, which stays the most recently used. Afterwards the index is
+     * complete, unless addresses were evicted from either.
+     */
+    synchronized void restore(DnsIndex restored) {
+        Map<String, List<Record>> indexed = new LinkedHashMap<>(addresses);
+        addresses.clear();
+        complete = restored.isComplete();
+        synchronized (restored) {
+            for (Map.Entry<String, List<Record>> entry : restored.addresses.entrySet()) {
+                List<Record> records = new ArrayList<>(Math.max(entry.getValue().size(), 2));
+                merge(records, entry.getValue());
+                addresses.put(entry.getKey(), records);
+            }
+        }
+        for (Map.Entry<String, List<Record>> entry : indexed.entrySet()) {
+            List<Record> records = entry.getValue();
+            List<Record> rows = addresses.remove(entry.getKey());
+            if (rows != null)
+                merge(records, rows);
+            addresses.put(entry.getKey(), records);
+        }
+    }
+
+    /**
+     * Attributes an address to the names it was resolved from, for
+     * DatabaseHelper.getQARecords(): expired records are skipped, then only
+     * the freshest record of each qname is kept, freshest qname first.
+     *
+     * @return Alive records, possibly none, or null if the address is not
+     * indexed but the table may have rows for it
+     */
+    synchronized List<Record> lookup(String address, long now) {
+        List<Record> records = addresses.get(address);
+        if (records == null)
+            return complete ? Collections.<Record>emptyList() : null;
+
+        List<Record> result = null;
+        for (Record record : records) {
+            if (!record.isAlive(now))
+                continue;
+            if (result == null)
+                result = new ArrayList<>(records.size());
+
+            int same = -1;
+            for (int i = 0; i < result.size(); i++)
+                if (equals(result.get(i).qname, record.qname)) {
+                    same = i;
+                    break;
+                }
+            if (same < 0)
+                result.add(record);
+            else if (isFresher(record, result.get(same)))
+                result.set(same, record);
+        }
+        if (result == null)
+            return Collections.emptyList();
+
+        Collections.sort(result, (a, b) -> isFresher(a, b) ? -1 : (isFresher(b, a) ? 1 : 0));
+        return result;
+    }
+
+    /**
+     * @param names Lowercase names
+     * @return Addresses with an alive record resolved from, or aliased to, one
+     * of the names
+     */
+    synchronized List<String> getAddresses(Set<String> names, long now) {
+        List<String> result = new ArrayList<>();
+        for (Map.Entry<String, List<Record>> entry : addresses.entrySet())
+            for (Record record : entry.getValue())
+                if (record.isAlive(now) &&
+                        ((record.qname != null && names.contains(record.qname)) ||
+                                (record.aname != null && names.contains(record.aname)))) {
+                    result.add(entry.getKey());
+                    break;
+                }
+        return result;
+    }
+
+    private static boolean isFresher(Record a, Record b) {
+        return a.time > b.time || (a.time == b.time && a.sequence > b.sequence);
+    }
+
+    /**
+     * Drops expired records, and addresses left without any.
+     */
+    synchronized void purge(long now) {
+        Iterator<List<Record>> it = addresses.values().iterator();
+        while (it.hasNext()) {
+            List<Record> records = it.next();
+            for (int i = records.size() - 1; i >= 0; i--)
+                if (!records.get(i).isAlive(now))
+                    records.remove(i);
+            if (records.isEmpty())
+                it.remove();
+        }
+    }
+
+    /**
+     * @param complete Whether the table is empty (clear) or fully loaded (restore)
+     */
+    synchronized void clear(boolean complete) {
+        addresses.clear();
+        this.complete = complete;
+    }
+
+    synchronized boolean isComplete() {
+        return complete;
+    }
+
+    synchronized int size() {
+        return addresses.size();
+    }
+
+    private static boolean equals(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+}
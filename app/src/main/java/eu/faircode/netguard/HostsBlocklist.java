@@ -0,0 +1,375 @@
+package eu.faircode.netguard;
+
+import android.content.Context;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Compiled hosts blocklist.
+ * <p>
+ * A merged hosts file of several hundred thousand entries costs tens of
+ * megabytes as a map of Strings. Instead, the hosts file is compiled once into
+ * a sorted, deduplicated table of lowercase hostnames which is memory-mapped
+ * and binary-searched in place, so the list is never materialised on the heap.
+ * <p>
+ * Layout (big-endian): int magic, int version, long source stamp (the
+ * modification time of the hosts file it was compiled from), int count, then
+ * int[count + 1] offsets into the blob of ASCII hostnames that follows.
+ */
+public final class HostsBlocklist {
+    static final int MAGIC = 0x54434842; // 'TCHB'
+    static final int VERSION = 1;
+
+    // Always blocked, so that blocking can be verified
+    static final String TEST_HOST = "test.netguard.me";
+
+    private static final int OFFSETS = 20;
+
+    public static final HostsBlocklist EMPTY = new HostsBlocklist(null, 0, 0);
+
+    private final ByteBuffer buffer;
+    private final int count;
+    private final int blob;
+
+    private HostsBlocklist(ByteBuffer buffer, int count, int blob) {
+        this.buffer = buffer;
+        this.count = count;
+        this.blob = blob;
+    }
+
+    /**
+     * @param context Context
+     * @return Compiled form of the downloaded hosts file (hosts.txt)
+     */
+    public static File getCompiledFile(Context context) {
+        return new File(context.getFilesDir(), "hosts.bin");
+    }
+
+    /**
+     * @return Number of blocked hosts
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * @return Source stamp the blocklist was compiled from, 0 if empty
+     */
+    public long getStamp() {
+        return (buffer == null ? 0 : buffer.getLong(8));
+    }
+
+    /**
+     * Checks whether a host is blocked. Does not allocate.
+     *
+     * @param host Lowercase hostname
+     * @return True if the host is listed
+     */
+    public boolean contains(@NonNull String host) {
+        int lo = 0;
+        int hi = count - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int cmp = compare(mid, host);
+            if (cmp < 0)
+                lo = mid + 1;
+            else if (cmp > 0)
+                hi = mid - 1;
+            else
+                return true;
+        }
+        return false;
+    }
+
+    // Same order as String.compareTo(), which the table is sorted by, since
+    // stored hostnames are ASCII
+    private int compare(int index, String host) {
+        int start = blob + buffer.getInt(OFFSETS + index * 4);
+        int length = blob + buffer.getInt(OFFSETS + (index + 1) * 4) - start;
+        int n = Math.min(length, host.length());
+        for (int i = 0; i < n; i++) {
+            int d = (buffer.get(start + i) & 0xFF) - host.charAt(i);
+            if (d != 0)
+                return d;
+        }
+        return length - host.length();
+    }
+
+    /**
+     * Compares this blocklist with the one it replaces by merging the two
+     * sorted tables. Only the hostnames that differ are materialised, and
+     * only up to {@link Diff#MAX_HOSTS} of them.
+     *
+     * @param previous Blocklist being replaced
+     * @return Hosts added and removed
+     */
+    Diff diff(@NonNull HostsBlocklist previous) {
+        Diff diff = new Diff();
+        int i = 0;
+        int j = 0;
+        while (i < count && j < previous.count) {
+            int cmp = compare(i, previous, j);
+            if (cmp < 0)
+                diff.add(getHost(i++));
+            else if (cmp > 0)
+                diff.remove(previous.getHost(j++));
+            else {
+                i++;
+                j++;
+            }
+        }
+        while (i < count)
+            diff.add(getHost(i++));
+        while (j < previous.count)
+            diff.remove(previous.getHost(j++));
+        return diff;
+    }
+
+    private String getHost(int index) {
+        int start = blob + buffer.getInt(OFFSETS + index * 4);
+        int length = blob + buffer.getInt(OFFSETS + (index + 1) * 4) - start;
+        byte[] host = new byte[length];
+        for (int i = 0; i < length; i++)
+            host[i] = buffer.get(start + i);
+        return new String(host, StandardCharsets.US_ASCII);
+    }
+
+    private int compare(int index, HostsBlocklist other, int otherIndex) {
+        int start = blob + buffer.getInt(OFFSETS + index * 4);
+        int length = blob + buffer.getInt(OFFSETS + (index + 1) * 4) - start;
+        int otherStart = other.blob + other.buffer.getInt(OFFSETS + otherIndex * 4);
+        int otherLength = other.blob + other.buffer.getInt(OFFSETS + (otherIndex + 1) * 4) - otherStart;
+        int n = Math.min(length, otherLength);
+        for (int i = 0; i < n; i++) {
+            int d = (buffer.get(start + i) & 0xFF) - (other.buffer.get(otherStart + i) & 0xFF);
+            if (d != 0)
+                return d;
+        }
+        return length - otherLength;
+    }
+
+    /**
+     * Maps a compiled blocklist.
+     *
+     * @param file  Compiled blocklist
+     * @param stamp Expected source stamp
+     * @return Blocklist, or null if the file is missing, of another version, or
+     * was compiled from another source
+     */
+    @Nullable
+    static HostsBlocklist open(File file, long stamp) throws IOException {
+        if (!file.exists())
+            return null;
+
+        try (FileInputStream is = new FileInputStream(file)) {
+            FileChannel channel = is.getChannel();
+            if (channel.size() < OFFSETS + 4)
+                return null;
+            // The mapping stays valid after the file is closed, or replaced
+            // by a newer compile.
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION || buffer.getLong(8) != stamp)
+                return null;
+
+            int count = buffer.getInt(16);
+            int blob = OFFSETS + (count + 1) * 4;
+            if (count < 0 || blob > buffer.limit()
+                    || blob + buffer.getInt(OFFSETS + count * 4) != buffer.limit())
+                return null;
+
+            return new HostsBlocklist(buffer, count, blob);
+        }
+    }
+
+    /**
+     * Compiles a hosts file. The result replaces the target atomically, so a
+     * failed compile leaves any previous one in place.
+     *
+     * @param reader Hosts file contents
+     * @param target Compiled blocklist to write
+     * @param stamp  Source stamp to record, normally the hosts file's
+     *               modification time
+     * @return Number of hosts compiled
+     */
+    public static int compile(Reader reader, File target, long stamp) throws IOException {
+        return compile(reader, target, stamp, message -> {
+        });
+    }
+
+    static int compile(Reader reader, File target, long stamp, HostsBlocklistLogic.Logger logger)
+            throws IOException {
+        BufferedReader br = reader instanceof BufferedReader
+                ? (BufferedReader) reader : new BufferedReader(reader);
+        List<String> hosts = new ArrayList<>();
+        int count = 0;
+        String line;
+        while ((line = br.readLine()) != null) {
+            int hash = line.indexOf('#');
+            if (hash >= 0)
+                line = line.substring(0, hash);
+            line = line.trim();
+            if (line.length() > 0) {
+                String host = parseHost(line);
+                if (host != null) {
+                    count++;
+                    // Keyed lowercase to match TrackerList.findTracker(),
+                    // which normalises qnames before the hosts lookup.
+                    hosts.add(host.toLowerCase(Locale.ROOT));
+                } else
+                    logger.log("Invalid hosts file line: " + line);
+            }
+        }
+        hosts.add(TEST_HOST);
+        logger.log(count + " hosts read");
+
+        // Sort and drop duplicates, which are common across merged lists
+        Collections.sort(hosts);
+        int unique = 0;
+        for (String host : hosts)
+            if (unique == 0 || !host.equals(hosts.get(unique - 1)))
+                hosts.set(unique++, host);
+        hosts.subList(unique, hosts.size()).clear();
+
+        // Unique name, as the service and the blocklist download may compile
+        // concurrently
+        File tmp = File.createTempFile(target.getName(), ".tmp", target.getParentFile());
+        try {
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(tmp)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeLong(stamp);
+                out.writeInt(hosts.size());
+
+                int offset = 0;
+                for (String host : hosts) {
+                    out.writeInt(offset);
+                    offset += host.length();
+                }
+                out.writeInt(offset);
+
+                for (String host : hosts)
+                    out.write(host.getBytes(StandardCharsets.US_ASCII));
+            }
+
+            if (!tmp.renameTo(target))
+                throw new IOException("Cannot replace " + target);
+        } finally {
+            if (tmp.exists())
+                tmp.delete();
+        }
+
+        return count;
+    }
+
+    static final class Diff {
+        // Beyond this many hosts changed, only the number is kept: so much
+        // changed that everything derived from the hosts is better redone
+        static final int MAX_HOSTS = 10000;
+
+        int added = 0;
+        int removed = 0;
+        // Hosts added and removed, or null if there were more than MAX_HOSTS
+        @Nullable
+        Set<String> addedHosts = new HashSet<>();
+        @Nullable
+        Set<String> removedHosts = new HashSet<>();
+
+        private void add(String host) {
+            added++;
+            addedHosts = keep(addedHosts, added, host);
+        }
+
+        private void remove(String host) {
+            removed++;
+            removedHosts = keep(removedHosts, removed, host);
+        }
+
+        private static Set<String> keep(Set<String> hosts, int count, String host) {
+            if (hosts == null || count > MAX_HOSTS)
+                return null;
+            hosts.add(host);
+            return hosts;
+        }
+
+        /**
+         * @return Whether the hosts added and removed are all known
+         */
+        boolean isComplete() {
+            return addedHosts != null && removedHosts != null;
+        }
+
+        /**
+         * @return Hosts added or removed, or null if not all are known
+         */
+        @Nullable
+        Set<String> getHosts() {
+            if (!isComplete())
+                return null;
+            Set<String> hosts = new HashSet<>(addedHosts);
+            hosts.addAll(removedHosts);
+            return hosts;
+        }
+
+        boolean isEmpty() {
+            return added == 0 && removed == 0;
+        }
+
+        @Override
+        public String toString() {
+            return "+" + added + " -" + removed;
+        }
+    }
+
+    /**
+     * Parses an "address hostname" line, already stripped of comments and
+     * surrounding whitespace. Equivalent to splitting on \s+ and requiring
+     * exactly two words, without the regex.
+     *
+     * @return Hostname, or null if the line is not a valid hosts entry
+     */
+    @Nullable
+    static String parseHost(String line) {
+        int end = 0;
+        while (end < line.length() && !isSpace(line.charAt(end)))
+            end++;
+        int start = end;
+        while (start < line.length() && isSpace(line.charAt(start)))
+            start++;
+        if (end == 0 || start == end || start == line.length())
+            return null;
+
+        for (int i = start; i < line.length(); i++) {
+            char c = line.charAt(i);
+            // Only ASCII names can match a DNS query name
+            if (isSpace(c) || c > 0x7F)
+                return null;
+        }
+
+        return line.substring(start);
+    }
+
+    // The \s character class
+    private static boolean isSpace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == 0x0B || c == '\f' || c == '\r';
+    }
+}
@@ -1,76 +1,83 @@
 package eu.faircode.netguard;
 
-import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
 import java.io.Reader;
-import java.util.Locale;
-import java.util.Map;
 
 final class HostsBlocklistLogic {
     interface Logger {
         void log(String message);
     }
 
+    interface Source {
+        Reader open() throws IOException;
+    }
+
     private static final Logger NOOP_LOGGER = message -> {
     };
 
     static final class State {
-        private final Map<String, Boolean> mapHostsBlocked;
         private final Logger logger;
+        private HostsBlocklist blocklist;
         private long lastModified;
+        private HostsBlocklist.Diff diff = new HostsBlocklist.Diff();
 
-        State(Map<String, Boolean> mapHostsBlocked, long lastModified) {
-            this(mapHostsBlocked, lastModified, NOOP_LOGGER);
+        State(HostsBlocklist blocklist, long lastModified) {
+            this(blocklist, lastModified, NOOP_LOGGER);
         }
 
-        State(Map<String, Boolean> mapHostsBlocked, long lastModified, Logger logger) {
-            this.mapHostsBlocked = mapHostsBlocked;
+        State(HostsBlocklist blocklist, long lastModified, Logger logger) {
+            this.blocklist = blocklist;
             this.lastModified = lastModified;
             this.logger = logger;
         }
 
         boolean shouldReload(long modified) {
-            return modified != lastModified || mapHostsBlocked.size() == 0;
+            return modified != lastModified || blocklist.size() == 0;
         }
 
-        boolean load(Reader reader, long modified) throws IOException {
+        /**
+         * Loads the blocklist for a hosts file, reusing its compiled form if
+         * that is current and compiling it from the source otherwise. The
+         * change against the previous blocklist is available from getDiff().
+         *
+         * @param source   Hosts file, opened only if a compile is needed
+         * @param compiled Compiled blocklist
+         * @param modified Modification time of the hosts file
+         * @return True if a new blocklist was loaded
+         */
+        boolean load(Source source, File compiled, long modified) throws IOException {
             if (!shouldReload(modified))
                 return false;
 
-            parse(reader);
+            HostsBlocklist loaded = HostsBlocklist.open(compiled, modified);
+            if (loaded == null) {
+                try (Reader reader = source.open()) {
+                    HostsBlocklist.compile(reader, compiled, modified, logger);
+                }
+                loaded = HostsBlocklist.open(compiled, modified);
+                if (loaded == null)
+                    throw new IOException("Cannot read compiled hosts " + compiled);
+            }
+            diff = loaded.diff(blocklist);
+            logger.log(loaded.size() + " hosts blocked, changes " + diff);
+
+            blocklist = loaded;
             lastModified = modified;
             return true;
         }
 
-        void parse(Reader reader) throws IOException {
-            mapHostsBlocked.clear();
-            BufferedReader br = reader instanceof BufferedReader
-                    ? (BufferedReader) reader : new BufferedReader(reader);
-            int count = 0;
-            String line;
-            while ((line = br.readLine()) != null) {
-                int hash = line.indexOf('#');
-                if (hash >= 0)
-                    line = line.substring(0, hash);
-                line = line.trim();
-                if (line.length() > 0) {
-                    String[] words = line.split("\\s+");
-                    if (words.length == 2) {
-                        count++;
-                        // Keyed lowercase to match TrackerList.findTracker(),
-                        // which normalises qnames before the hosts lookup.
-                        mapHostsBlocked.put(words[1].toLowerCase(Locale.ROOT), true);
-                    } else
-                        logger.log("Invalid hosts file line: " + line);
-                }
-            }
-            mapHostsBlocked.put("test.netguard.me", true);
-            logger.log(count + " hosts read");
+        HostsBlocklist getBlocklist() {
+            return blocklist;
         }
 
         long getLastModified() {
             return lastModified;
         }
+
+        HostsBlocklist.Diff getDiff() {
+            return diff;
+        }
     }
 
     private HostsBlocklistLogic() {
@@ -100,6 +100,128 @@ public class IPUtil {
         return long2inet(inet2long(addr) + 1);
     }
 
+    /**
+     * Packs a numeric IPv4 or IPv6 address into two longs, high half first,
+     * IPv4 as an IPv4-mapped IPv6 address, without allocating.
+     *
+     * @return False if the address is not numeric
+     */
+    static boolean pack(String address, long[] key) {
+        if (address == null || address.isEmpty())
+            return false;
+        if (address.indexOf(':') < 0) {
+            long ipv4 = parseIPv4(address, 0, address.length());
+            if (ipv4 < 0)
+                return false;
+            key[0] = 0;
+            key[1] = 0xFFFF00000000L | ipv4;
+            return true;
+        }
+        return parseIPv6(address, key);
+    }
+
+    /**
+     * @return Whether a packed address is an IPv4(-mapped) address
+     */
+    static boolean isIPv4(long[] key) {
+        return key[0] == 0 && (key[1] >>> 32) == 0xFFFF;
+    }
+
+    /**
+     * @return The address as an unsigned int, or -1 if it is not dotted quad
+     */
+    private static long parseIPv4(String address, int start, int end) {
+        long result = 0;
+        int octets = 0;
+        int value = -1;
+        for (int i = start; i <= end; i++) {
+            char c = (i < end ? address.charAt(i) : '.');
+            if (c == '.') {
+                if (value < 0 || ++octets > 4)
+                    return -1;
+                result = (result << 8) | value;
+                value = -1;
+            } else if (c >= '0' && c <= '9') {
+                value = (value < 0 ? 0 : value * 10) + (c - '0');
+                if (value > 255)
+                    return -1;
+            } else
+                return -1;
+        }
+        return (octets == 4 ? result : -1);
+    }
+
+    private static boolean parseIPv6(String address, long[] key) {
+        int end = address.indexOf('%'); // zone
+        if (end < 0)
+            end = address.length();
+        key[0] = 0;
+        key[1] = 0;
+        int count = 0;
+        int compressed = -1;
+        int i = 0;
+        if (address.startsWith("::")) {
+            compressed = 0;
+            i = 2;
+        }
+        while (i < end) {
+            int next = i;
+            int value = 0;
+            while (next < end && address.charAt(next) != ':') {
+                if (address.charAt(next) == '.') {
+                    // Trailing IPv4 part
+                    long ipv4 = parseIPv4(address, i, end);
+                    if (ipv4 < 0 || count > 6)
+                        return false;
+                    setGroup(key, count++, (int) (ipv4 >>> 16));
+                    value = (int) (ipv4 & 0xFFFF);
+                    next = end;
+                    break;
+                }
+                int digit = Character.digit(address.charAt(next), 16);
+                if (digit < 0 || next - i >= 4)
+                    return false;
+                value = (value << 4) | digit;
+                next++;
+            }
+            if (next == i || count >= 8)
+                return false;
+            setGroup(key, count++, value);
+            if (next == end)
+                break;
+            // At a colon; a second one compresses zero groups
+            i = next + 1;
+            if (i < end && address.charAt(i) == ':') {
+                if (compressed >= 0)
+                    return false;
+                compressed = count;
+                i++;
+            } else if (i == end)
+                return false;
+        }
+
+        if (compressed < 0)
+            return count == 8;
+        if (count == 8)
+            return false;
+        // Move the groups after "::" to the end
+        int shift = 8 - count;
+        for (int g = count - 1; g >= compressed; g--) {
+            setGroup(key, g + shift, getGroup(key, g));
+            setGroup(key, g, 0);
+        }
+        return true;
+    }
+
+    private static int getGroup(long[] key, int group) {
+        return (int) (key[group >> 2] >>> ((3 - (group & 3)) * 16)) & 0xFFFF;
+    }
+
+    private static void setGroup(long[] key, int group, int value) {
+        int shift = (3 - (group & 3)) * 16;
+        key[group >> 2] = (key[group >> 2] & ~(0xFFFFL << shift)) | ((long) value << shift);
+    }
+
     public static class CIDR implements Comparable<CIDR> {
         public InetAddress address;
         public int prefix;
@@ -0,0 +1,112 @@
+package eu.faircode.netguard;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Decodes the records of the packet log ring the native tunnel writes into
+ * (see logring.c): packets it logs, packets it answered from its verdict
+ * cache and traffic usage, in place of a Packet or Usage object per event.
+ * <p>
+ * The layout mirrors struct log_record: fixed-size records in native byte
+ * order, strings NUL-terminated within their field. Decoding fills in objects
+ * owned by the caller, so a drained batch allocates only the strings that are
+ * asked for.
+ */
+final class LogRing {
+    static final int RECORD_SIZE = 448;
+
+    static final int TYPE_PACKET = 1;
+    static final int TYPE_VERDICT = 2;
+    static final int TYPE_USAGE = 3;
+
+    static final int OFFSET_TIME = 0;
+    static final int OFFSET_SENT = 8;
+    static final int OFFSET_RECEIVED = 16;
+    static final int OFFSET_UID = 24;
+    static final int OFFSET_SPORT = 28;
+    static final int OFFSET_DPORT = 30;
+    static final int OFFSET_TYPE = 32;
+    static final int OFFSET_VERSION = 33;
+    static final int OFFSET_PROTOCOL = 34;
+    static final int OFFSET_ALLOWED = 35;
+    static final int OFFSET_FLAGS = 36;
+    static final int OFFSET_SADDR = 48;
+    static final int OFFSET_DADDR = 96;
+    static final int OFFSET_DATA = 144;
+
+    private static final int SIZE_FLAGS = 12;
+    private static final int SIZE_ADDR = 48;
+    private static final int SIZE_DATA = 304;
+
+    private final ByteBuffer ring;
+    private final int mask;
+    private final byte[] scratch = new byte[SIZE_DATA];
+
+    /**
+     * @param ring Whole ring, its capacity a power of two number of records
+     */
+    LogRing(ByteBuffer ring) {
+        this.ring = ring.order(ByteOrder.nativeOrder());
+        this.mask = ring.capacity() / RECORD_SIZE - 1;
+    }
+
+    private int base(int position) {
+        return (position & mask) * RECORD_SIZE;
+    }
+
+    /**
+     * @param position Free-running position of the record in the ring
+     */
+    int getType(int position) {
+        return ring.get(base(position) + OFFSET_TYPE);
+    }
+
+    /**
+     * Fills in a packet from a packet or verdict record. The source address
+     * and flags are only needed for the traffic log, so they are left null
+     * unless asked for.
+     */
+    void getPacket(int position, Packet packet, boolean addresses) {
+        int base = base(position);
+        packet.time = ring.getLong(base + OFFSET_TIME);
+        packet.uid = ring.getInt(base + OFFSET_UID);
+        packet.sport = ring.getShort(base + OFFSET_SPORT) & 0xFFFF;
+        packet.dport = ring.getShort(base + OFFSET_DPORT) & 0xFFFF;
+        packet.version = ring.get(base + OFFSET_VERSION) & 0xFF;
+        packet.protocol = ring.get(base + OFFSET_PROTOCOL) & 0xFF;
+        packet.allowed = ring.get(base + OFFSET_ALLOWED) != 0;
+        packet.flags = addresses ? getString(base + OFFSET_FLAGS, SIZE_FLAGS) : null;
+        packet.saddr = addresses ? getString(base + OFFSET_SADDR, SIZE_ADDR) : null;
+        packet.daddr = getString(base + OFFSET_DADDR, SIZE_ADDR);
+        packet.data = getString(base + OFFSET_DATA, SIZE_DATA);
+    }
+
+    /**
+     * Whether a packet or verdict record carries TCP flags, without decoding them.
+     */
+    boolean hasFlags(int position) {
+        return ring.get(base(position) + OFFSET_FLAGS) != 0;
+    }
+
+    void getUsage(int position, Usage usage) {
+        int base = base(position);
+        usage.Time = ring.getLong(base + OFFSET_TIME);
+        usage.Sent = ring.getLong(base + OFFSET_SENT);
+        usage.Received = ring.getLong(base + OFFSET_RECEIVED);
+        usage.Uid = ring.getInt(base + OFFSET_UID);
+        usage.DPort = ring.getShort(base + OFFSET_DPORT) & 0xFFFF;
+        usage.Version = ring.get(base + OFFSET_VERSION) & 0xFF;
+        usage.Protocol = ring.get(base + OFFSET_PROTOCOL) & 0xFF;
+        usage.DAddr = getString(base + OFFSET_DADDR, SIZE_ADDR);
+    }
+
+    private String getString(int offset, int size) {
+        int length = 0;
+        byte b;
+        while (length < size && (b = ring.get(offset + length)) != 0)
+            scratch[length++] = b;
+        return length == 0 ? "" : new String(scratch, 0, length, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,241 @@
+package eu.faircode.netguard;
+
+import android.content.Context;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The rotating pcapng segments the native capture writes (see pcap.c), and
+ * their export as one file.
+ * <p>
+ * Every segment is a pcapng section of its own, so segments concatenated in
+ * order are a valid capture. On export the "uid N" comments the tunnel puts
+ * on packets are extended with the packages of that uid, which are not known
+ * natively; everything else is copied as is.
+ */
+final class PcapSegments {
+    static final String DIR = "pcap";
+
+    static final int BLOCK_SHB = 0x0A0D0D0A;
+    static final int BLOCK_EPB = 0x00000006;
+    static final int BYTE_ORDER = 0x1A2B3C4D;
+
+    static final int OPT_END = 0;
+    static final int OPT_COMMENT = 1;
+
+    // Larger blocks than any the capture writes mean a damaged segment
+    private static final int MAX_BLOCK = 1024 * 1024;
+
+    private static final Pattern SEGMENT = Pattern.compile("netguard-(\\d+)\\.pcapng");
+    private static final Pattern UID = Pattern.compile("uid (-?\\d+)");
+
+    /** Packages of a uid, for packet comments. */
+    interface Names {
+        /**
+         * @return Package names to append, or null when there are none
+         */
+        String get(int uid);
+    }
+
+    private PcapSegments() {
+    }
+
+    static File getDir(Context context) {
+        return new File(context.getDir("data", Context.MODE_PRIVATE), DIR);
+    }
+
+    /**
+     * @return Segments in the order they were written
+     */
+    static List<File> list(File dir) {
+        List<File> segments = new ArrayList<>();
+        final Map<File, Integer> numbers = new HashMap<>();
+        File[] files = dir.listFiles();
+        if (files != null)
+            for (File file : files) {
+                Matcher m = SEGMENT.matcher(file.getName());
+                if (m.matches()) {
+                    segments.add(file);
+                    numbers.put(file, Integer.parseInt(m.group(1)));
+                }
+            }
+        Collections.sort(segments, (a, b) -> Integer.compare(numbers.get(a), numbers.get(b)));
+        return segments;
+    }
+
+    static boolean exists(File dir) {
+        return !list(dir).isEmpty();
+    }
+
+    /**
+     * Delete all segments; the capture must be stopped.
+     *
+     * @return Whether all were deleted
+     */
+    static boolean clear(File dir) {
+        boolean deleted = true;
+        for (File segment : list(dir))
+            if (!segment.delete())
+                deleted = false;
+        return deleted;
+    }
+
+    /**
+     * Write segments to out as one capture. A truncated or damaged block ends
+     * its segment, so what was captured before it is still exported.
+     *
+     * @return Number of bytes written
+     */
+    static long export(List<File> segments, OutputStream out, Names names) throws IOException {
+        Map<Integer, String> cache = new HashMap<>();
+        BufferedOutputStream buffered = new BufferedOutputStream(out, 64 * 1024);
+        long total = 0;
+        for (File segment : segments)
+            try (InputStream in = new BufferedInputStream(new FileInputStream(segment), 64 * 1024)) {
+                total += copy(in, buffered, names, cache);
+            }
+        buffered.flush();
+        return total;
+    }
+
+    static long copy(InputStream stream, OutputStream out, Names names, Map<Integer, String> cache)
+            throws IOException {
+        DataInputStream in = new DataInputStream(stream);
+        ByteOrder order = ByteOrder.nativeOrder();
+        byte[] head = new byte[12];
+        long total = 0;
+        while (true) {
+            // Type and length, and the byte order magic of a section header
+            if (!readFully(in, head, 0, 8))
+                return total;
+            ByteBuffer bb = ByteBuffer.wrap(head).order(order);
+            int type = bb.getInt(0);
+            if (type == BLOCK_SHB) {
+                if (!readFully(in, head, 8, 4))
+                    return total;
+                int magic = ByteBuffer.wrap(head, 8, 4).order(ByteOrder.BIG_ENDIAN).getInt();
+                order = (magic == BYTE_ORDER ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN);
+                bb.order(order);
+            }
+
+            int length = bb.getInt(4);
+            if (length < 12 || length % 4 != 0 || length > MAX_BLOCK)
+                return total;
+
+            byte[] block = new byte[length];
+            int done = (type == BLOCK_SHB ? 12 : 8);
+            System.arraycopy(head, 0, block, 0, done);
+            if (!readFully(in, block, done, length - done))
+                return total;
+
+            if (type == BLOCK_EPB)
+                block = annotate(block, order, names, cache);
+            out.write(block);
+            total += block.length;
+        }
+    }
+
+    /**
+     * Extend the uid comment of an enhanced packet block with package names.
+     *
+     * @return The block, rewritten when its comment changed
+     */
+    static byte[] annotate(byte[] block, ByteOrder order, Names names, Map<Integer, String> cache) {
+        ByteBuffer bb = ByteBuffer.wrap(block).order(order);
+        int end = block.length - 4;
+        if (end < 28)
+            return block;
+        int caplen = bb.getInt(20);
+        int options = 28 + pad(caplen);
+        if (caplen < 0 || options > end)
+            return block;
+
+        // Find the comment
+        int offset = options;
+        int comment = -1;
+        while (offset + 4 <= end) {
+            int code = bb.getShort(offset) & 0xFFFF;
+            int size = bb.getShort(offset + 2) & 0xFFFF;
+            if (code == OPT_END || offset + 4 + pad(size) > end)
+                break;
+            if (code == OPT_COMMENT) {
+                comment = offset;
+                break;
+            }
+            offset += 4 + pad(size);
+        }
+        if (comment < 0)
+            return block;
+
+        int size = bb.getShort(comment + 2) & 0xFFFF;
+        String text = new String(block, comment + 4, size, StandardCharsets.UTF_8);
+        Matcher m = UID.matcher(text);
+        if (!m.matches())
+            return block;
+
+        int uid;
+        try {
+            uid = Integer.parseInt(m.group(1));
+        } catch (NumberFormatException ignored) {
+            return block;
+        }
+        String packages;
+        if (cache.containsKey(uid))
+            packages = cache.get(uid);
+        else {
+            packages = names.get(uid);
+            cache.put(uid, packages);
+        }
+        if (packages == null || packages.isEmpty())
+            return block;
+
+        byte[] value = (text + " " + packages).getBytes(StandardCharsets.UTF_8);
+        if (value.length > 0xFFFF)
+            return block;
+
+        int tail = comment + 4 + pad(size);
+        int length = comment + 4 + pad(value.length) + (end - tail) + 4;
+        byte[] result = new byte[length];
+        System.arraycopy(block, 0, result, 0, comment);
+        ByteBuffer rb = ByteBuffer.wrap(result).order(order);
+        rb.putShort(comment, (short) OPT_COMMENT);
+        rb.putShort(comment + 2, (short) value.length);
+        System.arraycopy(value, 0, result, comment + 4, value.length);
+        System.arraycopy(block, tail, result, comment + 4 + pad(value.length), end - tail);
+        rb.putInt(4, length);
+        rb.putInt(length - 4, length);
+        return result;
+    }
+
+    private static int pad(int length) {
+        return (length + 3) & ~3;
+    }
+
+    private static boolean readFully(DataInputStream in, byte[] buffer, int offset, int length)
+            throws IOException {
+        try {
+            in.readFully(buffer, offset, length);
+            return true;
+        } catch (EOFException ignored) {
+            return false;
+        }
+    }
+}
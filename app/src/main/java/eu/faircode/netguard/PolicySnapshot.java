@@ -0,0 +1,148 @@
+package eu.faircode.netguard;
+
+import net.kollnig.missioncontrol.data.BlockingModeLogic;
+
+import java.util.Arrays;
+
+/**
+ * Immutable view of everything the packet verdict path needs from preferences
+ * and the per-app blocklists. Rebuilt off the packet path whenever one of them
+ * changes and published through a volatile field, so that a verdict takes no
+ * lock, reads no SharedPreferences and boxes no uid.
+ * <p>
+ * Per-app flags live in a table sorted by uid and are binary-searched.
+ */
+final class PolicySnapshot {
+    // The uid has a rule, i.e. belongs to an installed app
+    static final int FLAG_KNOWN = 1;
+    // Tracker blocking and logging apply to the app (see shouldTrackApp())
+    static final int FLAG_TRACK = 1 << 1;
+    static final int FLAG_INTERNET_BLOCKED = 1 << 2;
+
+    static final int NOT_FOUND = -1;
+
+    static final PolicySnapshot EMPTY = new Builder().build();
+
+    final String blockingMode;
+    final boolean blockAmbiguousTrackers;
+    final boolean blockDot;
+    final boolean logPackets;
+    final boolean logLogcat;
+    // Seconds a DNS record is kept at least, whatever its TTL
+    final int minDnsTtl;
+
+    private final int[] uids;
+    private final byte[] flags;
+
+    private PolicySnapshot(Builder builder, int[] uids, byte[] flags) {
+        this.blockingMode = builder.blockingMode;
+        this.blockAmbiguousTrackers = builder.blockAmbiguousTrackers;
+        this.blockDot = builder.blockDot;
+        this.logPackets = builder.logPackets;
+        this.logLogcat = builder.logLogcat;
+        this.minDnsTtl = builder.minDnsTtl;
+        this.uids = uids;
+        this.flags = flags;
+    }
+
+    /**
+     * @return Flags of the uid, or NOT_FOUND if the snapshot has no entry for it
+     */
+    int getFlags(int uid) {
+        int i = Arrays.binarySearch(uids, uid);
+        return i < 0 ? NOT_FOUND : flags[i];
+    }
+
+    boolean isKnown(int uid) {
+        int f = getFlags(uid);
+        return f != NOT_FOUND && (f & FLAG_KNOWN) != 0;
+    }
+
+    boolean isInternetBlocked(int uid) {
+        int f = getFlags(uid);
+        return f != NOT_FOUND && (f & FLAG_INTERNET_BLOCKED) != 0;
+    }
+
+    int size() {
+        return uids.length;
+    }
+
+    static final class Builder {
+        private String blockingMode = BlockingModeLogic.MODE_MINIMAL;
+        private boolean blockAmbiguousTrackers;
+        private boolean blockDot = true;
+        private boolean logPackets;
+        private boolean logLogcat;
+        private int minDnsTtl = 259200;
+
+        private int[] uids = new int[64];
+        private byte[] flags = new byte[64];
+        private int count;
+
+        Builder setBlockingMode(String blockingMode, boolean blockAmbiguousTrackers) {
+            this.blockingMode = blockingMode;
+            this.blockAmbiguousTrackers = blockAmbiguousTrackers;
+            return this;
+        }
+
+        Builder setBlockDot(boolean blockDot) {
+            this.blockDot = blockDot;
+            return this;
+        }
+
+        Builder setLogPackets(boolean logPackets) {
+            this.logPackets = logPackets;
+            return this;
+        }
+
+        Builder setLogLogcat(boolean logLogcat) {
+            this.logLogcat = logLogcat;
+            return this;
+        }
+
+        Builder setMinDnsTtl(int minDnsTtl) {
+            this.minDnsTtl = minDnsTtl;
+            return this;
+        }
+
+        /**
+         * Adds flags to a uid, combining them with any added before.
+         */
+        Builder addFlags(int uid, int flags) {
+            if (count == uids.length) {
+                this.uids = Arrays.copyOf(this.uids, count * 2);
+                this.flags = Arrays.copyOf(this.flags, count * 2);
+            }
+            this.uids[count] = uid;
+            this.flags[count] = (byte) flags;
+            count++;
+            return this;
+        }
+
+        PolicySnapshot build() {
+            // Sort by uid, merging the flags of repeated uids
+            long[] entries = new long[count];
+            for (int i = 0; i < count; i++)
+                entries[i] = ((long) uids[i] << 8) | (flags[i] & 0xFF);
+            Arrays.sort(entries);
+
+            int[] sortedUids = new int[count];
+            byte[] sortedFlags = new byte[count];
+            int n = 0;
+            for (long entry : entries) {
+                int uid = (int) (entry >> 8);
+                byte f = (byte) entry;
+                if (n > 0 && sortedUids[n - 1] == uid)
+                    sortedFlags[n - 1] |= f;
+                else {
+                    sortedUids[n] = uid;
+                    sortedFlags[n] = f;
+                    n++;
+                }
+            }
+
+            return new PolicySnapshot(this,
+                    Arrays.copyOf(sortedUids, n), Arrays.copyOf(sortedFlags, n));
+        }
+    }
+}
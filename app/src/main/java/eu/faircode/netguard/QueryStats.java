@@ -0,0 +1,74 @@
+package eu.faircode.netguard;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Call counts and timings of the database lookups on the packet and log
+ * paths, logged regularly so that a slow query shows up without a trace.
+ */
+final class QueryStats {
+    static final class Counter {
+        final String name;
+        private final AtomicLong calls = new AtomicLong();
+        private final AtomicLong nanos = new AtomicLong();
+        private final AtomicLong max = new AtomicLong();
+
+        private Counter(String name) {
+            this.name = name;
+        }
+
+        /**
+         * @param start System.nanoTime() when the query started
+         */
+        void add(long start) {
+            long elapsed = System.nanoTime() - start;
+            calls.incrementAndGet();
+            nanos.addAndGet(elapsed);
+            long m;
+            while (elapsed > (m = max.get()))
+                if (max.compareAndSet(m, elapsed))
+                    break;
+        }
+
+        long getCalls() {
+            return calls.get();
+        }
+
+        long getNanos() {
+            return nanos.get();
+        }
+
+        long getMaxNanos() {
+            return max.get();
+        }
+
+        @Override
+        public String toString() {
+            long n = calls.get();
+            return String.format(Locale.ROOT, "%s calls=%d avg=%.3fms max=%.3fms", name, n,
+                    n == 0 ? 0d : nanos.get() / (n * 1e6), max.get() / 1e6);
+        }
+    }
+
+    private final List<Counter> counters = new ArrayList<>();
+
+    synchronized Counter counter(String name) {
+        Counter counter = new Counter(name);
+        counters.add(counter);
+        return counter;
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (Counter counter : counters) {
+            if (sb.length() > 0)
+                sb.append(", ");
+            sb.append(counter);
+        }
+        return sb.toString();
+    }
+}
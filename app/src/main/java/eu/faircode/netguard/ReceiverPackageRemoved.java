@@ -44,6 +44,8 @@ public class ReceiverPackageRemoved extends BroadcastReceiver {
                 DatabaseHelper dh = DatabaseHelper.getInstance(context);
                 dh.clearLog(uid);
                 dh.clearAccess(uid, false);
+                if (intent.getData() != null)
+                    dh.deleteApp(intent.getData().getSchemeSpecificPart());
 
                 TrackerBlocklist b = TrackerBlocklist.getInstance(context);
                 b.clear(uid);
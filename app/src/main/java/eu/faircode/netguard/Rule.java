@@ -29,11 +29,11 @@ import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.content.pm.ResolveInfo;
 import android.content.res.XmlResourceParser;
-import android.database.Cursor;
 import android.os.Build;
 import android.os.Process;
 import android.util.Log;
 
+import androidx.core.content.pm.PackageInfoCompat;
 import androidx.preference.PreferenceManager;
 
 import com.google.android.material.snackbar.Snackbar;
@@ -57,6 +57,11 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class Rule {
     private static final String TAG = "TrackerControl.Rule";
@@ -105,14 +110,16 @@ public class Rule {
     public boolean expanded = false;
 
     private static List<PackageInfo> cachePackageInfo = null;
-    private static Map<PackageInfo, String> cacheLabel = new HashMap<>();
-    private static Map<String, Boolean> cacheSystem = new HashMap<>();
+    private static final Map<String, Boolean> cacheSystem = new ConcurrentHashMap<>();
     private static final Object predefinedLock = new Object();
     private static PredefinedRules cachePredefinedRules;
-    private static Map<String, Boolean> cacheInternet = new HashMap<>();
-    private static Map<PackageInfo, Boolean> cacheEnabled = new HashMap<>();
     private static Map<Integer, Long> trackerRecent = new HashMap<>();
 
+    // Rules are built in parallel, mostly waiting on package manager IPC
+    private static final int RULE_THREADS =
+            Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors()));
+    private static final ExecutorService ruleExecutor = Executors.newFixedThreadPool(RULE_THREADS);
+
     private static final class PredefinedRules {
         final Map<String, Boolean> wifiBlocked = new HashMap<>();
         final Map<String, Boolean> otherBlocked = new HashMap<>();
@@ -133,21 +140,14 @@ public class Rule {
         return new ArrayList<>(cachePackageInfo);
     }
 
-    private static String getLabel(PackageInfo info, Context context) {
-        if (!cacheLabel.containsKey(info)) {
-            PackageManager pm = context.getPackageManager();
-            cacheLabel.put(info, info.applicationInfo.loadLabel(pm).toString());
-        }
-        return cacheLabel.get(info);
-    }
-
     public static boolean isSystem(String packageName, Context context) {
-        if (!cacheSystem.containsKey(packageName)) {
-            boolean system = Util.isSystem(packageName, context);
+        Boolean system = cacheSystem.get(packageName);
+        if (system == null) {
             Boolean predefined = getPredefinedRules(context).system.get(packageName);
-            cacheSystem.put(packageName, resolveSystemClassification(system, predefined));
+            system = resolveSystemClassification(Util.isSystem(packageName, context), predefined);
+            cacheSystem.put(packageName, system);
         }
-        return cacheSystem.get(packageName);
+        return system;
     }
 
     static boolean resolveSystemClassification(boolean system, Boolean predefined) {
@@ -194,36 +194,57 @@ public class Rule {
         }
     }
 
-    private static boolean hasInternet(String packageName, Context context) {
-        if (!cacheInternet.containsKey(packageName))
-            cacheInternet.put(packageName, Util.hasInternet(packageName, context));
-        return cacheInternet.get(packageName);
-    }
-
-    private static boolean isEnabled(PackageInfo info, Context context) {
-        if (!cacheEnabled.containsKey(info))
-            cacheEnabled.put(info, Util.isEnabled(info, context));
-        return cacheEnabled.get(info);
+    /**
+     * Resolve what the app list shows of a package, or take it from the app
+     * table if it was stored for the same version of the package.
+     */
+    private static AppMetadata getMetadata(PackageInfo info, AppMetadata stored, Context context) {
+        long versionCode = PackageInfoCompat.getLongVersionCode(info);
+        if (stored != null && stored.isCurrent(versionCode, info.lastUpdateTime))
+            return stored;
+
+        PackageManager pm = context.getPackageManager();
+        AppMetadata app = new AppMetadata();
+        app.packageName = info.packageName;
+        app.versionCode = versionCode;
+        app.lastUpdateTime = info.lastUpdateTime;
+        app.label = info.applicationInfo.loadLabel(pm).toString();
+        app.system = isSystem(info.packageName, context);
+        app.internet = Util.hasInternet(info.packageName, context);
+        app.enabled = Util.isEnabled(info, context);
+        return app;
     }
 
     public static void clearCache(Context context) {
         Log.i(TAG, "Clearing cache");
         synchronized (context.getApplicationContext()) {
             cachePackageInfo = null;
-            cacheLabel.clear();
             cacheSystem.clear();
             synchronized (predefinedLock) {
                 cachePredefinedRules = null;
             }
-            cacheInternet.clear();
-            cacheEnabled.clear();
         }
 
         DatabaseHelper dh = DatabaseHelper.getInstance(context);
         dh.clearApps();
     }
 
-    private Rule(DatabaseHelper dh, PackageInfo info, Context context) {
+    /**
+     * Forget what is known of one package, when it was added, removed or
+     * changed; the metadata of all other packages stays valid.
+     */
+    public static void clearCache(Context context, String packageName) {
+        Log.i(TAG, "Clearing cache package=" + packageName);
+        synchronized (context.getApplicationContext()) {
+            cachePackageInfo = null;
+            cacheSystem.remove(packageName);
+        }
+
+        DatabaseHelper dh = DatabaseHelper.getInstance(context);
+        dh.deleteApp(packageName);
+    }
+
+    private Rule(PackageInfo info, Map<String, AppMetadata> stored, List<AppMetadata> resolved, Context context) {
         this.uid = info.applicationInfo.uid;
         this.packageName = info.packageName;
         this.icon = info.applicationInfo.icon;
@@ -265,26 +286,14 @@ public class Rule {
             this.enabled = true;
             this.pkg = false;
         } else {
-            Cursor cursor = null;
-            try {
-                cursor = dh.getApp(this.packageName);
-                if (cursor.moveToNext()) {
-                    this.name = cursor.getString(cursor.getColumnIndexOrThrow("label"));
-                    this.system = cursor.getInt(cursor.getColumnIndexOrThrow("system")) > 0;
-                    this.internet = cursor.getInt(cursor.getColumnIndexOrThrow("internet")) > 0;
-                    this.enabled = cursor.getInt(cursor.getColumnIndexOrThrow("enabled")) > 0;
-                } else {
-                    this.name = getLabel(info, context);
-                    this.system = isSystem(info.packageName, context);
-                    this.internet = hasInternet(info.packageName, context);
-                    this.enabled = isEnabled(info, context);
-
-                    dh.addApp(this.packageName, this.name, this.system, this.internet, this.enabled);
-                }
-            } finally {
-                if (cursor != null)
-                    cursor.close();
-            }
+            AppMetadata app = getMetadata(info, stored.get(this.packageName), context);
+            if (app != stored.get(this.packageName))
+                resolved.add(app);
+
+            this.name = app.label;
+            this.system = app.system;
+            this.internet = app.internet;
+            this.enabled = app.enabled;
         }
     }
 
@@ -395,16 +404,38 @@ public class Rule {
 
             DatabaseHelper dh = DatabaseHelper.getInstance(context);
             TrackerBlocklist trackerBlocklist = TrackerBlocklist.getInstance(context);
-            boolean trackerDefaultsChanged = false;
+            Map<String, AppMetadata> stored = dh.getApps();
+            List<AppMetadata> resolved = Collections.synchronizedList(new ArrayList<>());
+
+            // Packages by uid, for related packages
+            Map<Integer, List<String>> uidPackages = new HashMap<>();
+            for (PackageInfo pi : listPI) {
+                List<String> packages = uidPackages.get(pi.applicationInfo.uid);
+                if (packages == null) {
+                    packages = new ArrayList<>();
+                    uidPackages.put(pi.applicationInfo.uid, packages);
+                }
+                packages.add(pi.packageName);
+            }
+
+            // Tracker defaults of new apps, published at once
+            List<Integer> uids = new ArrayList<>();
             for (PackageInfo info : listPI)
-                try {
-                    // Skip self
-                    if (!self && info.applicationInfo.uid == Process.myUid())
-                        continue;
+                if (self || info.applicationInfo.uid != Process.myUid())
+                    uids.add(info.applicationInfo.uid);
+            boolean trackerDefaultsChanged = trackerBlocklist.ensureDefaults(uids, strict_blocking);
 
-                    Rule rule = new Rule(dh, info, context);
+            // Load the browser list here rather than on the pool
+            BlockingMode.isBrowserApp(context, context.getPackageName());
 
-                    trackerDefaultsChanged |= trackerBlocklist.ensureDefaults(rule.uid, strict_blocking);
+            List<Future<Rule>> futures = new ArrayList<>();
+            for (PackageInfo info : listPI) {
+                // Skip self
+                if (!self && info.applicationInfo.uid == Process.myUid())
+                    continue;
+
+                futures.add(ruleExecutor.submit(() -> {
+                    Rule rule = new Rule(info, stored, resolved, context);
 
                     if (predefined.system.containsKey(info.packageName))
                         rule.system = predefined.system.get(info.packageName);
@@ -442,10 +473,10 @@ public class Rule {
                         List<String> listPkg = new ArrayList<>();
                         if (predefined.related.containsKey(info.packageName))
                             listPkg.addAll(Arrays.asList(predefined.related.get(info.packageName)));
-                        for (PackageInfo pi : listPI)
-                            if (pi.applicationInfo.uid == rule.uid && !pi.packageName.equals(rule.packageName)) {
+                        for (String pkg : uidPackages.get(rule.uid))
+                            if (!pkg.equals(rule.packageName)) {
                                 rule.relateduids = true;
-                                listPkg.add(pi.packageName);
+                                listPkg.add(pkg);
                             }
                         rule.related = listPkg.toArray(new String[0]);
 
@@ -455,14 +486,33 @@ public class Rule {
 
                         // Check unprotected filter: when enabled, only show apps that are not protected
                         boolean isUnprotected = !rule.apply || !rule.tracker_protect;
-                        if (!show_unprotected || isUnprotected) {
-                            listRules.add(rule);
-                        }
+                        if (!show_unprotected || isUnprotected)
+                            return rule;
                     }
-                } catch (Throwable ex) {
+                    return null;
+                }));
+            }
+
+            // In package order, as before
+            for (Future<Rule> future : futures)
+                try {
+                    Rule rule = future.get();
+                    if (rule != null)
+                        listRules.add(rule);
+                } catch (ExecutionException ex) {
+                    Log.e(TAG, ex.getCause().toString() + "\n" + Log.getStackTraceString(ex.getCause()));
+                } catch (InterruptedException ex) {
                     Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
+                    Thread.currentThread().interrupt();
+                    break;
                 }
 
+            if (!resolved.isEmpty()) {
+                Log.i(TAG, "Resolved packages=" + resolved.size() + "/" + listPI.size());
+                // A copy, in case an interrupt left tasks running
+                dh.addApps(new ArrayList<>(resolved));
+            }
+
             if (trackerDefaultsChanged)
                 trackerBlocklist.saveSettings(context);
 
@@ -583,13 +633,15 @@ public class Rule {
                             .getString(PREF_WG_ROUTE_MODE, RemoteRoutingLogic.getDefaultMode()));
 
             DatabaseHelper dh = DatabaseHelper.getInstance(context);
+            Map<String, AppMetadata> stored = dh.getApps();
+            List<AppMetadata> resolved = new ArrayList<>();
             for (PackageInfo info : getPackages(context))
                 try {
                     // Skip self
                     if (info.applicationInfo.uid == Process.myUid())
                         continue;
 
-                    Rule rule = new Rule(dh, info, context);
+                    Rule rule = new Rule(info, stored, resolved, context);
                     rule.apply = apply.getBoolean(info.packageName, true);
                     rule.tracker_protect = BlockingMode.isTrackerProtectionEnabled(
                             context, tracker_protect, info.packageName);
@@ -605,6 +657,7 @@ public class Rule {
                 } catch (Throwable ex) {
                     Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
                 }
+            dh.addApps(resolved);
 
             return listStub;
         }
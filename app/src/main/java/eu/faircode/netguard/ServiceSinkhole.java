@@ -46,6 +46,7 @@ import android.graphics.Color;
 import android.graphics.Paint;
 import android.graphics.Path;
 import android.net.ConnectivityManager;
+import android.net.InetAddresses;
 import android.net.IpPrefix;
 import android.net.LinkProperties;
 import android.net.Network;
@@ -107,13 +108,16 @@ import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.URL;
-import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
@@ -191,8 +195,9 @@ public class ServiceSinkhole extends VpnService {
     private volatile ParcelFileDescriptor vpn = null;
     private boolean temporarilyStopped = false;
 
+    private static final Object hostsLock = new Object();
     private static long last_hosts_modified = 0;
-    public static Map<String, Boolean> mapHostsBlocked = new ConcurrentHashMap<>();
+    public static volatile HostsBlocklist hostsBlocked = HostsBlocklist.EMPTY;
     private static final Map<Network, Long> mapValidated = new ConcurrentHashMap<>();
     private Map<Integer, Boolean> mapUidAllowed = new HashMap<>();
     private Map<Integer, Integer> mapUidKnown = new HashMap<>();
@@ -206,15 +211,16 @@ public class ServiceSinkhole extends VpnService {
     // Whether any app is routed around the tunnel, which is what makes the
     // extra per-query DNS cost worth paying.
     private boolean anyDirectRouting = false;
-    private final Map<IPKey, Map<InetAddress, IPRule>> mapUidIPFilters = new HashMap<>();
     private Map<Integer, Forward> mapForward = new HashMap<>();
     public static ReentrantReadWriteLock lock = new ReentrantReadWriteLock(true);
 
     private volatile Looper commandLooper;
     private volatile Looper logLooper;
     private volatile Looper statsLooper;
+    private volatile Looper dnsLooper;
     private volatile CommandHandler commandHandler;
     private volatile LogHandler logHandler;
+    private volatile DnsHandler dnsHandler;
     private volatile StatsHandler statsHandler;
 
     // Set at the very end of a fully successful onCreate. onCreate can
@@ -252,6 +258,11 @@ public class ServiceSinkhole extends VpnService {
     private volatile SharedPreferences cachedApplyPrefs;
     private volatile boolean cachedManageSystem;
 
+    // Read by the packet verdict path, rebuilt by publishPolicy()
+    private volatile PolicySnapshot policy = PolicySnapshot.EMPTY;
+    private final Object policyLock = new Object();
+    private boolean registeredPolicyListeners = false;
+
     private static final int NOTIFY_ENFORCING = 1;
     private static final int NOTIFY_WAITING = 2;
     private static final int NOTIFY_DISABLED = 3;
@@ -278,7 +289,8 @@ public class ServiceSinkhole extends VpnService {
     private static final int MSG_STATS_STOP = 2;
     private static final int MSG_STATS_UPDATE = 3;
     private static final int MSG_PACKET = 4;
-    private static final int MSG_USAGE = 5;
+    private static final int MSG_RING = 5;
+    private static final int MSG_DNS = 6;
 
     private enum State {
         none, waiting, enforcing, stats
@@ -362,6 +374,24 @@ public class ServiceSinkhole extends VpnService {
 
     private native void jni_done(long context);
 
+    /** Drops every verdict the native tunnel has cached (see verdict.c). */
+    private static native void jni_verdict_invalidate();
+
+    /** Drops the verdicts the native tunnel has cached for one destination address. */
+    private static native void jni_verdict_invalidate_addr(String daddr);
+
+    /** The packet log ring the tunnel writes into (see logring.c). */
+    private static native ByteBuffer jni_log_ring();
+
+    /** Position after the last record written to the log ring. */
+    private static native int jni_log_ring_head();
+
+    /** Position of the first record not yet consumed from the log ring. */
+    private static native int jni_log_ring_tail();
+
+    /** Hands the log ring space before position back to the tunnel. */
+    private static native void jni_log_ring_release(int tail);
+
     public static void setPcap(boolean enabled, Context context) {
         SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
 
@@ -385,7 +415,17 @@ public class ServiceSinkhole extends VpnService {
             Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
         }
 
-        File pcap = (enabled ? new File(context.getDir("data", MODE_PRIVATE), "netguard.pcap") : null);
+        File pcap = null;
+        if (enabled) {
+            pcap = PcapSegments.getDir(context);
+            if (!pcap.exists() && !pcap.mkdirs())
+                Log.w(TAG, "Create " + pcap + " failed");
+
+            // Captures before segments
+            File legacy = new File(context.getDir("data", MODE_PRIVATE), "netguard.pcap");
+            if (legacy.exists() && !legacy.delete())
+                Log.w(TAG, "Delete " + legacy + " failed");
+        }
         jni_pcap(pcap == null ? null : pcap.getAbsolutePath(), record_size, file_size);
     }
 
@@ -826,11 +866,14 @@ public class ServiceSinkhole extends VpnService {
             // Clear expired DNS records
             DatabaseHelper.getInstance(ServiceSinkhole.this).cleanupDns();
 
+            Log.i(TAG, "Queries " + DatabaseHelper.getInstance(ServiceSinkhole.this).getQueryStats());
+
             // Refresh mappings regularly
-            ipToHost.clear();
-            ipToTracker.clear();
+            Log.i(TAG, "Attribution cache " + attributionCache);
+            attributionCache.clear();
             // Same race as dnsResolved(): invalidate after clearing.
             trackerCacheGeneration.incrementAndGet();
+            invalidateVerdicts();
             uidToApp.clear();
             uidToPackage.clear();
 
@@ -921,6 +964,14 @@ public class ServiceSinkhole extends VpnService {
         public int queue = 0;
 
         private static final int MAX_QUEUE = 1000;
+        // Records to consume before handing their space back to the tunnel
+        private static final int RING_RELEASE = 64;
+
+        private final AtomicBoolean ringPending = new AtomicBoolean(false);
+        private LogRing ring;
+        // Reused for every record drained from the ring
+        private final Packet ringPacket = new Packet();
+        private final Usage ringUsage = new Usage();
 
         public LogHandler(Looper looper) {
             super(looper);
@@ -945,35 +996,25 @@ public class ServiceSinkhole extends VpnService {
             }
         }
 
-        public void account(Usage usage) {
-            Message msg = obtainMessage();
-            msg.obj = usage;
-            msg.what = MSG_USAGE;
-
-            synchronized (this) {
-                if (queue > MAX_QUEUE) {
-                    Log.w(TAG, "Log queue full");
-                    return;
-                }
-
-                sendMessage(msg);
-
-                queue++;
-            }
+        // One drain message at a time, however many records the tunnel adds
+        public void ringReady() {
+            if (ringPending.compareAndSet(false, true))
+                sendEmptyMessage(MSG_RING);
         }
 
         @Override
         public void handleMessage(Message msg) {
+            if (msg.what == MSG_RING) {
+                drainRing();
+                return;
+            }
+
             try {
                 switch (msg.what) {
                     case MSG_PACKET:
                         log((Packet) msg.obj, msg.arg1, msg.arg2 > 0);
                         break;
 
-                    case MSG_USAGE:
-                        usage((Usage) msg.obj);
-                        break;
-
                     default:
                         Log.e(TAG, "Unknown log message=" + msg.what);
                 }
@@ -989,6 +1030,57 @@ public class ServiceSinkhole extends VpnService {
             }
         }
 
+        /**
+         * Logs everything the native tunnel queued on the log ring so far.
+         */
+        private void drainRing() {
+            // Clear before reading the head: records added after it was read
+            // then post another drain
+            ringPending.set(false);
+            if (ring == null)
+                ring = new LogRing(jni_log_ring());
+
+            PolicySnapshot policy = ServiceSinkhole.this.policy;
+            boolean log = PreferenceManager.getDefaultSharedPreferences(ServiceSinkhole.this)
+                    .getBoolean("log", false);
+            int connection = (last_connected ? (last_metered ? 2 : 1) : 0);
+            boolean interactive = last_interactive;
+
+            int tail = jni_log_ring_tail();
+            int head = jni_log_ring_head();
+            while (tail != head) {
+                try {
+                    switch (ring.getType(tail)) {
+                        case LogRing.TYPE_USAGE:
+                            ring.getUsage(tail, ringUsage);
+                            usage(ringUsage);
+                            break;
+
+                        case LogRing.TYPE_VERDICT:
+                            // Filtered like the packets isAddressAllowed() decides on
+                            if (!policy.logPackets)
+                                break;
+                            ring.getPacket(tail, ringPacket, log);
+                            if ((ringPacket.protocol != 6 /* TCP */ || ring.hasFlags(tail))
+                                    && ringPacket.uid != Process.myUid())
+                                log(ringPacket, connection, interactive);
+                            break;
+
+                        default:
+                            ring.getPacket(tail, ringPacket, log);
+                            log(ringPacket, connection, interactive);
+                    }
+                } catch (Throwable ex) {
+                    Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
+                }
+
+                tail++;
+                if (tail % RING_RELEASE == 0)
+                    jni_log_ring_release(tail);
+            }
+            jni_log_ring_release(tail);
+        }
+
         private void log(Packet packet, int connection, boolean interactive) {
             // Get settings
             SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(ServiceSinkhole.this);
@@ -1002,54 +1094,49 @@ public class ServiceSinkhole extends VpnService {
 
             int uncertain = DatabaseHelper.ACCESS_UNCERTAIN_NONE;
             boolean isTracker = false;
-            try (Cursor lookup = dh.getQAName(packet.uid, packet.daddr)) {
-                uncertain = (lookup != null
-                        && lookup.getCount() > 1) ? DatabaseHelper.ACCESS_UNCERTAIN_SHARED_IP
-                                : DatabaseHelper.ACCESS_UNCERTAIN_NONE;
-
-                // Loop until we find tracker or reach last entry
-                if (lookup != null) {
-                    Pair<Tracker, String> foundTracker = new Pair<>(NO_TRACKER, null);
-                    boolean sawNonTrackerEvidence = false;
-                    boolean sawDifferentTrackerEvidence = false;
-
-                    while (lookup.moveToNext()) {
-                        dname = lookup.getString(lookup.getColumnIndexOrThrow("qname"));
-                        if (dname != null) {
-                            originalDname = dname;
-
-                            String aname = lookup.getString(lookup.getColumnIndexOrThrow("aname"));
-                            Pair<Tracker, String> p = getDecloakedTracker(dname, aname);
-
-                            if (foundTracker.first == NO_TRACKER
-                                    && p.first != null) { // store found tracker
-                                isTracker = true;
-                                foundTracker = p;
-                            }
-
-                            if (foundTracker.first != NO_TRACKER
-                                    && p.first != null
-                                    && !Objects.equals(foundTracker.first.name, p.first.name)) {
-                                sawDifferentTrackerEvidence = true;
-                            } else if (p.first == null) {
-                                sawNonTrackerEvidence = true;
-                            }
-                        }
+            List<DnsIndex.Record> lookup = dh.getQARecords(packet.daddr);
+            uncertain = (lookup.size() > 1) ? DatabaseHelper.ACCESS_UNCERTAIN_SHARED_IP
+                    : DatabaseHelper.ACCESS_UNCERTAIN_NONE;
+
+            // Loop until we find tracker or reach last entry
+            Pair<Tracker, String> foundTracker = new Pair<>(NO_TRACKER, null);
+            boolean sawNonTrackerEvidence = false;
+            boolean sawDifferentTrackerEvidence = false;
+
+            for (DnsIndex.Record record : lookup) {
+                dname = record.qname;
+                if (dname != null) {
+                    originalDname = dname;
+
+                    Pair<Tracker, String> p = getDecloakedTracker(dname, record.aname);
+
+                    if (foundTracker.first == NO_TRACKER
+                            && p.first != null) { // store found tracker
+                        isTracker = true;
+                        foundTracker = p;
                     }
 
-                    if (uncertain == DatabaseHelper.ACCESS_UNCERTAIN_SHARED_IP && foundTracker.first != NO_TRACKER) {
-                        if (sawNonTrackerEvidence) {
-                            uncertain = DatabaseHelper.ACCESS_UNCERTAIN_MIXED_TRACKER_AND_NON_TRACKER;
-                        } else if (sawDifferentTrackerEvidence) {
-                            uncertain = DatabaseHelper.ACCESS_UNCERTAIN_MULTIPLE_TRACKERS;
-                        }
+                    if (foundTracker.first != NO_TRACKER
+                            && p.first != null
+                            && !Objects.equals(foundTracker.first.name, p.first.name)) {
+                        sawDifferentTrackerEvidence = true;
+                    } else if (p.first == null) {
+                        sawNonTrackerEvidence = true;
                     }
+                }
+            }
 
-                    if (foundTracker.first != NO_TRACKER)
-                        dname = foundTracker.second;
+            if (uncertain == DatabaseHelper.ACCESS_UNCERTAIN_SHARED_IP && foundTracker.first != NO_TRACKER) {
+                if (sawNonTrackerEvidence) {
+                    uncertain = DatabaseHelper.ACCESS_UNCERTAIN_MIXED_TRACKER_AND_NON_TRACKER;
+                } else if (sawDifferentTrackerEvidence) {
+                    uncertain = DatabaseHelper.ACCESS_UNCERTAIN_MULTIPLE_TRACKERS;
                 }
             }
 
+            if (foundTracker.first != NO_TRACKER)
+                dname = foundTracker.second;
+
             // SNI extraction: disabled by default because connecting to tracker IPs
             // to read TLS ClientHello leaks the user's IP address to the tracker server.
             // Can be enabled via Settings > Advanced > SNI extraction for research.
@@ -1125,6 +1212,47 @@ public class ServiceSinkhole extends VpnService {
         }
     }
 
+    /**
+     * Writes the DNS records the tunnel resolved to the database in batches,
+     * and prepares the IP filters of their names, off the tunnel thread.
+     */
+    private final class DnsHandler extends Handler {
+        // Latest record per (qname, aname, resource) not written yet
+        private final Map<String, ResourceRecord> pending = new LinkedHashMap<>();
+
+        public DnsHandler(Looper looper) {
+            super(looper);
+        }
+
+        public void queue(ResourceRecord rr) {
+            String key = rr.QName + "\n" + rr.AName + "\n" + rr.Resource;
+            synchronized (pending) {
+                // One message drains everything queued until it runs
+                if (pending.isEmpty())
+                    sendEmptyMessage(MSG_DNS);
+                pending.put(key.toLowerCase(Locale.ROOT), rr);
+            }
+        }
+
+        @Override
+        public void handleMessage(Message msg) {
+            try {
+                List<ResourceRecord> batch;
+                synchronized (pending) {
+                    batch = new ArrayList<>(pending.values());
+                    pending.clear();
+                }
+                if (batch.isEmpty())
+                    return;
+
+                int written = DatabaseHelper.getInstance(ServiceSinkhole.this).insertDns(batch);
+                Log.i(TAG, "DNS records=" + batch.size() + " written=" + written);
+            } catch (Throwable ex) {
+                Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
+            }
+        }
+    }
+
     private final class StatsHandler extends Handler {
         private boolean stats = false;
         private long when;
@@ -1927,9 +2055,11 @@ public class ServiceSinkhole extends VpnService {
 
         // Prepare rules
         prepareUidAllowed(listAllowed, listRule);
+        publishPolicy();
         prepareHostsBlocked(ServiceSinkhole.this);
-        prepareUidIPFilters(null);
         prepareForwarding();
+        // A running tunnel keeps going with the rules prepared above
+        invalidateVerdicts();
 
         int prio = Integer.parseInt(prefs.getString("loglevel", Integer.toString(Log.WARN)));
         final int rcode = Integer.parseInt(prefs.getString("rcode", "3"));
@@ -1992,7 +2122,12 @@ public class ServiceSinkhole extends VpnService {
                 @Override
                 public void run() {
                     Log.i(TAG, "Running tunnel context=" + jni_context);
-                    jni_run(jni_context, vpn.getFd(), fwd53, rcode);
+                    tunnelRunning = true;
+                    try {
+                        jni_run(jni_context, vpn.getFd(), fwd53, rcode);
+                    } finally {
+                        tunnelRunning = false;
+                    }
                     Log.i(TAG, "Tunnel exited");
                     tunnelThread = null;
                 }
@@ -2059,8 +2194,7 @@ public class ServiceSinkhole extends VpnService {
         lock.writeLock().lock();
         mapUidAllowed.clear();
         mapUidKnown.clear();
-        mapHostsBlocked.clear();
-        mapUidIPFilters.clear();
+        hostsBlocked = HostsBlocklist.EMPTY;
         mapForward.clear();
         lock.writeLock().unlock();
     }
@@ -2183,137 +2317,55 @@ public class ServiceSinkhole extends VpnService {
     }
 
     public static void prepareHostsBlocked(Context c) {
-        BufferedReader br = null;
-        InputStreamReader is = null;
-        boolean locked = false;
         File hosts = new File(c.getFilesDir(), "hosts.txt");
-        boolean hostsFile = false;
-        long hostsModified = 0;
-        HostsBlocklistLogic.State hostsState = new HostsBlocklistLogic.State(
-                mapHostsBlocked, last_hosts_modified, message -> Log.i(TAG, message));
+        boolean hostsFile = hosts.exists() && hosts.canRead();
+
+        // The compiled blocklist is stamped with its source: the hosts file's
+        // modification time, or the app version for the bundled asset.
+        File compiled;
+        long stamp;
+        HostsBlocklistLogic.Source source;
+        if (hostsFile) {
+            compiled = HostsBlocklist.getCompiledFile(c);
+            stamp = hosts.lastModified();
+            source = () -> new FileReader(hosts);
+        } else {
+            compiled = new File(c.getFilesDir(), "hosts_default.bin");
+            stamp = BuildConfig.VERSION_CODE;
+            source = () -> new InputStreamReader(c.getAssets().open("hosts.txt"));
+        }
 
-        try {
-            hostsFile = hosts.exists() && hosts.canRead();
-            if (!hostsFile) {
-                if (mapHostsBlocked.size() > 0) {
-                    Log.i(TAG, "Hosts file unchanged");
-                    return;
-                }
-                is = new InputStreamReader(c.getAssets().open("hosts.txt"));
-            } else {
-                hostsModified = hosts.lastModified();
-                if (!hostsState.shouldReload(hostsModified)) {
+        // Compiling takes seconds for large lists, so do it off the lock and
+        // only publish the result under it.
+        HostsBlocklist.Diff diff;
+        synchronized (hostsLock) {
+            HostsBlocklistLogic.State hostsState = new HostsBlocklistLogic.State(
+                    hostsBlocked, last_hosts_modified, message -> Log.i(TAG, message));
+            try {
+                if (!hostsState.load(source, compiled, stamp)) {
                     Log.i(TAG, "Hosts file unchanged");
                     return;
                 }
-                is = new FileReader(hosts);
+            } catch (IOException ex) {
+                Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
+                return;
             }
 
             lock.writeLock().lock();
-            locked = true;
-
-            br = new BufferedReader(is);
-            if (hostsFile) {
-                hostsState.load(br, hostsModified);
+            try {
+                hostsBlocked = hostsState.getBlocklist();
                 last_hosts_modified = hostsState.getLastModified();
-            } else
-                hostsState.parse(br);
-        } catch (IOException ex) {
-            Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
-        } finally {
-            if (br != null)
-                try {
-                    br.close();
-                } catch (IOException exex) {
-                    Log.e(TAG, exex.toString() + "\n" + Log.getStackTraceString(exex));
-                }
-            if (is != null)
-                try {
-                    is.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            // Only unlock if we actually acquired the lock. Opening the hosts
-            // source above can throw before lock() runs, and an unconditional
-            // unlock would then raise IllegalMonitorStateException and crash the
-            // VPN service.
-            if (locked)
+            } finally {
                 lock.writeLock().unlock();
-        }
-
-        // Reload TrackerList to ensure it stays in sync with updated hosts
-        TrackerList.reloadTrackerData(c);
-    }
-
-    private void prepareUidIPFilters(String dname) {
-        lock.writeLock().lock();
-        try {
-
-        if (dname == null) // reset mechanism, called from startNative()
-            mapUidIPFilters.clear();
-
-        try (Cursor cursor = DatabaseHelper.getInstance(ServiceSinkhole.this).getAccessDns(dname)) {
-            int colUid = cursor.getColumnIndex("uid");
-            int colVersion = cursor.getColumnIndex("version");
-            int colProtocol = cursor.getColumnIndex("protocol");
-            int colDAddr = cursor.getColumnIndex("daddr");
-            int colResource = cursor.getColumnIndex("resource");
-            int colDPort = cursor.getColumnIndex("dport");
-            int colBlock = cursor.getColumnIndex("block");
-            int colTime = cursor.getColumnIndex("time");
-            int colTTL = cursor.getColumnIndex("ttl");
-            while (cursor.moveToNext()) {
-                int uid = cursor.getInt(colUid);
-                int version = cursor.getInt(colVersion);
-                int protocol = cursor.getInt(colProtocol);
-                String daddr = cursor.getString(colDAddr);
-                String dresource = (cursor.isNull(colResource) ? null : cursor.getString(colResource));
-                int dport = cursor.getInt(colDPort);
-                boolean block = (cursor.getInt(colBlock) > 0);
-                long time = (cursor.isNull(colTime) ? new Date().getTime() : cursor.getLong(colTime));
-                long ttl = (cursor.isNull(colTTL) ? 7 * 24 * 3600 * 1000L : cursor.getLong(colTTL));
-
-                IPKey key = new IPKey(version, protocol, dport, uid);
-                synchronized (mapUidIPFilters) {
-                    if (!mapUidIPFilters.containsKey(key))
-                        mapUidIPFilters.put(key, new HashMap());
-
-                    try {
-                        String name = (dresource == null ? daddr : dresource);
-
-                        // Firewall operates on IP layer, so we need numeric IP
-                        if (Util.isNumericAddress(name)) {
-                            InetAddress iname = InetAddress.getByName(name);
-                            if (version == 4 && !(iname instanceof Inet4Address))
-                                continue;
-                            if (version == 6 && !(iname instanceof Inet6Address))
-                                continue;
-
-                            boolean exists = mapUidIPFilters.get(key).containsKey(iname);
-                            if (!exists || !mapUidIPFilters.get(key).get(iname).isBlocked()) {
-                                IPRule rule = new IPRule(key, name + "/" + iname, block, time, ttl);
-                                mapUidIPFilters.get(key).put(iname, rule);
-                                if (exists)
-                                    Log.w(TAG, "Address conflict " + key + " " + daddr + "/" + dresource);
-                            } else if (exists) {
-                                mapUidIPFilters.get(key).get(iname).updateExpires(time, ttl);
-                                if (dname != null && ttl > 60 * 1000L)
-                                    Log.w(TAG, "Address updated " + key + " " + daddr + "/" + dresource);
-                            } else {
-                                if (dname != null)
-                                    Log.i(TAG, "Ignored " + key + " " + daddr + "/" + dresource + "=" + block);
-                            }
-                        } else
-                            Log.w(TAG, "Address not numeric " + name);
-                    } catch (UnknownHostException ex) {
-                        Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
-                    }
-                }
             }
+            diff = hostsState.getDiff();
         }
 
-        } finally {
-            lock.writeLock().unlock();
+        // The tracker lists themselves do not depend on the hosts file, so
+        // only drop what was derived from hosts that came or went.
+        if (!diff.isEmpty()) {
+            TrackerList.hostsChanged(c);
+            invalidateTrackerCaches(c, diff);
         }
     }
 
@@ -2446,29 +2498,46 @@ public class ServiceSinkhole extends VpnService {
             nativeRecoveryPolicy.reset();
     }
 
-    // Called from native code
     private void logPacket(Packet packet) {
         logHandler.queue(packet);
     }
 
+    // Called from native code
+    private void logRingReady() {
+        logHandler.ringReady();
+    }
+
+    private static boolean shouldLogPacket(Packet packet) {
+        return (packet.protocol != 6 /* TCP */ || !"".equals(packet.flags))
+                && packet.uid != Process.myUid();
+    }
+
     // Called from native code
     private void dnsResolved(ResourceRecord rr) {
-        if (DatabaseHelper.getInstance(ServiceSinkhole.this).insertDns(rr)) {
+        // The app can connect as soon as it has the answer, so attribution is
+        // updated here, in memory, and the database write is left to the DNS
+        // thread, where a burst of records shares one transaction
+        DatabaseHelper dh = DatabaseHelper.getInstance(ServiceSinkhole.this);
+        int ttl = Math.max(rr.TTL, policy.minDnsTtl);
+        if (dh.indexDns(rr, ttl) && Util.isNumericAddress(rr.Resource)) { // make sure correct format
             Log.i(TAG, "New IP " + rr);
-            prepareUidIPFilters(rr.QName);
-
-            if (Util.isNumericAddress(rr.Resource)) { // make sure correct format
-                ipToHost.remove(rr.Resource);
-                ipToTracker.remove(rr.Resource);
-                // Bump *after* the removes: a blockKnownTracker() read that
-                // started before this insert (and so may have missed this row)
-                // can still be mid-flight. Invalidating the generation here,
-                // after the cache is actually clear, is what makes its stale
-                // put() get discarded below instead of pinning pre-insert
-                // attribution behind this remove.
-                trackerCacheGeneration.incrementAndGet();
-            }
+            attributionCache.remove(rr.Resource);
+            // Bump *after* the removes: a blockKnownTracker() read that
+            // started before this insert (and so may have missed this row)
+            // can still be mid-flight. Invalidating the generation here,
+            // after the cache is actually clear, is what makes its stale
+            // put() get discarded below instead of pinning pre-insert
+            // attribution behind this remove.
+            trackerCacheGeneration.incrementAndGet();
+            // Only the verdicts for this address weighed its DNS records
+            invalidateVerdicts(rr.Resource);
         }
+
+        DnsHandler handler = dnsHandler;
+        if (handler != null)
+            handler.queue(rr);
+        else
+            dh.insertDns(rr);
     }
 
     // Called from WireGuard bridge for passive DNS response mapping.
@@ -2497,12 +2566,12 @@ public class ServiceSinkhole extends VpnService {
         if (cm == null)
             return Process.INVALID_UID;
 
-        InetSocketAddress local = new InetSocketAddress(saddr, sport);
-        InetSocketAddress remote = new InetSocketAddress(daddr, dport);
-
-        Log.i(TAG, "Get uid local=" + local + " remote=" + remote);
+        // Native code remembers the answer per socket, also when there is none
+        InetSocketAddress local = new InetSocketAddress(InetAddresses.parseNumericAddress(saddr), sport);
+        InetSocketAddress remote = new InetSocketAddress(InetAddresses.parseNumericAddress(daddr), dport);
         int uid = cm.getConnectionOwnerUid(protocol, local, remote);
-        Log.i(TAG, "Get uid=" + uid);
+        if (uid == Process.INVALID_UID)
+            Log.i(TAG, "Get uid local=" + local + " remote=" + remote + " not found");
         return uid;
     }
 
@@ -2515,31 +2584,99 @@ public class ServiceSinkhole extends VpnService {
 
     static ConcurrentHashMap<Integer, String> uidToApp = new ConcurrentHashMap<>();
     private static final ConcurrentHashMap<Integer, String> uidToPackage = new ConcurrentHashMap<>();
-    static ConcurrentHashMap<String, Expiring<String>> ipToHost = new ConcurrentHashMap<>();
-    static ConcurrentHashMap<String, Expiring<Tracker>> ipToTracker = new ConcurrentHashMap<>();
-    // Bumped by dnsResolved() whenever it invalidates an ipToHost/ipToTracker
-    // entry, so blockKnownTracker() can detect a DB read that raced a
+    // Name and tracker each destination address was attributed to
+    static final AttributionCache<Tracker> attributionCache = new AttributionCache<>();
+    // Bumped by dnsResolved() whenever it invalidates an attributionCache
+    // entry, so blockKnownTracker() can detect a DNS lookup that raced a
     // concurrent insert and drop its (possibly stale) result instead of
     // caching it. See the comments at both call sites.
     private static final AtomicLong trackerCacheGeneration = new AtomicLong();
+    // Whether the native tunnel, and so its verdict cache, is running
+    private static volatile boolean tunnelRunning = false;
     static String NO_DNAME = "null"; // use a String, unequal the real null
     static Tracker NO_TRACKER = new Tracker(null, null, 0);
     // Negative results (no tracker / no dname for an IP) are cached only
     // briefly so a later-captured DNS mapping is picked up quickly, instead of
     // staying invisible for the full DNS TTL (up to 7 days).
     private static final long NEGATIVE_TRACKER_CACHE_TTL_MS = 60 * 1000L;
+    // Beyond this many addresses, the native tunnel drops all its verdicts
+    // anyway (VERDICT_PENDING in verdict.c)
+    private static final int MAX_VERDICT_ADDRESSES = 64;
 
     public static void clearTrackerCaches() {
-        ipToHost.clear();
-        ipToTracker.clear();
+        attributionCache.clear();
         // Same race as dnsResolved(): invalidate after clearing, so a
         // blockKnownTracker() put in flight under the old mode is dropped.
         trackerCacheGeneration.incrementAndGet();
+        invalidateVerdicts();
+    }
+
+    /**
+     * Makes the native tunnel forget the verdicts it cached, which it would
+     * otherwise keep applying without asking isAddressAllowed(). Call after
+     * the policy that every verdict depends on has changed.
+     */
+    public static void invalidateVerdicts() {
+        if (tunnelRunning)
+            jni_verdict_invalidate();
+    }
+
+    /**
+     * Makes the native tunnel forget the verdicts it cached for one
+     * destination, after what the destination is attributed to has changed.
+     *
+     * @param daddr Numeric address
+     */
+    static void invalidateVerdicts(String daddr) {
+        if (tunnelRunning)
+            jni_verdict_invalidate_addr(daddr);
+    }
+
+    // A hosts blocklist change can only change the attribution of an address
+    // resolved from, or aliased to, a host that came or went. The verdict
+    // weighs every DNS record of the address, not only the cached dname, so
+    // the records are looked at: those of the attributed addresses, and the
+    // indexed ones, for addresses whose verdict the native tunnel cached
+    // without an attribution left here.
+    private static void invalidateTrackerCaches(Context c, HostsBlocklist.Diff diff) {
+        Set<String> hosts = diff.getHosts();
+        if (hosts == null) {
+            Log.i(TAG, "Hosts changed " + diff + ", dropping all cached verdicts");
+            clearTrackerCaches();
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        DatabaseHelper dh = DatabaseHelper.getInstance(c);
+        Set<String> affected = new HashSet<>(dh.getResolvedAddresses(hosts));
+        for (String address : attributionCache.getAddresses(now)) {
+            if (affected.contains(address))
+                continue;
+            if (hosts.contains(attributionCache.getHost(address, now)))
+                affected.add(address);
+            else
+                for (DnsIndex.Record record : dh.getQARecords(address))
+                    if (hosts.contains(record.qname) || hosts.contains(record.aname)) {
+                        affected.add(address);
+                        break;
+                    }
+        }
+
+        for (String address : affected)
+            attributionCache.remove(address);
+        // Same race as dnsResolved(): invalidate after removing.
+        trackerCacheGeneration.incrementAndGet();
+        if (affected.size() > MAX_VERDICT_ADDRESSES)
+            invalidateVerdicts();
+        else
+            for (String address : affected)
+                invalidateVerdicts(address);
+        Log.i(TAG, "Hosts changed " + diff + ", dropped verdicts of " + affected.size() + " addresses");
     }
 
     // Called from native code
     private Allowed isAddressAllowed(Packet packet) {
-        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
+        PolicySnapshot policy = this.policy;
 
         lock.readLock().lock();
         Allowed allowed = null;
@@ -2547,7 +2684,7 @@ public class ServiceSinkhole extends VpnService {
 
         // https://android.googlesource.com/platform/system/core/+/master/include/private/android_filesystem_config.h
         if ((packet.uid < 2000) &&
-                !mapUidKnown.containsKey(packet.uid) && isSupported(packet.protocol)) {
+                !policy.isKnown(packet.uid) && isSupported(packet.protocol)) {
             // Allow unknown (system) traffic
             packet.allowed = true;
             Log.w(TAG, "Allowing unknown system " + packet);
@@ -2563,13 +2700,12 @@ public class ServiceSinkhole extends VpnService {
 
             // Check if tracker is known
             // In minimal mode (including TC Slim), always enable blocking
-            if (blockKnownTracker(packet.daddr, packet.uid)) {
+            if (blockKnownTracker(policy, packet.daddr, packet.uid)) {
                 filtered = true;
                 packet.allowed = false;
             }
 
-            InternetBlocklist internetBlocklist = InternetBlocklist.getInstance(ServiceSinkhole.this);
-            if (internetBlocklist.blockedInternet(packet.uid)) {
+            if (policy.isInternetBlocked(packet.uid)) {
                 filtered = true;
                 packet.allowed = false;
             }
@@ -2579,7 +2715,7 @@ public class ServiceSinkhole extends VpnService {
         }
 
         // Block DNS-over-TLS (DoT) on port 853 to prevent bypassing DNS filtering
-        if (packet.allowed && packet.dport == 853 && prefs.getBoolean("block_dot", true)) {
+        if (packet.allowed && packet.dport == 853 && policy.blockDot) {
             Log.i(TAG, "Blocking DoT " + packet);
             packet.allowed = false;
         }
@@ -2609,14 +2745,65 @@ public class ServiceSinkhole extends VpnService {
             lock.readLock().unlock();
         }
 
-        if (prefs.getBoolean("log", false) || prefs.getBoolean("log_app", true))
-            if (packet.protocol != 6 /* TCP */ || !"".equals(packet.flags))
-                if (packet.uid != Process.myUid())
-                    logPacket(packet);
+        if (policy.logPackets && shouldLogPacket(packet))
+            logPacket(packet);
 
         return allowed;
     }
 
+    // Preferences read by publishPolicy(); the per-app preference files
+    // (apply, tracker_protect, blocklist) are watched as a whole.
+    private static final Set<String> POLICY_PREFS = new HashSet<>(Arrays.asList(
+            "block_dot", "log", "log_app", "log_logcat", "manage_system", "ttl",
+            BlockingMode.PREF_BLOCKING_MODE));
+
+    private final SharedPreferences.OnSharedPreferenceChangeListener policyPrefsListener =
+            (prefs, key) -> {
+                if (key == null || POLICY_PREFS.contains(key))
+                    executor.submit(this::publishPolicy);
+            };
+
+    private final SharedPreferences.OnSharedPreferenceChangeListener policyAppsListener =
+            (prefs, key) -> executor.submit(this::publishPolicy);
+
+    /**
+     * Rebuilds the snapshot of preferences and per-app state that the packet
+     * verdict path reads, and publishes it.
+     */
+    private void publishPolicy() {
+        synchronized (policyLock) {
+            SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
+            cachedTrackerProtectPrefs = getSharedPreferences("tracker_protect", Context.MODE_PRIVATE);
+            cachedApplyPrefs = getSharedPreferences("apply", Context.MODE_PRIVATE);
+            cachedManageSystem = prefs.getBoolean("manage_system", false);
+
+            String blockingMode = BlockingMode.getMode(this);
+            PolicySnapshot.Builder builder = new PolicySnapshot.Builder()
+                    .setBlockingMode(blockingMode, BlockingModeLogic.blocksAmbiguousTrackerIp(blockingMode))
+                    .setBlockDot(prefs.getBoolean("block_dot", true))
+                    .setLogPackets(prefs.getBoolean("log", false) || prefs.getBoolean("log_app", true))
+                    .setLogLogcat(prefs.getBoolean("log_logcat", false))
+                    .setMinDnsTtl(Integer.parseInt(prefs.getString("ttl", "259200")));
+
+            lock.readLock().lock();
+            int[] known = new int[mapUidKnown.size()];
+            int i = 0;
+            for (Integer uid : mapUidKnown.keySet())
+                known[i++] = uid;
+            lock.readLock().unlock();
+
+            for (int uid : known)
+                builder.addFlags(uid, PolicySnapshot.FLAG_KNOWN
+                        | (shouldTrackApp(uid) ? PolicySnapshot.FLAG_TRACK : 0));
+            for (int uid : InternetBlocklist.getInstance(this).getBlockedUids())
+                builder.addFlags(uid, PolicySnapshot.FLAG_INTERNET_BLOCKED);
+
+            policy = builder.build();
+            invalidateVerdicts();
+            Log.i(TAG, "Published policy for " + policy.size() + " uids mode=" + blockingMode);
+        }
+    }
+
     /**
      * Check if tracking should be applied to this app (blocking/logging).
      * Returns false if:
@@ -2673,172 +2860,145 @@ public class ServiceSinkhole extends VpnService {
         return true;
     }
 
-    private boolean blockKnownTracker(String daddr, int uid) {
-        if (!shouldTrackApp(uid)) {
+    private boolean blockKnownTracker(PolicySnapshot policy, String daddr, int uid) {
+        // The snapshot covers every app with a rule; anything else, such as a
+        // uid of another profile, is resolved the slow way
+        int flags = policy.getFlags(uid);
+        boolean track = (flags != PolicySnapshot.NOT_FOUND && (flags & PolicySnapshot.FLAG_KNOWN) != 0)
+                ? (flags & PolicySnapshot.FLAG_TRACK) != 0
+                : shouldTrackApp(uid);
+        if (!track) {
             return false;
         }
 
-        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
-        String blockingMode = BlockingMode.getMode(this);
-        boolean blockAmbiguousTrackers = BlockingModeLogic.blocksAmbiguousTrackerIp(blockingMode);
-        Tracker tracker = null;
-        Expiring<Tracker> expiringTracker = ipToTracker.get(daddr);
-        if (expiringTracker != null) {
-            tracker = expiringTracker.getOrExpired();
-
-            if (tracker == null) // expired
-                ipToTracker.remove(daddr);
-        }
+        String blockingMode = policy.blockingMode;
+        boolean blockAmbiguousTrackers = policy.blockAmbiguousTrackers;
+        Tracker tracker = attributionCache.get(daddr, System.currentTimeMillis());
 
         if (tracker == null) {
-            // Check if IP known
+            // TODO: Note that this does not implement any SNI code
             String dname = null;
-            Expiring<String> expiringHost = ipToHost.get(daddr);
-            if (expiringHost != null) {
-                dname = expiringHost.getOrExpired();
+            // Snapshot before the DNS lookup: if dnsResolved() invalidates
+            // this IP's cache entry while we're mid-lookup below, our result
+            // may be stale (it could miss a record that raced us, or reflect
+            // one that no longer applies). Comparing after the lookup lets us
+            // drop the put and let the next packet look up again instead of
+            // pinning a possibly-wrong verdict.
+            long generationBefore = trackerCacheGeneration.get();
+            // Retrieve dname from the DNS index
+            DatabaseHelper dh = DatabaseHelper.getInstance(ServiceSinkhole.this);
+            long now = new Date().getTime();
+            // Expiry of the DNS record the chosen dname/tracker came from;
+            // -1 until we lock onto a tracker row, so a host-only result can
+            // fall back to the first candidate row's expiry instead.
+            long chosenTime = -1;
+            long chosenTtl = -1;
+            long firstTime = now;
+            long firstTtl = 7 * 24 * 3600 * 1000L;
+            boolean sawFirstRow = false;
+            boolean sawTrackerEvidence = false;
+            boolean sawNonTrackerEvidence = false;
+            // Loop through all fresh DNS candidates for this IP and only fail closed
+            // when ambiguous tracker blocking is enabled or the evidence is tracker-only.
+            for (DnsIndex.Record record : dh.getQARecords(daddr)) {
+                // Get DNS expiry details for this candidate row
+                if (!sawFirstRow) {
+                    firstTime = record.time;
+                    firstTtl = record.ttl;
+                    sawFirstRow = true;
+                }
 
-                if (dname == null) // expired
-                    ipToHost.remove(daddr);
-            }
+                // Check tracker
+                String aname = record.aname;
+                String qname = record.qname;
+                String candidateDname = qname;
+                Tracker candidateTracker = TrackerList.findTracker(qname);
 
-            if (dname == null) { // TODO: Note that this does not implement any SNI code
-                // Snapshot before the DB read: if dnsResolved() invalidates this
-                // IP's cache entry while we're mid-read below, our result may be
-                // stale (it could miss a row that raced us, or reflect a row
-                // that no longer applies). Comparing after the read lets us
-                // drop the put and let the next packet re-read instead of
-                // pinning a possibly-wrong verdict.
-                long generationBefore = trackerCacheGeneration.get();
-                // Retrieve dname from DB
-                DatabaseHelper dh = DatabaseHelper.getInstance(ServiceSinkhole.this);
-                long now = new Date().getTime();
-                // Expiry of the DNS record the chosen dname/tracker came from;
-                // -1 until we lock onto a tracker row, so a host-only result can
-                // fall back to the first candidate row's expiry instead.
-                long chosenTime = -1;
-                long chosenTtl = -1;
-                long firstTime = now;
-                long firstTtl = 7 * 24 * 3600 * 1000L;
-                boolean sawFirstRow = false;
-                boolean sawTrackerEvidence = false;
-                boolean sawNonTrackerEvidence = false;
-                try (Cursor lookup = dh.getQAName(uid, daddr)) {
-                    // Loop through all fresh DNS candidates for this IP and only fail closed
-                    // when ambiguous tracker blocking is enabled or the evidence is tracker-only.
-                    if (lookup != null) {
-                        while (lookup.moveToNext()) {
-                            // Get DNS expiry details for this candidate row
-                            int colTime = lookup.getColumnIndex("time");
-                            int colTTL = lookup.getColumnIndex("ttl");
-                            long rowTime = lookup.isNull(colTime) ? now : lookup.getLong(colTime);
-                            long rowTtl = lookup.isNull(colTTL) ? firstTtl : lookup.getLong(colTTL);
-                            if (!sawFirstRow) {
-                                firstTime = rowTime;
-                                firstTtl = rowTtl;
-                                sawFirstRow = true;
-                            }
-
-                            // Check tracker
-                            String aname = lookup.getString(lookup.getColumnIndexOrThrow("aname"));
-                            String qname = lookup.getString(lookup.getColumnIndexOrThrow("qname"));
-                            String candidateDname = qname;
-                            Tracker candidateTracker = TrackerList.findTracker(qname);
-
-                            if (dname == null && qname != null)
-                                dname = qname;
-
-                            // If no tracker found, try DNS uncloaking
-                            if (candidateTracker == null
-                                    && aname != null) {
-                                candidateTracker = TrackerList.findTracker(aname);
-
-                                if (candidateTracker != null) {
-                                    candidateDname = aname;
-                                    Log.d(TAG, "Uncloaked: " + qname + " -> " + aname);
-                                }
-                            }
-
-                            if (candidateTracker != null) {
-                                sawTrackerEvidence = true;
-                                if (tracker == null) {
-                                    tracker = candidateTracker;
-                                    dname = candidateDname;
-                                    // Expire the cache entry with the DNS record
-                                    // this tracker was derived from, not whatever
-                                    // row happened to be read last.
-                                    chosenTime = rowTime;
-                                    chosenTtl = rowTtl;
-                                }
-                            } else if (qname != null || aname != null)
-                                sawNonTrackerEvidence = true;
-                        }
+                if (dname == null && qname != null)
+                    dname = qname;
+
+                // If no tracker found, try DNS uncloaking
+                if (candidateTracker == null
+                        && aname != null) {
+                    candidateTracker = TrackerList.findTracker(aname);
+
+                    if (candidateTracker != null) {
+                        candidateDname = aname;
+                        Log.d(TAG, "Uncloaked: " + qname + " -> " + aname);
                     }
                 }
 
-                if (sawTrackerEvidence && sawNonTrackerEvidence && !blockAmbiguousTrackers) {
-                    Log.d(TAG, "Allowing mixed tracker evidence for " + daddr);
-                    tracker = NO_TRACKER;
-                }
+                if (candidateTracker != null) {
+                    sawTrackerEvidence = true;
+                    if (tracker == null) {
+                        tracker = candidateTracker;
+                        dname = candidateDname;
+                        // Expire the cache entry with the DNS record
+                        // this tracker was derived from, not whatever
+                        // row happened to be read last.
+                        chosenTime = record.time;
+                        chosenTtl = record.ttl;
+                    }
+                } else if (qname != null || aname != null)
+                    sawNonTrackerEvidence = true;
+            }
 
-                // No success in finding dname or tracker?
-                if (dname == null)
-                    dname = NO_DNAME;
-                if (tracker == null)
-                    tracker = NO_TRACKER;
-
-                // Choose the cache expiry:
-                long expiry;
-                if (dname == NO_DNAME) {
-                    // No DNS mapping was captured for this IP at all — the query
-                    // may have gone over DoT, arrived before the service
-                    // started, or been lost to a split TCP response. This is an
-                    // unconfident miss: re-check soon rather than caching it for
-                    // the full DNS TTL (up to 7 days), which would keep any
-                    // tracker traffic to this IP invisible and unblocked until
-                    // then.
-                    expiry = now + NEGATIVE_TRACKER_CACHE_TTL_MS;
-                } else {
-                    // DNS evidence exists (tracker or confident non-tracker);
-                    // expire with the record the decision was derived from, not
-                    // whatever row happened to be read last.
-                    expiry = (chosenTime >= 0)
-                            ? chosenTime + chosenTtl
-                            : firstTime + firstTtl;
-                }
+            if (sawTrackerEvidence && sawNonTrackerEvidence && !blockAmbiguousTrackers) {
+                Log.d(TAG, "Allowing mixed tracker evidence for " + daddr);
+                tracker = NO_TRACKER;
+            }
 
-                // Save dname and tracker, but only if no concurrent
-                // dnsResolved() invalidated this IP's cache while we were
-                // reading the DB above — otherwise this put could pin a
-                // stale verdict that a racing insert already made obsolete.
-                // Skipping is cheap and correct: the next packet to this IP
-                // simply re-reads the DB.
-                if (trackerCacheGeneration.get() == generationBefore) {
-                    ipToHost.put(daddr, new Expiring<>(dname, expiry));
-                    ipToTracker.put(daddr, new Expiring<>(tracker, expiry));
-                }
+            // No success in finding dname or tracker?
+            if (dname == null)
+                dname = NO_DNAME;
+            if (tracker == null)
+                tracker = NO_TRACKER;
+
+            // Choose the cache expiry:
+            long expiry;
+            if (dname == NO_DNAME) {
+                // No DNS mapping was captured for this IP at all — the query
+                // may have gone over DoT, arrived before the service
+                // started, or been lost to a split TCP response. This is an
+                // unconfident miss: re-check soon rather than caching it for
+                // the full DNS TTL (up to 7 days), which would keep any
+                // tracker traffic to this IP invisible and unblocked until
+                // then.
+                expiry = now + NEGATIVE_TRACKER_CACHE_TTL_MS;
+            } else {
+                // DNS evidence exists (tracker or confident non-tracker);
+                // expire with the record the decision was derived from, not
+                // whatever row happened to be read last.
+                expiry = (chosenTime >= 0)
+                        ? chosenTime + chosenTtl
+                        : firstTime + firstTtl;
             }
 
+            // Save dname and tracker, but only if no concurrent
+            // dnsResolved() invalidated this IP's cache while we were
+            // looking it up above — otherwise this put could pin a
+            // stale verdict that a racing insert already made obsolete.
+            // Skipping is cheap and correct: the next packet to this IP
+            // simply looks it up again.
+            if (trackerCacheGeneration.get() == generationBefore)
+                attributionCache.put(daddr, dname, tracker, expiry, now);
+
             // Do not block based on IP-only tracker evidence.
             // Shared IPs are too ambiguous without hostname evidence.
         }
 
         // Log or block?
-        if (prefs.getBoolean("log_logcat", false)) {
+        if (policy.logLogcat) {
             String app = uidToApp.get(uid);
             if (app == null) {
                 PackageManager pm = getPackageManager();
                 app = Common.getAppName(pm, uid);
                 uidToApp.put(uid, app);
             }
-            // tracker can be null here when the host cache had an entry but the
-            // tracker cache was empty/expired, and ipToHost.get(daddr) can be
-            // null on an ipToTracker cache hit (the ipToHost.put(...) block is
-            // skipped). Guard both so log_logcat never NPEs the packet path.
-            if (tracker != null) {
-                Expiring<String> expiringHost = ipToHost.get(daddr);
-                String host = (expiringHost == null ? null : expiringHost.getOrExpired());
-                Log.i("TC-Log", app + " " + daddr + " " + host + " " + tracker.getName());
-            }
+            // The host can be gone from the cache by now, or never have been
+            // put in it (a concurrent invalidation), and is then logged as null
+            String host = attributionCache.getHost(daddr, System.currentTimeMillis());
+            Log.i("TC-Log", app + " " + daddr + " " + host + " " + tracker.getName());
         } else {
             if (tracker != NO_TRACKER) {
                 boolean blockedByGranularRule = false;
@@ -2857,11 +3017,6 @@ public class ServiceSinkhole extends VpnService {
         return false;
     }
 
-    // Called from native code
-    private void accountUsage(Usage usage) {
-        logHandler.account(usage);
-    }
-
     private BroadcastReceiver interactiveStateReceiver = new BroadcastReceiver() {
         @Override
         public void onReceive(final Context context, final Intent intent) {
@@ -3098,10 +3253,14 @@ public class ServiceSinkhole extends VpnService {
     };
 
     private void handlePackageChanged(Context context, Intent intent) {
-        if (Intent.ACTION_PACKAGE_ADDED.equals(intent.getAction())) {
-            // Application added
+        String packageName = (intent.getData() == null ? null : intent.getData().getSchemeSpecificPart());
+        if (packageName != null)
+            Rule.clearCache(context, packageName);
+        else
             Rule.clearCache(context);
 
+        if (Intent.ACTION_PACKAGE_ADDED.equals(intent.getAction())) {
+            // Application added
             if (!intent.getBooleanExtra(Intent.EXTRA_REPLACING, false)) {
                 SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
                 int uid = intent.getIntExtra(Intent.EXTRA_UID, -1);
@@ -3121,11 +3280,8 @@ public class ServiceSinkhole extends VpnService {
 
         } else if (Intent.ACTION_PACKAGE_REMOVED.equals(intent.getAction())) {
             // Application removed
-            Rule.clearCache(context);
-
-            if (intent.getBooleanExtra(Intent.EXTRA_DATA_REMOVED, false)) {
+            if (intent.getBooleanExtra(Intent.EXTRA_DATA_REMOVED, false) && packageName != null) {
                 // Remove settings
-                String packageName = intent.getData().getSchemeSpecificPart();
                 Log.i(TAG, "Deleting settings package=" + packageName);
                 context.getSharedPreferences("apply", Context.MODE_PRIVATE).edit().remove(packageName).apply();
                 BlockingMode.clearAutoExcludedApp(context, packageName);
@@ -3296,17 +3452,22 @@ public class ServiceSinkhole extends VpnService {
                 Process.THREAD_PRIORITY_BACKGROUND);
         HandlerThread statsThread = new HandlerThread(getString(R.string.app_name) + " stats",
                 Process.THREAD_PRIORITY_BACKGROUND);
+        HandlerThread dnsThread = new HandlerThread(getString(R.string.app_name) + " dns",
+                Process.THREAD_PRIORITY_BACKGROUND);
         commandThread.start();
         logThread.start();
         statsThread.start();
+        dnsThread.start();
 
         commandLooper = commandThread.getLooper();
         logLooper = logThread.getLooper();
         statsLooper = statsThread.getLooper();
+        dnsLooper = dnsThread.getLooper();
 
         commandHandler = new CommandHandler(commandLooper);
         logHandler = new LogHandler(logLooper);
         statsHandler = new StatsHandler(statsLooper);
+        dnsHandler = new DnsHandler(dnsLooper);
 
         net.kollnig.missioncontrol.wg.WgEgress.INSTANCE.addStateListener(wgStateListener);
 
@@ -3336,10 +3497,27 @@ public class ServiceSinkhole extends VpnService {
         IntentFilter ifPackage = new IntentFilter();
         ifPackage.addAction(Intent.ACTION_PACKAGE_ADDED);
         ifPackage.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        // Only to refresh the app list metadata, such as whether it is enabled
+        ifPackage.addAction(Intent.ACTION_PACKAGE_CHANGED);
         ifPackage.addDataScheme("package");
         ContextCompat.registerReceiver(this, packageChangedReceiver, ifPackage, ContextCompat.RECEIVER_NOT_EXPORTED);
         registeredPackageChanged = true;
 
+        // Keep the verdict path's policy snapshot current
+        prefs.registerOnSharedPreferenceChangeListener(policyPrefsListener);
+        getSharedPreferences("apply", Context.MODE_PRIVATE)
+                .registerOnSharedPreferenceChangeListener(policyAppsListener);
+        getSharedPreferences("tracker_protect", Context.MODE_PRIVATE)
+                .registerOnSharedPreferenceChangeListener(policyAppsListener);
+        getSharedPreferences(TrackerBlocklist.PREF_BLOCKLIST, Context.MODE_PRIVATE)
+                .registerOnSharedPreferenceChangeListener(policyAppsListener);
+        // Tracker toggles apply at once, before they are saved
+        TrackerBlocklist.setChangeListener(ServiceSinkhole::invalidateVerdicts);
+        registeredPolicyListeners = true;
+
+        // Load DNS attribution before the first connection needs it
+        executor.submit(() -> DatabaseHelper.getInstance(ServiceSinkhole.this).restoreDnsIndex());
+
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M)
             try {
                 listenNetworkChanges();
@@ -3402,6 +3580,12 @@ public class ServiceSinkhole extends VpnService {
                 last_network = network;
                 last_connected = Util.isConnected(ServiceSinkhole.this);
                 last_metered = Util.isMeteredNetwork(ServiceSinkhole.this);
+                // The network is validated: connect to the DoH endpoint over it
+                // now rather than with the first lookup after the reload
+                net.kollnig.missioncontrol.dns.DnsProxyServer proxy =
+                        net.kollnig.missioncontrol.dns.DnsProxyServer.getInstance(ServiceSinkhole.this);
+                proxy.onNetworkChanged();
+                proxy.onNetworkValidated();
                 reloadAfterNetworkChange(NetworkReloadPolicy.onNetworkAvailable());
             }
 
@@ -3467,6 +3651,10 @@ public class ServiceSinkhole extends VpnService {
                 if (last_active == null || !last_active.equals(network))
                     return;
 
+                net.kollnig.missioncontrol.dns.DnsProxyServer
+                        .getInstance(ServiceSinkhole.this)
+                        .onNetworkChanged();
+
                 String reason = NetworkReloadPolicy.onNetworkLost(network, last_active);
                 last_active = null;
                 last_connected = Util.isConnected(ServiceSinkhole.this);
@@ -3707,6 +3895,10 @@ public class ServiceSinkhole extends VpnService {
                 commandLooper.quit();
                 logLooper.quit();
                 statsLooper.quit();
+                // Write what was resolved before the service went away, and
+                // anything resolved after it directly
+                dnsHandler = null;
+                dnsLooper.quitSafely();
 
                 for (Command command : Command.values())
                     commandHandler.removeMessages(command.ordinal());
@@ -3741,6 +3933,18 @@ public class ServiceSinkhole extends VpnService {
                 unregisterReceiver(packageChangedReceiver);
                 registeredPackageChanged = false;
             }
+            if (registeredPolicyListeners) {
+                PreferenceManager.getDefaultSharedPreferences(this)
+                        .unregisterOnSharedPreferenceChangeListener(policyPrefsListener);
+                getSharedPreferences("apply", Context.MODE_PRIVATE)
+                        .unregisterOnSharedPreferenceChangeListener(policyAppsListener);
+                getSharedPreferences("tracker_protect", Context.MODE_PRIVATE)
+                        .unregisterOnSharedPreferenceChangeListener(policyAppsListener);
+                getSharedPreferences(TrackerBlocklist.PREF_BLOCKLIST, Context.MODE_PRIVATE)
+                        .unregisterOnSharedPreferenceChangeListener(policyAppsListener);
+                TrackerBlocklist.setChangeListener(null);
+                registeredPolicyListeners = false;
+            }
 
             if (networkCallback != null) {
                 unlistenNetworkChanges();
@@ -3863,7 +4067,7 @@ public class ServiceSinkhole extends VpnService {
 
     private void updateEnforcingNotification(int allowed, int total) {
         // Update notification
-        Notification notification = getEnforcingNotification(allowed, total - allowed, mapHostsBlocked.size());
+        Notification notification = getEnforcingNotification(allowed, total - allowed, hostsBlocked.size());
         NotificationManager nm = (NotificationManager) getSystemService(NOTIFICATION_SERVICE);
         if (Util.canNotify(this))
             nm.notify(NOTIFY_ENFORCING, notification);
@@ -4256,105 +4460,6 @@ public class ServiceSinkhole extends VpnService {
         }
     }
 
-    private class IPKey {
-        int version;
-        int protocol;
-        int dport;
-        int uid;
-
-        public IPKey(int version, int protocol, int dport, int uid) {
-            this.version = version;
-            this.protocol = protocol;
-            // Only TCP (6) and UDP (17) have port numbers
-            this.dport = (protocol == 6 || protocol == 17 ? dport : 0);
-            this.uid = uid;
-        }
-
-        @Override
-        public boolean equals(Object obj) {
-            if (!(obj instanceof IPKey))
-                return false;
-            IPKey other = (IPKey) obj;
-            return (this.version == other.version &&
-                    this.protocol == other.protocol &&
-                    this.dport == other.dport &&
-                    this.uid == other.uid);
-        }
-
-        @Override
-        public int hashCode() {
-            return (version << 40) | (protocol << 32) | (dport << 16) | uid;
-        }
-
-        @Override
-        public String toString() {
-            return "v" + version + " p" + protocol + " port=" + dport + " uid=" + uid;
-        }
-    }
-
-    private class Expiring<T> {
-        private T t;
-        private long expires;
-
-        public Expiring(T t, long expires) {
-            this.t = t;
-            this.expires = expires;
-        }
-
-        public boolean isExpired() {
-            return System.currentTimeMillis() > this.expires;
-        }
-
-        public T getOrExpired() {
-            if (isExpired())
-                return null;
-
-            return t;
-        }
-    }
-
-    private class IPRule {
-        private IPKey key;
-        private String name;
-        private boolean block;
-        private long time;
-        private long ttl;
-
-        public IPRule(IPKey key, String name, boolean block, long time, long ttl) {
-            this.key = key;
-            this.name = name;
-            this.block = block;
-            this.time = time;
-            this.ttl = ttl;
-        }
-
-        public boolean isBlocked() {
-            return this.block;
-        }
-
-        public boolean isExpired() {
-            return System.currentTimeMillis() > (this.time + this.ttl);
-        }
-
-        public void updateExpires(long time, long ttl) {
-            this.time = time;
-            this.ttl = ttl;
-        }
-
-        @Override
-        public boolean equals(Object obj) {
-            IPRule other = (IPRule) obj;
-            return (this.block == other.block &&
-                    this.time == other.time &&
-                    this.ttl == other.ttl);
-        }
-
-        @Override
-        public String toString() {
-            return this.key + " " + this.name;
-        }
-    }
-
     public static void run(String reason, Context context) {
         Intent intent = new Intent(context, ServiceSinkhole.class);
         intent.putExtra(EXTRA_COMMAND, Command.run);
@@ -0,0 +1,79 @@
+package eu.faircode.netguard;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compiled statements of the frequent single-value lookups, kept per thread
+ * and reused with fresh bindings, instead of compiling the SQL on each call.
+ * <p>
+ * A statement is not thread-safe, but does not hold a database connection
+ * between executions either, so a thread keeping its own costs only the
+ * object. The SQL must be constant, with all values bound as parameters.
+ * <p>
+ * A pool belongs to the database it compiles on: once that is closed or
+ * replaced, the pool is closed and a new one made, see {@link #isFor}.
+ */
+final class StatementPool {
+    private final SQLiteDatabase db;
+    private final ThreadLocal<Map<String, SQLiteStatement>> statements =
+            new ThreadLocal<Map<String, SQLiteStatement>>() {
+                @Override
+                protected Map<String, SQLiteStatement> initialValue() {
+                    return new HashMap<>();
+                }
+            };
+
+    // The statements of all threads, so that close() can reach them
+    private final List<SQLiteStatement> compiled = new ArrayList<>();
+    private boolean closed = false;
+
+    StatementPool(SQLiteDatabase db) {
+        this.db = db;
+    }
+
+    /**
+     * @return Statement of the calling thread for the SQL, its bindings cleared
+     */
+    SQLiteStatement get(String sql) {
+        Map<String, SQLiteStatement> map = statements.get();
+        SQLiteStatement statement = map.get(sql);
+        if (statement == null) {
+            synchronized (compiled) {
+                if (closed)
+                    throw new IllegalStateException("Statement pool is closed");
+                statement = db.compileStatement(sql);
+                compiled.add(statement);
+            }
+            map.put(sql, statement);
+        } else
+            statement.clearBindings();
+        return statement;
+    }
+
+    /**
+     * @return Whether the statements were compiled on the database, and it is
+     * still open
+     */
+    boolean isFor(SQLiteDatabase db) {
+        return (this.db == db && db.isOpen());
+    }
+
+    /**
+     * Closes the statements of all threads. No statement of the pool may be
+     * in use meanwhile.
+     */
+    void close() {
+        synchronized (compiled) {
+            closed = true;
+            for (SQLiteStatement statement : compiled)
+                statement.close();
+            compiled.clear();
+        }
+    }
+}
@@ -27,6 +27,7 @@ import android.util.Log;
 import androidx.core.content.ContextCompat;
 import androidx.preference.PreferenceManager;
 
+import net.kollnig.missioncontrol.dns.DnsOverHttpsClient;
 import net.kollnig.missioncontrol.wg.WgConfig;
 import net.kollnig.missioncontrol.wg.WgConfigParser;
 import net.kollnig.missioncontrol.wg.WgPeer;
@@ -183,9 +184,10 @@ public class LocalNetworkAccess {
                 isLocalAddress(prefs.getString("dns2", null)))
             return true;
 
-        if (prefs.getBoolean("doh_enabled", false) &&
-                isLocalUrlHost(prefs.getString("doh_endpoint", null)))
-            return true;
+        if (prefs.getBoolean("doh_enabled", false))
+            for (String url : DnsOverHttpsClient.splitEndpoints(prefs.getString("doh_endpoint", null)))
+                if (isLocalUrlHost(url))
+                    return true;
 
         if (prefs.getBoolean("tcp_mss_clamp", false))
             return true;
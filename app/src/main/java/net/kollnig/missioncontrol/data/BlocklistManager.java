@@ -7,6 +7,8 @@ import android.util.Log;
 
 import androidx.preference.PreferenceManager;
 
+import eu.faircode.netguard.HostsBlocklist;
+
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -219,6 +221,17 @@ public class BlocklistManager {
             return false;
         }
 
-        return hostsTmp.renameTo(hostsFile);
+        if (!hostsTmp.renameTo(hostsFile))
+            return false;
+
+        // Compile now, on this background thread, so that the VPN service can
+        // map the result instead of compiling when it reloads
+        try (BufferedReader reader = new BufferedReader(new FileReader(hostsFile))) {
+            HostsBlocklist.compile(reader, HostsBlocklist.getCompiledFile(context), hostsFile.lastModified());
+        } catch (IOException e) {
+            Log.w(TAG, "Error compiling merged hosts file", e);
+        }
+
+        return true;
     }
 }
@@ -0,0 +1,220 @@
+/*
+ * TrackerControl is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TrackerControl is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with TrackerControl. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright © 2026
+ */
+
+package net.kollnig.missioncontrol.data;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable trie over reversed DNS labels, used for suffix matching of
+ * hostnames against the tracker domain lists.
+ * <p>
+ * The trie is flattened into parallel arrays once at build time: the children
+ * of node {@code n} are the edges {@code childStart[n]} to
+ * {@code childStart[n + 1] - 1}, sorted by label hash. A lookup walks the
+ * hostname from its last label to its first, so matching any suffix on a label
+ * boundary is a single pass that allocates nothing — unlike probing a map with
+ * one {@code substring()} per dot.
+ *
+ * @param <T> Value attached to a domain
+ */
+final class DomainTrie<T> {
+    private static final DomainTrie<Object> EMPTY = build(new HashMap<>());
+
+    private final int[] childStart;
+    private final int[] edgeHash;
+    private final String[] edgeLabel;
+    private final int[] edgeTarget;
+    private final Object[] values;
+
+    private DomainTrie(int[] childStart, int[] edgeHash, String[] edgeLabel,
+                       int[] edgeTarget, Object[] values) {
+        this.childStart = childStart;
+        this.edgeHash = edgeHash;
+        this.edgeLabel = edgeLabel;
+        this.edgeTarget = edgeTarget;
+        this.values = values;
+    }
+
+    @SuppressWarnings("unchecked")
+    static <T> DomainTrie<T> empty() {
+        return (DomainTrie<T>) EMPTY;
+    }
+
+    /**
+     * Compiles a domain map into a trie. Later changes to the map are not
+     * reflected.
+     *
+     * @param domains Domains (exact, as they should be matched) and their values
+     * @return Immutable trie
+     */
+    static <T> DomainTrie<T> build(@NonNull Map<String, T> domains) {
+        // Labels such as "com" or "google" repeat across thousands of domains;
+        // share one String instance per distinct label.
+        Map<String, String> labels = new HashMap<>();
+        BuildNode root = new BuildNode();
+        for (Map.Entry<String, T> entry : domains.entrySet()) {
+            String domain = entry.getKey();
+            BuildNode node = root;
+            int end = domain.length();
+            while (true) {
+                int dot = domain.lastIndexOf('.', end - 1);
+                String label = domain.substring(dot + 1, end);
+                String shared = labels.get(label);
+                if (shared == null) {
+                    labels.put(label, label);
+                    shared = label;
+                }
+
+                BuildNode child = node.children.get(shared);
+                if (child == null) {
+                    child = new BuildNode();
+                    node.children.put(shared, child);
+                }
+                node = child;
+
+                if (dot < 0)
+                    break;
+                end = dot;
+            }
+            node.value = entry.getValue();
+        }
+
+        // Flatten breadth-first, so that the children of each node occupy a
+        // contiguous run of edges.
+        List<BuildNode> nodes = new ArrayList<>();
+        ArrayDeque<BuildNode> queue = new ArrayDeque<>();
+        root.index = 0;
+        nodes.add(root);
+        queue.add(root);
+        int edges = 0;
+        while (!queue.isEmpty()) {
+            BuildNode node = queue.poll();
+            for (BuildNode child : node.children.values()) {
+                child.index = nodes.size();
+                nodes.add(child);
+                queue.add(child);
+                edges++;
+            }
+        }
+
+        int[] childStart = new int[nodes.size() + 1];
+        int[] edgeHash = new int[edges];
+        String[] edgeLabel = new String[edges];
+        int[] edgeTarget = new int[edges];
+        Object[] values = new Object[nodes.size()];
+
+        int edge = 0;
+        for (int i = 0; i < nodes.size(); i++) {
+            BuildNode node = nodes.get(i);
+            childStart[i] = edge;
+            values[i] = node.value;
+
+            List<Map.Entry<String, BuildNode>> children = new ArrayList<>(node.children.entrySet());
+            children.sort(Comparator.comparingInt(e -> e.getKey().hashCode()));
+            for (Map.Entry<String, BuildNode> child : children) {
+                edgeHash[edge] = child.getKey().hashCode();
+                edgeLabel[edge] = child.getKey();
+                edgeTarget[edge] = child.getValue().index;
+                edge++;
+            }
+        }
+        childStart[nodes.size()] = edge;
+
+        return new DomainTrie<>(childStart, edgeHash, edgeLabel, edgeTarget, values);
+    }
+
+    /**
+     * Finds the value of the longest domain that equals the hostname or is a
+     * suffix of it on a label boundary, e.g. {@code example.com} for
+     * {@code ads.example.com}.
+     *
+     * @param hostname Hostname, already normalised to the case the domains were
+     *                 built with
+     * @return Value of the most specific matching domain, or null
+     */
+    @Nullable
+    @SuppressWarnings("unchecked")
+    T findSuffix(@NonNull String hostname) {
+        Object match = null;
+        int node = 0;
+        int end = hostname.length();
+        while (true) {
+            int dot = hostname.lastIndexOf('.', end - 1);
+            node = findChild(node, hostname, dot + 1, end);
+            if (node < 0)
+                break;
+            if (values[node] != null)
+                match = values[node];
+
+            if (dot < 0)
+                break;
+            end = dot;
+        }
+        return (T) match;
+    }
+
+    /**
+     * @return Number of domains in the trie
+     */
+    int size() {
+        int size = 0;
+        for (Object value : values)
+            if (value != null)
+                size++;
+        return size;
+    }
+
+    private int findChild(int node, String hostname, int start, int end) {
+        int hash = 0;
+        for (int i = start; i < end; i++)
+            hash = 31 * hash + hostname.charAt(i);
+
+        int from = childStart[node];
+        int to = childStart[node + 1];
+        int i = Arrays.binarySearch(edgeHash, from, to, hash);
+        if (i < 0)
+            return -1;
+
+        // Step back to the first edge with this hash, then compare labels
+        // across all colliding edges.
+        while (i > from && edgeHash[i - 1] == hash)
+            i--;
+        int length = end - start;
+        for (; i < to && edgeHash[i] == hash; i++) {
+            String label = edgeLabel[i];
+            if (label.length() == length && hostname.regionMatches(start, label, 0, length))
+                return edgeTarget[i];
+        }
+        return -1;
+    }
+
+    private static final class BuildNode {
+        final Map<String, BuildNode> children = new HashMap<>();
+        Object value;
+        int index;
+    }
+}
@@ -18,6 +18,7 @@
 package net.kollnig.missioncontrol.data
 
 import android.content.Context
+import android.content.SharedPreferences
 import android.content.pm.ApplicationInfo
 import android.content.pm.PackageManager
 import android.util.Pair
@@ -48,8 +49,9 @@ class InsightsDataProvider(context: Context) {
     fun computeInsights(): InsightsData {
         val data = InsightsData()
 
-        // Ensure TrackerList is initialized (loads trackers from assets if needed)
-        TrackerList.getInstance(context)
+        // Ensure TrackerList is initialized (loads trackers from assets if needed),
+        // and the rollup was built under the current tracker lists
+        TrackerList.getInstance(context).loadSummary()
 
         // Load filtering preferences
         val prefs = PreferenceManager.getDefaultSharedPreferences(context)
@@ -57,11 +59,12 @@ class InsightsDataProvider(context: Context) {
         val applyPrefs = context.getSharedPreferences("apply", Context.MODE_PRIVATE)
         val trackerProtectPrefs = context.getSharedPreferences("tracker_protect", Context.MODE_PRIVATE)
         val blockingMode = BlockingMode.getMode(context)
+        val strictMode = BlockingMode.isStrictMode(context)
 
         // Cache for UID -> package info lookups
         val uidPackageCache = mutableMapOf<Int, String?>()
         val uidSystemCache = mutableMapOf<Int, Boolean>()
-        val seenContacts = mutableSetOf<String>()
+        val uidIncludedCache = mutableMapOf<Int, Boolean>()
 
         // Maps for aggregation
         val appTrackerCounts = mutableMapOf<Int, Int>()  // uid -> unique tracker hosts
@@ -80,44 +83,26 @@ class InsightsDataProvider(context: Context) {
             if (cursor != null && cursor.moveToFirst()) {
                 val uidIndex = cursor.getColumnIndexOrThrow("uid")
                 val daddrIndex = cursor.getColumnIndexOrThrow("daddr")
+                val companyIndex = cursor.getColumnIndexOrThrow("company")
                 val allowedIndex = cursor.getColumnIndex("allowed")
                 val uncertainIndex = cursor.getColumnIndex("uncertain")
 
                 do {
                     val uid = cursor.getInt(uidIndex)
                     val daddr = cursor.getString(daddrIndex)
-                    val contactKey = "$uid|$daddr"
 
-                    if (!seenContacts.add(contactKey)) continue
-
-                    // Get package name (cached; null is a valid cached result,
-                    // so probe with containsKey to avoid re-resolving every row)
-                    val packageName = if (uidPackageCache.containsKey(uid))
-                        uidPackageCache[uid]
-                    else
-                        getPackageNameForUid(uid).also { uidPackageCache[uid] = it }
-
-                    // A UID with no resolvable package (other profile, cloned or
-                    // uninstalled app) is still recorded by ServiceSinkhole,
-                    // which defaults unknown UIDs to tracked. Count it here too
-                    // instead of dropping it; the per-package preference checks
-                    // below simply have nothing to look up.
-                    if (packageName != null) {
-                        // Check if system app - skip if show_system is false
-                        val isSystem = uidSystemCache.getOrPut(uid) {
-                            isSystemApp(uid)
-                        }
-                        if (isSystem && !showSystem) continue
-
-                        // Check if excluded from VPN
-                        if (!applyPrefs.getBoolean(packageName, true)) continue
-
-                        // Check if tracker protection is disabled for this app
-                        if (!BlockingMode.isTrackerProtectionEnabled(context, trackerProtectPrefs, packageName)) continue
+                    // One row per app and host, so the app filters below are
+                    // decided once per app
+                    val included = uidIncludedCache.getOrPut(uid) {
+                        isIncluded(uid, showSystem, applyPrefs, trackerProtectPrefs,
+                            uidPackageCache, uidSystemCache)
                     }
+                    if (!included) continue
 
-                    // Find tracker company for this hostname
-                    val tracker = TrackerList.findTracker(daddr) ?: continue
+                    // The company is the one the host belonged to when the
+                    // contact was recorded; the tracker is only needed to
+                    // decide on contacts recorded without a verdict
+                    val companyName = cursor.getString(companyIndex)
                     val allowed = if (allowedIndex >= 0 && !cursor.isNull(allowedIndex))
                         cursor.getInt(allowedIndex)
                     else
@@ -127,7 +112,6 @@ class InsightsDataProvider(context: Context) {
                     else
                         DatabaseHelper.ACCESS_UNCERTAIN_NONE
 
-                    val companyName = tracker.name ?: daddr
                     uniqueCompanies.add(companyName)
                     appsWithTrackers.add(uid)
 
@@ -136,10 +120,11 @@ class InsightsDataProvider(context: Context) {
 
                     val isBlocked = isTrackerContactBlocked(
                         uid,
-                        tracker,
+                        daddr,
                         allowed,
                         uncertainty,
-                        blockingMode
+                        blockingMode,
+                        strictMode
                     )
                     if (isBlocked) {
                         data.blockedTrackingAttempts += 1
@@ -227,6 +212,38 @@ class InsightsDataProvider(context: Context) {
         return data
     }
 
+    /**
+     * Check if the contacts of a UID count, per the app list filters.
+     */
+    private fun isIncluded(
+        uid: Int,
+        showSystem: Boolean,
+        applyPrefs: SharedPreferences,
+        trackerProtectPrefs: SharedPreferences,
+        uidPackageCache: MutableMap<Int, String?>,
+        uidSystemCache: MutableMap<Int, Boolean>
+    ): Boolean {
+        val packageName = getPackageNameForUid(uid).also { uidPackageCache[uid] = it }
+
+        // A UID with no resolvable package (other profile, cloned or
+        // uninstalled app) is still recorded by ServiceSinkhole,
+        // which defaults unknown UIDs to tracked. Count it here too
+        // instead of dropping it; the per-package preference checks
+        // below simply have nothing to look up.
+        if (packageName == null)
+            return true
+
+        // Check if system app - skip if show_system is false
+        val isSystem = uidSystemCache.getOrPut(uid) { isSystemApp(uid) }
+        if (isSystem && !showSystem) return false
+
+        // Check if excluded from VPN
+        if (!applyPrefs.getBoolean(packageName, true)) return false
+
+        // Check if tracker protection is disabled for this app
+        return BlockingMode.isTrackerProtectionEnabled(context, trackerProtectPrefs, packageName)
+    }
+
     /**
      * Get package name for a UID.
      */
@@ -298,19 +315,21 @@ class InsightsDataProvider(context: Context) {
 
     private fun isTrackerContactBlocked(
         uid: Int,
-        tracker: Tracker,
+        daddr: String,
         allowed: Int,
         uncertainty: Int,
-        blockingMode: String
+        blockingMode: String,
+        strictMode: Boolean
     ): Boolean {
         if (allowed >= 0)
             return allowed == 0
 
-        if (!BlockingMode.isStrictMode(context)
+        if (!strictMode
             && uncertainty == DatabaseHelper.ACCESS_UNCERTAIN_MIXED_TRACKER_AND_NON_TRACKER) {
             return false
         }
 
+        val tracker = TrackerList.findTracker(daddr) ?: return false
         val blockedByGranularRule = if (BlockingMode.MODE_MINIMAL == blockingMode) {
             false
         } else {
@@ -80,6 +80,19 @@ public class InternetBlocklist {
         return blockmap;
     }
 
+    /**
+     * Get a copy of the blocklist that is safe to use while it changes
+     *
+     * @return Uids of apps which shan't access internet
+     */
+    public synchronized int[] getBlockedUids() {
+        int[] uids = new int[blockmap.size()];
+        int i = 0;
+        for (Integer uid : blockmap)
+            uids[i++] = uid;
+        return uids;
+    }
+
     /**
      * Clear blocklist
      */
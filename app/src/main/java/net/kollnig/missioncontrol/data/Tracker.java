@@ -33,6 +33,8 @@ public class Tracker {
     public String category;
     public Long lastSeen;
     public String country;
+    // Resolved by TrackerBlocklist on first lookup
+    TrackerBlocklist.Ids blockingIds;
 
     /**
      * Creates class for tracker seen in apps' network traffic
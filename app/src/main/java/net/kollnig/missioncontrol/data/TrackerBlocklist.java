@@ -22,6 +22,10 @@ import android.content.pm.PackageManager;
 
 import org.apache.commons.lang3.StringUtils;
 
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
@@ -29,18 +33,33 @@ import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Stores what trackers are blocked, for each app.
+ * <p>
+ * Changes go through the synchronized methods below and are then published as
+ * an immutable, per-uid bitset of allowed keys, over dense ids given to the
+ * keys that some app allows. A key no app allows needs no id, as its bit would
+ * be clear everywhere, so the ids, and the width of the bitsets, are bounded
+ * by what was allowed and not by the trackers looked up, of which the hosts
+ * file alone has many. The ids are given anew whenever all apps are
+ * published. Lookups from the packet path read that without locking or
+ * building key strings.
  */
 public class TrackerBlocklist {
     public static final String SHARED_PREFS_BLOCKLIST_APPS_KEY = "APPS_BLOCKLIST_APPS_KEY";
     final public static String PREF_BLOCKLIST = "blocklist";
     public static String NECESSARY_CATEGORY = "Content";
-    private static TrackerBlocklist instance;
+    private static volatile TrackerBlocklist instance;
     /**
      * Whilst blockmap is a list of apps to block, the set is a set of trackers not
      * to block.
      */
     private final Map<Integer, Set<String>> blockmap = new ConcurrentHashMap<>();
 
+    // Lock-free copy of blockmap, replaced on every change
+    private volatile Allowlists allowlists = Allowlists.EMPTY;
+
+    // Told about every published change, e.g. to drop cached packet verdicts
+    private static volatile Runnable changeListener;
+
     interface PackageUidResolver {
         Integer resolve(String packageName);
     }
@@ -59,17 +78,36 @@ public class TrackerBlocklist {
      *         is created.
      */
     // Called from both native packet threads and UI threads.
-    public static synchronized TrackerBlocklist getInstance(Context c) {
-        if (instance == null)
-            instance = new TrackerBlocklist(c);
+    public static TrackerBlocklist getInstance(Context c) {
+        TrackerBlocklist blocklist = instance;
+        if (blocklist == null)
+            synchronized (TrackerBlocklist.class) {
+                if (instance == null)
+                    instance = new TrackerBlocklist(c);
+                blocklist = instance;
+            }
 
-        return instance;
+        return blocklist;
     }
 
     static synchronized void resetForTests() {
         instance = null;
     }
 
+    /**
+     * @return Number of keys given an id
+     */
+    int getKeyCount() {
+        return allowlists.keyIds.size();
+    }
+
+    /**
+     * Set what to run after the blocking state of any app changed, or null.
+     */
+    public static void setChangeListener(Runnable listener) {
+        changeListener = listener;
+    }
+
     /**
      * For a given tracker company, this computes a key to store the blocking state
      * of this tracker.
@@ -144,6 +182,7 @@ public class TrackerBlocklist {
                     blockmap.put(uid, subset);
             }
         }
+        publishAll();
     }
 
     static int resolveStoredUid(String storedUid, PackageUidResolver resolver) {
@@ -157,19 +196,59 @@ public class TrackerBlocklist {
         return uid == null ? -1 : uid;
     }
 
-    public synchronized boolean hasSubset(int uid) {
-        return blockmap.containsKey(uid);
+    public boolean hasSubset(int uid) {
+        return allowlists.get(uid) != null;
+    }
+
+    public boolean ensureDefaults(int uid, boolean strictBlocking) {
+        // Called for every app on each rules load; most already have a subset
+        if (hasSubset(uid))
+            return false;
+
+        synchronized (this) {
+            if (blockmap.containsKey(uid))
+                return false;
+
+            Set<String> subset = new HashSet<>();
+            if (!strictBlocking)
+                subset.add(NECESSARY_CATEGORY);
+            blockmap.put(uid, subset);
+            publish(uid);
+            return true;
+        }
     }
 
-    public synchronized boolean ensureDefaults(int uid, boolean strictBlocking) {
-        if (blockmap.containsKey(uid))
+    /**
+     * As {@link #ensureDefaults(int, boolean)} for many apps, publishing once.
+     *
+     * @return true if any app got defaults
+     */
+    public boolean ensureDefaults(Collection<Integer> uids, boolean strictBlocking) {
+        boolean missing = false;
+        for (int uid : uids)
+            if (!hasSubset(uid)) {
+                missing = true;
+                break;
+            }
+        if (!missing)
             return false;
 
-        Set<String> subset = new HashSet<>();
-        if (!strictBlocking)
-            subset.add(NECESSARY_CATEGORY);
-        blockmap.put(uid, subset);
-        return true;
+        synchronized (this) {
+            boolean changed = false;
+            for (int uid : uids) {
+                if (blockmap.containsKey(uid))
+                    continue;
+
+                Set<String> subset = new HashSet<>();
+                if (!strictBlocking)
+                    subset.add(NECESSARY_CATEGORY);
+                blockmap.put(uid, subset);
+                changed = true;
+            }
+            if (changed)
+                publishAll();
+            return changed;
+        }
     }
 
     /**
@@ -189,6 +268,8 @@ public class TrackerBlocklist {
                 changed |= subset.add(NECESSARY_CATEGORY);
             }
         }
+        if (changed)
+            publishAll();
         return changed;
     }
 
@@ -236,6 +317,7 @@ public class TrackerBlocklist {
      */
     public synchronized void clear() {
         blockmap.clear();
+        publishAll();
     }
 
     /**
@@ -245,6 +327,7 @@ public class TrackerBlocklist {
      */
     public synchronized void clear(int uid) {
         blockmap.remove(uid);
+        publish(uid);
     }
 
     /**
@@ -258,6 +341,7 @@ public class TrackerBlocklist {
         if (app == null)
             return;
         app.remove(t);
+        publish(uid);
     }
 
     /**
@@ -275,6 +359,7 @@ public class TrackerBlocklist {
         }
 
         app.add(t);
+        publish(uid);
     }
 
     /**
@@ -304,13 +389,14 @@ public class TrackerBlocklist {
      * @param key Key of the tracker
      * @return Whether access to this tracker is blocked
      */
-    public synchronized boolean blocked(int uid, String key) {
-        Set<String> trackers = this.getSubset(uid);
-        if (trackers == null) {
+    public boolean blocked(int uid, String key) {
+        Allowlists allowlists = this.allowlists;
+        long[] allowed = allowlists.get(uid);
+        if (allowed == null) {
             return true;
         }
 
-        return !trackers.contains(key); // negate since it's a whitelist
+        return !isSet(allowed, allowlists.findKeyId(key)); // negate since it's a whitelist
     }
 
     /**
@@ -320,9 +406,15 @@ public class TrackerBlocklist {
      * @param t   Tracker
      * @return Whether access to this tracker is blocked
      */
-    public synchronized boolean blockedTracker(int uid, Tracker t) {
-        return blocked(uid, t.category)
-                && blocked(uid, getBlockingKey(t));
+    public boolean blockedTracker(int uid, Tracker t) {
+        Allowlists allowlists = this.allowlists;
+        long[] allowed = allowlists.get(uid);
+        if (allowed == null)
+            return true;
+
+        Ids ids = getIds(t, allowlists);
+        return !isSet(allowed, ids.categoryId)
+                && !isSet(allowed, ids.keyId);
     }
 
     /**
@@ -334,4 +426,175 @@ public class TrackerBlocklist {
         // "Content" category = DDG "ignore" action = essential services, don't block
         return !NECESSARY_CATEGORY.equals(t.category);
     }
+
+    private static Ids getIds(Tracker t, Allowlists allowlists) {
+        // Tracker fields are public, so check the ids are still for them, and
+        // for the ids in force
+        Ids ids = t.blockingIds;
+        if (ids == null || ids.keyIds != allowlists.keyIds
+                || ids.name != t.name || ids.category != t.category) {
+            ids = new Ids(allowlists.keyIds, t.name, t.category,
+                    allowlists.findKeyId(t.category), allowlists.findKeyId(getBlockingKey(t)));
+            t.blockingIds = ids;
+        }
+        return ids;
+    }
+
+    private static boolean isSet(long[] bits, int id) {
+        return id >= 0 && (id >> 6) < bits.length && (bits[id >> 6] & (1L << id)) != 0;
+    }
+
+    // Must hold the lock
+    private void publish(int uid) {
+        // A key allowed for the first time needs an id, and so do all
+        Set<String> subset = blockmap.get(uid);
+        Allowlists current = allowlists;
+        if (subset != null && !current.keyIds.keySet().containsAll(subset)) {
+            publishAll();
+            return;
+        }
+
+        allowlists = current.with(uid, getAllowed(subset, current.keyIds));
+        notifyChanged();
+    }
+
+    // Must hold the lock
+    private void publishAll() {
+        // Built in one go, rather than copied once per uid
+        int[] uids = new int[blockmap.size()];
+        int count = 0;
+        for (Integer uid : blockmap.keySet())
+            if (count < uids.length)
+                uids[count++] = uid;
+        uids = Arrays.copyOf(uids, count);
+        Arrays.sort(uids);
+
+        // Ids for the keys allowed now, dropping those no longer allowed
+        Map<String, Integer> keyIds = new HashMap<>();
+        for (int i = 0; i < count; i++) {
+            Set<String> subset = blockmap.get(uids[i]);
+            if (subset != null)
+                for (String key : subset)
+                    if (key != null && !keyIds.containsKey(key))
+                        keyIds.put(key, keyIds.size());
+        }
+
+        long[][] allowed = new long[count][];
+        for (int i = 0; i < count; i++)
+            allowed[i] = getAllowed(blockmap.get(uids[i]), keyIds);
+        allowlists = new Allowlists(uids, allowed, keyIds);
+        notifyChanged();
+    }
+
+    private static void notifyChanged() {
+        Runnable listener = changeListener;
+        if (listener != null)
+            listener.run();
+    }
+
+    private static long[] getAllowed(Set<String> subset, Map<String, Integer> keyIds) {
+        if (subset == null)
+            return null;
+
+        long[] allowed = new long[0];
+        for (String key : subset) {
+            Integer id = (key == null ? null : keyIds.get(key));
+            if (id == null)
+                continue;
+            if ((id >> 6) >= allowed.length)
+                allowed = Arrays.copyOf(allowed, (id >> 6) + 1);
+            allowed[id >> 6] |= 1L << id;
+        }
+        return allowed;
+    }
+
+    /**
+     * Blocking ids of a tracker, cached on the tracker.
+     */
+    static final class Ids {
+        // The ids in force when these were looked up
+        final Map<String, Integer> keyIds;
+        final String name;
+        final String category;
+        final int categoryId;
+        final int keyId;
+
+        Ids(Map<String, Integer> keyIds, String name, String category, int categoryId, int keyId) {
+            this.keyIds = keyIds;
+            this.name = name;
+            this.category = category;
+            this.categoryId = categoryId;
+            this.keyId = keyId;
+        }
+    }
+
+    /**
+     * Immutable allowed-key bitsets, by uid, and the ids of the keys.
+     */
+    private static final class Allowlists {
+        static final Allowlists EMPTY = new Allowlists(
+                new int[0], new long[0][], Collections.<String, Integer>emptyMap());
+
+        private final int[] uids;
+        private final long[][] allowed;
+        // Not changed once published
+        final Map<String, Integer> keyIds;
+
+        private Allowlists(int[] uids, long[][] allowed, Map<String, Integer> keyIds) {
+            this.uids = uids;
+            this.allowed = allowed;
+            this.keyIds = keyIds;
+        }
+
+        long[] get(int uid) {
+            int i = Arrays.binarySearch(uids, uid);
+            return i < 0 ? null : allowed[i];
+        }
+
+        /**
+         * @return The id of a key, or -1 if no app allows it
+         */
+        int findKeyId(String key) {
+            if (key == null)
+                return -1;
+            Integer id = keyIds.get(key);
+            return id == null ? -1 : id;
+        }
+
+        /**
+         * @return Copy with the bitset of a uid replaced, or removed if null
+         */
+        Allowlists with(int uid, long[] bits) {
+            int i = Arrays.binarySearch(uids, uid);
+            if (i >= 0) {
+                if (bits != null) {
+                    long[][] nextAllowed = allowed.clone();
+                    nextAllowed[i] = bits;
+                    return new Allowlists(uids, nextAllowed, keyIds);
+                }
+
+                int[] nextUids = new int[uids.length - 1];
+                long[][] nextAllowed = new long[uids.length - 1][];
+                System.arraycopy(uids, 0, nextUids, 0, i);
+                System.arraycopy(uids, i + 1, nextUids, i, uids.length - i - 1);
+                System.arraycopy(allowed, 0, nextAllowed, 0, i);
+                System.arraycopy(allowed, i + 1, nextAllowed, i, uids.length - i - 1);
+                return new Allowlists(nextUids, nextAllowed, keyIds);
+            }
+
+            if (bits == null)
+                return this;
+
+            int at = -i - 1;
+            int[] nextUids = new int[uids.length + 1];
+            long[][] nextAllowed = new long[uids.length + 1][];
+            System.arraycopy(uids, 0, nextUids, 0, at);
+            System.arraycopy(uids, at, nextUids, at + 1, uids.length - at);
+            System.arraycopy(allowed, 0, nextAllowed, 0, at);
+            System.arraycopy(allowed, at, nextAllowed, at + 1, uids.length - at);
+            nextUids[at] = uid;
+            nextAllowed[at] = bits;
+            return new Allowlists(nextUids, nextAllowed, keyIds);
+        }
+    }
 }
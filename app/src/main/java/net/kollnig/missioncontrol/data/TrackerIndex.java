@@ -0,0 +1,161 @@
+/*
+ * TrackerControl is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TrackerControl is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with TrackerControl. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright © 2026
+ */
+
+package net.kollnig.missioncontrol.data;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reader for the precompiled tracker index, tracker-index.tcdb, produced at
+ * build time by the trackerDbBuild task (app/gradle/trackerdb.gradle), which
+ * also documents the layout.
+ * <p>
+ * The index holds the tracker list assets flattened into one section per list,
+ * in file order, with all strings interned. It is read straight from a
+ * (memory-mapped) buffer: strings are decoded on first use and then shared, so
+ * a domain or company name is materialised at most once per load.
+ */
+final class TrackerIndex {
+    static final String ASSET = "tracker-index.tcdb";
+
+    static final int MAGIC = 0x54434442; // 'TCDB'
+    // Must match TRACKER_INDEX_VERSION in app/gradle/trackerdb.gradle
+    static final int VERSION = 1;
+
+    static final int SECTION_XRAY = 0;
+    static final int SECTION_DISCONNECT = 1;
+    static final int SECTION_DUCKDUCKGO = 2;
+    private static final int SECTION_COUNT = 3;
+
+    private static final int TRACKER_RECORD = 12;
+    private static final int DOMAIN_RECORD = 8;
+
+    private final ByteBuffer buffer;
+    private final int stringOffsets;
+    private final int stringBlob;
+    private final String[] strings;
+    private final int[] trackerStart = new int[SECTION_COUNT];
+    private final int[] trackerCount = new int[SECTION_COUNT];
+    private final int[] domainStart = new int[SECTION_COUNT];
+    private final int[] domainCount = new int[SECTION_COUNT];
+    private byte[] scratch = new byte[64];
+
+    private TrackerIndex(ByteBuffer buffer) throws IOException {
+        this.buffer = buffer.order(ByteOrder.BIG_ENDIAN);
+        try {
+            if (buffer.getInt(0) != MAGIC)
+                throw new IOException("Not a tracker index");
+            int version = buffer.getInt(4);
+            if (version != VERSION)
+                throw new IOException("Unsupported tracker index version " + version);
+
+            int count = buffer.getInt(8);
+            stringOffsets = 12;
+            stringBlob = stringOffsets + (count + 1) * 4;
+            strings = new String[count];
+
+            int pos = stringBlob + buffer.getInt(stringOffsets + count * 4);
+            if (buffer.getInt(pos) != SECTION_COUNT)
+                throw new IOException("Unexpected tracker index sections");
+            pos += 4;
+            for (int s = 0; s < SECTION_COUNT; s++) {
+                trackerCount[s] = buffer.getInt(pos);
+                trackerStart[s] = pos + 4;
+                pos = trackerStart[s] + trackerCount[s] * TRACKER_RECORD;
+                domainCount[s] = buffer.getInt(pos);
+                domainStart[s] = pos + 4;
+                pos = domainStart[s] + domainCount[s] * DOMAIN_RECORD;
+            }
+            if (pos != buffer.limit())
+                throw new IOException("Truncated tracker index");
+        } catch (IndexOutOfBoundsException | BufferUnderflowException ex) {
+            throw new IOException("Truncated tracker index", ex);
+        }
+    }
+
+    /**
+     * Opens an index, validating its header and section table.
+     *
+     * @param buffer Index contents, typically a read-only mapping of the asset
+     * @return Index reader
+     * @throws IOException if the buffer is not an index of the supported version
+     */
+    static TrackerIndex open(@NonNull ByteBuffer buffer) throws IOException {
+        return new TrackerIndex(buffer);
+    }
+
+    int getTrackerCount(int section) {
+        return trackerCount[section];
+    }
+
+    @Nullable
+    String getTrackerName(int section, int tracker) {
+        return getString(buffer.getInt(trackerStart[section] + tracker * TRACKER_RECORD));
+    }
+
+    @Nullable
+    String getTrackerCategory(int section, int tracker) {
+        return getString(buffer.getInt(trackerStart[section] + tracker * TRACKER_RECORD + 4));
+    }
+
+    @Nullable
+    String getTrackerCountry(int section, int tracker) {
+        return getString(buffer.getInt(trackerStart[section] + tracker * TRACKER_RECORD + 8));
+    }
+
+    int getDomainCount(int section) {
+        return domainCount[section];
+    }
+
+    String getDomain(int section, int domain) {
+        return getString(buffer.getInt(domainStart[section] + domain * DOMAIN_RECORD));
+    }
+
+    /**
+     * @return Index of the section's tracker the domain belongs to
+     */
+    int getDomainTracker(int section, int domain) {
+        return buffer.getInt(domainStart[section] + domain * DOMAIN_RECORD + 4);
+    }
+
+    @Nullable
+    private String getString(int id) {
+        if (id < 0)
+            return null;
+
+        String s = strings[id];
+        if (s == null) {
+            int start = buffer.getInt(stringOffsets + id * 4);
+            int length = buffer.getInt(stringOffsets + (id + 1) * 4) - start;
+            if (scratch.length < length)
+                scratch = new byte[length];
+            ByteBuffer slice = buffer.duplicate();
+            slice.position(stringBlob + start);
+            slice.get(scratch, 0, length);
+            s = new String(scratch, 0, length, StandardCharsets.UTF_8);
+            strings[id] = s;
+        }
+        return s;
+    }
+}
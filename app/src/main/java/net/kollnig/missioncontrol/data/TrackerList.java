@@ -21,6 +21,7 @@ import static net.kollnig.missioncontrol.data.TrackerCategory.UNCATEGORISED;
 
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.content.res.AssetFileDescriptor;
 import android.database.Cursor;
 import android.util.JsonReader;
 import android.util.JsonToken;
@@ -31,26 +32,32 @@ import androidx.collection.ArrayMap;
 import androidx.preference.PreferenceManager;
 
 import eu.faircode.netguard.DatabaseHelper;
+import net.kollnig.missioncontrol.BuildConfig;
 
 import java.io.DataInputStream;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
-import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import eu.faircode.netguard.DatabaseHelper;
+import eu.faircode.netguard.HostsBlocklist;
 import eu.faircode.netguard.ServiceSinkhole;
 
 /**
@@ -69,7 +76,11 @@ public class TrackerList {
             "cloudfront.net",
             "fastly.net",
             "cloudflare.com"));
-    private static final Map<String, Tracker> hostnameToTracker = new ConcurrentHashMap<>();
+    // Compiled in loadTrackers() and swapped in as a whole, so lookups never
+    // see a half-loaded list during reloadTrackerData().
+    private static volatile DomainTrie<Tracker> domainTrie = DomainTrie.empty();
+    // Trackers created on demand for hosts-file matches (see findTracker)
+    private static final Map<String, Tracker> hostsFileTrackers = new ConcurrentHashMap<>();
     public static String TRACKER_HOSTLIST = "TRACKER_HOSTLIST";
     private static final Tracker hostlistTracker = new Tracker(TRACKER_HOSTLIST, UNCATEGORISED);
     private static TrackerList instance;
@@ -80,14 +91,35 @@ public class TrackerList {
     // Lock for synchronizing tracker data reload operations
     private static final Object reloadLock = new Object();
 
-    // Performance: Cache tracker counts to avoid full DB scans on every refresh
-    private Pair<Pair<Map<Integer, Integer>, Integer>, Pair<Map<Integer, Integer>, Integer>> cachedTrackerCounts;
-    private long lastTrackerCountComputeTime = 0;
-    private static final long TRACKER_COUNT_CACHE_TTL_MS = 2000; // 2 second cache
+    // Tracker companies contacted per app, kept up to date by DatabaseHelper
+    // as access updates are flushed. Loaded, or rebuilt if the lists changed,
+    // on first use after an invalidation.
+    private final TrackerSummary summary = new TrackerSummary();
+    private final AtomicInteger summaryVersion = new AtomicInteger();
+    private int loadedSummaryVersion = -1;
 
     private TrackerList(Context c) {
         databaseHelper = DatabaseHelper.getInstance(c);
         loadTrackers(c);
+        databaseHelper.setTrackerSummaryListener(new DatabaseHelper.TrackerSummaryListener() {
+            @Override
+            public String getCompany(String daddr) {
+                Tracker tracker = findTracker(daddr);
+                return (tracker == null ? null : tracker.getName());
+            }
+
+            @Override
+            public void onTrackersSeen(Map<Integer, Map<String, Long>> seen) {
+                for (Map.Entry<Integer, Map<String, Long>> app : seen.entrySet())
+                    for (Map.Entry<String, Long> company : app.getValue().entrySet())
+                        summary.add(app.getKey(), company.getKey(), company.getValue());
+            }
+
+            @Override
+            public void onTrackersReplaced(int uid, Map<Integer, Map<String, Long>> replaced) {
+                summary.replace(uid, replaced);
+            }
+        });
     }
 
     /**
@@ -121,28 +153,19 @@ public class TrackerList {
         // would slip past detection and blocking.
         hostname = hostname.toLowerCase(Locale.ROOT);
 
-        Tracker t = null;
-
-        if (hostnameToTracker.containsKey(hostname)) {
-            t = hostnameToTracker.get(hostname);
-        } else { // check subdomains
-            for (int i = 0; i < hostname.length(); i++) {
-                if (hostname.charAt(i) == '.') {
-                    t = hostnameToTracker.get(hostname.substring(i + 1));
-                    if (t != null)
-                        break;
-                }
-            }
-        }
+        Tracker t = domainTrie.findSuffix(hostname);
 
         // In minimal mode, skip hosts-file based lookups (only use DDG tracker list)
         if (t == null && !minimalBlockingMode
-                && ServiceSinkhole.mapHostsBlocked.containsKey(hostname))
+                && ServiceSinkhole.hostsBlocked.contains(hostname))
             if (domainBasedBlocking)
                 return hostlistTracker;
             else {
-                t = new Tracker(hostname, UNCATEGORISED);
-                hostnameToTracker.put(hostname, t);
+                t = hostsFileTrackers.get(hostname);
+                if (t == null) {
+                    t = new Tracker(hostname, UNCATEGORISED);
+                    hostsFileTrackers.put(hostname, t);
+                }
                 return t;
             }
 
@@ -150,9 +173,9 @@ public class TrackerList {
     }
 
     /**
-     * Reload tracker data by clearing all existing data and reloading from assets.
-     * This should be called when the hosts blocklist is updated to ensure TrackerList
-     * stays in sync with the updated hosts.
+     * Reload tracker data from assets, replacing the existing data once loaded.
+     * This should be called when settings that affect loading change, such as
+     * the blocking mode; hosts blocklist updates only need hostsChanged().
      *
      * @param c Context
      */
@@ -161,10 +184,8 @@ public class TrackerList {
         
         // Synchronize the entire reload operation to prevent race conditions
         synchronized (reloadLock) {
-            // Clear existing data (both are thread-safe collections)
-            hostnameToTracker.clear();
-            
-            // Ensure instance exists and reload trackers from assets
+            // Ensure instance exists and reload trackers from assets. The new
+            // domain trie replaces the old one only once fully built.
             TrackerList trackerList = getInstance(c);
             trackerList.loadTrackers(c);
             // Invalidate cached tracker counts since tracker data has changed
@@ -172,6 +193,22 @@ public class TrackerList {
         }
     }
 
+    /**
+     * Brings tracker data in line with a changed hosts blocklist. The tracker
+     * lists do not depend on the hosts file, so unlike reloadTrackerData() this
+     * only drops trackers of hosts that are no longer blocked.
+     *
+     * @param c Context
+     */
+    public static void hostsChanged(Context c) {
+        HostsBlocklist hosts = ServiceSinkhole.hostsBlocked;
+        Iterator<String> it = hostsFileTrackers.keySet().iterator();
+        while (it.hasNext())
+            if (!hosts.contains(it.next()))
+                it.remove();
+        getInstance(c).invalidateTrackerCountCache();
+    }
+
     /**
      * Load tracker domain database
      *
@@ -183,15 +220,33 @@ public class TrackerList {
                 prefs.getBoolean("domain_based_blocked", false));
         minimalBlockingMode = BlockingMode.isMinimalMode(c);
 
-        if (minimalBlockingMode) {
+        Map<String, Tracker> domains = new HashMap<>();
+        TrackerIndex index = openTrackerIndex(c);
+        if (index != null) {
+            // Same lists in the same order as below, read from the index that
+            // trackerDbBuild precompiled from the JSON assets
+            if (minimalBlockingMode)
+                loadIndexSection(index, TrackerIndex.SECTION_DUCKDUCKGO, domains);
+            else {
+                loadIndexSection(index, TrackerIndex.SECTION_XRAY, domains);
+                loadIndexSection(index, TrackerIndex.SECTION_DISCONNECT, domains);
+                loadIndexSection(index, TrackerIndex.SECTION_DUCKDUCKGO, domains);
+            }
+        } else if (minimalBlockingMode) {
             // In minimal mode, only load DDG trackers (skip X-Ray and Disconnect)
             // This ensures only confirmed, breakage-tested trackers are blocked
-            loadDuckDuckGoTrackers(c);
+            loadDuckDuckGoTrackers(c, domains);
         } else {
-            loadXrayTrackers(c);
-            loadDisconnectTrackers(c); // loaded last to overwrite X-Ray hosts with extra category information
-            loadDuckDuckGoTrackers(c); // DuckDuckGo tracker list for additional mobile-specific trackers
+            loadXrayTrackers(c, domains);
+            loadDisconnectTrackers(c, domains); // loaded last to overwrite X-Ray hosts with extra category information
+            loadDuckDuckGoTrackers(c, domains); // DuckDuckGo tracker list for additional mobile-specific trackers
         }
+
+        domainTrie = DomainTrie.build(domains);
+        // Hosts-file trackers depend on the hosts list and on
+        // domainBasedBlocking, both of which may have changed.
+        hostsFileTrackers.clear();
+        Log.i(TAG, "Loaded " + domains.size() + " tracker domains");
     }
 
     /**
@@ -201,112 +256,53 @@ public class TrackerList {
      * @return Number of contacted tracking companies, for all apps
      */
     public synchronized Pair<Pair<Map<Integer, Integer>, Integer>, Pair<Map<Integer, Integer>, Integer>> getTrackerCountsAndTotal() {
-        // Performance: Return cached result if still valid
-        long now = System.currentTimeMillis();
-        if (cachedTrackerCounts != null && (now - lastTrackerCountComputeTime) < TRACKER_COUNT_CACHE_TTL_MS) {
-            return cachedTrackerCounts;
-        }
-
-        Map<Integer, Set<String>> trackers = new ArrayMap<>();
-        Map<Integer, Set<String>> trackersWeek = new ArrayMap<>();
-
-        try (Cursor cursor = databaseHelper.getHosts()) {
-            long limit = new Date().getTime() - 7 * 24 * 3600 * 1000L;
-            if (cursor.moveToFirst()) {
-                do {
-                    int appUid = cursor.getInt(cursor.getColumnIndexOrThrow("uid"));
-                    String hostname = cursor.getString(cursor.getColumnIndexOrThrow("daddr"));
-                    Tracker tracker = findTracker(hostname);
-                    checkTracker(trackers, appUid, tracker);
-
-                    long time = cursor.getLong(cursor.getColumnIndexOrThrow("time"));
-                    if (time > limit)
-                        checkTracker(trackersWeek, appUid, tracker);
-                } while (cursor.moveToNext());
-            }
-        }
-
-        cachedTrackerCounts = new Pair<>(countTrackers(trackers), countTrackers(trackersWeek));
-        lastTrackerCountComputeTime = now;
-        return cachedTrackerCounts;
+        loadSummary();
+        long limit = System.currentTimeMillis() - 7 * 24 * 3600 * 1000L;
+        return new Pair<>(summary.count(Long.MIN_VALUE), summary.count(limit));
     }
 
     /**
-     * Invalidate the cached tracker counts. Should be called when host data
-     * changes.
+     * Invalidate the tracker summary. Should be called when the tracker lists
+     * change, since hosts may now belong to other companies, or to none.
      */
-    public synchronized void invalidateTrackerCountCache() {
-        cachedTrackerCounts = null;
+    public void invalidateTrackerCountCache() {
+        summaryVersion.incrementAndGet();
     }
 
     /**
-     * Helper method to check tracker
-     *
-     * @param trackers Set of seen trackers
-     * @param appUid   Uid of app
-     * @param tracker  Seen tracker
+     * Brings the tracker summary, and the insights rollup, in line with the
+     * current tracker lists: reads it from the database, or rebuilds it from
+     * all recorded host contacts if it was built under other lists.
      */
-    private void checkTracker(Map<Integer, Set<String>> trackers, int appUid, Tracker tracker) {
-        Set<String> observedTrackers = trackers.get(appUid);
-        if (observedTrackers == null) {
-            observedTrackers = new HashSet<>();
-            trackers.put(appUid, observedTrackers);
-        }
-
-        if (tracker != null)
-            observedTrackers.add(tracker.getName());
-    }
+    synchronized void loadSummary() {
+        int version = summaryVersion.get();
+        if (version == loadedSummaryVersion)
+            return;
 
-    /**
-     * Count the number of seen trackers
-     *
-     * @param trackers Set of seen trackers
-     * @return
-     */
-    @NonNull
-    private Pair<Map<Integer, Integer>, Integer> countTrackers(Map<Integer, Set<String>> trackers) {
-        int totalTracker = 0;
-        Map<Integer, Integer> trackerCounts = new ArrayMap<>();
-        for (Map.Entry<Integer, Set<String>> entry : trackers.entrySet()) {
-            trackerCounts.put(entry.getKey(), entry.getValue().size());
-            totalTracker += entry.getValue().size();
+        // Under the reload lock, so that the key, and a rebuild, see the modes
+        // and the domain trie of the same loadTrackers()
+        synchronized (reloadLock) {
+            String key = BuildConfig.VERSION_CODE +
+                    "/" + (minimalBlockingMode ? "minimal" : "full") +
+                    "/" + domainBasedBlocking +
+                    "/" + ServiceSinkhole.hostsBlocked.getStamp();
+            databaseHelper.loadTrackerSummary(key);
         }
-
-        return new Pair<>(trackerCounts, totalTracker);
+        loadedSummaryVersion = version;
     }
 
     /**
-     * Iterate through all recorded host contacts and identify those that belong to known trackers,
-     * For each app, only the most recent tracker contact time is stored in the hashmap. Used to
-     * sort by most recent tracker detection in the main app list.
+     * Identifies the most recent tracker contact of each app. Used to sort by
+     * most recent tracker detection in the main app list.
      *
      * @return A map of app UIDs to their most recent tracker contact timestamp in milliseconds
      * since epoch. Apps with no tracker contacts are not included in the map.
      */
     public synchronized Map<Integer, Long> getLastTrackerTimes() {
-        Map<Integer, Long> result = new HashMap<>();
-
-        try (Cursor cursor = databaseHelper.getHosts()) {
-            if (cursor.moveToFirst()) {
-                do {
-                    int uid = cursor.getInt(cursor.getColumnIndexOrThrow("uid"));
-                    String hostname = cursor.getString(cursor.getColumnIndexOrThrow("daddr"));
-                    long time = cursor.getLong(cursor.getColumnIndexOrThrow("time"));
-
-                    Tracker tracker = findTracker(hostname);
-                    if (tracker == null)
-                        continue;
-
-                    Long existing = result.get(uid);
-                    if (existing == null || time > existing)
-                        result.put(uid, time);
-
-                } while (cursor.moveToNext());
-            }
-        }
-
-        return result;
+        loadSummary();
+        return summary.getLastTimes();
     }
+
     /**
      * Retrieve info for CSV export
      *
@@ -395,11 +391,71 @@ public class TrackerList {
     }
 
     /**
-     * Loads X-Ray tracker list
+     * Maps the precompiled tracker index. The asset is stored uncompressed
+     * (see noCompress in app/build.gradle), so it can be mapped in place
+     * rather than read onto the heap.
      *
      * @param c Context
+     * @return Index, or null if missing or unreadable, in which case the JSON
+     * lists are parsed instead
+     */
+    private TrackerIndex openTrackerIndex(Context c) {
+        try (AssetFileDescriptor afd = c.getAssets().openFd(TrackerIndex.ASSET);
+             FileInputStream is = afd.createInputStream()) {
+            // The mapping stays valid after the descriptor is closed
+            ByteBuffer buffer = is.getChannel().map(FileChannel.MapMode.READ_ONLY,
+                    afd.getStartOffset(), afd.getLength());
+            return TrackerIndex.open(buffer);
+        } catch (IOException ex) {
+            Log.w(TAG, "Tracker index unavailable, parsing lists instead: " + ex);
+            return null;
+        }
+    }
+
+    /**
+     * Loads one list from the precompiled tracker index, applying the same
+     * rules as the corresponding JSON loader
+     *
+     * @param index   Tracker index
+     * @param section List to load, one of the TrackerIndex.SECTION_* constants
+     * @param domains Domain map to add to
      */
-    private void loadXrayTrackers(Context c) {
+    static void loadIndexSection(TrackerIndex index, int section, Map<String, Tracker> domains) {
+        Tracker[] trackers = new Tracker[index.getTrackerCount(section)];
+        for (int i = 0; i < index.getDomainCount(section); i++) {
+            String dom = index.getDomain(section, i);
+            if (isIgnoredDomain(dom))
+                continue;
+
+            if (section == TrackerIndex.SECTION_DUCKDUCKGO) {
+                // DuckDuckGo only overwrites "Content" entries, see loadDuckDuckGoTrackers()
+                Tracker existingTracker = domains.get(dom);
+                if (existingTracker != null && !"Content".equals(existingTracker.category))
+                    continue;
+            }
+
+            int id = index.getDomainTracker(section, i);
+            Tracker tracker = trackers[id];
+            if (tracker == null) {
+                String category = index.getTrackerCategory(section, id);
+                if (section == TrackerIndex.SECTION_DISCONNECT)
+                    category = TrackerCategory.mapDisconnectCategory(category);
+                tracker = new Tracker(index.getTrackerName(section, id), category);
+                tracker.country = index.getTrackerCountry(section, id);
+                trackers[id] = tracker;
+            }
+
+            addTrackerDomain(domains, tracker, dom);
+        }
+    }
+
+    /**
+     * Loads X-Ray tracker list
+     *
+     * @param c       Context
+     * @param domains Domain map to add to
+     */
+    static void loadXrayTrackers(Context c, Map<String, Tracker> domains) {
         // Keep track of parent companies
         Map<String, Tracker> rootParents = new HashMap<>();
 
@@ -472,7 +528,7 @@ public class TrackerList {
                     if (isIgnoredDomain(dom))
                         continue;
 
-                    addTrackerDomain(tracker, dom);
+                    addTrackerDomain(domains, tracker, dom);
                 }
             }
             reader.endArray();
@@ -484,9 +540,10 @@ public class TrackerList {
     /**
      * Load DuckDuckGo tracker list
      *
-     * @param c Context
+     * @param c       Context
+     * @param domains Domain map to add to
      */
-    private void loadDuckDuckGoTrackers(Context c) {
+    static void loadDuckDuckGoTrackers(Context c, Map<String, Tracker> domains) {
         // Stream-parse to avoid materialising the whole file as a String plus a
         // JSONObject DOM. Produces the exact same map as the previous DOM-based
         // parse (this list is loaded in every mode, so it also helps minimal mode).
@@ -537,7 +594,7 @@ public class TrackerList {
                         continue;
 
                     // Check if tracker already exists (e.g., from Disconnect list)
-                    Tracker existingTracker = hostnameToTracker.get(domain);
+                    Tracker existingTracker = domains.get(domain);
 
                     // Only add/overwrite if:
                     // 1. Tracker doesn't exist yet, OR
@@ -559,7 +616,7 @@ public class TrackerList {
                     Tracker tracker = new Tracker(displayName, category);
 
                     // Add domain to tracker map
-                    addTrackerDomain(tracker, domain);
+                    addTrackerDomain(domains, tracker, domain);
                 }
                 reader.endObject();
             }
@@ -572,9 +629,10 @@ public class TrackerList {
     /**
      * Load Disconnect.me tracker list
      *
-     * @param c Context
+     * @param c       Context
+     * @param domains Domain map to add to
      */
-    private void loadDisconnectTrackers(Context c) {
+    static void loadDisconnectTrackers(Context c, Map<String, Tracker> domains) {
         /*
          * Read domain list:
          *
@@ -652,7 +710,7 @@ public class TrackerList {
                                         if (isIgnoredDomain(dom))
                                             continue;
 
-                                        addTrackerDomain(tracker, dom);
+                                        addTrackerDomain(domains, tracker, dom);
                                     }
                                     reader.endArray();
                                 }
@@ -675,16 +733,17 @@ public class TrackerList {
      * Internal method to add tracker to the tracker database that is used at
      * runtime
      *
+     * @param domains Domain map to add to
      * @param tracker Tracker to be added
      * @param dom     Domain to be added
      */
-    private void addTrackerDomain(Tracker tracker, String dom) {
+    private static void addTrackerDomain(Map<String, Tracker> domains, Tracker tracker, String dom) {
         if (domainBasedBlocking) {
             Tracker t = new Tracker(dom + " (" + tracker.getName() + ")", tracker.category);
             t.country = tracker.country;
-            hostnameToTracker.put(dom, t);
+            domains.put(dom, t);
         } else
-            hostnameToTracker.put(dom, tracker);
+            domains.put(dom, tracker);
     }
 
 }
@@ -0,0 +1,109 @@
+/*
+ * TrackerControl is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TrackerControl is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with TrackerControl. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright © 2026
+ */
+
+package net.kollnig.missioncontrol.data;
+
+import androidx.annotation.NonNull;
+import androidx.collection.ArrayMap;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * In-memory copy of the tracker table (see DatabaseHelper): for every app,
+ * the tracker companies it contacted and when it last did.
+ * <p>
+ * The access table has a row per host, which is the wrong grain for the main
+ * list, so this is kept up to date from the access updates as they are
+ * flushed instead of being derived from a scan of all hosts on every refresh.
+ */
+final class TrackerSummary {
+    private final Map<Integer, Map<String, Long>> seen = new HashMap<>();
+
+    /**
+     * Record a contact
+     *
+     * @param uid     Uid of app
+     * @param company Name of tracker company
+     * @param time    Time of contact
+     */
+    synchronized void add(int uid, String company, long time) {
+        Map<String, Long> companies = seen.get(uid);
+        if (companies == null) {
+            companies = new HashMap<>();
+            seen.put(uid, companies);
+        }
+        Long last = companies.get(company);
+        if (last == null || last < time)
+            companies.put(company, time);
+    }
+
+    /**
+     * Replace the contacts of one app, or of all apps
+     *
+     * @param uid     Uid of app, or negative for all apps
+     * @param summary Contacts by uid and company
+     */
+    synchronized void replace(int uid, Map<Integer, Map<String, Long>> summary) {
+        if (uid < 0)
+            seen.clear();
+        else
+            seen.remove(uid);
+        for (Map.Entry<Integer, Map<String, Long>> entry : summary.entrySet())
+            if (uid < 0 || entry.getKey() == uid)
+                seen.put(entry.getKey(), new HashMap<>(entry.getValue()));
+    }
+
+    /**
+     * Count contacted tracker companies
+     *
+     * @param since Only count companies contacted after this time
+     * @return Number of companies by uid, and their sum
+     */
+    @NonNull
+    synchronized Pair<Map<Integer, Integer>, Integer> count(long since) {
+        int total = 0;
+        Map<Integer, Integer> counts = new ArrayMap<>();
+        for (Map.Entry<Integer, Map<String, Long>> entry : seen.entrySet()) {
+            int count = 0;
+            for (long time : entry.getValue().values())
+                if (time > since)
+                    count++;
+            if (count > 0) {
+                counts.put(entry.getKey(), count);
+                total += count;
+            }
+        }
+        return new Pair<>(counts, total);
+    }
+
+    /**
+     * @return Time of the most recent tracker contact by uid
+     */
+    @NonNull
+    synchronized Map<Integer, Long> getLastTimes() {
+        Map<Integer, Long> result = new HashMap<>();
+        for (Map.Entry<Integer, Map<String, Long>> entry : seen.entrySet()) {
+            long last = 0;
+            for (long time : entry.getValue().values())
+                last = Math.max(last, time);
+            if (!entry.getValue().isEmpty())
+                result.put(entry.getKey(), last);
+        }
+        return result;
+    }
+}
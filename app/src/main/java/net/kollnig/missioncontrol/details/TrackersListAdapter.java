@@ -568,7 +568,7 @@ public class TrackersListAdapter extends RecyclerView.Adapter<RecyclerView.ViewH
                         .edit().putBoolean(mAppId, wantsTunnel).apply();
 
                 AsyncTask.execute(() -> {
-                    Rule.clearCache(mContext);
+                    Rule.clearCache(mContext, mAppId);
                     ServiceSinkhole.reload("app routing changed", mContext, false);
                 });
 
@@ -703,7 +703,7 @@ public class TrackersListAdapter extends RecyclerView.Adapter<RecyclerView.ViewH
         // Move expensive operations off the main thread to prevent UI freezing
         // Rule.clearCache() can block waiting for a lock held by Rule.getRules()
         AsyncTask.execute(() -> {
-            Rule.clearCache(mContext);
+            Rule.clearCache(mContext, mAppId);
             ServiceSinkhole.reload("app protection changed", mContext, false);
         });
     }
@@ -0,0 +1,346 @@
+/*
+ * Copyright © 2026 TrackerControl
+ *
+ * This file is part of TrackerControl.
+ *
+ * TrackerControl is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3
+ * as published by the Free Software Foundation.
+ */
+
+package net.kollnig.missioncontrol.dns;
+
+import androidx.annotation.Nullable;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded cache of DoH answers for the DNS proxy, so that the names apps ask
+ * for over and over are answered without a round trip.
+ * <p>
+ * Answers are keyed by question (name, type, class) and the DO and CD bits of
+ * the query, and kept for the smallest TTL of the answer section. Name errors
+ * and empty answers are kept as RFC 2308 negative answers, for the TTL of the
+ * SOA record in the authority section. A hit is returned with the ID and name
+ * case of the query and with its TTLs counted down.
+ * <p>
+ * An answer that expired less than {@link #MAX_STALE} ago is still returned,
+ * marked stale and with a TTL of {@link #STALE_TTL}, for the caller to answer
+ * with while it refreshes the entry (RFC 8767).
+ * <p>
+ * DNS messages are walked in wire format here rather than parsed with dnsjava,
+ * as a hit is on the path of every lookup.
+ */
+public class DnsAnswerCache {
+    static final int MAX_ENTRIES = 1024;
+    // Larger answers are rare and would crowd out the rest
+    static final int MAX_RESPONSE_BYTES = 1232;
+    static final long MAX_TTL = 24 * 3600L;
+    // RFC 2308 section 5: one to three hours
+    static final long MAX_NEGATIVE_TTL = 3 * 3600L;
+    // RFC 8767 section 4: stale answers carry a TTL of 30 seconds
+    static final int STALE_TTL = 30;
+    static final long MAX_STALE = 3600L;
+
+    private static final int TYPE_SOA = 6;
+    private static final int TYPE_OPT = 41;
+    private static final int RCODE_NOERROR = 0;
+    private static final int RCODE_NXDOMAIN = 3;
+
+    private static final class Entry {
+        final byte[] response;
+        // Offsets and original values of the TTL fields to count down
+        final int[] ttlOffsets;
+        final long[] ttls;
+        final long stored;
+        final long expires;
+
+        Entry(byte[] response, int[] ttlOffsets, long[] ttls, long stored, long ttl) {
+            this.response = response;
+            this.ttlOffsets = ttlOffsets;
+            this.ttls = ttls;
+            this.stored = stored;
+            this.expires = stored + ttl * 1000L;
+        }
+    }
+
+    public static final class Answer {
+        public final byte[] response;
+        // Expired, to be refreshed
+        public final boolean stale;
+
+        Answer(byte[] response, boolean stale) {
+            this.response = response;
+            this.stale = stale;
+        }
+    }
+
+    private final int maxEntries;
+    private final LinkedHashMap<String, Entry> entries;
+    private long hits = 0;
+    private long staleHits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    public DnsAnswerCache() {
+        this(MAX_ENTRIES);
+    }
+
+    DnsAnswerCache(int maxEntries) {
+        this.maxEntries = maxEntries;
+        this.entries = new LinkedHashMap<String, Entry>(64, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                if (size() <= DnsAnswerCache.this.maxEntries)
+                    return false;
+                evictions++;
+                return true;
+            }
+        };
+    }
+
+    /**
+     * @param query Wire format query
+     * @param now   Current time in milliseconds
+     * @return Answer to the query, possibly stale, or null if none is cached
+     */
+    @Nullable
+    public synchronized Answer get(byte[] query, long now) {
+        String key = getKey(query);
+        Entry entry = (key == null ? null : entries.get(key));
+        if (entry == null || now >= entry.expires + MAX_STALE * 1000L) {
+            if (entry != null)
+                entries.remove(key);
+            misses++;
+            return null;
+        }
+
+        byte[] response = answerFor(entry.response, query);
+        boolean stale = (now >= entry.expires);
+        if (stale)
+            staleHits++;
+        else
+            hits++;
+        long age = (now - entry.stored) / 1000L;
+        for (int i = 0; i < entry.ttlOffsets.length; i++)
+            putInt(response, entry.ttlOffsets[i],
+                    stale ? STALE_TTL : Math.max(0, entry.ttls[i] - age));
+        return new Answer(response, stale);
+    }
+
+    /**
+     * Keeps an answer if it can be cached.
+     *
+     * @param query    Wire format query the answer is for
+     * @param response Wire format answer
+     * @param now      Current time in milliseconds
+     * @return Whether the answer was kept
+     */
+    public synchronized boolean put(byte[] query, byte[] response, long now) {
+        String key = getKey(query);
+        if (key == null || response == null
+                || response.length < 12 || response.length > MAX_RESPONSE_BYTES)
+            return false;
+
+        // A response, not truncated, to the one question of the query
+        if ((response[2] & 0x80) == 0 || (response[2] & 0x02) != 0
+                || getShort(response, 4) != 1)
+            return false;
+        int questionEnd = skipName(response, 12) + 4;
+        if (questionEnd < 16 || questionEnd > response.length
+                || questionEnd != skipName(query, 12) + 4
+                || !equalsIgnoreCase(query, response, 12, questionEnd))
+            return false;
+
+        int rcode = response[3] & 0x0F;
+        int answers = getShort(response, 6);
+        int authorities = getShort(response, 8);
+        int additionals = getShort(response, 10);
+        boolean negative = (rcode == RCODE_NXDOMAIN || (rcode == RCODE_NOERROR && answers == 0));
+        if (rcode != RCODE_NOERROR && rcode != RCODE_NXDOMAIN)
+            return false;
+
+        int records = answers + authorities + additionals;
+        int[] offsets = new int[records];
+        long[] ttls = new long[records];
+        int count = 0;
+        long ttl = Long.MAX_VALUE;
+
+        int pos = questionEnd;
+        for (int i = 0; i < records; i++) {
+            pos = skipName(response, pos);
+            if (pos < 0 || pos + 10 > response.length)
+                return false;
+            int type = getShort(response, pos);
+            int rdlength = getShort(response, pos + 8);
+            int rdata = pos + 10;
+            if (rdata + rdlength > response.length)
+                return false;
+
+            // The TTL field of OPT holds EDNS flags
+            if (type != TYPE_OPT) {
+                long recordTtl = getInt(response, pos + 4);
+                // RFC 2181 section 8: a TTL with the top bit set means zero
+                if (recordTtl > Integer.MAX_VALUE)
+                    recordTtl = 0;
+                offsets[count] = pos + 4;
+                ttls[count] = recordTtl;
+                count++;
+
+                if (!negative && i < answers)
+                    ttl = Math.min(ttl, recordTtl);
+                else if (negative && type == TYPE_SOA && i >= answers && i < answers + authorities
+                        && rdlength >= 20) {
+                    // RFC 2308 section 5: the lesser of the SOA TTL and MINIMUM
+                    long minimum = getInt(response, rdata + rdlength - 4);
+                    ttl = Math.min(ttl, Math.min(recordTtl, minimum));
+                }
+            }
+            pos = rdata + rdlength;
+        }
+
+        // Negative answers without an SOA are not cached (RFC 2308 section 5)
+        if (ttl == Long.MAX_VALUE || ttl <= 0)
+            return false;
+        ttl = Math.min(ttl, negative ? MAX_NEGATIVE_TTL : MAX_TTL);
+
+        byte[] stored = response.clone();
+        stored[0] = 0;
+        stored[1] = 0;
+        entries.put(key, new Entry(stored,
+                Arrays.copyOf(offsets, count), Arrays.copyOf(ttls, count), now, ttl));
+        return true;
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getStaleHits() {
+        return staleHits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "entries=" + entries.size() + " hits=" + hits + " stale=" + staleHits
+                + " misses=" + misses
+                + " evictions=" + evictions;
+    }
+
+    /**
+     * @param response Answer to a query with the same key
+     * @return Copy of the answer with the ID and question of the query
+     */
+    static byte[] answerFor(byte[] response, byte[] query) {
+        byte[] answer = response.clone();
+        answer[0] = query[0];
+        answer[1] = query[1];
+        // The questions only differ in case, so echo the one that was asked
+        int questionEnd = skipName(query, 12) + 4;
+        if (questionEnd > 12 && questionEnd <= query.length && questionEnd <= answer.length
+                && equalsIgnoreCase(query, answer, 12, questionEnd))
+            System.arraycopy(query, 12, answer, 12, questionEnd - 12);
+        return answer;
+    }
+
+    /**
+     * @return Key of the question of a query, or null if the query cannot be
+     * answered from the cache
+     */
+    @Nullable
+    static String getKey(byte[] query) {
+        // A standard query with a single question
+        if (query == null || query.length < 17
+                || (query[2] & 0x80) != 0 || (query[2] & 0x78) != 0
+                || getShort(query, 4) != 1 || getShort(query, 6) != 0)
+            return null;
+
+        int nameEnd = skipName(query, 12);
+        // A query has no reason to compress its only name
+        if (nameEnd < 0 || nameEnd + 4 > query.length || (query[nameEnd - 1] != 0))
+            return null;
+
+        StringBuilder key = new StringBuilder(nameEnd - 12 + 8);
+        for (int i = 12; i < nameEnd; i++) {
+            int b = query[i] & 0xFF;
+            key.append((char) (b >= 'A' && b <= 'Z' ? b + ('a' - 'A') : b));
+        }
+        key.append('/').append(getShort(query, nameEnd))
+                .append('/').append(getShort(query, nameEnd + 2));
+
+        // DNSSEC OK from the OPT record, checking disabled from the header
+        boolean dnssecOk = false;
+        int records = getShort(query, 8) + getShort(query, 10);
+        int pos = nameEnd + 4;
+        for (int i = 0; i < records; i++) {
+            pos = skipName(query, pos);
+            if (pos < 0 || pos + 10 > query.length)
+                return null;
+            if (getShort(query, pos) == TYPE_OPT)
+                dnssecOk = (query[pos + 6] & 0x80) != 0;
+            pos += 10 + getShort(query, pos + 8);
+        }
+        if (dnssecOk)
+            key.append("/do");
+        if ((query[3] & 0x10) != 0)
+            key.append("/cd");
+        return key.toString();
+    }
+
+    /**
+     * @return Offset just past the name at pos, or -1 if it runs out of the message
+     */
+    static int skipName(byte[] message, int pos) {
+        while (pos >= 0 && pos < message.length) {
+            int length = message[pos] & 0xFF;
+            if (length == 0)
+                return pos + 1;
+            if ((length & 0xC0) == 0xC0)
+                return (pos + 2 <= message.length ? pos + 2 : -1);
+            if ((length & 0xC0) != 0)
+                return -1;
+            pos += length + 1;
+        }
+        return -1;
+    }
+
+    private static boolean equalsIgnoreCase(byte[] a, byte[] b, int from, int to) {
+        String x = new String(a, from, to - from, StandardCharsets.ISO_8859_1);
+        String y = new String(b, from, to - from, StandardCharsets.ISO_8859_1);
+        return x.equalsIgnoreCase(y);
+    }
+
+    private static int getShort(byte[] message, int pos) {
+        return ((message[pos] & 0xFF) << 8) | (message[pos + 1] & 0xFF);
+    }
+
+    private static long getInt(byte[] message, int pos) {
+        return ((long) getShort(message, pos) << 16) | getShort(message, pos + 2);
+    }
+
+    private static void putInt(byte[] message, int pos, long value) {
+        message[pos] = (byte) (value >> 24);
+        message[pos + 1] = (byte) (value >> 16);
+        message[pos + 2] = (byte) (value >> 8);
+        message[pos + 3] = (byte) value;
+    }
+}
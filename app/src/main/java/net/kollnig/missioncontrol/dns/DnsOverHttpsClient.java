@@ -29,20 +29,37 @@ import org.xbill.DNS.Type;
 import java.io.File;
 import java.io.IOException;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Objects;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.TrustManagerFactory;
+import javax.net.ssl.X509TrustManager;
+
 import okhttp3.Cache;
+import okhttp3.CacheControl;
 import okhttp3.Call;
+import okhttp3.Callback;
 import okhttp3.ConnectionPool;
+import okhttp3.Dispatcher;
 import okhttp3.Dns;
+import okhttp3.EventListener;
+import okhttp3.Handshake;
 import okhttp3.HttpUrl;
 import okhttp3.MediaType;
 import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
 import okhttp3.Request;
 import okhttp3.RequestBody;
 import okhttp3.Response;
@@ -55,6 +72,15 @@ import okio.ByteString;
  * transaction ID is normalized to zero so semantically identical requests share
  * an HTTP cache entry, as recommended by RFC 8484. OkHttp then applies the DoH
  * server's Cache-Control policy without TrackerControl parsing DNS messages.
+ * <p>
+ * Several endpoints may be configured, separated by spaces or commas. A query
+ * goes to the endpoint with the lowest expected latency, and is sent to the
+ * next best one as well if the first has not answered within its usual
+ * (90th percentile) latency, or has failed; the first answer is used.
+ * <p>
+ * Connections are opened ahead of the first query when the screen is turned
+ * on, the network changes or the VPN starts (see {@link #prewarm}), and TLS
+ * sessions are shared between clients so that a new client resumes them.
  */
 public class DnsOverHttpsClient {
     private static final String TAG = "TrackerControl.DoH";
@@ -65,6 +91,23 @@ public class DnsOverHttpsClient {
     private static final long HTTP_CACHE_MAX_BYTES = 2L * 1024L * 1024L;
     private static final int MAX_GET_URL_LENGTH = 2048;
     private static final int MAX_DOH_RESPONSE_BYTES = 65535;
+    // Queries are sent asynchronously to race endpoints, so the dispatcher,
+    // not the caller's thread, bounds them; its default of 5 per host would
+    // queue the proxy's resolutions behind one another
+    private static final int MAX_REQUESTS = 64;
+    private static final int MAX_REQUESTS_PER_HOST = 16;
+    // Idle connections are evicted anyway when the screen turns off, so with
+    // the screen on they can be kept for the next burst of lookups
+    private static final int MAX_IDLE_CONNECTIONS = 2;
+    private static final long KEEP_ALIVE_MINUTES = 5;
+    // Endpoints to open a connection to ahead of queries: the one queries go
+    // to, and the one they are hedged to
+    private static final int PREWARM_ENDPOINTS = 2;
+    // ". IN NS" with ID 0: every resolver answers it, from its cache
+    private static final byte[] PREWARM_QUERY = new byte[]{
+            0x00, 0x00, 0x01, 0x00, 0x00, 0x01, 0x00, 0x00,
+            0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x02, 0x00, 0x01
+    };
     private static final ExecutorService SHUTDOWN_EXECUTOR = Executors.newSingleThreadExecutor(r -> {
         Thread thread = new Thread(r, "DoH-shutdown");
         thread.setDaemon(true);
@@ -72,21 +115,61 @@ public class DnsOverHttpsClient {
     });
     private static DnsOverHttpsClient instance;
     private static Cache responseCache;
+    // One TLS context for all clients, so that its session cache outlives a
+    // client replaced on an endpoint change or a proxy restart
+    private static SSLContext sslContext;
+    private static X509TrustManager trustManager;
     // Screen-off DoH battery policy: while the device is dozing we skip retries
     // and evict keep-alive sockets so a server-side reset can't wake the radio.
     private static volatile boolean screenOff = false;
     private final OkHttpClient client;
     private final String endpoint;
+    private final List<Endpoint> endpoints;
+    private volatile boolean shutDown = false;
+
+    /**
+     * A configured endpoint with how it has been performing.
+     */
+    static final class Endpoint {
+        final String url;
+        // Position in the configuration, which decides between equals
+        final int order;
+        final ResolverStats stats = new ResolverStats();
+
+        Endpoint(String url, int order) {
+            this.url = url;
+            this.order = order;
+        }
+    }
 
     private DnsOverHttpsClient(Context context, String endpoint) {
         this.endpoint = endpoint;
 
-        this.client = new OkHttpClient.Builder()
+        List<Endpoint> endpoints = new ArrayList<>();
+        for (String url : splitEndpoints(endpoint))
+            if (HttpUrl.parse(url) == null)
+                Log.w(TAG, "Ignoring invalid DoH endpoint: " + url);
+            else
+                endpoints.add(new Endpoint(url, endpoints.size()));
+        if (endpoints.isEmpty())
+            endpoints.add(new Endpoint(BuildConfig.DEFAULT_DOH_ENDPOINT, 0));
+        this.endpoints = Collections.unmodifiableList(endpoints);
+
+        Dispatcher dispatcher = new Dispatcher();
+        dispatcher.setMaxRequests(MAX_REQUESTS);
+        dispatcher.setMaxRequestsPerHost(MAX_REQUESTS_PER_HOST);
+
+        OkHttpClient.Builder builder = new OkHttpClient.Builder();
+        shareTlsSessions(builder);
+        this.client = builder
+                .dispatcher(dispatcher)
                 .connectTimeout(CONNECT_TIMEOUT_MS, TimeUnit.MILLISECONDS)
                 .readTimeout(READ_TIMEOUT_MS, TimeUnit.MILLISECONDS)
                 .writeTimeout(WRITE_TIMEOUT_MS, TimeUnit.MILLISECONDS)
-                .connectionPool(new ConnectionPool(2, 30, TimeUnit.SECONDS))
+                .connectionPool(new ConnectionPool(
+                        MAX_IDLE_CONNECTIONS, KEEP_ALIVE_MINUTES, TimeUnit.MINUTES))
                 .cache(getResponseCache(context))
+                .eventListenerFactory(call -> new HandshakeTimer())
                 .retryOnConnectionFailure(true)
                 // An endpoint given as a host name can still be a resolver on
                 // the user's own network, which Android 17 blocks us from
@@ -101,7 +184,20 @@ public class DnsOverHttpsClient {
                 })
                 .build();
 
-        Log.i(TAG, "DoH client initialized with endpoint: " + endpoint);
+        Log.i(TAG, "DoH client initialized with endpoint(s): " + endpoint);
+    }
+
+    /**
+     * @return The endpoint URLs in a setting, which may hold several
+     * separated by spaces or commas
+     */
+    public static List<String> splitEndpoints(@Nullable String endpoint) {
+        List<String> urls = new ArrayList<>();
+        if (endpoint != null)
+            for (String url : endpoint.trim().split("[\\s,]+"))
+                if (!url.isEmpty() && !urls.contains(url))
+                    urls.add(url);
+        return urls;
     }
 
     public static synchronized DnsOverHttpsClient getInstance(Context context) {
@@ -131,6 +227,30 @@ public class DnsOverHttpsClient {
         return responseCache;
     }
 
+    private static synchronized void shareTlsSessions(OkHttpClient.Builder builder) {
+        try {
+            if (sslContext == null) {
+                TrustManagerFactory factory =
+                        TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+                factory.init((KeyStore) null);
+                X509TrustManager x509 = null;
+                for (TrustManager manager : factory.getTrustManagers())
+                    if (manager instanceof X509TrustManager)
+                        x509 = (X509TrustManager) manager;
+                if (x509 == null)
+                    throw new GeneralSecurityException("No X509TrustManager");
+                SSLContext context = SSLContext.getInstance("TLS");
+                context.init(null, new TrustManager[]{x509}, null);
+                sslContext = context;
+                trustManager = x509;
+            }
+            builder.sslSocketFactory(sslContext.getSocketFactory(), trustManager);
+        } catch (GeneralSecurityException e) {
+            // OkHttp's own TLS context still works, without resumption across clients
+            Log.w(TAG, "Cannot share TLS sessions: " + e.getMessage());
+        }
+    }
+
     public static synchronized void resetInstance() {
         if (instance != null) {
             instance.shutdown();
@@ -138,6 +258,18 @@ public class DnsOverHttpsClient {
         instance = null;
     }
 
+    /**
+     * Start the endpoint statistics over, as they were measured over the
+     * previous network. No-op if no client has been created yet.
+     */
+    public static synchronized void resetStats() {
+        if (instance != null)
+            for (Endpoint endpoint : instance.endpoints) {
+                Log.i(TAG, "DoH endpoint " + endpoint.url + " " + endpoint.stats);
+                endpoint.stats.reset();
+            }
+    }
+
     /**
      * Apply the screen-state DoH battery policy. While the screen is off the
      * client drops retries and evicts keep-alive connections so an idle pooled
@@ -155,6 +287,59 @@ public class DnsOverHttpsClient {
         SHUTDOWN_EXECUTOR.execute(() -> client.connectionPool().evictAll());
     }
 
+    /**
+     * Open connections to the endpoints queries go to first, so that the first
+     * query after the screen is turned on, the network changes or the VPN
+     * starts does not wait for TCP, TLS and HTTP/2 setup. A query for the root
+     * name servers is sent, as HTTP has no request that only connects.
+     * <p>
+     * Does nothing while the screen is off, or if there are idle connections
+     * already, unless the network changed: those of the previous network are
+     * dropped first. Runs in the background.
+     *
+     * @param networkChanged Whether the connections were made on another network
+     */
+    public void prewarm(boolean networkChanged) {
+        if (screenOff)
+            return;
+        SHUTDOWN_EXECUTOR.execute(() -> {
+            if (shutDown)
+                return;
+            ConnectionPool pool = client.connectionPool();
+            if (networkChanged)
+                pool.evictAll();
+            List<Endpoint> ranked = rank(endpoints, now());
+            int count = Math.min(ranked.size(), PREWARM_ENDPOINTS);
+            if (pool.idleConnectionCount() >= count) {
+                Log.d(TAG, "DoH connections warm already");
+                return;
+            }
+            for (Endpoint endpoint : ranked.subList(0, count)) {
+                Request request = buildRequest(endpoint, PREWARM_QUERY).newBuilder()
+                        .cacheControl(CacheControl.FORCE_NETWORK)
+                        .build();
+                client.newCall(request).enqueue(new Callback() {
+                    @Override
+                    public void onFailure(@NonNull Call call, @NonNull IOException e) {
+                        Log.d(TAG, "DoH pre-warming " + endpoint.url + " failed: " + e.getMessage());
+                    }
+
+                    @Override
+                    public void onResponse(@NonNull Call call, @NonNull Response response)
+                            throws IOException {
+                        try (response) {
+                            // Read to the end, so that the connection is pooled
+                            ResponseBody body = response.body();
+                            if (body != null)
+                                body.bytes();
+                        }
+                        Log.d(TAG, "DoH pre-warmed " + endpoint.url + ": " + response.code());
+                    }
+                });
+            }
+        });
+    }
+
     /**
      * Shutdown the OkHttpClient and release resources.
      * Call this when DoH is disabled to prevent idle connections from draining
@@ -163,6 +348,9 @@ public class DnsOverHttpsClient {
      */
     public void shutdown() {
         Log.i(TAG, "Shutting down DoH client");
+        shutDown = true;
+        for (Endpoint endpoint : endpoints)
+            Log.i(TAG, "DoH endpoint " + endpoint.url + " " + endpoint.stats);
         SHUTDOWN_EXECUTOR.execute(() -> {
             client.dispatcher().cancelAll();
             client.connectionPool().evictAll();
@@ -214,10 +402,10 @@ public class DnsOverHttpsClient {
             return null;
         }
 
-        Request request = buildRequest(endpoint, dnsQuery);
-
-        // Screen off: do not retry. A second round trip would double the radio
-        // wakeups during doze for a query that is already failing.
+        // Screen off: do not retry, nor ask a second endpoint. A second round
+        // trip would double the radio wakeups during doze for a query that is
+        // already failing.
+        boolean screenOff = DnsOverHttpsClient.screenOff;
         int maxRetries = screenOff ? 0 : MAX_RETRIES;
 
         for (int attempt = 0; attempt <= maxRetries; attempt++) {
@@ -231,21 +419,192 @@ public class DnsOverHttpsClient {
                 Log.d(TAG, "DoH retry attempt " + attempt);
             }
 
-            Call call = client.newCall(request);
+            Race race = new Race(dnsQuery, rank(endpoints, now()), !screenOff);
             try {
-                try (Response response = call.execute()) {
+                byte[] dnsResponse = race.run();
+                if (dnsResponse != null)
+                    return dnsResponse;
+                if (!race.isRetryable())
+                    return null;
+                // Once per attempt, however many endpoints it asked
+                reportFailedAttempt(onFailedAttempt);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            } finally {
+                // Screen off: never leave an idle keep-alive socket behind — a
+                // server-side reset during doze would wake the radio. Cache
+                // hits are unaffected (no connection is created for them).
+                if (screenOff) {
+                    evictIdle();
+                }
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * @return Endpoints by expected latency, best first
+     */
+    static List<Endpoint> rank(List<Endpoint> endpoints, long now) {
+        List<Endpoint> ranked = new ArrayList<>(endpoints);
+        if (ranked.size() > 1)
+            Collections.sort(ranked, (a, b) -> {
+                int c = Double.compare(a.stats.getScore(now), b.stats.getScore(now));
+                return c != 0 ? c : Integer.compare(a.order, b.order);
+            });
+        return ranked;
+    }
+
+    private static long now() {
+        return System.nanoTime() / 1_000_000L;
+    }
+
+    /**
+     * One attempt at a query: sent to the best endpoint, then to the next one
+     * as well once the first has taken longer than it usually does, or to the
+     * next one instead once all sent to have failed. The first usable answer
+     * wins, and the requests still in progress are canceled.
+     */
+    private final class Race {
+        private final byte[] dnsQuery;
+        private final List<Endpoint> ranked;
+        private final boolean spread;
+        private final List<Leg> legs = new ArrayList<>(2);
+        private int next = 0;
+        @Nullable
+        private byte[] answer = null;
+        private boolean retryable = false;
+        private boolean canceled = false;
+        private boolean done = false;
+
+        Race(byte[] dnsQuery, List<Endpoint> ranked, boolean spread) {
+            this.dnsQuery = dnsQuery;
+            this.ranked = ranked;
+            this.spread = spread;
+        }
+
+        @Nullable
+        synchronized byte[] run() throws InterruptedException {
+            try {
+                Endpoint first = ranked.get(0);
+                start();
+                long hedgeAt = (spread && ranked.size() > 1
+                        ? now() + first.stats.getHedgeDelay() : -1);
+                while (answer == null && !canceled && !legs.isEmpty()) {
+                    if (hedgeAt < 0) {
+                        wait();
+                        continue;
+                    }
+                    long delay = hedgeAt - now();
+                    if (delay > 0) {
+                        wait(delay);
+                        continue;
+                    }
+                    hedgeAt = -1;
+                    if (next < ranked.size()) {
+                        Log.d(TAG, "DoH endpoint " + first.url + " slow, also asking "
+                                + ranked.get(next).url);
+                        start();
+                    }
+                }
+                return answer;
+            } finally {
+                done = true;
+                for (Leg leg : legs)
+                    leg.call.cancel();
+            }
+        }
+
+        /**
+         * @return Whether another attempt may succeed: there was a network
+         * or server failure, and the request was not canceled by a shutdown
+         */
+        synchronized boolean isRetryable() {
+            return retryable && !canceled;
+        }
+
+        private void start() {
+            Leg leg = new Leg(ranked.get(next++));
+            legs.add(leg);
+            leg.call.enqueue(leg);
+        }
+
+        private synchronized void finished(Leg leg, @Nullable byte[] dnsResponse,
+                                           boolean retry, boolean network) {
+            legs.remove(leg);
+            if (done)
+                return;
+
+            long now = now();
+            if (dnsResponse != null) {
+                // An HTTP cache hit says nothing about the endpoint
+                if (network)
+                    leg.endpoint.stats.success(now - leg.started, now);
+                answer = dnsResponse;
+            } else {
+                leg.endpoint.stats.failure(now);
+                if (retry)
+                    retryable = true;
+                if (spread && legs.isEmpty() && next < ranked.size()) {
+                    Log.d(TAG, "DoH endpoint " + leg.endpoint.url + " failed, asking "
+                            + ranked.get(next).url);
+                    start();
+                }
+            }
+            notifyAll();
+        }
+
+        private synchronized void canceled(Leg leg) {
+            legs.remove(leg);
+            if (done)
+                return;
+            canceled = true;
+            notifyAll();
+        }
+
+        private final class Leg implements Callback {
+            final Endpoint endpoint;
+            final Call call;
+            final long started = now();
+
+            Leg(Endpoint endpoint) {
+                this.endpoint = endpoint;
+                this.call = client.newCall(buildRequest(endpoint, dnsQuery));
+            }
+
+            @Override
+            public void onFailure(@NonNull Call call, @NonNull IOException e) {
+                if (call.isCanceled()) {
+                    // Canceled by our own getInstance()/shutdown() swap (a DoH
+                    // endpoint change), not a real network failure. Counting
+                    // this would let an endpoint switch alone trip the circuit
+                    // breaker against a perfectly healthy new endpoint. Also
+                    // the losers of a race.
+                    Log.d(TAG, "DoH request canceled, not counted as a failure");
+                    canceled(this);
+                    return;
+                }
+                Log.e(TAG, "DoH request failed: " + e.getMessage());
+                finished(this, null, true, true);
+            }
+
+            @Override
+            public void onResponse(@NonNull Call call, @NonNull Response response) {
+                try (response) {
                     if (!response.isSuccessful()) {
                         Log.w(TAG, "DoH request failed with code: " + response.code());
-                        if (response.code() < 500) return null; // Don't retry client errors
-                        reportFailedAttempt(onFailedAttempt);
-                        continue;
+                        // Don't retry client errors
+                        finished(this, null, response.code() >= 500, true);
+                        return;
                     }
 
                     ResponseBody responseBody = response.body();
                     if (responseBody == null) {
                         Log.w(TAG, "DoH response body is null");
-                        reportFailedAttempt(onFailedAttempt);
-                        continue;
+                        finished(this, null, true, true);
+                        return;
                     }
 
                     long contentLength = responseBody.contentLength();
@@ -256,48 +615,31 @@ public class DnsOverHttpsClient {
                         // failure however many attempts it burned, so an endpoint
                         // spraying junk took ten whole queries to trip the breaker
                         // while every other failure mode took three.
-                        reportFailedAttempt(onFailedAttempt);
-                        continue;
+                        finished(this, null, true, true);
+                        return;
                     }
 
                     byte[] dnsResponse = response.peekBody(MAX_DOH_RESPONSE_BYTES + 1L).bytes();
                     if (dnsResponse.length > MAX_DOH_RESPONSE_BYTES) {
                         Log.w(TAG, "DoH response too large: " + dnsResponse.length + " bytes");
-                        reportFailedAttempt(onFailedAttempt);
-                        continue;
+                        finished(this, null, true, true);
+                        return;
                     }
                     if (dnsResponse.length < 12) {
                         Log.w(TAG, "DoH response too short: " + dnsResponse.length + " bytes");
-                        reportFailedAttempt(onFailedAttempt);
-                        continue;
+                        finished(this, null, true, true);
+                        return;
                     }
                     dnsResponse = finalizeResponse(dnsResponse, response, dnsQuery);
-                    Log.d(TAG, "DoH response received: " + dnsResponse.length + " bytes"
+                    Log.d(TAG, "DoH response received from " + endpoint.url + ": "
+                            + dnsResponse.length + " bytes"
                             + (response.cacheResponse() == null ? "" : " (HTTP cache hit)"));
-                    return dnsResponse;
-                }
-            } catch (IOException e) {
-                if (call.isCanceled()) {
-                    // Canceled by our own getInstance()/shutdown() swap (a DoH
-                    // endpoint change), not a real network failure. Counting
-                    // this would let an endpoint switch alone trip the circuit
-                    // breaker against a perfectly healthy new endpoint.
-                    Log.d(TAG, "DoH request canceled (client shutdown), not counted as a failure");
-                    return null;
-                }
-                Log.e(TAG, "DoH request failed: " + e.getMessage());
-                reportFailedAttempt(onFailedAttempt);
-            } finally {
-                // Screen off: never leave an idle keep-alive socket behind — a
-                // server-side reset during doze would wake the radio. Cache
-                // hits are unaffected (no connection is created for them).
-                if (screenOff) {
-                    evictIdle();
+                    finished(this, dnsResponse, false, response.networkResponse() != null);
+                } catch (IOException e) {
+                    onFailure(call, e);
                 }
             }
         }
-
-        return null;
     }
 
     private static void reportFailedAttempt(@Nullable Runnable onFailedAttempt) {
@@ -329,6 +671,60 @@ public class DnsOverHttpsClient {
                 .build();
     }
 
+    /**
+     * Timing of the connections a call sets up, recorded for the endpoint
+     * it was made to. Pooled connections set up nothing. Connection attempts
+     * to several addresses of a host may run at once.
+     */
+    private static final class HandshakeTimer extends EventListener {
+        private long connectStart;
+        private long secureConnectStart = -1;
+        private long secureConnectEnd = -1;
+        @Nullable
+        private Handshake handshake;
+
+        @Override
+        public synchronized void connectStart(@NonNull Call call,
+                                              @NonNull InetSocketAddress address,
+                                              @NonNull Proxy proxy) {
+            connectStart = now();
+            secureConnectStart = -1;
+            secureConnectEnd = -1;
+        }
+
+        @Override
+        public synchronized void secureConnectStart(@NonNull Call call) {
+            secureConnectStart = now();
+        }
+
+        @Override
+        public synchronized void secureConnectEnd(@NonNull Call call, @Nullable Handshake handshake) {
+            secureConnectEnd = now();
+            this.handshake = handshake;
+        }
+
+        @Override
+        public synchronized void connectEnd(@NonNull Call call,
+                                            @NonNull InetSocketAddress address,
+                                            @NonNull Proxy proxy, @Nullable Protocol protocol) {
+            long now = now();
+            Endpoint endpoint = call.request().tag(Endpoint.class);
+            if (endpoint != null)
+                endpoint.stats.handshake(now - connectStart);
+            Log.d(TAG, "DoH connected to " + address + " in " + (now - connectStart) + "ms"
+                    + (secureConnectStart < 0 || secureConnectEnd < 0 ? ""
+                    : ", TLS " + (secureConnectEnd - secureConnectStart) + "ms")
+                    + (handshake == null ? "" : " " + handshake.tlsVersion().javaName())
+                    + (protocol == null ? "" : " " + protocol));
+        }
+    }
+
+    private static Request buildRequest(Endpoint endpoint, byte[] dnsQuery) {
+        return buildRequest(endpoint.url, dnsQuery).newBuilder()
+                .tag(Endpoint.class, endpoint)
+                .build();
+    }
+
     static Request buildRequest(String endpoint, byte[] dnsQuery) {
         // buildRequestUrl normalizes the transaction ID internally, so pass the
         // raw query here and only re-normalize for the POST fallback body.
@@ -0,0 +1,486 @@
+/*
+ * Copyright © 2026 TrackerControl
+ *
+ * This file is part of TrackerControl.
+ *
+ * TrackerControl is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3
+ * as published by the Free Software Foundation.
+ */
+
+package net.kollnig.missioncontrol.dns;
+
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Single thread serving the UDP socket and the TCP connections of the DNS
+ * proxy with a selector, so that a query holds no thread while it waits for
+ * its answer.
+ * <p>
+ * Queries are handed to a {@link Resolver}, which answers from the cache on
+ * the loop thread or later from a resolving thread; answers from other
+ * threads are queued back to the loop, which does all socket I/O. A TCP
+ * connection may carry several queries at once (RFC 7766 section 6.2.1.1),
+ * answered in the order their answers arrive.
+ */
+final class DnsProxyLoop implements Runnable {
+    private static final String TAG = "TrackerControl.DnsProxy";
+
+    interface Resolver {
+        /**
+         * Answers a query, either before returning or later from another thread.
+         */
+        void resolve(byte[] query, InflightQueries.Callback callback) throws IOException;
+    }
+
+    // Increased for EDNS0 support; also the longest TCP query accepted
+    static final int BUFFER_SIZE = 4096;
+    private static final int MAX_POOLED_BUFFERS = 16;
+    static final int MAX_TCP_CONNECTIONS = 64;
+    // Queries of a connection being resolved before it is read no further
+    static final int MAX_PIPELINED_QUERIES = 16;
+    static final long TCP_IDLE_TIMEOUT_MS = 10_000;
+    // Let other sockets have their turn during a burst
+    private static final int MAX_DATAGRAMS_PER_WAKEUP = 64;
+    private static final long SELECT_TIMEOUT_MS = 1000;
+
+    /**
+     * Direct buffers for reading, only used from the loop thread.
+     */
+    static final class BufferPool {
+        private final int size;
+        private final int max;
+        private final ArrayDeque<ByteBuffer> free = new ArrayDeque<>();
+
+        BufferPool(int size, int max) {
+            this.size = size;
+            this.max = max;
+        }
+
+        ByteBuffer acquire() {
+            ByteBuffer buffer = free.poll();
+            if (buffer == null)
+                buffer = ByteBuffer.allocateDirect(size);
+            buffer.clear();
+            return buffer;
+        }
+
+        void release(ByteBuffer buffer) {
+            if (free.size() < max)
+                free.push(buffer);
+        }
+
+        int size() {
+            return free.size();
+        }
+    }
+
+    private final Selector selector;
+    private final DatagramChannel udpChannel;
+    @Nullable
+    private final ServerSocketChannel tcpChannel;
+    private final Resolver resolver;
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final BufferPool buffers = new BufferPool(BUFFER_SIZE, MAX_POOLED_BUFFERS);
+    private final List<TcpConnection> connections = new ArrayList<>();
+    private volatile Thread thread;
+    private volatile boolean running = true;
+
+    private DnsProxyLoop(Selector selector, DatagramChannel udpChannel,
+                         @Nullable ServerSocketChannel tcpChannel, Resolver resolver) {
+        this.selector = selector;
+        this.udpChannel = udpChannel;
+        this.tcpChannel = tcpChannel;
+        this.resolver = resolver;
+    }
+
+    /**
+     * Binds the sockets, to be served by {@link #run}.
+     *
+     * @param tcp Whether to listen for TCP as well; a failure to do so is only logged
+     */
+    static DnsProxyLoop open(InetSocketAddress address, boolean tcp, Resolver resolver)
+            throws IOException {
+        Selector selector = Selector.open();
+        DatagramChannel udpChannel = null;
+        try {
+            udpChannel = DatagramChannel.open();
+            // Bound through the socket, as NetworkChannel.bind() needs API 24
+            udpChannel.socket().setReuseAddress(true);
+            udpChannel.socket().bind(address);
+            udpChannel.configureBlocking(false);
+            udpChannel.register(selector, SelectionKey.OP_READ);
+        } catch (IOException e) {
+            closeQuietly(udpChannel);
+            closeQuietly(selector);
+            throw e;
+        }
+
+        ServerSocketChannel tcpChannel = null;
+        if (tcp)
+            try {
+                tcpChannel = ServerSocketChannel.open();
+                tcpChannel.socket().setReuseAddress(true);
+                tcpChannel.socket().bind(new InetSocketAddress(
+                        address.getAddress(), udpChannel.socket().getLocalPort()));
+                tcpChannel.configureBlocking(false);
+                tcpChannel.register(selector, SelectionKey.OP_ACCEPT);
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to bind DNS TCP proxy: " + e.getMessage());
+                closeQuietly(tcpChannel);
+                tcpChannel = null;
+            }
+
+        return new DnsProxyLoop(selector, udpChannel, tcpChannel, resolver);
+    }
+
+    int getLocalPort() {
+        return udpChannel.socket().getLocalPort();
+    }
+
+    boolean isTcpListening() {
+        return tcpChannel != null;
+    }
+
+    /**
+     * Closes the listening sockets straight away, so that they can be bound
+     * again, and has the loop close the connections and exit.
+     */
+    void shutdown() {
+        running = false;
+        closeQuietly(udpChannel);
+        closeQuietly(tcpChannel);
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        thread = Thread.currentThread();
+        ByteBuffer datagram = buffers.acquire();
+        long lastIdleCheck = now();
+        try {
+            while (running) {
+                selector.select(SELECT_TIMEOUT_MS);
+
+                Runnable task;
+                while ((task = tasks.poll()) != null)
+                    try {
+                        task.run();
+                    } catch (RuntimeException e) {
+                        Log.e(TAG, "Error sending DNS answer: " + e.getMessage());
+                    }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid())
+                        continue;
+
+                    if (key.channel() == udpChannel)
+                        try {
+                            receive(datagram);
+                        } catch (IOException e) {
+                            if (running)
+                                Log.e(TAG, "Error receiving DNS query: " + e.getMessage());
+                        }
+                    else if (key.channel() == tcpChannel)
+                        try {
+                            accept();
+                        } catch (IOException e) {
+                            if (running)
+                                Log.e(TAG, "Error accepting TCP connection: " + e.getMessage());
+                        }
+                    else {
+                        TcpConnection connection = (TcpConnection) key.attachment();
+                        try {
+                            if (key.isReadable())
+                                connection.read();
+                            if (key.isValid() && key.isWritable())
+                                connection.flush();
+                        } catch (IOException e) {
+                            Log.e(TAG, "Error handling TCP DNS query: " + e.getMessage());
+                            connection.close();
+                        }
+                    }
+                }
+
+                long now = now();
+                if (now - lastIdleCheck >= SELECT_TIMEOUT_MS) {
+                    lastIdleCheck = now;
+                    for (TcpConnection connection : new ArrayList<>(connections))
+                        if (connection.isIdle(now))
+                            connection.close();
+                }
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            if (running)
+                Log.e(TAG, "DNS proxy loop failed: " + e.getMessage());
+        } finally {
+            running = false;
+            for (TcpConnection connection : new ArrayList<>(connections))
+                connection.close();
+            closeQuietly(udpChannel);
+            closeQuietly(tcpChannel);
+            closeQuietly(selector);
+            tasks.clear();
+        }
+    }
+
+    private void receive(ByteBuffer buffer) throws IOException {
+        for (int i = 0; i < MAX_DATAGRAMS_PER_WAKEUP; i++) {
+            buffer.clear();
+            SocketAddress client = udpChannel.receive(buffer);
+            if (client == null)
+                return;
+            buffer.flip();
+            byte[] query = new byte[buffer.remaining()];
+            buffer.get(query);
+
+            // Malformed datagrams are dropped silently rather than answered:
+            // a query shorter than a 12-byte DNS header has no transaction ID
+            // to safely echo back, so there is nothing to build a SERVFAIL
+            // response from. This matches the TCP path below. Dropping here
+            // also means garbage doesn't count as a DoH failure and can't
+            // trip the circuit breaker.
+            if (!DnsProxyServer.isPlausibleDnsQuery(query))
+                continue;
+
+            resolve(query, response -> {
+                byte[] answer = (response == null
+                        ? DnsProxyServer.buildServFailResponse(query) : response);
+                // A full send buffer drops the answer, as the network might;
+                // the client will ask again
+                if (udpChannel.send(ByteBuffer.wrap(answer), client) == 0)
+                    Log.w(TAG, "Dropped DNS answer to " + client);
+            });
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = tcpChannel.accept()) != null) {
+            if (connections.size() >= MAX_TCP_CONNECTIONS) {
+                Log.w(TAG, "Too many TCP DNS connections");
+                closeQuietly(channel);
+                continue;
+            }
+            try {
+                channel.configureBlocking(false);
+                connections.add(new TcpConnection(channel));
+            } catch (IOException e) {
+                closeQuietly(channel);
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Hands a query to the resolver, with its answer to be sent from the loop.
+     */
+    private void resolve(byte[] query, InflightQueries.Callback callback) {
+        try {
+            resolver.resolve(query, response -> {
+                if (Thread.currentThread() == thread)
+                    answer(callback, response);
+                else
+                    post(() -> answer(callback, response));
+            });
+        } catch (IOException | RuntimeException e) {
+            Log.e(TAG, "Error handling DNS query: " + e.getMessage());
+            answer(callback, null);
+        }
+    }
+
+    private static void answer(InflightQueries.Callback callback, @Nullable byte[] response) {
+        try {
+            callback.onAnswer(response);
+        } catch (IOException e) {
+            Log.w(TAG, "Error sending DNS answer: " + e.getMessage());
+        }
+    }
+
+    private void post(Runnable task) {
+        if (!running)
+            return;
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    /**
+     * @param in Buffer in read mode
+     * @return The next complete length-prefixed message, or null if there is none yet
+     */
+    @Nullable
+    static byte[] nextFrame(ByteBuffer in) throws IOException {
+        if (in.remaining() < 2)
+            return null;
+        int length = in.getShort(in.position()) & 0xFFFF;
+        if (length > in.capacity() - 2)
+            throw new IOException("DNS query too long: " + length + " bytes");
+        if (in.remaining() < 2 + length)
+            return null;
+        in.position(in.position() + 2);
+        byte[] frame = new byte[length];
+        in.get(frame);
+        return frame;
+    }
+
+    private static long now() {
+        return System.nanoTime() / 1_000_000L;
+    }
+
+    private static void closeQuietly(@Nullable Closeable closeable) {
+        if (closeable != null)
+            try {
+                closeable.close();
+            } catch (IOException ignored) {
+            }
+    }
+
+    private final class TcpConnection {
+        private final SocketChannel channel;
+        private final SelectionKey key;
+        private ByteBuffer in;
+        private final ArrayDeque<ByteBuffer> out = new ArrayDeque<>();
+        private int pending = 0;
+        private boolean inputShutdown = false;
+        // Answers from the cache arrive while the queries are being taken
+        private boolean processing = false;
+        private boolean closed = false;
+        private long lastActive = now();
+
+        TcpConnection(SocketChannel channel) throws IOException {
+            this.channel = channel;
+            this.in = buffers.acquire();
+            this.key = channel.register(selector, SelectionKey.OP_READ, this);
+        }
+
+        void read() throws IOException {
+            int read = channel.read(in);
+            if (read < 0)
+                inputShutdown = true;
+            else if (read > 0)
+                lastActive = now();
+            process();
+        }
+
+        /**
+         * Hands the queries read so far to the resolver, as far as the limit
+         * of queries in progress allows.
+         */
+        private void process() throws IOException {
+            in.flip();
+            processing = true;
+            try {
+                while (pending < MAX_PIPELINED_QUERIES) {
+                    byte[] query = nextFrame(in);
+                    if (query == null)
+                        break;
+                    // Malformed queries end the connection rather than
+                    // getting a DoH attempt that would count toward the
+                    // circuit breaker
+                    if (!DnsProxyServer.isPlausibleDnsQuery(query)) {
+                        close();
+                        return;
+                    }
+                    pending++;
+                    resolve(query, response -> reply(query, response));
+                    if (closed)
+                        return;
+                }
+            } finally {
+                processing = false;
+                if (!closed)
+                    in.compact();
+            }
+            update();
+        }
+
+        private void reply(byte[] query, @Nullable byte[] response) throws IOException {
+            pending--;
+            if (closed)
+                return;
+            byte[] answer = (response == null ? DnsProxyServer.buildServFailResponse(query) : response);
+            ByteBuffer frame = ByteBuffer.allocate(2 + answer.length);
+            frame.putShort((short) answer.length).put(answer).flip();
+            out.add(frame);
+            try {
+                flush();
+                // Queries held back by the limit can go now
+                if (!closed && !processing)
+                    process();
+            } catch (IOException e) {
+                close();
+                throw e;
+            }
+        }
+
+        void flush() throws IOException {
+            while (!out.isEmpty()) {
+                ByteBuffer frame = out.peek();
+                if (channel.write(frame) > 0)
+                    lastActive = now();
+                if (frame.hasRemaining())
+                    break;
+                out.poll();
+            }
+            update();
+        }
+
+        private void update() {
+            if (closed)
+                return;
+            // Done once the client has stopped sending and has all its answers
+            if (inputShutdown && pending == 0 && out.isEmpty() && in.position() == 0) {
+                close();
+                return;
+            }
+            int ops = 0;
+            if (!inputShutdown && pending < MAX_PIPELINED_QUERIES)
+                ops |= SelectionKey.OP_READ;
+            if (!out.isEmpty())
+                ops |= SelectionKey.OP_WRITE;
+            key.interestOps(ops);
+        }
+
+        /**
+         * Nothing to answer and nothing read or written for a while, or a
+         * client that does not take its answers.
+         */
+        boolean isIdle(long now) {
+            return pending == 0 && now - lastActive > TCP_IDLE_TIMEOUT_MS;
+        }
+
+        void close() {
+            if (closed)
+                return;
+            closed = true;
+            key.cancel();
+            closeQuietly(channel);
+            buffers.release(in);
+            in = null;
+            out.clear();
+            connections.remove(this);
+        }
+    }
+}
@@ -18,21 +18,16 @@ import androidx.preference.PreferenceManager;
 
 import net.kollnig.missioncontrol.BuildConfig;
 
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
-import java.io.EOFException;
 import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.net.SocketException;
 import java.net.SocketTimeoutException;
 import java.util.List;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -54,8 +49,8 @@ public class DnsProxyServer {
 
     private final Context context;
     private final AtomicBoolean running = new AtomicBoolean(false);
-    private DatagramSocket serverSocket;
-    private ServerSocket tcpServerSocket;
+    // Serves the sockets; upstream resolutions run on the executor
+    private DnsProxyLoop loop;
     private ExecutorService executor;
     private final AtomicInteger dohFailures = new AtomicInteger(0);
     // Trips after this many consecutive failed network attempts (not queries):
@@ -65,6 +60,10 @@ public class DnsProxyServer {
     private static final long CIRCUIT_BREAKER_COOLDOWN_MS = 60_000;
     private static final int FALLBACK_DNS_TIMEOUT_MS = 5000;
     private volatile long circuitOpenUntil = 0;
+    // Answers by question; cleared on stop and on network changes
+    private final DnsAnswerCache answerCache = new DnsAnswerCache();
+    private final InflightQueries inflight = new InflightQueries(
+            e -> Log.w(TAG, "Error sending DNS answer: " + e.getMessage()));
 
     private DnsProxyServer(Context context) {
         this.context = context.getApplicationContext();
@@ -95,53 +94,38 @@ public class DnsProxyServer {
         }
 
         // Close any existing sockets first (safety for app restart scenarios)
-        if (serverSocket != null && !serverSocket.isClosed()) {
-            Log.w(TAG, "Closing stale UDP socket before starting");
-            serverSocket.close();
-        }
-        if (tcpServerSocket != null && !tcpServerSocket.isClosed()) {
-            Log.w(TAG, "Closing stale TCP socket before starting");
-            try {
-                tcpServerSocket.close();
-            } catch (IOException e) {
-                Log.e(TAG, "Error closing stale TCP socket: " + e.getMessage());
-            }
+        if (loop != null) {
+            Log.w(TAG, "Closing stale sockets before starting");
+            loop.shutdown();
+            loop = null;
         }
 
         try {
-            serverSocket = new DatagramSocket(null); // Create unbound first
-            serverSocket.setReuseAddress(true);
-            serverSocket.bind(new InetSocketAddress(DNS_PROXY_ADDRESS, DNS_PROXY_PORT));
+            loop = DnsProxyLoop.open(new InetSocketAddress(DNS_PROXY_ADDRESS, DNS_PROXY_PORT),
+                    TCP_ENABLED, this::resolve);
             running.set(true);
 
-            // Handlers block on network I/O (worst case ~15s per DoH resolve),
-            // so a pool of 4 collapsed resolution throughput under packet loss
+            // Resolutions block on network I/O (worst case ~15s per DoH
+            // resolve), so a pool of 4 collapsed resolution throughput under
+            // packet loss. Waiting queries hold no thread.
             executor = Executors.newFixedThreadPool(16);
 
-            // Start the main listener thread
-            new Thread(this::runServer, "DnsProxyServer").start();
+            // Start the thread serving the sockets
+            new Thread(loop, "DnsProxyServer").start();
 
             // Sync the screen-state policy so a start mid-doze (e.g. a network
             // reload at night) doesn't inherit the screen-on behaviour.
-            DnsOverHttpsClient.setScreenOff(!eu.faircode.netguard.Util.isInteractive(context));
-
-            Log.i(TAG, "DNS proxy server started on " + DNS_PROXY_ADDRESS + ":" + DNS_PROXY_PORT);
-
-            // Start TCP server only if enabled (still in testing)
-            if (TCP_ENABLED) {
-                try {
-                    tcpServerSocket = new ServerSocket();
-                    tcpServerSocket.setReuseAddress(true);
-                    tcpServerSocket.bind(new InetSocketAddress(DNS_PROXY_ADDRESS, DNS_PROXY_PORT));
-                    new Thread(this::runTcpServer, "DnsProxyServer-TCP").start();
-                    Log.i(TAG, "DNS TCP proxy server started on " + DNS_PROXY_ADDRESS + ":" + DNS_PROXY_PORT);
-                } catch (IOException e) {
-                    Log.e(TAG, "Failed to bind DNS TCP proxy: " + e.getMessage());
-                }
-            }
+            boolean interactive = eu.faircode.netguard.Util.isInteractive(context);
+            DnsOverHttpsClient.setScreenOff(!interactive);
+            if (interactive)
+                prewarm(false);
+
+            Log.i(TAG, "DNS proxy server started on " + DNS_PROXY_ADDRESS + ":" + DNS_PROXY_PORT
+                    + (loop.isTcpListening() ? " (UDP and TCP)" : " (UDP)"));
 
-        } catch (SocketException e) {
+        } catch (IOException e) {
             Log.e(TAG, "Failed to start DNS proxy: " + e.getMessage());
+            loop = null;
         }
     }
 
@@ -155,22 +139,18 @@ public class DnsProxyServer {
 
         running.set(false);
 
-        if (serverSocket != null && !serverSocket.isClosed()) {
-            serverSocket.close();
-        }
-
-        if (tcpServerSocket != null && !tcpServerSocket.isClosed()) {
-            try {
-                tcpServerSocket.close();
-            } catch (IOException e) {
-                Log.e(TAG, "Error closing TCP server socket: " + e.getMessage());
-            }
+        if (loop != null) {
+            loop.shutdown();
+            loop = null;
         }
 
         if (executor != null) {
             executor.shutdownNow();
         }
 
+        Log.i(TAG, "DNS answer cache " + answerCache + ", upstream " + inflight);
+        answerCache.clear();
+
         // Also reset the DoH client to close idle HTTPS connections
         DnsOverHttpsClient.resetInstance();
 
@@ -189,6 +169,48 @@ public class DnsProxyServer {
         if (!running.get())
             return;
         DnsOverHttpsClient.setScreenOff(!interactive);
+        // The first lookups after unlocking should not wait for a handshake
+        if (interactive)
+            prewarm(false);
+    }
+
+    /**
+     * Forget what was learned over the previous network: its resolvers may
+     * have answered differently, e.g. for split-horizon names. Called when the
+     * active network is validated or lost, which does not restart the proxy.
+     */
+    public void onNetworkChanged() {
+        if (!running.get())
+            return;
+        Log.i(TAG, "Network changed, DNS answer cache " + answerCache);
+        answerCache.clear();
+        // Latencies and errors of the endpoints were measured over that network
+        DnsOverHttpsClient.resetStats();
+    }
+
+    /**
+     * Replace the DoH connections of the previous network by ones over the
+     * network that has just been validated. No-op when the proxy is not
+     * running.
+     */
+    public void onNetworkValidated() {
+        if (running.get())
+            prewarm(true);
+    }
+
+    private synchronized void prewarm(boolean networkChanged) {
+        // No point connecting while DoH is known to be failing
+        if (!running.get() || System.currentTimeMillis() < circuitOpenUntil)
+            return;
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        String endpoint = prefs.getString("doh_endpoint", BuildConfig.DEFAULT_DOH_ENDPOINT);
+        try {
+            // Creating the client reads the trusted certificates
+            executor.execute(() ->
+                    DnsOverHttpsClient.getInstance(context, endpoint).prewarm(networkChanged));
+        } catch (RejectedExecutionException e) {
+            Log.w(TAG, "Cannot pre-warm DoH connections: " + e.getMessage());
+        }
     }
 
     /**
@@ -208,6 +230,14 @@ public class DnsProxyServer {
         }
     }
 
+    /**
+     * Hit, miss and eviction counts of the answer cache, and how many queries
+     * shared an upstream resolution.
+     */
+    public String getCacheStats() {
+        return answerCache + ", upstream " + inflight;
+    }
+
     /**
      * Check if the proxy server is running.
      */
@@ -216,50 +246,32 @@ public class DnsProxyServer {
     }
 
     /**
-     * Main server loop - receives DNS queries and dispatches them to the thread
-     * pool.
+     * Answer a query from the cache straight away, or else later from the
+     * resolution of an identical query in progress or from its own upstream
+     * resolution on the executor. A stale answer is returned straight away and
+     * then refreshed.
      */
-    private void runServer() {
-        byte[] buffer = new byte[4096]; // Increased for EDNS0 support
-
-        while (running.get()) {
-            try {
-                DatagramPacket request = new DatagramPacket(buffer, buffer.length);
-                serverSocket.receive(request);
-
-                // Copy the data for the handler thread
-                byte[] queryData = new byte[request.getLength()];
-                System.arraycopy(request.getData(), 0, queryData, 0, request.getLength());
-
-                final InetAddress clientAddress = request.getAddress();
-                final int clientPort = request.getPort();
-
-                // Handle the query in a separate thread
-                executor.submit(() -> handleQuery(queryData, clientAddress, clientPort));
-
-            } catch (IOException e) {
-                if (running.get()) {
-                    Log.e(TAG, "Error receiving DNS query: " + e.getMessage());
-                }
-            }
+    private void resolve(byte[] queryData, InflightQueries.Callback callback) throws IOException {
+        DnsAnswerCache.Answer cached = answerCache.get(queryData, System.currentTimeMillis());
+        if (cached != null) {
+            callback.onAnswer(cached.response);
+            // No point refreshing while DoH is known to be failing
+            if (!cached.stale || System.currentTimeMillis() < circuitOpenUntil)
+                return;
+            callback = null;
         }
+        InflightQueries.Callback waiter = callback;
+        executor.execute(() -> inflight.resolve(queryData, waiter, this::resolveUpstream));
     }
 
     /**
-     * Handle a single DNS query by forwarding it via DoH.
+     * Resolve a query via DoH, falling back to standard DNS if enabled.
+     *
+     * @return Response with the ID of the query, or null to answer SERVFAIL
      */
-    private void handleQuery(byte[] queryData, InetAddress clientAddress, int clientPort) {
+    @Nullable
+    private byte[] resolveUpstream(byte[] queryData) {
         try {
-            // Malformed datagrams are dropped silently rather than answered:
-            // a query shorter than a 12-byte DNS header has no transaction ID
-            // to safely echo back, so there is nothing to build a SERVFAIL
-            // response from. This matches the TCP path below. Dropping here
-            // also means garbage doesn't count as a DoH failure and can't
-            // trip the circuit breaker.
-            if (!isPlausibleDnsQuery(queryData)) {
-                return;
-            }
-
             SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
             byte[] responseData = null;
 
@@ -275,59 +287,42 @@ public class DnsProxyServer {
             if (responseData != null) {
                 dohFailures.set(0);
                 circuitOpenUntil = 0;
-                DatagramSocket socket = serverSocket;
-                if (socket == null || socket.isClosed()) return;
-                DatagramPacket response = new DatagramPacket(
-                        responseData, responseData.length, clientAddress, clientPort);
-                socket.send(response);
-                Log.d(TAG, "DoH query successful, response sent to " + clientAddress + ":" + clientPort);
-            } else {
-                if (!circuitOpen) {
-                    // Each wasted attempt counts: one broken query can burn
-                    // three full timeout budgets, and waiting for ten whole
-                    // queries before tripping kept ~30s of hung work alive
-                    // per query on a dead network.
-                    int failures = dohFailures.addAndGet(Math.max(1, queryFailedAttempts.get()));
-                    Log.w(TAG, "DoH query returned null response after "
-                            + queryFailedAttempts.get() + " attempt(s), failures=" + failures);
-
-                    if (failures >= CIRCUIT_BREAKER_THRESHOLD) {
-                        circuitOpenUntil = System.currentTimeMillis() + CIRCUIT_BREAKER_COOLDOWN_MS;
-                        dohFailures.set(0);
-                        if (eu.faircode.netguard.Util.isInternetWorking(context)) {
-                            Log.w(TAG, "DoH circuit breaker tripped, skipping DoH for 60s");
-                            eu.faircode.netguard.ServiceSinkhole.dohError(context);
-                        }
-                    }
-                }
+                answerCache.put(queryData, responseData, System.currentTimeMillis());
+                Log.d(TAG, "DoH query successful");
+                return responseData;
+            }
 
-                // Fallback to standard DNS if enabled
-                boolean dnsFallback = prefs.getBoolean("doh_dns_fallback", false);
-                if (dnsFallback) {
-                    byte[] fallbackResponse = resolveViaStandardDns(queryData);
-                    DatagramSocket socket = serverSocket;
-                    if (socket == null || socket.isClosed()) return;
-                    if (fallbackResponse != null) {
-                        Log.w(TAG, "DoH failed, used standard DNS fallback");
-                        DatagramPacket response = new DatagramPacket(
-                                fallbackResponse, fallbackResponse.length, clientAddress, clientPort);
-                        socket.send(response);
-                    } else {
-                        sendServFailResponse(queryData, clientAddress, clientPort);
+            if (!circuitOpen) {
+                // Each wasted attempt counts: one broken query can burn
+                // three full timeout budgets, and waiting for ten whole
+                // queries before tripping kept ~30s of hung work alive
+                // per query on a dead network.
+                int failures = dohFailures.addAndGet(Math.max(1, queryFailedAttempts.get()));
+                Log.w(TAG, "DoH query returned null response after "
+                        + queryFailedAttempts.get() + " attempt(s), failures=" + failures);
+
+                if (failures >= CIRCUIT_BREAKER_THRESHOLD) {
+                    circuitOpenUntil = System.currentTimeMillis() + CIRCUIT_BREAKER_COOLDOWN_MS;
+                    dohFailures.set(0);
+                    if (eu.faircode.netguard.Util.isInternetWorking(context)) {
+                        Log.w(TAG, "DoH circuit breaker tripped, skipping DoH for 60s");
+                        eu.faircode.netguard.ServiceSinkhole.dohError(context);
                     }
-                } else {
-                    sendServFailResponse(queryData, clientAddress, clientPort);
                 }
             }
 
-        } catch (Exception e) {
-            Log.e(TAG, "Error handling DNS query: " + e.getMessage());
-            // Try to send a SERVFAIL response
-            try {
-                sendServFailResponse(queryData, clientAddress, clientPort);
-            } catch (IOException ignored) {
+            // Fallback to standard DNS if enabled
+            boolean dnsFallback = prefs.getBoolean("doh_dns_fallback", false);
+            if (dnsFallback) {
+                byte[] fallbackResponse = resolveViaStandardDns(queryData);
+                if (fallbackResponse != null)
+                    Log.w(TAG, "DoH failed, used standard DNS fallback");
+                return fallbackResponse;
             }
+        } catch (Exception e) {
+            Log.e(TAG, "Error resolving DNS query: " + e.getMessage());
         }
+        return null;
     }
 
     /**
@@ -359,119 +354,6 @@ public class DnsProxyServer {
         return response;
     }
 
-    /**
-     * Send a SERVFAIL response to the client.
-     */
-    private void sendServFailResponse(byte[] queryData, InetAddress clientAddress, int clientPort)
-            throws IOException {
-        byte[] response = buildServFailResponse(queryData);
-        if (response == null)
-            return;
-
-        DatagramSocket socket = serverSocket;
-        if (socket == null || socket.isClosed())
-            return;
-
-        DatagramPacket packet = new DatagramPacket(response, response.length, clientAddress, clientPort);
-        socket.send(packet);
-    }
-
-    private void runTcpServer() {
-        while (running.get()) {
-            try {
-                Socket clientSocket = tcpServerSocket.accept();
-                clientSocket.setSoTimeout(10000); // 10s timeout
-                executor.submit(() -> handleTcpConnection(clientSocket));
-            } catch (IOException e) {
-                if (running.get()) {
-                    Log.e(TAG, "Error accepting TCP connection: " + e.getMessage());
-                }
-            }
-        }
-    }
-
-    private void handleTcpConnection(Socket client) {
-        try (Socket socket = client;
-                DataInputStream in = new DataInputStream(socket.getInputStream());
-                DataOutputStream out = new DataOutputStream(socket.getOutputStream())) {
-
-            // DataInputStream#readUnsignedShort() never returns -1: per its
-            // contract it throws EOFException if the stream ends before two
-            // bytes are read, which is exactly what a bare TCP connect probe
-            // (no length prefix at all) looks like. Handled below, quietly.
-            int length = in.readUnsignedShort();
-            byte[] queryData = new byte[length];
-            in.readFully(queryData);
-
-            // Malformed queries get no answer rather than a DoH attempt that
-            // would count toward the circuit breaker
-            if (!isPlausibleDnsQuery(queryData))
-                return;
-
-            // Resolve using the existing logic (reuse handleQuery logic or extract common
-            // part)
-            // Note: handleQuery writes to UDP socket directly, so we can't fully reuse it
-            // without refactoring.
-            // We'll duplicate the resolution logic slightly for simplicity or extract it.
-            // Let's copy the resolution logic here for safety.
-
-            SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
-            byte[] responseData = null;
-
-            boolean circuitOpen = System.currentTimeMillis() < circuitOpenUntil;
-            AtomicInteger queryFailedAttempts = new AtomicInteger(0);
-            if (!circuitOpen) {
-                String endpoint = prefs.getString("doh_endpoint", BuildConfig.DEFAULT_DOH_ENDPOINT);
-                DnsOverHttpsClient dohClient = DnsOverHttpsClient.getInstance(context, endpoint);
-                responseData = dohClient.resolve(queryData, queryFailedAttempts::incrementAndGet);
-            }
-
-            if (responseData != null) {
-                dohFailures.set(0);
-                circuitOpenUntil = 0;
-                out.writeShort(responseData.length);
-                out.write(responseData);
-                out.flush();
-                Log.d(TAG, "DoH TCP query successful");
-            } else {
-                if (!circuitOpen) {
-                    // Same attempt-based accounting as the UDP path above.
-                    int failures = dohFailures.addAndGet(Math.max(1, queryFailedAttempts.get()));
-                    if (failures >= CIRCUIT_BREAKER_THRESHOLD) {
-                        circuitOpenUntil = System.currentTimeMillis() + CIRCUIT_BREAKER_COOLDOWN_MS;
-                        dohFailures.set(0);
-                        if (eu.faircode.netguard.Util.isInternetWorking(context)) {
-                            Log.w(TAG, "DoH circuit breaker tripped (TCP), skipping DoH for 60s");
-                            eu.faircode.netguard.ServiceSinkhole.dohError(context);
-                        }
-                    }
-                }
-
-                boolean dnsFallback = prefs.getBoolean("doh_dns_fallback", false);
-                if (dnsFallback) {
-                    byte[] fallbackResponse = resolveViaStandardDns(queryData);
-                    if (fallbackResponse != null) {
-                        Log.w(TAG, "DoH failed, used standard DNS fallback (TCP)");
-                        out.writeShort(fallbackResponse.length);
-                        out.write(fallbackResponse);
-                        out.flush();
-                    } else {
-                        sendTcpServFail(out, queryData);
-                    }
-                } else {
-                    sendTcpServFail(out, queryData);
-                }
-            }
-
-        } catch (EOFException e) {
-            // Peer closed before completing the length-prefixed frame (e.g. a
-            // bare connect probe with no payload) -- not an error, and not
-            // worth logging.
-        } catch (Exception e) {
-            Log.e(TAG, "Error handling TCP DNS query: " + e.getMessage());
-        }
-    }
-
     /**
      * Fallback: forward the raw DNS query to the system's DNS server via plain UDP.
      */
@@ -531,13 +413,4 @@ public class DnsProxyServer {
         Log.e(TAG, "All fallback DNS servers failed");
         return null;
     }
-
-    private void sendTcpServFail(DataOutputStream out, byte[] queryData) throws IOException {
-        byte[] response = buildServFailResponse(queryData);
-        if (response == null)
-            return;
-        out.writeShort(response.length);
-        out.write(response);
-        out.flush();
-    }
 }
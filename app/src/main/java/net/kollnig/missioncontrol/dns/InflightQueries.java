@@ -0,0 +1,125 @@
+/*
+ * Copyright © 2026 TrackerControl
+ *
+ * This file is part of TrackerControl.
+ *
+ * TrackerControl is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3
+ * as published by the Free Software Foundation.
+ */
+
+package net.kollnig.missioncontrol.dns;
+
+import androidx.annotation.Nullable;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Upstream resolutions in progress, by question, so that queries for the same
+ * question share one resolution instead of each making its own round trip
+ * (and its own retries) while apps start up and ask for the same names at once.
+ * <p>
+ * The first query for a question resolves it on its own thread; queries that
+ * arrive meanwhile leave a callback and return, freeing their thread. Each is
+ * answered with its own ID and question once the resolution completes.
+ */
+class InflightQueries {
+    interface Callback {
+        /**
+         * @param response Answer to the query, or null if the question could not be resolved
+         */
+        void onAnswer(@Nullable byte[] response) throws IOException;
+    }
+
+    interface Upstream {
+        @Nullable
+        byte[] resolve(byte[] query);
+    }
+
+    interface ErrorHandler {
+        void onError(IOException e);
+    }
+
+    private static final class Waiter {
+        final byte[] query;
+        final Callback callback;
+
+        Waiter(byte[] query, Callback callback) {
+            this.query = query;
+            this.callback = callback;
+        }
+    }
+
+    private final Map<String, List<Waiter>> waiting = new HashMap<>();
+    private final ErrorHandler errorHandler;
+    private long resolutions = 0;
+    private long coalesced = 0;
+
+    InflightQueries(ErrorHandler errorHandler) {
+        this.errorHandler = errorHandler;
+    }
+
+    /**
+     * Answers a query from the resolution of its question that is in progress,
+     * or else resolves it with upstream on the calling thread.
+     *
+     * @param callback Null to only refresh the answer
+     */
+    void resolve(byte[] query, @Nullable Callback callback, Upstream upstream) {
+        String key = DnsAnswerCache.getKey(query);
+        List<Waiter> waiters;
+        synchronized (this) {
+            if (key != null && waiting.containsKey(key)) {
+                if (callback != null) {
+                    waiting.get(key).add(new Waiter(query, callback));
+                    coalesced++;
+                }
+                return;
+            }
+            waiters = new ArrayList<>(1);
+            if (callback != null)
+                waiters.add(new Waiter(query, callback));
+            if (key != null)
+                waiting.put(key, waiters);
+            resolutions++;
+        }
+
+        byte[] response = null;
+        try {
+            response = upstream.resolve(query);
+        } finally {
+            if (key != null)
+                synchronized (this) {
+                    waiters = waiting.remove(key);
+                }
+            for (Waiter waiter : waiters)
+                try {
+                    waiter.callback.onAnswer(response == null ? null
+                            : DnsAnswerCache.answerFor(response, waiter.query));
+                } catch (IOException e) {
+                    errorHandler.onError(e);
+                }
+        }
+    }
+
+    synchronized int size() {
+        return waiting.size();
+    }
+
+    synchronized long getResolutions() {
+        return resolutions;
+    }
+
+    synchronized long getCoalesced() {
+        return coalesced;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "resolutions=" + resolutions + " coalesced=" + coalesced;
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright © 2026 TrackerControl
+ *
+ * This file is part of TrackerControl.
+ *
+ * TrackerControl is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3
+ * as published by the Free Software Foundation.
+ */
+
+package net.kollnig.missioncontrol.dns;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Latency and error rate of a DoH endpoint, to pick the endpoint to send a
+ * query to, and to decide when a query has waited long enough to be sent to
+ * another one as well.
+ * <p>
+ * Latency and errors are exponentially weighted moving averages. Errors fade
+ * with time, so that an endpoint that failed is tried again once the others
+ * turn out to be slow. The hedging delay is the 90th percentile of the most
+ * recent latencies. Connection setup is averaged apart, as queries over an
+ * established connection do not pay it.
+ */
+final class ResolverStats {
+    // Weight of a new observation in the moving averages
+    static final double ALPHA = 0.2;
+    // Assumed until measured, so that the configured order decides at first
+    static final long INITIAL_LATENCY_MS = 500;
+    // What an error costs in the ranking, about a timeout
+    static final long ERROR_PENALTY_MS = 5000;
+    static final long ERROR_HALF_LIFE_MS = 60_000;
+    static final long DEFAULT_HEDGE_DELAY_MS = 1000;
+    static final long MIN_HEDGE_DELAY_MS = 20;
+    // Percentiles of fewer latencies say little
+    static final int MIN_SAMPLES = 5;
+    private static final int MAX_SAMPLES = 32;
+
+    private final long[] samples = new long[MAX_SAMPLES];
+    private int sampleCount = 0;
+    private int nextSample = 0;
+    private double latency = -1;
+    // Error rate as of errorTime
+    private double errorRate = 0;
+    private long errorTime = 0;
+    private long successes = 0;
+    private long failures = 0;
+    private double handshake = -1;
+    private long handshakes = 0;
+
+    synchronized void success(long latencyMs, long now) {
+        latency = (latency < 0 ? latencyMs : latency + ALPHA * (latencyMs - latency));
+        samples[nextSample] = latencyMs;
+        nextSample = (nextSample + 1) % MAX_SAMPLES;
+        sampleCount = Math.min(sampleCount + 1, MAX_SAMPLES);
+        errorRate = getErrorRate(now) * (1 - ALPHA);
+        errorTime = now;
+        successes++;
+    }
+
+    synchronized void failure(long now) {
+        errorRate = getErrorRate(now) * (1 - ALPHA) + ALPHA;
+        errorTime = now;
+        failures++;
+    }
+
+    /**
+     * Record the time it took to set up a connection: TCP, TLS and, for
+     * HTTP/2, the connection preface.
+     */
+    synchronized void handshake(long handshakeMs) {
+        handshake = (handshake < 0 ? handshakeMs : handshake + ALPHA * (handshakeMs - handshake));
+        handshakes++;
+    }
+
+    /**
+     * Forget all measurements, e.g. when the network changes, since they
+     * were taken over another path.
+     */
+    synchronized void reset() {
+        sampleCount = 0;
+        nextSample = 0;
+        latency = -1;
+        errorRate = 0;
+        errorTime = 0;
+        successes = 0;
+        failures = 0;
+        handshake = -1;
+        handshakes = 0;
+    }
+
+    /**
+     * @return Average connection setup time in milliseconds, or -1 if no
+     * connection was set up yet
+     */
+    synchronized double getHandshake() {
+        return handshake;
+    }
+
+    /**
+     * @return Average latency in milliseconds, or -1 if not measured yet
+     */
+    synchronized double getLatency() {
+        return latency;
+    }
+
+    synchronized double getErrorRate(long now) {
+        if (errorRate == 0 || now <= errorTime)
+            return errorRate;
+        return errorRate * Math.pow(0.5, (double) (now - errorTime) / ERROR_HALF_LIFE_MS);
+    }
+
+    /**
+     * @return Expected cost of a query in milliseconds; lower is better
+     */
+    synchronized double getScore(long now) {
+        return (latency < 0 ? INITIAL_LATENCY_MS : latency) + getErrorRate(now) * ERROR_PENALTY_MS;
+    }
+
+    /**
+     * @return How long a query should wait for this endpoint before it is
+     * sent to another one as well, in milliseconds
+     */
+    synchronized long getHedgeDelay() {
+        if (sampleCount < MIN_SAMPLES)
+            return DEFAULT_HEDGE_DELAY_MS;
+        long[] sorted = Arrays.copyOf(samples, sampleCount);
+        Arrays.sort(sorted);
+        int p90 = (int) Math.ceil(0.9 * sorted.length) - 1;
+        return Math.max(MIN_HEDGE_DELAY_MS, sorted[p90]);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(Locale.ROOT,
+                "latency=%.0fms errors=%.2f ok=%d failed=%d hedge=%dms handshake=%.0fms connections=%d",
+                latency, errorRate, successes, failures, getHedgeDelay(), handshake, handshakes);
+    }
+}
@@ -43,7 +43,6 @@ static uint8_t tcdns_blocked_rcode(void *opaque) {
 static void tcdns_on_blanked(void *opaque, const char *qname,
                              uint16_t qtype, uint8_t rcode) {
     const struct tcdns_ctx *ctx = (const struct tcdns_ctx *) opaque;
-    const struct arguments *args = ctx->args;
     const struct ng_session *s = ctx->s;
 
     int version;
@@ -79,11 +78,9 @@ static void tcdns_on_blanked(void *opaque, const char *qname,
     char name[DNS_QNAME_MAX + 40 + 1];
     (void) snprintf(name, sizeof(name), "qtype %u qname %s rcode %u",
                     qtype, qname, rcode);
-    jobject objPacket = create_packet(
-            args, version, s->protocol, "",
-            source, sport, dest, dport,
-            name, 0, 0);
-    log_packet(args, objPacket);
+    log_ring_packet(LOG_RECORD_PACKET, version, s->protocol, "",
+                    source, sport, dest, dport,
+                    name, 0, 0);
 }
 
 static const tcdns_callbacks tcdns_callbacks_template = {
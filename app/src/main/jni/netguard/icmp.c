@@ -19,8 +19,6 @@
 
 #include "netguard.h"
 
-extern FILE *pcap_file;
-
 int get_icmp_timeout(const struct icmp_session *u, int sessions, int maxsessions) {
     int timeout = ICMP_TIMEOUT;
 
@@ -169,16 +167,12 @@ jboolean handle_icmp(const struct arguments *args,
         return 0;
     }
 
-    // Search session
-    struct ng_session *cur = args->ctx->ng_session;
-    while (cur != NULL &&
-           !((cur->protocol == IPPROTO_ICMP || cur->protocol == IPPROTO_ICMPV6) &&
-             !cur->icmp.stop && cur->icmp.version == version &&
-             (version == 4 ? cur->icmp.saddr.ip4 == ip4->saddr &&
-                             cur->icmp.daddr.ip4 == ip4->daddr
-                           : memcmp(&cur->icmp.saddr.ip6, &ip6->ip6_src, 16) == 0 &&
-                             memcmp(&cur->icmp.daddr.ip6, &ip6->ip6_dst, 16) == 0)))
-        cur = cur->next;
+    // Search session; a stopped one is replaced
+    struct session_key key;
+    get_packet_key(&key, (uint8_t) (version == 4 ? IPPROTO_ICMP : IPPROTO_ICMPV6), pkt, payload);
+    struct ng_session *cur = find_session(args->ctx, &key);
+    if (cur != NULL && cur->icmp.stop)
+        cur = NULL;
 
     // Create new session if needed
     if (cur == NULL) {
@@ -203,7 +197,6 @@ jboolean handle_icmp(const struct arguments *args,
         s->icmp.id = icmp->icmp_id; // store original ID
 
         s->icmp.stop = 0;
-        s->next = NULL;
 
         // Open UDP socket
         s->socket = open_icmp_socket(args, &s->icmp);
@@ -221,8 +214,7 @@ jboolean handle_icmp(const struct arguments *args,
         if (epoll_ctl(epoll_fd, EPOLL_CTL_ADD, s->socket, &s->ev))
             log_android(ANDROID_LOG_ERROR, "epoll add icmp error %d: %s", errno, strerror(errno));
 
-        s->next = args->ctx->ng_session;
-        args->ctx->ng_session = s;
+        add_session(args->ctx, s);
 
         cur = s;
     }
@@ -358,8 +350,8 @@ ssize_t write_icmp(const struct arguments *args, const struct icmp_session *cur,
 
     // Write PCAP record
     if (res >= 0) {
-        if (pcap_file != NULL)
-            write_pcap_rec(buffer, (size_t) res);
+        if (pcap_capturing())
+            write_pcap_rec(buffer, (size_t) res, cur->uid, PCAPNG_INBOUND);
     } else
         log_android(ANDROID_LOG_WARN, "ICMP write error %d: %s", errno, strerror(errno));
 
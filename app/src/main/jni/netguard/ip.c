@@ -24,7 +24,6 @@
 
 int max_tun_msg = 0;
 extern int loglevel;
-extern FILE *pcap_file;
 extern _Atomic int wg_required;
 
 static atomic_long wg_drop_count = 0;
@@ -66,64 +65,51 @@ static int is_local_dest(int version, const void *daddr) {
 // free source, so consult it before giving up.
 //
 // This runs only behind a route_flow_lookup miss, so it is the second fallback
-// rather than the per-packet cost it once was. The UDP arm repeats the 5-tuple
-// match in udp.c's has_udp_session; keep the two in step.
+// rather than the per-packet cost it once was.
 static jint get_session_uid(const struct arguments *args, int version, int protocol,
                             const uint8_t *pkt, const uint8_t *payload) {
-    const struct iphdr *ip4 = (struct iphdr *) pkt;
-    const struct ip6_hdr *ip6 = (struct ip6_hdr *) pkt;
-
-    for (struct ng_session *cur = args->ctx->ng_session; cur != NULL; cur = cur->next) {
-        if (cur->protocol != protocol)
-            continue;
-
-        if (protocol == IPPROTO_ICMP || protocol == IPPROTO_ICMPV6) {
-            const struct icmp *icmp = (struct icmp *) payload;
-            if (cur->icmp.version == version && cur->icmp.id == icmp->icmp_id &&
-                (version == 4
-                 ? cur->icmp.saddr.ip4 == ip4->saddr && cur->icmp.daddr.ip4 == ip4->daddr
-                 : memcmp(&cur->icmp.saddr.ip6, &ip6->ip6_src, 16) == 0 &&
-                   memcmp(&cur->icmp.daddr.ip6, &ip6->ip6_dst, 16) == 0))
-                return cur->icmp.uid;
-            continue;
-        }
+    struct session_key key;
+    get_packet_key(&key, (uint8_t) protocol, pkt, payload);
+    const struct ng_session *cur = find_session(args->ctx, &key);
+    if (cur == NULL)
+        return -1;
 
-        if (protocol == IPPROTO_UDP) {
-            const struct udphdr *udphdr = (struct udphdr *) payload;
-            if (cur->udp.version == version &&
-                cur->udp.source == udphdr->source && cur->udp.dest == udphdr->dest &&
-                (version == 4
-                 ? cur->udp.saddr.ip4 == ip4->saddr && cur->udp.daddr.ip4 == ip4->daddr
-                 : memcmp(&cur->udp.saddr.ip6, &ip6->ip6_src, 16) == 0 &&
-                   memcmp(&cur->udp.daddr.ip6, &ip6->ip6_dst, 16) == 0))
-                return cur->udp.uid;
-        } else if (protocol == IPPROTO_TCP) {
-            const struct tcphdr *tcphdr = (struct tcphdr *) payload;
-            if (cur->tcp.version == version &&
-                cur->tcp.source == tcphdr->source && cur->tcp.dest == tcphdr->dest &&
-                (version == 4
-                 ? cur->tcp.saddr.ip4 == ip4->saddr && cur->tcp.daddr.ip4 == ip4->daddr
-                 : memcmp(&cur->tcp.saddr.ip6, &ip6->ip6_src, 16) == 0 &&
-                   memcmp(&cur->tcp.daddr.ip6, &ip6->ip6_dst, 16) == 0))
-                return cur->tcp.uid;
-        }
-    }
+    if (protocol == IPPROTO_ICMP || protocol == IPPROTO_ICMPV6) {
+        const struct icmp *icmp = (struct icmp *) payload;
+        return (cur->icmp.id == icmp->icmp_id ? cur->icmp.uid : -1);
+    } else if (protocol == IPPROTO_UDP)
+        return cur->udp.uid;
+    else if (protocol == IPPROTO_TCP)
+        return cur->tcp.uid;
 
     return -1;
 }
 
-// Re-run the authoritative UID lookup only after both the flow cache and the
-// native session table miss. This is deliberately off the hot path: established
-// UDP/TCP packets normally hit the flow cache, while a miss can be caused by a
-// cache expiry or hash collision. Keep the Android <=28 procfs path identical
-// to the initial lookup and use ConnectivityManager on newer releases.
-static jint get_route_uid(const struct arguments *args, int version, int protocol,
-                          const void *saddr, uint16_t sport,
-                          const void *daddr, uint16_t dport,
-                          const char *source, const char *dest) {
-    if (args->ctx->sdk <= 28)
-        return get_uid(version, protocol, saddr, sport, daddr, dport);
-    return get_uid_q(args, version, protocol, source, sport, dest, dport);
+// The app owning the socket a packet came from: procfs up to Android 9 Pie,
+// ConnectivityManager on newer releases. A socket keeps its owner while it
+// lives, so the answer is remembered per 5-tuple, and not finding one is
+// remembered briefly (see uid_cache.h). Errors reading procfs (-2) are not
+// remembered.
+static jint lookup_uid(const struct arguments *args, int version, int protocol,
+                       const void *saddr, uint16_t sport,
+                       const void *daddr, uint16_t dport,
+                       const char *source, const char *dest) {
+    struct timeval time;
+    gettimeofday(&time, NULL);
+    long now = (time.tv_sec * 1000) + (time.tv_usec / 1000);
+
+    jint uid;
+    if (uid_owner_lookup(version, protocol, saddr, sport, daddr, dport, now, &uid))
+        return uid;
+
+    if (args->ctx->sdk <= 28) // Android 9 Pie
+        uid = get_uid(version, protocol, saddr, sport, daddr, dport);
+    else
+        uid = get_uid_q(args, version, protocol, source, sport, dest, dport);
+
+    if (uid != -2)
+        uid_owner_store(version, protocol, saddr, sport, daddr, dport, uid, now);
+    return uid;
 }
 
 // Whether a flow's owning app should be routed through the tunnel. Shared by
@@ -165,9 +151,9 @@ static int resolve_tunnel_uid(const struct arguments *args, int version, uint8_t
             // authoritative Android/procfs lookup.
             route_uid = get_session_uid(args, version, protocol, pkt, payload);
             if (route_uid < 0)
-                route_uid = get_route_uid(args, version, protocol,
-                                          saddr, sport, daddr, dport,
-                                          source, dest);
+                route_uid = lookup_uid(args, version, protocol,
+                                       saddr, sport, daddr, dport,
+                                       source, dest);
 
             if (route_uid >= 0) {
                 tunnel_uid = is_tunnel_uid(route_uid);
@@ -245,8 +231,10 @@ int check_tun(const struct arguments *args,
             }
         } else if (length > 0) {
             // Write pcap record
-            if (pcap_file != NULL)
-                write_pcap_rec(buffer, (size_t) length);
+            if (pcap_capturing())
+                write_pcap_rec(buffer, (size_t) length,
+                               get_packet_uid(args->ctx, buffer, (size_t) length),
+                               PCAPNG_OUTBOUND);
 
             if (length > max_tun_msg) {
                 max_tun_msg = length;
@@ -472,12 +460,9 @@ void handle_ip(const struct arguments *args,
     if (protocol == IPPROTO_ICMP || protocol == IPPROTO_ICMPV6 ||
         (protocol == IPPROTO_UDP && !has_udp_session(args, pkt, payload)) ||
         (protocol == IPPROTO_TCP && syn &&
-         (!sni_candidate || route_uid_relevant()))) {
-            if (args->ctx->sdk <= 28) // Android 9 Pie
-                uid = get_uid(version, protocol, saddr, sport, daddr, dport);
-            else
-                uid = get_uid_q(args, version, protocol, source, sport, dest, dport);
-    }
+         (!sni_candidate || route_uid_relevant())))
+        uid = lookup_uid(args, version, protocol, saddr, sport, daddr, dport,
+                         source, dest);
 
     // SNI research mode reassembles a ClientHello on the ng_session that
     // handle_tcp creates for a 443 flow — but the WireGuard hijack below hands
@@ -524,10 +509,9 @@ void handle_ip(const struct arguments *args,
     if (sni_candidate && !sni_active && syn && uid < 0) {
         if (sni_resolved_uid >= 0)
             uid = sni_resolved_uid;
-        else if (args->ctx->sdk <= 28) // Android 9 Pie
-            uid = get_uid(version, protocol, saddr, sport, daddr, dport);
         else
-            uid = get_uid_q(args, version, protocol, source, sport, dest, dport);
+            uid = lookup_uid(args, version, protocol, saddr, sport, daddr, dport,
+                             source, dest);
     }
 
     log_android(ANDROID_LOG_DEBUG,
@@ -555,8 +539,6 @@ void handle_ip(const struct arguments *args,
         if (protocol == IPPROTO_TCP && dport == 443 && !syn && sni_active) {
             // Get TCP headers
             const uint8_t version = (*pkt) >> 4;
-            const struct iphdr *ip4 = (struct iphdr *) pkt;
-            const struct ip6_hdr *ip6 = (struct ip6_hdr *) pkt;
             const struct tcphdr *tcphdr = (struct tcphdr *) payload;
             const uint8_t tcpoptlen = (uint8_t) ((tcphdr->doff - 5) * 4);
             if (tcphdr->doff < 5 ||
@@ -573,16 +555,9 @@ void handle_ip(const struct arguments *args,
             // instead of a shadowed local that stayed NULL (which meant
             // checkedHostname was never set and the decision re-ran every
             // packet).
-            cur = args->ctx->ng_session;
-            while (cur != NULL &&
-                   !(cur->protocol == IPPROTO_TCP &&
-                     cur->tcp.version == version &&
-                     cur->tcp.source == tcphdr->source && cur->tcp.dest == tcphdr->dest &&
-                     (version == 4 ? cur->tcp.saddr.ip4 == ip4->saddr &&
-                                     cur->tcp.daddr.ip4 == ip4->daddr
-                                   : memcmp(&cur->tcp.saddr.ip6, &ip6->ip6_src, 16) == 0 &&
-                                     memcmp(&cur->tcp.daddr.ip6, &ip6->ip6_dst, 16) == 0)))
-                cur = cur->next;
+            struct session_key key;
+            get_packet_key(&key, IPPROTO_TCP, pkt, payload);
+            cur = find_session(args->ctx, &key);
 
             // Try to parse the Server Name Indication once per session. A
             // ClientHello can span several TCP segments; buffer up to
@@ -638,10 +613,8 @@ void handle_ip(const struct arguments *args,
             }
 
             // Find uid to handle in main activity
-            if (args->ctx->sdk <= 28) // Android 9 Pie.
-                uid = get_uid(version, protocol, saddr, sport, daddr, dport);
-            else
-                uid = get_uid_q(args, version, protocol, source, sport, dest, dport);
+            uid = lookup_uid(args, version, protocol, saddr, sport, daddr, dport,
+                             source, dest);
 
             allowed = 1;
         }
@@ -650,12 +623,21 @@ void handle_ip(const struct arguments *args,
         // ClientHello is still being reassembled (the segment is already
         // allowed to pass; the decision waits for the SNI).
         if (!defer_sni && (cur == NULL || cur->tcp.checkedHostname == 0)) {
-            jobject objPacket = create_packet(
-                    args, version, protocol, flags, source, sport, dest, dport, packetdata, uid, 0);
-            redirect = is_address_allowed(args, objPacket);
-            allowed = (redirect != NULL);
-            if (redirect != NULL && (*redirect->raddr == 0 || redirect->rport == 0))
-                redirect = NULL;
+            if (verdict_lookup(version, protocol, daddr, dport, uid, &allowed))
+                // Known answer: no upcall, the flow only needs to be logged
+                log_ring_packet(LOG_RECORD_VERDICT, version, protocol, flags,
+                                source, sport, dest, dport, packetdata, uid, (jboolean) allowed);
+            else {
+                uint32_t epoch = verdict_generation();
+                jobject objPacket = create_packet(
+                        args, version, protocol, flags, source, sport, dest, dport, packetdata, uid, 0);
+                redirect = is_address_allowed(args, objPacket);
+                allowed = (redirect != NULL);
+                if (redirect != NULL && (*redirect->raddr == 0 || redirect->rport == 0))
+                    redirect = NULL;
+                if (redirect == NULL)
+                    verdict_store(epoch, version, protocol, daddr, dport, uid, allowed);
+            }
 
             if (cur != NULL) {
                 cur->tcp.checkedHostname = 1;
@@ -775,6 +757,18 @@ void handle_ip(const struct arguments *args,
         log_android(ANDROID_LOG_WARN, "Address v%d p%d %s/%u syn %d not allowed",
                     version, protocol, dest, dport, syn);
     }
+
+    // Bring the session of the packet up to date with what the packet did
+    if (protocol == IPPROTO_ICMP || protocol == IPPROTO_ICMPV6 ||
+        protocol == IPPROTO_UDP || protocol == IPPROTO_TCP) {
+        struct session_key key;
+        if (protocol == IPPROTO_ICMP || protocol == IPPROTO_ICMPV6)
+            protocol = (uint8_t) (version == 4 ? IPPROTO_ICMP : IPPROTO_ICMPV6);
+        get_packet_key(&key, protocol, pkt, payload);
+        struct ng_session *s = find_session(args->ctx, &key);
+        if (s != NULL)
+            session_changed(args, s, epoll_fd);
+    }
 }
 
 jint get_uid(const int version, const int protocol,
@@ -826,8 +820,14 @@ jint get_uid(const int version, const int protocol,
     return uid;
 }
 
-int uid_cache_size = 0;
-struct uid_cache_entry *uid_cache = NULL;
+// The /proc/net tables as last read, by protocol and version
+static struct uid_proc_table proc_tables[6];
+
+void clear_uid_cache() {
+    uid_owner_clear();
+    for (int i = 0; i < 6; i++)
+        uid_proc_free(&proc_tables[i]);
+}
 
 jint get_uid_sub(const int version, const int protocol,
                  const void *saddr, const uint16_t sport,
@@ -838,41 +838,35 @@ jint get_uid_sub(const int version, const int protocol,
     // http://stackoverflow.com/questions/27148536/netlink-implementation-for-the-android-ndk
     // https://android.googlesource.com/platform/system/sepolicy/+/master/private/app.te (netlink_tcpdiag_socket)
 
-    static uint8_t zero[16] = {0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0};
-
-    int ws = (version == 4 ? 1 : 4);
-
-    // Check cache
-    for (int i = 0; i < uid_cache_size; i++)
-        if (now - uid_cache[i].time <= UID_MAX_AGE &&
-            uid_cache[i].version == version &&
-            uid_cache[i].protocol == protocol &&
-            uid_cache[i].sport == sport &&
-            (uid_cache[i].dport == dport || uid_cache[i].dport == 0) &&
-            (memcmp(uid_cache[i].saddr, saddr, (size_t) (ws * 4)) == 0 ||
-             memcmp(uid_cache[i].saddr, zero, (size_t) (ws * 4)) == 0) &&
-            (memcmp(uid_cache[i].daddr, daddr, (size_t) (ws * 4)) == 0 ||
-             memcmp(uid_cache[i].daddr, zero, (size_t) (ws * 4)) == 0)) {
-
-            log_android(ANDROID_LOG_INFO, "uid v%d p%d %s/%u > %s/%u => %d (from cache)",
-                        version, protocol, source, sport, dest, dport, uid_cache[i].uid);
-
-            return uid_cache[i].uid;
-        }
-
     // Get proc file name
     char *fn = NULL;
-    if (protocol == IPPROTO_ICMP && version == 4)
+    struct uid_proc_table *table;
+    if (protocol == IPPROTO_ICMP && version == 4) {
         fn = "/proc/net/icmp";
-    else if (protocol == IPPROTO_ICMPV6 && version == 6)
+        table = &proc_tables[0];
+    } else if (protocol == IPPROTO_ICMPV6 && version == 6) {
         fn = "/proc/net/icmp6";
-    else if (protocol == IPPROTO_TCP)
+        table = &proc_tables[1];
+    } else if (protocol == IPPROTO_TCP) {
         fn = (version == 4 ? "/proc/net/tcp" : "/proc/net/tcp6");
-    else if (protocol == IPPROTO_UDP)
+        table = &proc_tables[version == 4 ? 2 : 3];
+    } else if (protocol == IPPROTO_UDP) {
         fn = (version == 4 ? "/proc/net/udp" : "/proc/net/udp6");
-    else
+        table = &proc_tables[version == 4 ? 4 : 5];
+    } else
         return -1;
 
+    // A recent read may already have the socket
+    jint uid;
+    if (table->time != 0 && now - table->time <= UID_MAX_AGE) {
+        uid = uid_proc_match(table, version, saddr, sport, daddr, dport);
+        if (uid >= 0) {
+            log_android(ANDROID_LOG_INFO, "uid v%d p%d %s/%u > %s/%u => %d (from cache)",
+                        version, protocol, source, sport, dest, dport, uid);
+            return uid;
+        }
+    }
+
     // Open proc file
     FILE *fd = fopen(fn, "r");
     if (fd == NULL) {
@@ -880,82 +874,31 @@ jint get_uid_sub(const int version, const int protocol,
         return -2;
     }
 
-    jint uid = -1;
-
+    // Scan proc file, parsing only lines the last read did not have
     char line[250];
-    int fields;
-
-    char shex[16 * 2 + 1];
-    uint8_t _saddr[16];
-    int _sport;
-
-    char dhex[16 * 2 + 1];
-    uint8_t _daddr[16];
-    int _dport;
-
-    jint _uid;
-
-    // Scan proc file
     int l = 0;
-    *line = 0;
-    int c = 0;
-    const char *fmt = (version == 4
-                       ? "%*d: %8s:%X %8s:%X %*X %*lX:%*lX %*X:%*X %*X %d %*d %*ld"
-                       : "%*d: %32s:%X %32s:%X %*X %*lX:%*lX %*X:%*X %*X %d %*d %*ld");
-    while (fgets(line, sizeof(line), fd) != NULL) {
+    int rc = 1;
+    uid_proc_begin(table);
+    while (rc > 0 && fgets(line, sizeof(line), fd) != NULL) {
         if (!l++)
             continue;
 
-        fields = sscanf(line, fmt, shex, &_sport, dhex, &_dport, &_uid);
-        if (fields == 5 && strlen(shex) == ws * 8 && strlen(dhex) == ws * 8) {
-            hex2bytes(shex, _saddr);
-            hex2bytes(dhex, _daddr);
-
-            for (int w = 0; w < ws; w++)
-                ((uint32_t *) _saddr)[w] = htonl(((uint32_t *) _saddr)[w]);
-
-            for (int w = 0; w < ws; w++)
-                ((uint32_t *) _daddr)[w] = htonl(((uint32_t *) _daddr)[w]);
-
-            if (_sport == sport &&
-                (_dport == dport || _dport == 0) &&
-                (memcmp(_saddr, saddr, (size_t) (ws * 4)) == 0 ||
-                 memcmp(_saddr, zero, (size_t) (ws * 4)) == 0) &&
-                (memcmp(_daddr, daddr, (size_t) (ws * 4)) == 0 ||
-                 memcmp(_daddr, zero, (size_t) (ws * 4)) == 0))
-                uid = _uid;
-
-            for (; c < uid_cache_size; c++)
-                if (now - uid_cache[c].time > UID_MAX_AGE)
-                    break;
-
-            if (c >= uid_cache_size) {
-                if (uid_cache_size == 0)
-                    uid_cache = ng_malloc(sizeof(struct uid_cache_entry), "uid_cache init");
-                else
-                    uid_cache = ng_realloc(uid_cache,
-                                           sizeof(struct uid_cache_entry) *
-                                           (uid_cache_size + 1), "uid_cache extend");
-                c = uid_cache_size;
-                uid_cache_size++;
-            }
-
-            uid_cache[c].version = (uint8_t) version;
-            uid_cache[c].protocol = (uint8_t) protocol;
-            memcpy(uid_cache[c].saddr, _saddr, (size_t) (ws * 4));
-            uid_cache[c].sport = (uint16_t) _sport;
-            memcpy(uid_cache[c].daddr, _daddr, (size_t) (ws * 4));
-            uid_cache[c].dport = (uint16_t) _dport;
-            uid_cache[c].uid = _uid;
-            uid_cache[c].time = now;
-        } else {
-            log_android(ANDROID_LOG_ERROR, "Invalid field #%d: %s", fields, line);
-            return -2;
-        }
+        rc = uid_proc_add(table, version, line);
+        if (rc == 0)
+            log_android(ANDROID_LOG_ERROR, "Invalid line %s: %s", fn, line);
+        else if (rc < 0)
+            log_android(ANDROID_LOG_ERROR, "Out of memory reading %s", fn);
     }
 
     if (fclose(fd))
         log_android(ANDROID_LOG_ERROR, "fclose %s error %d: %s", fn, errno, strerror(errno));
 
-    return uid;
+    if (rc <= 0)
+        return -2;
+
+    uid_proc_commit(table, now);
+    log_android(ANDROID_LOG_DEBUG, "%s sockets %d parsed %ld reused %ld",
+                fn, table->count, table->parsed, table->reused);
+
+    return uid_proc_match(table, version, saddr, sport, daddr, dport);
 }
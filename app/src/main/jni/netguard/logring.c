@@ -0,0 +1,186 @@
+/*
+ * TrackerControl is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TrackerControl is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * Copyright © 2026
+ */
+
+// Packet log and usage records, on their way to the Java log thread.
+//
+// Each logged packet used to be a Packet (or Usage) object plus a handful of
+// strings built over JNI, and then a Message posted to the log HandlerThread;
+// with full traffic logging on that was the bulk of the garbage the service
+// made. Instead the tunnel thread writes fixed-size binary records into a
+// ring that Java sees as a direct ByteBuffer (LogRing.java mirrors the
+// layout), and wakes the log thread at most once per epoll round. The log
+// thread drains everything there is and moves the tail.
+//
+// One producer, the tunnel thread, owns log_ring_head; one consumer, the log
+// thread, owns log_ring_tail. Both are free-running counters, so head - tail
+// is the fill even across wrap-around. When the consumer falls a full ring
+// behind, new records are dropped, as the old message queue did.
+
+#include "netguard.h"
+
+#include <stddef.h>
+#include <stdatomic.h>
+
+#define LOG_RING_SIZE 512           // records, power of two
+
+struct log_record {
+    jlong time;
+    jlong sent;                     // usage only
+    jlong received;                 // usage only
+    jint uid;
+    uint16_t sport;
+    uint16_t dport;
+    uint8_t type;
+    uint8_t version;
+    uint8_t protocol;
+    uint8_t allowed;
+    char flags[12];
+    char saddr[48];
+    char daddr[48];
+    char data[304];
+};
+
+_Static_assert(sizeof(struct log_record) == 448, "log_record size");
+_Static_assert(offsetof(struct log_record, data) == 144, "log_record layout");
+
+static struct log_record log_ring[LOG_RING_SIZE];
+static _Atomic uint32_t log_ring_head = 0;
+static _Atomic uint32_t log_ring_tail = 0;
+
+// Tunnel thread only
+static uint32_t log_ring_notified = 0;
+static long log_ring_dropped = 0;
+static jmethodID midLogRingReady = NULL;
+
+static void log_ring_copy(char *dst, size_t size, const char *src) {
+    if (src == NULL)
+        *dst = 0;
+    else {
+        strncpy(dst, src, size - 1);
+        dst[size - 1] = 0;
+    }
+}
+
+static struct log_record *log_ring_claim() {
+    uint32_t head = atomic_load_explicit(&log_ring_head, memory_order_relaxed);
+    uint32_t tail = atomic_load_explicit(&log_ring_tail, memory_order_acquire);
+    if (head - tail >= LOG_RING_SIZE) {
+        if ((++log_ring_dropped & 1023L) == 1)
+            log_android(ANDROID_LOG_WARN, "Log ring full, dropped %ld records",
+                        log_ring_dropped);
+        return NULL;
+    }
+    return &log_ring[head & (LOG_RING_SIZE - 1)];
+}
+
+static void log_ring_commit() {
+    atomic_fetch_add_explicit(&log_ring_head, 1, memory_order_release);
+}
+
+/**
+ * Queue a packet for the packet log. LOG_RECORD_VERDICT marks a packet whose
+ * verdict came from the native cache, which Java filters the same way as
+ * the packets it decides on itself.
+ */
+void log_ring_packet(int type,
+                     jint version, jint protocol, const char *flags,
+                     const char *source, jint sport, const char *dest, jint dport,
+                     const char *data, jint uid, jboolean allowed) {
+    struct log_record *r = log_ring_claim();
+    if (r == NULL)
+        return;
+
+    struct timeval tv;
+    gettimeofday(&tv, NULL);
+    r->time = tv.tv_sec * 1000LL + tv.tv_usec / 1000;
+    r->sent = 0;
+    r->received = 0;
+    r->uid = uid;
+    r->sport = (uint16_t) sport;
+    r->dport = (uint16_t) dport;
+    r->type = (uint8_t) type;
+    r->version = (uint8_t) version;
+    r->protocol = (uint8_t) protocol;
+    r->allowed = (uint8_t) (allowed ? 1 : 0);
+    log_ring_copy(r->flags, sizeof(r->flags), flags);
+    log_ring_copy(r->saddr, sizeof(r->saddr), source);
+    log_ring_copy(r->daddr, sizeof(r->daddr), dest);
+    log_ring_copy(r->data, sizeof(r->data), data);
+
+    log_ring_commit();
+}
+
+void account_usage(const struct arguments *args, jint version, jint protocol,
+                   const char *daddr, jint dport, jint uid, jlong sent, jlong received) {
+    struct log_record *r = log_ring_claim();
+    if (r == NULL)
+        return;
+
+    r->time = time(NULL) * 1000LL;
+    r->sent = sent;
+    r->received = received;
+    r->uid = uid;
+    r->sport = 0;
+    r->dport = (uint16_t) dport;
+    r->type = LOG_RECORD_USAGE;
+    r->version = (uint8_t) version;
+    r->protocol = (uint8_t) protocol;
+    r->allowed = 1;
+    *r->flags = 0;
+    *r->saddr = 0;
+    log_ring_copy(r->daddr, sizeof(r->daddr), daddr);
+    *r->data = 0;
+
+    log_ring_commit();
+}
+
+/**
+ * Wake the log thread if anything was queued since the last call. Called by
+ * the tunnel thread once per round, so a burst costs a single upcall.
+ */
+void log_ring_notify(const struct arguments *args) {
+    uint32_t head = atomic_load_explicit(&log_ring_head, memory_order_relaxed);
+    if (head == log_ring_notified)
+        return;
+    log_ring_notified = head;
+
+    JNIEnv *env = args->env;
+    jclass clsService = (*env)->GetObjectClass(env, args->instance);
+    ng_add_alloc(clsService, "clsService");
+
+    if (midLogRingReady == NULL)
+        midLogRingReady = jniGetMethodID(env, clsService, "logRingReady", "()V");
+
+    (*env)->CallVoidMethod(env, args->instance, midLogRingReady);
+    jniCheckException(env);
+
+    (*env)->DeleteLocalRef(env, clsService);
+    ng_delete_alloc(clsService, __FILE__, __LINE__);
+}
+
+jobject log_ring_buffer(JNIEnv *env) {
+    return (*env)->NewDirectByteBuffer(env, log_ring, (jlong) sizeof(log_ring));
+}
+
+uint32_t log_ring_get_head() {
+    return atomic_load_explicit(&log_ring_head, memory_order_acquire);
+}
+
+uint32_t log_ring_get_tail() {
+    return atomic_load_explicit(&log_ring_tail, memory_order_relaxed);
+}
+
+void log_ring_release(uint32_t tail) {
+    atomic_store_explicit(&log_ring_tail, tail, memory_order_release);
+}
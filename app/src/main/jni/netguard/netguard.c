@@ -44,12 +44,6 @@ int loglevel = ANDROID_LOG_WARN;
 extern int max_tun_msg;
 extern int is_play;
 
-extern FILE *pcap_file;
-extern size_t pcap_record_size;
-extern long pcap_file_size;
-
-extern int uid_cache_size;
-extern struct uid_cache_entry *uid_cache;
 
 #define WG_SOCKET_BUFFER_SIZE (4 * 1024 * 1024)
 
@@ -74,7 +68,6 @@ static void set_wg_socket_buffer(int fd, int optname, const char *label) {
 jclass clsPacket;
 jclass clsAllowed;
 jclass clsRR;
-jclass clsUsage;
 
 jint JNI_OnLoad(JavaVM *vm, void *reserved) {
     log_android(ANDROID_LOG_INFO, "JNI load");
@@ -103,10 +96,6 @@ jint JNI_OnLoad(JavaVM *vm, void *reserved) {
     clsRR = jniGlobalRef(env, jniFindClass(env, rr));
     ng_add_alloc(clsRR, "clsRR");
 
-    const char *usage = "eu/faircode/netguard/Usage";
-    clsUsage = jniGlobalRef(env, jniFindClass(env, usage));
-    ng_add_alloc(clsUsage, "clsUsage");
-
     // Raise file number limit to maximum
     struct rlimit rlim;
     if (getrlimit(RLIMIT_NOFILE, &rlim))
@@ -133,11 +122,9 @@ void JNI_OnUnload(JavaVM *vm, void *reserved) {
         (*env)->DeleteGlobalRef(env, clsPacket);
         (*env)->DeleteGlobalRef(env, clsAllowed);
         (*env)->DeleteGlobalRef(env, clsRR);
-        (*env)->DeleteGlobalRef(env, clsUsage);
         ng_delete_alloc(clsPacket, __FILE__, __LINE__);
         ng_delete_alloc(clsAllowed, __FILE__, __LINE__);
         ng_delete_alloc(clsRR, __FILE__, __LINE__);
-        ng_delete_alloc(clsUsage, __FILE__, __LINE__);
     }
 }
 
@@ -154,6 +141,7 @@ Java_eu_faircode_netguard_ServiceSinkhole_jni_1init(
 
     struct context *ctx = ng_calloc(1, sizeof(struct context), "init");
     ctx->sdk = sdk;
+    session_wheel_init(&ctx->session_wheel, time(NULL));
 
     loglevel = ANDROID_LOG_WARN;
 
@@ -172,7 +160,6 @@ Java_eu_faircode_netguard_ServiceSinkhole_jni_1init(
             log_android(ANDROID_LOG_ERROR, "wg outbound unlock failed during init");
     }
     atomic_store_explicit(&wg_required, 0, memory_order_release);
-    pcap_file = NULL;
 
     if (pthread_mutex_init(&ctx->lock, NULL))
         log_android(ANDROID_LOG_ERROR, "pthread_mutex_init failed");
@@ -264,20 +251,9 @@ Java_eu_faircode_netguard_ServiceSinkhole_jni_1get_1stats(
     jintArray jarray = (*env)->NewIntArray(env, 5);
     jint *jcount = (*env)->GetIntArrayElements(env, jarray, NULL);
 
-    struct ng_session *s = ctx->ng_session;
-    while (s != NULL) {
-        if (s->protocol == IPPROTO_ICMP || s->protocol == IPPROTO_ICMPV6) {
-            if (!s->icmp.stop)
-                jcount[0]++;
-        } else if (s->protocol == IPPROTO_UDP) {
-            if (s->udp.state == UDP_ACTIVE)
-                jcount[1]++;
-        } else if (s->protocol == IPPROTO_TCP) {
-            if (s->tcp.state != TCP_CLOSING && s->tcp.state != TCP_CLOSE)
-                jcount[2]++;
-        }
-        s = s->next;
-    }
+    jcount[0] = ctx->isessions;
+    jcount[1] = ctx->usessions;
+    jcount[2] = ctx->tsessions;
 
     if (pthread_mutex_unlock(&ctx->lock))
         log_android(ANDROID_LOG_ERROR, "pthread_mutex_unlock failed");
@@ -306,57 +282,18 @@ Java_eu_faircode_netguard_ServiceSinkhole_jni_1pcap(
         JNIEnv *env, jclass type,
         jstring name_, jint record_size, jint file_size) {
 
-    pcap_record_size = (size_t) record_size;
-    pcap_file_size = file_size;
-
-    //if (pthread_mutex_lock(&lock))
-    //    log_android(ANDROID_LOG_ERROR, "pthread_mutex_lock failed");
-
     if (name_ == NULL) {
-        if (pcap_file != NULL) {
-            int flags = fcntl(fileno(pcap_file), F_GETFL, 0);
-            if (flags < 0 || fcntl(fileno(pcap_file), F_SETFL, flags & ~O_NONBLOCK) < 0)
-                log_android(ANDROID_LOG_ERROR, "PCAP fcntl ~O_NONBLOCK error %d: %s",
-                            errno, strerror(errno));
-
-            if (fsync(fileno(pcap_file)))
-                log_android(ANDROID_LOG_ERROR, "PCAP fsync error %d: %s", errno, strerror(errno));
-
-            if (fclose(pcap_file))
-                log_android(ANDROID_LOG_ERROR, "PCAP fclose error %d: %s", errno, strerror(errno));
-
-            pcap_file = NULL;
-        }
+        stop_pcap();
         log_android(ANDROID_LOG_WARN, "PCAP disabled");
     } else {
         const char *name = (*env)->GetStringUTFChars(env, name_, 0);
         ng_add_alloc(name, "name");
-        log_android(ANDROID_LOG_WARN, "PCAP file %s record size %d truncate @%ld",
-                    name, pcap_record_size, pcap_file_size);
 
-        pcap_file = fopen(name, "ab+");
-        if (pcap_file == NULL)
-            log_android(ANDROID_LOG_ERROR, "PCAP fopen error %d: %s", errno, strerror(errno));
-        else {
-            int flags = fcntl(fileno(pcap_file), F_GETFL, 0);
-            if (flags < 0 || fcntl(fileno(pcap_file), F_SETFL, flags | O_NONBLOCK) < 0)
-                log_android(ANDROID_LOG_ERROR, "PCAP fcntl O_NONBLOCK error %d: %s",
-                            errno, strerror(errno));
-
-            long size = ftell(pcap_file);
-            if (size == 0) {
-                log_android(ANDROID_LOG_WARN, "PCAP initialize");
-                write_pcap_hdr();
-            } else
-                log_android(ANDROID_LOG_WARN, "PCAP current size %ld", size);
-        }
+        start_pcap(name, (size_t) record_size, file_size);
 
         (*env)->ReleaseStringUTFChars(env, name_, name);
         ng_delete_alloc(name, __FILE__, __LINE__);
     }
-
-    //if (pthread_mutex_unlock(&lock))
-    //    log_android(ANDROID_LOG_ERROR, "pthread_mutex_unlock failed");
 }
 
 JNIEXPORT void JNICALL
@@ -397,6 +334,50 @@ Java_eu_faircode_netguard_ServiceSinkhole_jni_1sni(JNIEnv *env, jobject instance
     log_android(ANDROID_LOG_WARN, "SNI extraction %s", is_play ? "enabled" : "disabled");
 }
 
+JNIEXPORT void JNICALL
+Java_eu_faircode_netguard_ServiceSinkhole_jni_1verdict_1invalidate(JNIEnv *env, jclass type) {
+    verdict_invalidate();
+}
+
+JNIEXPORT void JNICALL
+Java_eu_faircode_netguard_ServiceSinkhole_jni_1verdict_1invalidate_1addr(
+        JNIEnv *env, jclass type, jstring daddr_) {
+    const char *daddr = (*env)->GetStringUTFChars(env, daddr_, 0);
+    ng_add_alloc(daddr, "daddr");
+
+    struct in6_addr addr;
+    if (inet_pton(AF_INET, daddr, &addr) == 1)
+        verdict_invalidate_addr(4, &addr);
+    else if (inet_pton(AF_INET6, daddr, &addr) == 1)
+        verdict_invalidate_addr(6, &addr);
+    else
+        log_android(ANDROID_LOG_WARN, "Invalidate verdicts of invalid address %s", daddr);
+
+    (*env)->ReleaseStringUTFChars(env, daddr_, daddr);
+    ng_delete_alloc(daddr, __FILE__, __LINE__);
+}
+
+JNIEXPORT jobject JNICALL
+Java_eu_faircode_netguard_ServiceSinkhole_jni_1log_1ring(JNIEnv *env, jclass type) {
+    return log_ring_buffer(env);
+}
+
+JNIEXPORT jint JNICALL
+Java_eu_faircode_netguard_ServiceSinkhole_jni_1log_1ring_1head(JNIEnv *env, jclass type) {
+    return (jint) log_ring_get_head();
+}
+
+JNIEXPORT jint JNICALL
+Java_eu_faircode_netguard_ServiceSinkhole_jni_1log_1ring_1tail(JNIEnv *env, jclass type) {
+    return (jint) log_ring_get_tail();
+}
+
+JNIEXPORT void JNICALL
+Java_eu_faircode_netguard_ServiceSinkhole_jni_1log_1ring_1release(
+        JNIEnv *env, jclass type, jint tail) {
+    log_ring_release((uint32_t) tail);
+}
+
 // Allocate a SOCK_DGRAM socketpair: the C side keeps the write end (sv[0])
 // in wg_outbound_fd. The read end (sv[1]) is
 // returned to Java, which passes it to Wgbridge.startTunnel so the WireGuard
@@ -530,10 +511,7 @@ Java_eu_faircode_netguard_ServiceSinkhole_jni_1done(
         if (close(ctx->pipefds[i]))
             log_android(ANDROID_LOG_ERROR, "Close pipe error %d: %s", errno, strerror(errno));
 
-    if (uid_cache != NULL)
-        ng_free(uid_cache, __FILE__, __LINE__);
-    uid_cache_size = 0;
-    uid_cache = NULL;
+    clear_uid_cache();
 
     clear_route_uids();
 
@@ -726,39 +704,6 @@ int jniCheckException(JNIEnv *env) {
     return 0;
 }
 
-static jmethodID midLogPacket = NULL;
-
-void log_packet(const struct arguments *args, jobject jpacket) {
-#ifdef PROFILE_JNI
-    float mselapsed;
-    struct timeval start, end;
-    gettimeofday(&start, NULL);
-#endif
-
-    jclass clsService = (*args->env)->GetObjectClass(args->env, args->instance);
-    ng_add_alloc(clsService, "clsService");
-
-    const char *signature = "(Leu/faircode/netguard/Packet;)V";
-    if (midLogPacket == NULL)
-        midLogPacket = jniGetMethodID(args->env, clsService, "logPacket", signature);
-
-    (*args->env)->CallVoidMethod(args->env, args->instance, midLogPacket, jpacket);
-    jniCheckException(args->env);
-
-    (*args->env)->DeleteLocalRef(args->env, clsService);
-    (*args->env)->DeleteLocalRef(args->env, jpacket);
-    ng_delete_alloc(clsService, __FILE__, __LINE__);
-    ng_delete_alloc(jpacket, __FILE__, __LINE__);
-
-#ifdef PROFILE_JNI
-    gettimeofday(&end, NULL);
-    mselapsed = (end.tv_sec - start.tv_sec) * 1000.0 +
-                (end.tv_usec - start.tv_usec) / 1000.0;
-    if (mselapsed > PROFILE_JNI)
-        log_android(ANDROID_LOG_WARN, "log_packet %f", mselapsed);
-#endif
-}
-
 static jmethodID midDnsResolved = NULL;
 static jmethodID midInitRR = NULL;
 jfieldID fidQTime = NULL;
@@ -880,6 +825,10 @@ jint get_uid_q(const struct arguments *args,
                jint version, jint protocol,
                const char *source, jint sport,
                const char *dest, jint dport) {
+    // getConnectionOwnerUid() only knows TCP and UDP sockets
+    if (protocol != IPPROTO_TCP && protocol != IPPROTO_UDP)
+        return -1;
+
 #ifdef PROFILE_JNI
     float mselapsed;
     struct timeval start, end;
@@ -1093,83 +1042,6 @@ jobject create_packet(const struct arguments *args,
     return jpacket;
 }
 
-jmethodID midAccountUsage = NULL;
-jmethodID midInitUsage = NULL;
-jfieldID fidUsageTime = NULL;
-jfieldID fidUsageVersion = NULL;
-jfieldID fidUsageProtocol = NULL;
-jfieldID fidUsageDAddr = NULL;
-jfieldID fidUsageDPort = NULL;
-jfieldID fidUsageUid = NULL;
-jfieldID fidUsageSent = NULL;
-jfieldID fidUsageReceived = NULL;
-
-void account_usage(const struct arguments *args, jint version, jint protocol,
-                   const char *daddr, jint dport, jint uid, jlong sent, jlong received) {
-#ifdef PROFILE_JNI
-    float mselapsed;
-    struct timeval start, end;
-    gettimeofday(&start, NULL);
-#endif
-
-    jclass clsService = (*args->env)->GetObjectClass(args->env, args->instance);
-    ng_add_alloc(clsService, "clsService");
-
-    const char *signature = "(Leu/faircode/netguard/Usage;)V";
-    if (midAccountUsage == NULL)
-        midAccountUsage = jniGetMethodID(args->env, clsService, "accountUsage", signature);
-
-    const char *usage = "eu/faircode/netguard/Usage";
-    if (midInitUsage == NULL)
-        midInitUsage = jniGetMethodID(args->env, clsUsage, "<init>", "()V");
-
-    jobject jusage = jniNewObject(args->env, clsUsage, midInitUsage, usage);
-    ng_add_alloc(jusage, "jusage");
-
-    if (fidUsageTime == NULL) {
-        const char *string = "Ljava/lang/String;";
-        fidUsageTime = jniGetFieldID(args->env, clsUsage, "Time", "J");
-        fidUsageVersion = jniGetFieldID(args->env, clsUsage, "Version", "I");
-        fidUsageProtocol = jniGetFieldID(args->env, clsUsage, "Protocol", "I");
-        fidUsageDAddr = jniGetFieldID(args->env, clsUsage, "DAddr", string);
-        fidUsageDPort = jniGetFieldID(args->env, clsUsage, "DPort", "I");
-        fidUsageUid = jniGetFieldID(args->env, clsUsage, "Uid", "I");
-        fidUsageSent = jniGetFieldID(args->env, clsUsage, "Sent", "J");
-        fidUsageReceived = jniGetFieldID(args->env, clsUsage, "Received", "J");
-    }
-
-    jlong jtime = time(NULL) * 1000LL;
-    jstring jdaddr = (*args->env)->NewStringUTF(args->env, daddr);
-    ng_add_alloc(jdaddr, "jdaddr");
-
-    (*args->env)->SetLongField(args->env, jusage, fidUsageTime, jtime);
-    (*args->env)->SetIntField(args->env, jusage, fidUsageVersion, version);
-    (*args->env)->SetIntField(args->env, jusage, fidUsageProtocol, protocol);
-    (*args->env)->SetObjectField(args->env, jusage, fidUsageDAddr, jdaddr);
-    (*args->env)->SetIntField(args->env, jusage, fidUsageDPort, dport);
-    (*args->env)->SetIntField(args->env, jusage, fidUsageUid, uid);
-    (*args->env)->SetLongField(args->env, jusage, fidUsageSent, sent);
-    (*args->env)->SetLongField(args->env, jusage, fidUsageReceived, received);
-
-    (*args->env)->CallVoidMethod(args->env, args->instance, midAccountUsage, jusage);
-    jniCheckException(args->env);
-
-    (*args->env)->DeleteLocalRef(args->env, jdaddr);
-    (*args->env)->DeleteLocalRef(args->env, jusage);
-    (*args->env)->DeleteLocalRef(args->env, clsService);
-    ng_delete_alloc(jdaddr, __FILE__, __LINE__);
-    ng_delete_alloc(jusage, __FILE__, __LINE__);
-    ng_delete_alloc(clsService, __FILE__, __LINE__);
-
-#ifdef PROFILE_JNI
-    gettimeofday(&end, NULL);
-    mselapsed = (end.tv_sec - start.tv_sec) * 1000.0 +
-                (end.tv_usec - start.tv_usec) / 1000.0;
-    if (mselapsed > PROFILE_JNI)
-        log_android(ANDROID_LOG_WARN, "log_packet %f", mselapsed);
-#endif
-}
-
 struct alloc_record {
     const char *tag;
     time_t time;
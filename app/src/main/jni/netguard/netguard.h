@@ -34,6 +34,9 @@
 #include <sys/system_properties.h>
 
 #include "tcdns.h"
+#include "uid_cache.h"
+#include "session_table.h"
+#include "pcapng.h"
 
 #define TAG "TrackerControl.JNI"
 
@@ -96,6 +99,12 @@ struct context {
     int sdk;
     jboolean tcp_mss_clamp;
     struct ng_session *ng_session;
+    struct session_index session_index; // by 5-tuple, see find_session()
+    struct session_wheel session_wheel; // next check of each session
+    struct session_timer session_recheck; // TCP sessions to monitor again, see session_changed()
+    int isessions; // active sessions by protocol, see session_changed()
+    int usessions;
+    int tsessions;
 };
 
 struct arguments {
@@ -229,20 +238,14 @@ struct ng_session {
     };
     jint socket;
     struct epoll_event ev;
+    struct session_key key;
+    struct session_timer timer;
+    struct session_timer recheck;
+    uint8_t active; // counted in the context
+    struct ng_session *prev;
     struct ng_session *next;
 };
 
-struct uid_cache_entry {
-    uint8_t version;
-    uint8_t protocol;
-    uint8_t saddr[16];
-    uint16_t sport;
-    uint8_t daddr[16];
-    uint16_t dport;
-    jint uid;
-    long time;
-};
-
 // IPv6
 
 struct ip6_hdr_pseudo {
@@ -253,32 +256,6 @@ struct ip6_hdr_pseudo {
     u_int8_t ip6ph_nxt;
 } __packed;
 
-// PCAP
-// https://wiki.wireshark.org/Development/LibpcapFileFormat
-
-typedef uint16_t guint16_t;
-typedef uint32_t guint32_t;
-typedef int32_t gint32_t;
-
-typedef struct pcap_hdr_s {
-    guint32_t magic_number;
-    guint16_t version_major;
-    guint16_t version_minor;
-    gint32_t thiszone;
-    guint32_t sigfigs;
-    guint32_t snaplen;
-    guint32_t network;
-} __packed pcap_hdr_s;
-
-typedef struct pcaprec_hdr_s {
-    guint32_t ts_sec;
-    guint32_t ts_usec;
-    guint32_t incl_len;
-    guint32_t orig_len;
-} __packed pcaprec_hdr_s;
-
-#define LINKTYPE_RAW 101
-
 // DNS
 
 #define DNS_QCLASS_IN 1
@@ -373,6 +350,19 @@ void check_allowed(const struct arguments *args);
 
 void clear(struct context *ctx);
 
+void get_packet_key(struct session_key *key, uint8_t protocol,
+                    const uint8_t *pkt, const uint8_t *payload);
+
+struct ng_session *find_session(const struct context *ctx, const struct session_key *key);
+
+void add_session(struct context *ctx, struct ng_session *s);
+
+void remove_session(struct context *ctx, struct ng_session *s);
+
+void session_changed(const struct arguments *args, struct ng_session *s, int epoll_fd);
+
+jint get_packet_uid(const struct context *ctx, const uint8_t *pkt, size_t length);
+
 int check_icmp_session(const struct arguments *args,
                        struct ng_session *s,
                        int sessions, int maxsessions);
@@ -506,6 +496,8 @@ jint get_uid_sub(const int version, const int protocol,
                  const char *source, const char *dest,
                  long now);
 
+void clear_uid_cache();
+
 int protect_socket(const struct arguments *args, int socket);
 
 uint16_t calc_checksum(uint16_t start, const uint8_t *buffer, size_t length);
@@ -526,7 +518,6 @@ int sdk_int(JNIEnv *env);
 
 void log_android(int prio, const char *fmt, ...);
 
-void log_packet(const struct arguments *args, jobject jpacket);
 
 void dns_resolved(const struct arguments *args,
                   const char *qname, const char *aname, const char *resource, int ttl);
@@ -568,6 +559,43 @@ void route_flow_store(int version, int protocol,
 
 void route_flow_invalidate();
 
+// Block verdicts per (uid, daddr, dport, protocol), invalidated from Java.
+// Tunnel-thread only, except verdict_invalidate() and verdict_invalidate_addr().
+uint32_t verdict_generation();
+
+void verdict_invalidate();
+
+void verdict_invalidate_addr(int version, const void *daddr);
+
+int verdict_lookup(int version, int protocol,
+                   const void *daddr, uint16_t dport, jint uid,
+                   int *allowed);
+
+void verdict_store(uint32_t epoch, int version, int protocol,
+                   const void *daddr, uint16_t dport, jint uid,
+                   int allowed);
+
+// Packet log ring shared with the Java log thread; the tunnel thread produces.
+// Record types, mirrored by LogRing.java
+#define LOG_RECORD_PACKET 1
+#define LOG_RECORD_VERDICT 2
+#define LOG_RECORD_USAGE 3
+
+void log_ring_packet(int type,
+                     jint version, jint protocol, const char *flags,
+                     const char *source, jint sport, const char *dest, jint dport,
+                     const char *data, jint uid, jboolean allowed);
+
+void log_ring_notify(const struct arguments *args);
+
+jobject log_ring_buffer(JNIEnv *env);
+
+uint32_t log_ring_get_head();
+
+uint32_t log_ring_get_tail();
+
+void log_ring_release(uint32_t tail);
+
 jint get_uid_q(const struct arguments *args,
                jint version,
                jint protocol,
@@ -593,11 +621,13 @@ jobject create_packet(const struct arguments *args,
 void account_usage(const struct arguments *args, jint version, jint protocol,
                    const char *daddr, jint dport, jint uid, jlong sent, jlong received);
 
-void write_pcap_hdr();
+int pcap_capturing();
+
+void write_pcap_rec(const uint8_t *buffer, size_t length, jint uid, int direction);
 
-void write_pcap_rec(const uint8_t *buffer, size_t len);
+void start_pcap(const char *dir, size_t record_size, long total_size);
 
-void write_pcap(const void *ptr, size_t len);
+void stop_pcap();
 
 int compare_u32(uint32_t seq1, uint32_t seq2);
 
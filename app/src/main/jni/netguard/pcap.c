@@ -18,64 +18,282 @@
 */
 
 #include "netguard.h"
+#include "tun_ring.h"
 
-FILE *pcap_file = NULL;
-size_t pcap_record_size = 64;
-long pcap_file_size = 2 * 1024 * 1024;
-
-void write_pcap_hdr() {
-    struct pcap_hdr_s pcap_hdr;
-    pcap_hdr.magic_number = 0xa1b2c3d4;
-    pcap_hdr.version_major = 2;
-    pcap_hdr.version_minor = 4;
-    pcap_hdr.thiszone = 0;
-    pcap_hdr.sigfigs = 0;
-    pcap_hdr.snaplen = pcap_record_size;
-    pcap_hdr.network = LINKTYPE_RAW;
-    write_pcap(&pcap_hdr, sizeof(struct pcap_hdr_s));
+#include <limits.h>
+#include <stdatomic.h>
+
+// Packet capture, written by a thread of its own.
+//
+// The tunnel thread only copies the first bytes of each packet, with its
+// time, owner and direction, into a ring (see tun_ring.h), and never waits:
+// when the writer falls behind, packets are counted as dropped instead. The
+// writer turns them into pcapng blocks (see pcapng.h) and writes them through
+// a large stdio buffer, flushing when it runs out of work.
+//
+// The capture is a numbered series of segment files, each a pcapng section
+// of its own, so that they can be read, or concatenated, on their own. When a
+// segment is full the writer moves on to the next one and deletes the oldest,
+// keeping PCAP_SEGMENTS of them within the size budget, so a busy device
+// loses the oldest part of its capture, not all of it at once.
+
+#define PCAP_SEGMENTS 8
+#define PCAP_SEGMENT_MIN (64 * 1024) // bytes
+#define PCAP_BUFFER (64 * 1024) // bytes, stdio buffer of the writer
+#define PCAP_RING_SIZE (2 * 1024 * 1024) // bytes
+#define PCAP_RING_SLOTS_MIN 16
+#define PCAP_RING_SLOTS_MAX 1024
+
+struct pcap_entry {
+    uint64_t time; // microseconds
+    uint32_t length;
+    uint32_t caplen;
+    int32_t uid;
+    int32_t direction;
+};
+
+static char pcap_dir[PATH_MAX];
+static size_t pcap_record_size = 64;
+static long pcap_segment_size = 2 * 1024 * 1024 / PCAP_SEGMENTS;
+
+// Held by the tunnel thread while it adds to the ring, and while the ring is
+// set up or torn down
+static pthread_mutex_t pcap_lock = PTHREAD_MUTEX_INITIALIZER;
+static _Atomic int capturing = 0;
+static struct tun_ring pcap_ring;
+static unsigned long dropped = 0;
+
+static pthread_t writer;
+static int writer_started = 0;
+static _Atomic int writer_stopping = 0;
+static pthread_mutex_t writer_lock = PTHREAD_MUTEX_INITIALIZER;
+static pthread_cond_t writer_wake = PTHREAD_COND_INITIALIZER;
+
+// Writer thread only
+static FILE *segment_file = NULL;
+static int segment = 0;
+static long segment_bytes = 0;
+
+int pcap_capturing() {
+    return atomic_load_explicit(&capturing, memory_order_relaxed);
 }
 
-void write_pcap_rec(const uint8_t *buffer, size_t length) {
+void write_pcap_rec(const uint8_t *buffer, size_t length, jint uid, int direction) {
     struct timespec ts;
     if (clock_gettime(CLOCK_REALTIME, &ts))
         log_android(ANDROID_LOG_ERROR, "clock_gettime error %d: %s", errno, strerror(errno));
 
-    size_t plen = (length < pcap_record_size ? length : pcap_record_size);
-    size_t rlen = sizeof(struct pcaprec_hdr_s) + plen;
-    struct pcaprec_hdr_s *pcap_rec = ng_malloc(rlen, "pcap");
+    pthread_mutex_lock(&pcap_lock);
+    if (atomic_load(&capturing)) {
+        uint8_t *slot = tun_ring_claim(&pcap_ring);
+        if (slot == NULL)
+            dropped++;
+        else {
+            struct pcap_entry *entry = (struct pcap_entry *) slot;
+            entry->time = (uint64_t) ts.tv_sec * 1000000 + (uint64_t) (ts.tv_nsec / 1000);
+            entry->length = (uint32_t) length;
+            entry->caplen = (uint32_t) (length < pcap_record_size ? length : pcap_record_size);
+            entry->uid = uid;
+            entry->direction = direction;
+            memcpy(slot + sizeof(struct pcap_entry), buffer, entry->caplen);
+
+            if (tun_ring_publish(&pcap_ring, sizeof(struct pcap_entry) + entry->caplen)) {
+                pthread_mutex_lock(&writer_lock);
+                pthread_cond_signal(&writer_wake);
+                pthread_mutex_unlock(&writer_lock);
+            }
+        }
+    }
+    pthread_mutex_unlock(&pcap_lock);
+}
 
-    pcap_rec->ts_sec = (guint32_t) ts.tv_sec;
-    pcap_rec->ts_usec = (guint32_t) (ts.tv_nsec / 1000);
-    pcap_rec->incl_len = (guint32_t) plen;
-    pcap_rec->orig_len = (guint32_t) length;
+static void get_segment_name(char *name, size_t size, int number) {
+    snprintf(name, size, "%s/netguard-%06d.pcapng", pcap_dir, number);
+}
 
-    memcpy(((uint8_t *) pcap_rec) + sizeof(struct pcaprec_hdr_s), buffer, plen);
+// Delete the segments numbered below keep, and return the highest number
+static int prune_segments(int keep) {
+    int last = 0;
+    DIR *d = opendir(pcap_dir);
+    if (d == NULL) {
+        log_android(ANDROID_LOG_ERROR, "PCAP opendir %s error %d: %s",
+                    pcap_dir, errno, strerror(errno));
+        return last;
+    }
 
-    write_pcap(pcap_rec, rlen);
+    struct dirent *dir;
+    while ((dir = readdir(d)) != NULL) {
+        int number;
+        char suffix[8];
+        if (sscanf(dir->d_name, "netguard-%d.%7s", &number, suffix) != 2 ||
+            strcmp(suffix, "pcapng") != 0)
+            continue;
+        if (number < keep) {
+            char name[PATH_MAX];
+            get_segment_name(name, sizeof(name), number);
+            if (unlink(name))
+                log_android(ANDROID_LOG_ERROR, "PCAP unlink %s error %d: %s",
+                            name, errno, strerror(errno));
+        } else if (number > last)
+            last = number;
+    }
+    closedir(d);
+    return last;
+}
 
-    ng_free(pcap_rec, __FILE__, __LINE__);
+static void close_segment() {
+    if (segment_file == NULL)
+        return;
+    if (fflush(segment_file))
+        log_android(ANDROID_LOG_ERROR, "PCAP fflush error %d: %s", errno, strerror(errno));
+    if (fsync(fileno(segment_file)))
+        log_android(ANDROID_LOG_ERROR, "PCAP fsync error %d: %s", errno, strerror(errno));
+    if (fclose(segment_file))
+        log_android(ANDROID_LOG_ERROR, "PCAP fclose error %d: %s", errno, strerror(errno));
+    segment_file = NULL;
 }
 
-void write_pcap(const void *ptr, size_t len) {
-    if (fwrite(ptr, len, 1, pcap_file) < 1)
+static void open_segment(int number) {
+    char name[PATH_MAX];
+    get_segment_name(name, sizeof(name), number);
+    segment = number;
+    segment_bytes = 0;
+
+    segment_file = fopen(name, "wb");
+    if (segment_file == NULL) {
+        log_android(ANDROID_LOG_ERROR, "PCAP fopen %s error %d: %s", name, errno, strerror(errno));
+        return;
+    }
+    if (setvbuf(segment_file, NULL, _IOFBF, PCAP_BUFFER))
+        log_android(ANDROID_LOG_WARN, "PCAP setvbuf error %d: %s", errno, strerror(errno));
+
+    uint8_t section[PCAPNG_SECTION_SIZE];
+    size_t length = pcapng_section(section, sizeof(section), (uint32_t) pcap_record_size);
+    if (fwrite(section, length, 1, segment_file) < 1)
         log_android(ANDROID_LOG_ERROR, "PCAP fwrite error %d: %s", errno, strerror(errno));
-    else {
-        long fsize = ftell(pcap_file);
-        log_android(ANDROID_LOG_VERBOSE, "PCAP wrote %d @%ld", len, fsize);
+    segment_bytes = (long) length;
+
+    log_android(ANDROID_LOG_WARN, "PCAP segment %s", name);
+}
+
+static void next_segment() {
+    close_segment();
+    open_segment(segment + 1);
+
+    char name[PATH_MAX];
+    get_segment_name(name, sizeof(name), segment - PCAP_SEGMENTS);
+    if (unlink(name) && errno != ENOENT)
+        log_android(ANDROID_LOG_ERROR, "PCAP unlink %s error %d: %s",
+                    name, errno, strerror(errno));
+}
+
+static void *write_segments(void *data) {
+    (void) data;
+    log_android(ANDROID_LOG_WARN, "PCAP writer started");
 
-        if (fsize > pcap_file_size) {
-            log_android(ANDROID_LOG_WARN, "PCAP truncate @%ld", fsize);
-            if (fflush(pcap_file))
+    size_t size = PCAPNG_PACKET_OVERHEAD + pcap_record_size;
+    uint8_t *block = ng_malloc(size, "pcap block");
+
+    // Start a new segment, keeping the last ones of a previous capture
+    int last = prune_segments(0);
+    prune_segments(last + 1 - (PCAP_SEGMENTS - 1));
+    open_segment(last + 1);
+
+    while (1) {
+        size_t length;
+        const uint8_t *slot = tun_ring_peek(&pcap_ring, &length);
+        if (slot == NULL) {
+            if (segment_file != NULL && fflush(segment_file))
                 log_android(ANDROID_LOG_ERROR, "PCAP fflush error %d: %s",
                             errno, strerror(errno));
-            else if (ftruncate(fileno(pcap_file), sizeof(struct pcap_hdr_s)))
-                log_android(ANDROID_LOG_ERROR, "PCAP ftruncate error %d: %s",
-                            errno, strerror(errno));
-            else {
-                if (fseek(pcap_file, sizeof(struct pcap_hdr_s), SEEK_SET))
-                    log_android(ANDROID_LOG_ERROR, "PCAP ftruncate error %d: %s",
-                                errno, strerror(errno));
-            }
+
+            // Whatever was captured before stopping has been written
+            if (atomic_load(&writer_stopping))
+                break;
+            pthread_mutex_lock(&writer_lock);
+            while (tun_ring_empty(&pcap_ring) && !atomic_load(&writer_stopping))
+                pthread_cond_wait(&writer_wake, &writer_lock);
+            pthread_mutex_unlock(&writer_lock);
+            continue;
         }
+
+        const struct pcap_entry *entry = (const struct pcap_entry *) slot;
+        size_t blen = pcapng_packet(block, size, entry->time,
+                                    slot + sizeof(struct pcap_entry), entry->caplen,
+                                    entry->length, entry->uid, entry->direction);
+        tun_ring_release(&pcap_ring);
+
+        if (segment_file != NULL && fwrite(block, blen, 1, segment_file) < 1)
+            log_android(ANDROID_LOG_ERROR, "PCAP fwrite error %d: %s", errno, strerror(errno));
+        segment_bytes += (long) blen;
+        if (segment_bytes > pcap_segment_size)
+            next_segment();
     }
+
+    close_segment();
+    ng_free(block, __FILE__, __LINE__);
+
+    log_android(ANDROID_LOG_WARN, "PCAP writer stopped");
+    return NULL;
+}
+
+void start_pcap(const char *dir, size_t record_size, long total_size) {
+    stop_pcap();
+
+    strncpy(pcap_dir, dir, sizeof(pcap_dir) - 1);
+    pcap_dir[sizeof(pcap_dir) - 1] = 0;
+    pcap_record_size = record_size;
+    pcap_segment_size = total_size / PCAP_SEGMENTS;
+    if (pcap_segment_size < PCAP_SEGMENT_MIN)
+        pcap_segment_size = PCAP_SEGMENT_MIN;
+
+    // As many slots as fit the ring size, a power of two
+    size_t slot_size = (sizeof(struct pcap_entry) + record_size + 7) & ~((size_t) 7);
+    uint32_t slots = PCAP_RING_SLOTS_MAX;
+    while (slots > PCAP_RING_SLOTS_MIN && slots * slot_size > PCAP_RING_SIZE)
+        slots /= 2;
+
+    log_android(ANDROID_LOG_WARN, "PCAP dir %s record size %zu segment size %ld slots %u",
+                pcap_dir, pcap_record_size, pcap_segment_size, slots);
+
+    if (tun_ring_init(&pcap_ring, slots, slot_size)) {
+        log_android(ANDROID_LOG_ERROR, "PCAP out of memory");
+        return;
+    }
+
+    dropped = 0;
+    atomic_store(&writer_stopping, 0);
+    int err = pthread_create(&writer, NULL, write_segments, NULL);
+    if (err) {
+        log_android(ANDROID_LOG_ERROR, "PCAP pthread_create error %d: %s", err, strerror(err));
+        tun_ring_free(&pcap_ring);
+        return;
+    }
+    writer_started = 1;
+
+    pthread_mutex_lock(&pcap_lock);
+    atomic_store(&capturing, 1);
+    pthread_mutex_unlock(&pcap_lock);
+}
+
+void stop_pcap() {
+    // The tunnel thread no longer adds to the ring after this
+    pthread_mutex_lock(&pcap_lock);
+    atomic_store(&capturing, 0);
+    pthread_mutex_unlock(&pcap_lock);
+
+    if (!writer_started)
+        return;
+
+    atomic_store(&writer_stopping, 1);
+    pthread_mutex_lock(&writer_lock);
+    pthread_cond_broadcast(&writer_wake);
+    pthread_mutex_unlock(&writer_lock);
+
+    pthread_join(writer, NULL);
+    writer_started = 0;
+
+    if (dropped)
+        log_android(ANDROID_LOG_WARN, "PCAP dropped %lu packets", dropped);
+    tun_ring_free(&pcap_ring);
 }
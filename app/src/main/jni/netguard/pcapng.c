@@ -0,0 +1,97 @@
+/*
+ * TrackerControl is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TrackerControl is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * Copyright © 2026
+ */
+
+// See pcapng.h.
+
+#include "pcapng.h"
+
+#include <stdio.h>
+#include <string.h>
+
+#define PAD4(n) (((n) + 3) & ~((size_t) 3))
+
+static uint8_t *put16(uint8_t *p, uint16_t value) {
+    memcpy(p, &value, sizeof(value));
+    return p + sizeof(value);
+}
+
+static uint8_t *put32(uint8_t *p, uint32_t value) {
+    memcpy(p, &value, sizeof(value));
+    return p + sizeof(value);
+}
+
+static uint8_t *put_option(uint8_t *p, uint16_t code, const void *value, uint16_t length) {
+    p = put16(p, code);
+    p = put16(p, length);
+    memcpy(p, value, length);
+    memset(p + length, 0, PAD4(length) - length);
+    return p + PAD4(length);
+}
+
+size_t pcapng_section(uint8_t *buffer, size_t size, uint32_t snaplen) {
+    if (size < PCAPNG_SECTION_SIZE)
+        return 0;
+
+    uint8_t *p = buffer;
+    p = put32(p, PCAPNG_BLOCK_SHB);
+    p = put32(p, 28);
+    p = put32(p, PCAPNG_BYTE_ORDER);
+    p = put16(p, 1); // major
+    p = put16(p, 0); // minor
+    p = put32(p, 0xFFFFFFFF); // section length not known
+    p = put32(p, 0xFFFFFFFF);
+    p = put32(p, 28);
+
+    p = put32(p, PCAPNG_BLOCK_IDB);
+    p = put32(p, 20);
+    p = put16(p, PCAPNG_LINKTYPE_RAW);
+    p = put16(p, 0);
+    p = put32(p, snaplen);
+    p = put32(p, 20);
+
+    return (size_t) (p - buffer);
+}
+
+size_t pcapng_packet(uint8_t *buffer, size_t size, uint64_t time,
+                     const uint8_t *data, uint32_t caplen, uint32_t length,
+                     int32_t uid, int direction) {
+    char comment[24];
+    int clen = (uid < 0 ? 0 : snprintf(comment, sizeof(comment), "uid %d", uid));
+
+    size_t total = 28 + PAD4(caplen) + 8 + (clen > 0 ? 4 + PAD4((size_t) clen) : 0) + 4 + 4;
+    if (size < total)
+        return 0;
+
+    uint8_t *p = buffer;
+    p = put32(p, PCAPNG_BLOCK_EPB);
+    p = put32(p, (uint32_t) total);
+    p = put32(p, 0); // interface
+    p = put32(p, (uint32_t) (time >> 32));
+    p = put32(p, (uint32_t) time);
+    p = put32(p, caplen);
+    p = put32(p, length);
+    memcpy(p, data, caplen);
+    memset(p + caplen, 0, PAD4(caplen) - caplen);
+    p += PAD4(caplen);
+
+    uint32_t flags = (uint32_t) direction;
+    p = put_option(p, PCAPNG_OPT_EPB_FLAGS, &flags, sizeof(flags));
+    if (clen > 0)
+        p = put_option(p, PCAPNG_OPT_COMMENT, comment, (uint16_t) clen);
+    p = put16(p, PCAPNG_OPT_END);
+    p = put16(p, 0);
+    p = put32(p, (uint32_t) total);
+
+    return (size_t) (p - buffer);
+}
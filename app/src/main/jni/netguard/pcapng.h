@@ -0,0 +1,83 @@
+/*
+ * TrackerControl is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TrackerControl is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * Copyright © 2026
+ */
+
+#ifndef PCAPNG_H
+#define PCAPNG_H
+
+/*
+ * The pcapng blocks the capture writes (see pcap.c). Only depends on libc,
+ * so that it can be unit-tested on the host
+ * (app/src/test/native/pcapng_test.c).
+ *
+ * Every capture segment is a section of its own: a section header and one
+ * raw IP interface, then an enhanced packet block per packet, with its
+ * direction as seen from the device and, when known, a "uid <n>" comment,
+ * which an export can extend with the app's package name
+ * (PcapSegments.java). Blocks are in host byte order, as the section header
+ * tells readers.
+ *
+ * https://www.ietf.org/archive/id/draft-ietf-opsawg-pcapng-02.html
+ */
+
+#include <stddef.h>
+#include <stdint.h>
+
+#define PCAPNG_BLOCK_SHB 0x0A0D0D0A
+#define PCAPNG_BLOCK_IDB 0x00000001
+#define PCAPNG_BLOCK_EPB 0x00000006
+#define PCAPNG_BYTE_ORDER 0x1A2B3C4D
+
+#define PCAPNG_OPT_END 0
+#define PCAPNG_OPT_COMMENT 1
+#define PCAPNG_OPT_EPB_FLAGS 2
+
+#define PCAPNG_INBOUND 1    // to the device, written to tun
+#define PCAPNG_OUTBOUND 2   // from the device, read from tun
+
+#define PCAPNG_LINKTYPE_RAW 101
+
+// Section header and interface description
+#define PCAPNG_SECTION_SIZE 48
+// Largest enhanced packet block, apart from the packet
+#define PCAPNG_PACKET_OVERHEAD 72
+
+#ifdef __cplusplus
+extern "C" {
+#endif
+
+/**
+ * Write a section header and an interface description for packets of up to
+ * snaplen bytes.
+ *
+ * @return The length written, PCAPNG_SECTION_SIZE, or 0 when it does not fit
+ */
+size_t pcapng_section(uint8_t *buffer, size_t size, uint32_t snaplen);
+
+/**
+ * Write an enhanced packet block.
+ *
+ * @param time Microseconds since the epoch
+ * @param uid Owner of the packet, or -1 when not known
+ * @param direction PCAPNG_INBOUND or PCAPNG_OUTBOUND
+ * @return The length written, or 0 when it does not fit
+ */
+size_t pcapng_packet(uint8_t *buffer, size_t size, uint64_t time,
+                     const uint8_t *data, uint32_t caplen, uint32_t length,
+                     int32_t uid, int direction);
+
+#ifdef __cplusplus
+}
+#endif
+
+#endif /* PCAPNG_H */
@@ -18,6 +18,24 @@
 */
 
 #include "netguard.h"
+#include "ip6_ext.h"
+
+// Sessions are kept three ways: in a list, for the passes that need all of
+// them; in an index by 5-tuple, for the packets that need theirs; and on a
+// timer wheel, so that the session checks visit only the sessions due one
+// (see session_table.h). add_session() and remove_session() keep the three
+// in step, so nothing else should link or unlink a session.
+//
+// What follows from the state of a session -- whether it counts as active,
+// when its check is due, which epoll events its socket waits for -- is
+// brought up to date by session_changed(), after each packet, socket event
+// and check that may have changed it, so that the loop does not have to walk
+// all sessions to find out.
+
+// Deadlines are computed as if this many more sessions existed, so that the
+// timeouts, which shrink as sessions are added, can bear some growth before
+// every check has to be brought forward
+#define SESSION_HEADROOM 5 // percent of max sessions
 
 void clear(struct context *ctx) {
     struct ng_session *s = ctx->ng_session;
@@ -32,6 +50,217 @@ void clear(struct context *ctx) {
         ng_free(p, __FILE__, __LINE__);
     }
     ctx->ng_session = NULL;
+    session_index_free(&ctx->session_index);
+    session_wheel_init(&ctx->session_wheel, time(NULL));
+    session_list_init(&ctx->session_recheck);
+    ctx->isessions = 0;
+    ctx->usessions = 0;
+    ctx->tsessions = 0;
+}
+
+void get_packet_key(struct session_key *key, uint8_t protocol,
+                    const uint8_t *pkt, const uint8_t *payload) {
+    const uint8_t version = (*pkt) >> 4;
+    const struct iphdr *ip4 = (struct iphdr *) pkt;
+    const struct ip6_hdr *ip6 = (struct ip6_hdr *) pkt;
+
+    uint16_t source = 0;
+    uint16_t dest = 0;
+    if (protocol == IPPROTO_UDP) {
+        const struct udphdr *udphdr = (struct udphdr *) payload;
+        source = udphdr->source;
+        dest = udphdr->dest;
+    } else if (protocol == IPPROTO_TCP) {
+        const struct tcphdr *tcphdr = (struct tcphdr *) payload;
+        source = tcphdr->source;
+        dest = tcphdr->dest;
+    }
+
+    if (version == 4)
+        session_key_init(key, protocol, 4, &ip4->saddr, source, &ip4->daddr, dest);
+    else
+        session_key_init(key, protocol, 6, &ip6->ip6_src, source, &ip6->ip6_dst, dest);
+}
+
+static void get_session_key(const struct ng_session *s, struct session_key *key) {
+    if (s->protocol == IPPROTO_ICMP || s->protocol == IPPROTO_ICMPV6)
+        session_key_init(key, s->protocol, (uint8_t) s->icmp.version,
+                         &s->icmp.saddr, 0, &s->icmp.daddr, 0);
+    else if (s->protocol == IPPROTO_UDP)
+        session_key_init(key, s->protocol, (uint8_t) s->udp.version,
+                         &s->udp.saddr, s->udp.source, &s->udp.daddr, s->udp.dest);
+    else
+        session_key_init(key, s->protocol, (uint8_t) s->tcp.version,
+                         &s->tcp.saddr, s->tcp.source, &s->tcp.daddr, s->tcp.dest);
+}
+
+struct ng_session *find_session(const struct context *ctx, const struct session_key *key) {
+    return session_index_get(&ctx->session_index, key);
+}
+
+// Whether the session counts towards the active sessions the timeouts shrink with
+static int is_session_active(const struct ng_session *s) {
+    if (s->protocol == IPPROTO_ICMP || s->protocol == IPPROTO_ICMPV6)
+        return !s->icmp.stop;
+    else if (s->protocol == IPPROTO_UDP)
+        return s->udp.state == UDP_ACTIVE;
+    else if (s->protocol == IPPROTO_TCP)
+        return s->tcp.state != TCP_CLOSING && s->tcp.state != TCP_CLOSE;
+    return 0;
+}
+
+static void count_session(struct context *ctx, struct ng_session *s, int active) {
+    if (active == s->active)
+        return;
+    int delta = (active ? 1 : -1);
+    if (s->protocol == IPPROTO_ICMP || s->protocol == IPPROTO_ICMPV6)
+        ctx->isessions += delta;
+    else if (s->protocol == IPPROTO_UDP)
+        ctx->usessions += delta;
+    else
+        ctx->tsessions += delta;
+    s->active = (uint8_t) active;
+}
+
+static int get_sessions(const struct context *ctx) {
+    return ctx->isessions + ctx->usessions + ctx->tsessions;
+}
+
+void add_session(struct context *ctx, struct ng_session *s) {
+    get_session_key(s, &s->key);
+    if (session_index_put(&ctx->session_index, &s->key, s))
+        log_android(ANDROID_LOG_ERROR, "session index out of memory");
+
+    s->prev = NULL;
+    s->next = ctx->ng_session;
+    if (s->next != NULL)
+        s->next->prev = s;
+    ctx->ng_session = s;
+
+    // The next pass checks it and schedules the check after
+    s->timer.next = NULL;
+    session_wheel_schedule(&ctx->session_wheel, &s->timer, 0);
+
+    s->recheck.next = NULL;
+    s->active = 0;
+    count_session(ctx, s, is_session_active(s));
+}
+
+void remove_session(struct context *ctx, struct ng_session *s) {
+    if (s->prev == NULL)
+        ctx->ng_session = s->next;
+    else
+        s->prev->next = s->next;
+    if (s->next != NULL)
+        s->next->prev = s->prev;
+
+    session_index_remove(&ctx->session_index, &s->key, s);
+    session_wheel_cancel(&ctx->session_wheel, &s->timer);
+    session_list_remove(&s->recheck);
+    count_session(ctx, s, 0);
+}
+
+// The owner of the session a packet from tun belongs to, for annotating the
+// packet capture; -1 until the packet's session exists, or when the packet
+// cannot belong to one
+jint get_packet_uid(const struct context *ctx, const uint8_t *pkt, size_t length) {
+    if (length < 1)
+        return -1;
+
+    uint8_t version = (*pkt) >> 4;
+    uint8_t protocol;
+    size_t offset;
+    if (version == 4) {
+        const struct iphdr *ip4 = (struct iphdr *) pkt;
+        if (length < sizeof(struct iphdr) || ip4->ihl < 5 ||
+            (ntohs(ip4->frag_off) & (IP_MF | IP_OFFMASK)))
+            return -1;
+        protocol = ip4->protocol;
+        offset = ip4->ihl * 4;
+    } else if (version == 6) {
+        if (!ip6_skip_ext_headers(pkt, length, &protocol, &offset))
+            return -1;
+    } else
+        return -1;
+
+    if (protocol == IPPROTO_ICMPV6 && version == 4)
+        return -1;
+    if (protocol != IPPROTO_TCP && protocol != IPPROTO_UDP &&
+        protocol != IPPROTO_ICMP && protocol != IPPROTO_ICMPV6)
+        return -1;
+    if (offset + 4 > length)
+        return -1;
+
+    struct session_key key;
+    get_packet_key(&key, protocol, pkt, pkt + offset);
+    const struct ng_session *s = find_session(ctx, &key);
+    if (s == NULL)
+        return -1;
+    else if (s->protocol == IPPROTO_TCP)
+        return s->tcp.uid;
+    else if (s->protocol == IPPROTO_UDP)
+        return s->udp.uid;
+    else
+        return s->icmp.uid;
+}
+
+// Whether something happened to the session that its check has to act on
+// now: it was stopped, or closed with traffic not accounted for yet
+static int is_session_due(const struct ng_session *s) {
+    if (s->protocol == IPPROTO_ICMP || s->protocol == IPPROTO_ICMPV6)
+        return s->icmp.stop;
+    else if (s->protocol == IPPROTO_UDP)
+        return s->udp.state == UDP_FINISHING ||
+               (s->udp.state == UDP_CLOSED && (s->udp.sent || s->udp.received));
+    else if (s->protocol == IPPROTO_TCP)
+        return s->tcp.state == TCP_CLOSING ||
+               (s->tcp.state == TCP_CLOSE && (s->tcp.sent || s->tcp.received));
+    return 0;
+}
+
+// When check_*_session() would next act on the session: the second after its
+// timeout, by its last activity. Activity after this only makes the check
+// early, which then schedules the next one.
+static time_t get_session_due(const struct ng_session *s, int sessions, int maxsessions) {
+    if (is_session_due(s))
+        return 0;
+
+    if (s->protocol == IPPROTO_ICMP || s->protocol == IPPROTO_ICMPV6)
+        return s->icmp.time + get_icmp_timeout(&s->icmp, sessions, maxsessions) + 1;
+
+    else if (s->protocol == IPPROTO_UDP) {
+        if (s->udp.state == UDP_ACTIVE)
+            return s->udp.time + get_udp_timeout(&s->udp, sessions, maxsessions) + 1;
+        return s->udp.time + UDP_KEEP_TIMEOUT + 1;
+
+    } else if (s->protocol == IPPROTO_TCP) {
+        if (s->tcp.state == TCP_CLOSE)
+            return s->tcp.time + TCP_KEEP_TIMEOUT + 1;
+        return s->tcp.time + get_tcp_timeout(&s->tcp, sessions, maxsessions) + 1;
+    }
+
+    return 0;
+}
+
+// Without the socket: whether the session counts, and a check it needs now
+static void update_session(struct context *ctx, struct ng_session *s) {
+    count_session(ctx, s, is_session_active(s));
+    if (is_session_due(s) && s->timer.due > ctx->session_wheel.now)
+        session_wheel_schedule(&ctx->session_wheel, &s->timer, 0);
+}
+
+void session_changed(const struct arguments *args, struct ng_session *s, int epoll_fd) {
+    // A TCP socket whose events depend on something epoll cannot signal, a
+    // window opening or room in the socket buffer, is monitored again each
+    // loop until they don't (see monitor_tcp_session())
+    if (s->protocol == IPPROTO_TCP) {
+        if (s->socket >= 0 && monitor_tcp_session(args, s, epoll_fd))
+            session_list_push(&args->ctx->session_recheck, &s->recheck);
+        else
+            session_list_remove(&s->recheck);
+    }
+
+    update_session(args->ctx, s);
 }
 
 void *handle_events(void *a) {
@@ -51,6 +280,19 @@ void *handle_events(void *a) {
                     rlim.rlim_cur, rlim.rlim_max, maxsessions);
     }
 
+    // Verdicts cached by a previous run may predate the rules now in force
+    verdict_invalidate();
+
+    // Check every session on the first pass, whatever a previous run scheduled;
+    // the check brings the rest of each session up to date
+    session_wheel_init(&args->ctx->session_wheel, time(NULL));
+    session_list_init(&args->ctx->session_recheck);
+    for (struct ng_session *s = args->ctx->ng_session; s != NULL; s = s->next) {
+        s->timer.next = NULL;
+        session_wheel_schedule(&args->ctx->session_wheel, &s->timer, 0);
+        s->recheck.next = NULL;
+    }
+
     // Terminate existing sessions not allowed anymore
     check_allowed(args);
 
@@ -92,33 +334,27 @@ void *handle_events(void *a) {
 
     // Loop
     long long last_check = 0;
+    // The most sessions any scheduled check was computed for
+    int planned = maxsessions;
     while (!args->ctx->stopping) {
         log_android(ANDROID_LOG_DEBUG, "Loop");
 
-        int recheck = 0;
         int timeout = EPOLL_TIMEOUT;
-
-        // Count sessions
-        int isessions = 0;
-        int usessions = 0;
-        int tsessions = 0;
-        struct ng_session *s = args->ctx->ng_session;
-        while (s != NULL) {
-            if (s->protocol == IPPROTO_ICMP || s->protocol == IPPROTO_ICMPV6) {
-                if (!s->icmp.stop)
-                    isessions++;
-            } else if (s->protocol == IPPROTO_UDP) {
-                if (s->udp.state == UDP_ACTIVE)
-                    usessions++;
-            } else if (s->protocol == IPPROTO_TCP) {
-                if (s->tcp.state != TCP_CLOSING && s->tcp.state != TCP_CLOSE)
-                    tsessions++;
-                if (s->socket >= 0)
-                    recheck = recheck | monitor_tcp_session(args, s, epoll_fd);
-            }
-            s = s->next;
+        struct ng_session *s;
+
+        // Monitor the TCP sockets waiting for a window or buffer room again
+        struct session_timer waiting;
+        session_list_init(&waiting);
+        struct session_timer *timer;
+        while ((timer = session_list_pop(&args->ctx->session_recheck)) != NULL)
+            session_list_push(&waiting, timer);
+        while ((timer = session_list_pop(&waiting)) != NULL) {
+            s = (struct ng_session *) ((char *) timer - offsetof(struct ng_session, recheck));
+            session_changed(args, s, epoll_fd);
         }
-        int sessions = isessions + usessions + tsessions;
+        int recheck = !session_list_empty(&args->ctx->session_recheck);
+
+        int sessions = get_sessions(args->ctx);
 
         // Check sessions
         long long ms = get_ms();
@@ -126,52 +362,51 @@ void *handle_events(void *a) {
             last_check = ms;
 
             time_t now = time(NULL);
-            struct ng_session *sl = NULL;
-            s = args->ctx->ng_session;
-            while (s != NULL) {
+            struct session_wheel *wheel = &args->ctx->session_wheel;
+
+            int headroom = sessions + maxsessions * SESSION_HEADROOM / 100;
+            if (headroom > maxsessions)
+                headroom = maxsessions;
+
+            // More sessions than planned for have shortened the timeouts
+            if (sessions > planned) {
+                log_android(ANDROID_LOG_DEBUG, "sessions %d planned %d, checking all",
+                            sessions, planned);
+                for (s = args->ctx->ng_session; s != NULL; s = s->next)
+                    session_wheel_schedule(wheel, &s->timer, 0);
+                planned = headroom;
+            } else if (headroom < planned)
+                planned = headroom;
+
+            struct session_timer due;
+            session_list_init(&due);
+            session_wheel_advance(wheel, now, &due);
+
+            while ((timer = session_list_pop(&due)) != NULL) {
+                s = (struct ng_session *) ((char *) timer - offsetof(struct ng_session, timer));
+
                 int del = 0;
-                if (s->protocol == IPPROTO_ICMP || s->protocol == IPPROTO_ICMPV6) {
+                if (s->protocol == IPPROTO_ICMP || s->protocol == IPPROTO_ICMPV6)
                     del = check_icmp_session(args, s, sessions, maxsessions);
-                    if (!s->icmp.stop && !del) {
-                        int stimeout = s->icmp.time +
-                                       get_icmp_timeout(&s->icmp, sessions, maxsessions) - now + 1;
-                        if (stimeout > 0 && stimeout < timeout)
-                            timeout = stimeout;
-                    }
-                } else if (s->protocol == IPPROTO_UDP) {
+                else if (s->protocol == IPPROTO_UDP)
                     del = check_udp_session(args, s, sessions, maxsessions);
-                    if (s->udp.state == UDP_ACTIVE && !del) {
-                        int stimeout = s->udp.time +
-                                       get_udp_timeout(&s->udp, sessions, maxsessions) - now + 1;
-                        if (stimeout > 0 && stimeout < timeout)
-                            timeout = stimeout;
-                    }
-                } else if (s->protocol == IPPROTO_TCP) {
+                else if (s->protocol == IPPROTO_TCP)
                     del = check_tcp_session(args, s, sessions, maxsessions);
-                    if (s->tcp.state != TCP_CLOSING && s->tcp.state != TCP_CLOSE && !del) {
-                        int stimeout = s->tcp.time +
-                                       get_tcp_timeout(&s->tcp, sessions, maxsessions) - now + 1;
-                        if (stimeout > 0 && stimeout < timeout)
-                            timeout = stimeout;
-                    }
-                }
 
                 if (del) {
-                    if (sl == NULL)
-                        args->ctx->ng_session = s->next;
-                    else
-                        sl->next = s->next;
-
-                    struct ng_session *c = s;
-                    s = s->next;
-                    if (c->protocol == IPPROTO_TCP)
-                        clear_tcp_data(&c->tcp);
-                    ng_free(c, __FILE__, __LINE__);
+                    remove_session(args->ctx, s);
+                    if (s->protocol == IPPROTO_TCP)
+                        clear_tcp_data(&s->tcp);
+                    ng_free(s, __FILE__, __LINE__);
                 } else {
-                    sl = s;
-                    s = s->next;
+                    session_wheel_schedule(wheel, &s->timer,
+                                           get_session_due(s, headroom, maxsessions));
+                    session_changed(args, s, epoll_fd);
                 }
             }
+
+            int stimeout = session_wheel_next(wheel, timeout);
+            timeout = (stimeout > 0 ? stimeout : 1);
         } else {
             recheck = 1;
             log_android(ANDROID_LOG_DEBUG, "Skipped session checks");
@@ -179,7 +414,8 @@ void *handle_events(void *a) {
 
         log_android(ANDROID_LOG_DEBUG,
                     "sessions ICMP %d UDP %d TCP %d max %d/%d timeout %d recheck %d",
-                    isessions, usessions, tsessions, sessions, maxsessions, timeout, recheck);
+                    args->ctx->isessions, args->ctx->usessions, args->ctx->tsessions,
+                    get_sessions(args->ctx), maxsessions, timeout, recheck);
 
         // Poll
         struct epoll_event ev[EPOLL_EVENTS];
@@ -233,7 +469,8 @@ void *handle_events(void *a) {
                     while (count < TUN_YIELD && !error && !args->ctx->stopping &&
                            is_readable(args->tun)) {
                         count++;
-                        if (check_tun(args, &ev[i], epoll_fd, sessions, maxsessions) < 0)
+                        if (check_tun(args, &ev[i], epoll_fd,
+                                      get_sessions(args->ctx), maxsessions) < 0)
                             error = 1;
                     }
 
@@ -263,6 +500,7 @@ void *handle_events(void *a) {
                         }
                     } else if (session->protocol == IPPROTO_TCP)
                         check_tcp_socket(args, &ev[i], epoll_fd);
+                    session_changed(args, session, epoll_fd);
                 }
 
                 if (error)
@@ -272,12 +510,17 @@ void *handle_events(void *a) {
             if (pthread_mutex_unlock(&args->ctx->lock))
                 log_android(ANDROID_LOG_ERROR, "pthread_mutex_unlock failed");
 
+            // Have the log thread pick up what this round logged
+            log_ring_notify(args);
+
             if (error)
                 break;
         }
     }
 
 cleanup:
+    log_ring_notify(args);
+
     // Close epoll file
     if (epoll_fd >= 0 && close(epoll_fd))
         log_android(ANDROID_LOG_ERROR,
@@ -295,7 +538,6 @@ void check_allowed(const struct arguments *args) {
     char source[INET6_ADDRSTRLEN + 1];
     char dest[INET6_ADDRSTRLEN + 1];
 
-    struct ng_session *l = NULL;
     struct ng_session *s = args->ctx->ng_session;
     while (s != NULL) {
         if (s->protocol == IPPROTO_ICMP || s->protocol == IPPROTO_ICMPV6) {
@@ -339,13 +581,9 @@ void check_allowed(const struct arguments *args) {
             } else if (s->udp.state == UDP_BLOCKED) {
                 log_android(ANDROID_LOG_WARN, "UDP remove blocked session uid %d", s->udp.uid);
 
-                if (l == NULL)
-                    args->ctx->ng_session = s->next;
-                else
-                    l->next = s->next;
-
                 struct ng_session *c = s;
                 s = s->next;
+                remove_session(args->ctx, c);
                 ng_free(c, __FILE__, __LINE__);
                 continue;
             }
@@ -372,7 +610,7 @@ void check_allowed(const struct arguments *args) {
 
         }
 
-        l = s;
+        update_session(args->ctx, s);
         s = s->next;
     }
 }
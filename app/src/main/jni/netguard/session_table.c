@@ -0,0 +1,236 @@
+/*
+ * TrackerControl is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TrackerControl is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * Copyright © 2026
+ */
+
+// See session_table.h.
+
+#include "session_table.h"
+
+#include <string.h>
+
+// The allocation accounting of netguard.c, declared here rather than by
+// including netguard.h; the host test stubs these
+void *ng_calloc(size_t __item_count, size_t __item_size, const char *tag);
+
+void ng_free(void *__ptr, const char *file, int line);
+
+void session_key_init(struct session_key *key, uint8_t protocol, uint8_t version,
+                      const void *saddr, uint16_t source,
+                      const void *daddr, uint16_t dest) {
+    size_t len = (version == 4 ? 4 : 16);
+    memset(key, 0, sizeof(*key));
+    key->protocol = protocol;
+    key->version = version;
+    key->source = source;
+    key->dest = dest;
+    memcpy(key->saddr, saddr, len);
+    memcpy(key->daddr, daddr, len);
+}
+
+static uint32_t key_hash(const struct session_key *key) {
+    // FNV-1a
+    const uint8_t *p = (const uint8_t *) key;
+    uint32_t h = 2166136261u;
+    for (size_t i = 0; i < sizeof(*key); i++) {
+        h ^= p[i];
+        h *= 16777619u;
+    }
+    return h;
+}
+
+void session_index_free(struct session_index *index) {
+    ng_free(index->slots, __FILE__, __LINE__);
+    index->slots = NULL;
+    index->capacity = 0;
+    index->count = 0;
+}
+
+static uint32_t find(const struct session_index *index,
+                     const struct session_key *key, uint32_t hash) {
+    uint32_t mask = index->capacity - 1;
+    uint32_t i = hash & mask;
+    while (index->slots[i].value != NULL &&
+           (index->slots[i].hash != hash || memcmp(&index->slots[i].key, key, sizeof(*key)) != 0))
+        i = (i + 1) & mask;
+    return i;
+}
+
+void *session_index_get(const struct session_index *index, const struct session_key *key) {
+    if (index->count == 0)
+        return NULL;
+    return index->slots[find(index, key, key_hash(key))].value;
+}
+
+static int grow(struct session_index *index) {
+    uint32_t capacity = (index->capacity == 0 ? SESSION_INDEX_MIN : index->capacity * 2);
+    struct session_slot *slots = ng_calloc(capacity, sizeof(struct session_slot), "session index");
+    if (slots == NULL)
+        return -1;
+
+    struct session_index grown = {slots, capacity, index->count};
+    for (uint32_t i = 0; i < index->capacity; i++)
+        if (index->slots[i].value != NULL)
+            slots[find(&grown, &index->slots[i].key, index->slots[i].hash)] = index->slots[i];
+
+    ng_free(index->slots, __FILE__, __LINE__);
+    *index = grown;
+    return 0;
+}
+
+int session_index_put(struct session_index *index, const struct session_key *key, void *value) {
+    if ((index->count + 1) * 2 > index->capacity && grow(index))
+        return -1;
+
+    uint32_t hash = key_hash(key);
+    uint32_t i = find(index, key, hash);
+    if (index->slots[i].value == NULL) {
+        index->slots[i].key = *key;
+        index->slots[i].hash = hash;
+        index->count++;
+    }
+    index->slots[i].value = value;
+    return 0;
+}
+
+int session_index_remove(struct session_index *index, const struct session_key *key,
+                         const void *value) {
+    if (index->count == 0)
+        return 0;
+
+    uint32_t i = find(index, key, key_hash(key));
+    if (index->slots[i].value == NULL || index->slots[i].value != value)
+        return 0;
+
+    // Shift back the entries that probed past the one removed
+    uint32_t mask = index->capacity - 1;
+    uint32_t j = i;
+    while (1) {
+        j = (j + 1) & mask;
+        if (index->slots[j].value == NULL)
+            break;
+        uint32_t home = index->slots[j].hash & mask;
+        if (((j - home) & mask) >= ((j - i) & mask)) {
+            index->slots[i] = index->slots[j];
+            i = j;
+        }
+    }
+    index->slots[i].value = NULL;
+    index->count--;
+    return 1;
+}
+
+void session_list_init(struct session_timer *head) {
+    head->prev = head;
+    head->next = head;
+}
+
+static void unlink_timer(struct session_timer *timer) {
+    timer->prev->next = timer->next;
+    timer->next->prev = timer->prev;
+    timer->prev = NULL;
+    timer->next = NULL;
+}
+
+static void link_timer(struct session_timer *head, struct session_timer *timer) {
+    timer->prev = head->prev;
+    timer->next = head;
+    head->prev->next = timer;
+    head->prev = timer;
+}
+
+void session_list_push(struct session_timer *head, struct session_timer *timer) {
+    if (timer->next == NULL)
+        link_timer(head, timer);
+}
+
+void session_list_remove(struct session_timer *timer) {
+    if (timer->next != NULL)
+        unlink_timer(timer);
+}
+
+int session_list_empty(const struct session_timer *head) {
+    return head->next == head;
+}
+
+struct session_timer *session_list_pop(struct session_timer *head) {
+    if (head->next == head)
+        return NULL;
+    struct session_timer *timer = head->next;
+    unlink_timer(timer);
+    return timer;
+}
+
+void session_wheel_init(struct session_wheel *wheel, time_t now) {
+    for (int i = 0; i < SESSION_WHEEL_SLOTS; i++)
+        session_list_init(&wheel->slots[i]);
+    wheel->now = now;
+    wheel->count = 0;
+}
+
+void session_wheel_schedule(struct session_wheel *wheel, struct session_timer *timer, time_t due) {
+    if (timer->next != NULL)
+        session_wheel_cancel(wheel, timer);
+    if (due < wheel->now)
+        due = wheel->now;
+    timer->due = due;
+    link_timer(&wheel->slots[due & (SESSION_WHEEL_SLOTS - 1)], timer);
+    wheel->count++;
+}
+
+void session_wheel_cancel(struct session_wheel *wheel, struct session_timer *timer) {
+    if (timer->next == NULL)
+        return;
+    unlink_timer(timer);
+    wheel->count--;
+}
+
+int session_wheel_advance(struct session_wheel *wheel, time_t now, struct session_timer *expired) {
+    int moved = 0;
+    if (now < wheel->now)
+        now = wheel->now; // the clock went back; wait for it
+
+    // The slots of the seconds passed, including the last one, which may have
+    // had timers scheduled in it since
+    time_t seconds = now - wheel->now + 1;
+    if (seconds > SESSION_WHEEL_SLOTS)
+        seconds = SESSION_WHEEL_SLOTS;
+    for (time_t t = now - seconds + 1; t <= now; t++) {
+        struct session_timer *head = &wheel->slots[t & (SESSION_WHEEL_SLOTS - 1)];
+        struct session_timer *timer = head->next;
+        while (timer != head) {
+            struct session_timer *next = timer->next;
+            if (timer->due <= now) {
+                unlink_timer(timer);
+                link_timer(expired, timer);
+                wheel->count--;
+                moved++;
+            }
+            timer = next;
+        }
+    }
+
+    wheel->now = now;
+    return moved;
+}
+
+int session_wheel_next(const struct session_wheel *wheel, int limit) {
+    if (wheel->count == 0)
+        return limit;
+    for (int i = 0; i < limit && i < SESSION_WHEEL_SLOTS; i++) {
+        const struct session_timer *head =
+                &wheel->slots[(wheel->now + i) & (SESSION_WHEEL_SLOTS - 1)];
+        if (head->next != head)
+            return i;
+    }
+    return (limit < SESSION_WHEEL_SLOTS ? limit : SESSION_WHEEL_SLOTS);
+}
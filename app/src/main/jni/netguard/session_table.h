@@ -0,0 +1,159 @@
+/*
+ * TrackerControl is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TrackerControl is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * Copyright © 2026
+ */
+
+#ifndef SESSION_TABLE_H
+#define SESSION_TABLE_H
+
+/*
+ * Finding and expiring sessions without walking all of them. Only depends on
+ * libc and the ng_calloc()/ng_free() allocation accounting -- no netguard.h,
+ * no JNI -- so that it can be unit-tested on the host
+ * (app/src/test/native/session_table_test.c, which stubs the accounting).
+ *
+ * The index maps a 5-tuple to its session: open addressing with linear
+ * probing, deleted entries shifted back rather than left as tombstones, and
+ * doubled when half full. A key maps to one session at a time; putting a key
+ * again replaces the session it maps to.
+ *
+ * The wheel has a slot per second, SESSION_WHEEL_SLOTS of them, and a timer
+ * is kept in the slot of its due time modulo the wheel size, so a timer due
+ * further out waits a revolution or more. Advancing the wheel looks only at
+ * the slots for the seconds that passed, and moves the timers due in them
+ * onto a list for the caller. Timers are intrusive: they live in the session.
+ *
+ * Neither takes a lock; both belong to the tunnel thread.
+ */
+
+#include <stddef.h>
+#include <stdint.h>
+#include <time.h>
+
+#define SESSION_INDEX_MIN 64        // slots, power of two
+#define SESSION_WHEEL_SLOTS 256     // seconds, power of two
+
+struct session_key {
+    uint8_t protocol;
+    uint8_t version;
+    uint16_t source;    // network notation, 0 for ICMP
+    uint16_t dest;      // network notation, 0 for ICMP
+    uint8_t saddr[16];  // network notation, IPv4 in the first 4 bytes
+    uint8_t daddr[16];
+};
+
+struct session_slot {
+    struct session_key key;
+    uint32_t hash;
+    void *value;        // NULL when free
+};
+
+struct session_index {
+    struct session_slot *slots;
+    uint32_t capacity;
+    uint32_t count;
+};
+
+struct session_timer {
+    struct session_timer *prev;
+    struct session_timer *next; // NULL when not scheduled
+    time_t due;
+};
+
+struct session_wheel {
+    struct session_timer slots[SESSION_WHEEL_SLOTS];
+    time_t now;
+    uint32_t count;
+};
+
+#ifdef __cplusplus
+extern "C" {
+#endif
+
+/**
+ * Fill in a key. Addresses are 4 bytes for version 4 and 16 for version 6,
+ * ports are left as given.
+ */
+void session_key_init(struct session_key *key, uint8_t protocol, uint8_t version,
+                      const void *saddr, uint16_t source,
+                      const void *daddr, uint16_t dest);
+
+void session_index_free(struct session_index *index);
+
+void *session_index_get(const struct session_index *index, const struct session_key *key);
+
+/**
+ * @return 0, or -1 when out of memory, in which case the index is unchanged
+ */
+int session_index_put(struct session_index *index, const struct session_key *key, void *value);
+
+/**
+ * Remove the key if it maps to this value; a key put again for a newer
+ * session stays.
+ *
+ * @return 1 when removed
+ */
+int session_index_remove(struct session_index *index, const struct session_key *key,
+                         const void *value);
+
+/**
+ * Start over at now, forgetting the timers scheduled so far.
+ */
+void session_wheel_init(struct session_wheel *wheel, time_t now);
+
+/**
+ * Schedule, or reschedule, a timer. A due time already past is due now.
+ */
+void session_wheel_schedule(struct session_wheel *wheel, struct session_timer *timer, time_t due);
+
+void session_wheel_cancel(struct session_wheel *wheel, struct session_timer *timer);
+
+/**
+ * Move the timers due at or before now onto the list headed by expired,
+ * which must have been set up with session_list_init().
+ *
+ * @return The number of timers moved
+ */
+int session_wheel_advance(struct session_wheel *wheel, time_t now, struct session_timer *expired);
+
+/**
+ * @return Seconds until the first slot with a timer, at most limit. A timer
+ * there may be due a revolution later, so this can be early, never late.
+ */
+int session_wheel_next(const struct session_wheel *wheel, int limit);
+
+void session_list_init(struct session_timer *head);
+
+/**
+ * Append a timer to a list, unless it is on a list already.
+ */
+void session_list_push(struct session_timer *head, struct session_timer *timer);
+
+/**
+ * Take a timer off the list it is on, if any.
+ */
+void session_list_remove(struct session_timer *timer);
+
+int session_list_empty(const struct session_timer *head);
+
+/**
+ * Take the first timer off a list.
+ *
+ * @return The timer, or NULL when the list is empty
+ */
+struct session_timer *session_list_pop(struct session_timer *head);
+
+#ifdef __cplusplus
+}
+#endif
+
+#endif /* SESSION_TABLE_H */
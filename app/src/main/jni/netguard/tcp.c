@@ -25,8 +25,6 @@ extern int socks5_port;
 extern char socks5_username[127 + 1];
 extern char socks5_password[127 + 1];
 
-extern FILE *pcap_file;
-
 void clear_tcp_data(struct tcp_session *cur) {
     struct segment *s = cur->forward;
     while (s != NULL) {
@@ -659,16 +657,9 @@ jboolean handle_tcp(const struct arguments *args,
     const uint16_t datalen = (const uint16_t) (length - (data - pkt));
 
     // Search session
-    struct ng_session *cur = args->ctx->ng_session;
-    while (cur != NULL &&
-           !(cur->protocol == IPPROTO_TCP &&
-             cur->tcp.version == version &&
-             cur->tcp.source == tcphdr->source && cur->tcp.dest == tcphdr->dest &&
-             (version == 4 ? cur->tcp.saddr.ip4 == ip4->saddr &&
-                             cur->tcp.daddr.ip4 == ip4->daddr
-                           : memcmp(&cur->tcp.saddr.ip6, &ip6->ip6_src, 16) == 0 &&
-                             memcmp(&cur->tcp.daddr.ip6, &ip6->ip6_dst, 16) == 0)))
-        cur = cur->next;
+    struct session_key key;
+    get_packet_key(&key, IPPROTO_TCP, pkt, payload);
+    struct ng_session *cur = find_session(args->ctx, &key);
 
     // Prepare logging
     char source[INET6_ADDRSTRLEN + 1];
@@ -797,7 +788,6 @@ jboolean handle_tcp(const struct arguments *args,
             s->tcp.checkedHostname = 0;
             s->tcp.tls_data = NULL;
             s->tcp.tls_len = 0;
-            s->next = NULL;
 
             if (datalen) {
                 log_android(ANDROID_LOG_WARN, "%s SYN data", packet);
@@ -832,8 +822,7 @@ jboolean handle_tcp(const struct arguments *args,
                 log_android(ANDROID_LOG_ERROR, "epoll add tcp error %d: %s",
                             errno, strerror(errno));
 
-            s->next = args->ctx->ng_session;
-            args->ctx->ng_session = s;
+            add_session(args->ctx, s);
 
             if (!allowed) {
                 log_android(ANDROID_LOG_WARN, "%s resetting blocked session", packet);
@@ -1357,8 +1346,8 @@ ssize_t write_tcp(const struct arguments *args, const struct tcp_session *cur,
 
     // Write pcap record
     if (res >= 0) {
-        if (pcap_file != NULL)
-            write_pcap_rec(buffer, (size_t) res);
+        if (pcap_capturing())
+            write_pcap_rec(buffer, (size_t) res, cur->uid, PCAPNG_INBOUND);
     } else
         log_android(ANDROID_LOG_ERROR, "TCP write%s%s%s%s data %d error %d: %s",
                     (tcp->syn ? " SYN" : ""),
@@ -0,0 +1,85 @@
+/*
+ * TrackerControl is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TrackerControl is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * Copyright © 2026
+ */
+
+// See tun_ring.h. head and tail count up forever and wrap; a slot is a
+// count masked by the ring size.
+
+#include "tun_ring.h"
+
+#include <stdlib.h>
+#include <string.h>
+
+int tun_ring_init(struct tun_ring *ring, uint32_t count, size_t slot_size) {
+    memset(ring, 0, sizeof(*ring));
+    ring->slots = malloc((size_t) count * slot_size);
+    ring->lengths = calloc(count, sizeof(size_t));
+    if (ring->slots == NULL || ring->lengths == NULL) {
+        tun_ring_free(ring);
+        return -1;
+    }
+    ring->count = count;
+    ring->slot_size = slot_size;
+    atomic_init(&ring->head, 0);
+    atomic_init(&ring->tail, 0);
+    return 0;
+}
+
+void tun_ring_free(struct tun_ring *ring) {
+    free(ring->slots);
+    free(ring->lengths);
+    ring->slots = NULL;
+    ring->lengths = NULL;
+    ring->count = 0;
+}
+
+uint8_t *tun_ring_claim(struct tun_ring *ring) {
+    uint32_t head = atomic_load_explicit(&ring->head, memory_order_relaxed);
+    uint32_t tail = atomic_load_explicit(&ring->tail, memory_order_acquire);
+    if (head - tail == ring->count)
+        return NULL;
+    return ring->slots + (size_t) (head & (ring->count - 1)) * ring->slot_size;
+}
+
+int tun_ring_publish(struct tun_ring *ring, size_t length) {
+    uint32_t head = atomic_load_explicit(&ring->head, memory_order_relaxed);
+    ring->lengths[head & (ring->count - 1)] = length;
+    atomic_store_explicit(&ring->head, head + 1, memory_order_seq_cst);
+    return atomic_load_explicit(&ring->tail, memory_order_seq_cst) == head;
+}
+
+const uint8_t *tun_ring_peek(struct tun_ring *ring, size_t *length) {
+    uint32_t tail = atomic_load_explicit(&ring->tail, memory_order_relaxed);
+    uint32_t head = atomic_load_explicit(&ring->head, memory_order_acquire);
+    if (head == tail)
+        return NULL;
+    uint32_t slot = tail & (ring->count - 1);
+    *length = ring->lengths[slot];
+    return ring->slots + (size_t) slot * ring->slot_size;
+}
+
+int tun_ring_release(struct tun_ring *ring) {
+    uint32_t tail = atomic_load_explicit(&ring->tail, memory_order_relaxed);
+    atomic_store_explicit(&ring->tail, tail + 1, memory_order_seq_cst);
+    return atomic_load_explicit(&ring->head, memory_order_seq_cst) - tail == ring->count;
+}
+
+int tun_ring_empty(struct tun_ring *ring) {
+    return atomic_load_explicit(&ring->head, memory_order_seq_cst) ==
+           atomic_load_explicit(&ring->tail, memory_order_seq_cst);
+}
+
+int tun_ring_full(struct tun_ring *ring) {
+    return atomic_load_explicit(&ring->head, memory_order_seq_cst) -
+           atomic_load_explicit(&ring->tail, memory_order_seq_cst) == ring->count;
+}
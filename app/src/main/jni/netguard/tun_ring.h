@@ -0,0 +1,92 @@
+/*
+ * TrackerControl is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TrackerControl is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * Copyright © 2026
+ */
+
+#ifndef TUN_RING_H
+#define TUN_RING_H
+
+/*
+ * Single-producer single-consumer ring of packets, handing captured packets
+ * from the tunnel thread to the pcap writer thread (see pcap.c). Only
+ * depends on libc, so that it can be
+ * unit-tested on the host (app/src/test/native/tun_ring_test.c).
+ *
+ * Slots are allocated once, each large enough for a whole packet, and are
+ * filled and drained in place: the producer claims a slot, writes the packet
+ * into it and publishes it; the consumer peeks at the oldest packet and
+ * releases it when done. Neither side takes a lock.
+ *
+ * Publishing into an empty ring, and releasing from a full one, return 1 so
+ * that the caller knows to wake the other side. Both check with sequentially
+ * consistent atomics, so that a side going to sleep because the ring looked
+ * empty (or full) cannot miss the other side's update.
+ */
+
+#include <stdatomic.h>
+#include <stddef.h>
+#include <stdint.h>
+
+struct tun_ring {
+    uint8_t *slots;
+    size_t *lengths;
+    uint32_t count;                 // power of two
+    size_t slot_size;
+    _Atomic uint32_t head;          // next slot to publish, producer only
+    _Atomic uint32_t tail;          // next slot to release, consumer only
+};
+
+#ifdef __cplusplus
+extern "C" {
+#endif
+
+/**
+ * @param count Number of slots, a power of two
+ * @return 0, or -1 when out of memory
+ */
+int tun_ring_init(struct tun_ring *ring, uint32_t count, size_t slot_size);
+
+void tun_ring_free(struct tun_ring *ring);
+
+/**
+ * @return The slot to write the next packet into, or NULL when the ring is full
+ */
+uint8_t *tun_ring_claim(struct tun_ring *ring);
+
+/**
+ * Publish the packet written into the claimed slot.
+ *
+ * @return 1 when the ring was empty, so the consumer may be waiting
+ */
+int tun_ring_publish(struct tun_ring *ring, size_t length);
+
+/**
+ * @return The oldest packet, or NULL when the ring is empty
+ */
+const uint8_t *tun_ring_peek(struct tun_ring *ring, size_t *length);
+
+/**
+ * Release the packet returned by tun_ring_peek().
+ *
+ * @return 1 when the ring was full, so the producer may be waiting
+ */
+int tun_ring_release(struct tun_ring *ring);
+
+int tun_ring_empty(struct tun_ring *ring);
+
+int tun_ring_full(struct tun_ring *ring);
+
+#ifdef __cplusplus
+}
+#endif
+
+#endif /* TUN_RING_H */
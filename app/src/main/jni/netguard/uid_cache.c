@@ -0,0 +1,286 @@
+/*
+ * TrackerControl is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TrackerControl is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * Copyright © 2026
+ */
+
+// See uid_cache.h. Touched by the tunnel thread only.
+
+#include "uid_cache.h"
+
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+
+struct uid_owner_entry {
+    uint8_t used;
+    uint8_t version;
+    uint8_t protocol;
+    uint16_t sport;
+    uint16_t dport;
+    uint8_t saddr[16];
+    uint8_t daddr[16];
+    int32_t uid;
+    long time;
+};
+
+static struct uid_owner_entry owners[UID_OWNER_SETS][UID_OWNER_WAYS];
+
+static uint64_t fnv1a(uint64_t h, const uint8_t *data, size_t len) {
+    for (size_t i = 0; i < len; i++)
+        h = (h ^ data[i]) * 1099511628211ull;
+    return h;
+}
+
+static size_t owner_set(int version, int protocol,
+                        const void *saddr, uint16_t sport,
+                        const void *daddr, uint16_t dport) {
+    size_t alen = (version == 4 ? 4u : 16u);
+    uint8_t ports[6] = {(uint8_t) version, (uint8_t) protocol,
+                        (uint8_t) (sport >> 8), (uint8_t) sport,
+                        (uint8_t) (dport >> 8), (uint8_t) dport};
+    uint64_t h = 14695981039346656037ull;
+    h = fnv1a(h, saddr, alen);
+    h = fnv1a(h, daddr, alen);
+    h = fnv1a(h, ports, sizeof(ports));
+    return (size_t) ((h ^ (h >> 32)) & (UID_OWNER_SETS - 1));
+}
+
+static int owner_matches(const struct uid_owner_entry *e,
+                         int version, int protocol,
+                         const void *saddr, uint16_t sport,
+                         const void *daddr, uint16_t dport) {
+    size_t alen = (version == 4 ? 4u : 16u);
+    return e->used &&
+           e->version == (uint8_t) version && e->protocol == (uint8_t) protocol &&
+           e->sport == sport && e->dport == dport &&
+           memcmp(e->saddr, saddr, alen) == 0 && memcmp(e->daddr, daddr, alen) == 0;
+}
+
+static int owner_current(const struct uid_owner_entry *e, long now) {
+    return now - e->time <= (e->uid < 0 ? UID_OWNER_NEGATIVE_AGE : UID_OWNER_MAX_AGE);
+}
+
+int uid_owner_lookup(int version, int protocol,
+                     const void *saddr, uint16_t sport,
+                     const void *daddr, uint16_t dport,
+                     long now, int32_t *uid) {
+    struct uid_owner_entry *set = owners[owner_set(version, protocol, saddr, sport, daddr, dport)];
+    for (int way = 0; way < UID_OWNER_WAYS; way++) {
+        struct uid_owner_entry *e = &set[way];
+        if (owner_matches(e, version, protocol, saddr, sport, daddr, dport) &&
+            owner_current(e, now)) {
+            *uid = e->uid;
+            return 1;
+        }
+    }
+    return 0;
+}
+
+void uid_owner_store(int version, int protocol,
+                     const void *saddr, uint16_t sport,
+                     const void *daddr, uint16_t dport,
+                     int32_t uid, long now) {
+    size_t alen = (version == 4 ? 4u : 16u);
+    struct uid_owner_entry *set = owners[owner_set(version, protocol, saddr, sport, daddr, dport)];
+
+    // Reuse this socket's way, an empty or expired one, else evict the oldest
+    struct uid_owner_entry *victim = NULL;
+    struct uid_owner_entry *oldest = &set[0];
+    for (int way = 0; way < UID_OWNER_WAYS; way++) {
+        struct uid_owner_entry *e = &set[way];
+        if (owner_matches(e, version, protocol, saddr, sport, daddr, dport)) {
+            victim = e;
+            break;
+        }
+        if (victim == NULL && (!e->used || !owner_current(e, now)))
+            victim = e;
+        if (e->time < oldest->time)
+            oldest = e;
+    }
+    if (victim == NULL)
+        victim = oldest;
+
+    struct uid_owner_entry *e = victim;
+    e->used = 1;
+    e->version = (uint8_t) version;
+    e->protocol = (uint8_t) protocol;
+    e->sport = sport;
+    e->dport = dport;
+    memset(e->saddr, 0, sizeof(e->saddr));
+    memset(e->daddr, 0, sizeof(e->daddr));
+    memcpy(e->saddr, saddr, alen);
+    memcpy(e->daddr, daddr, alen);
+    e->uid = uid;
+    e->time = now;
+}
+
+void uid_owner_clear(void) {
+    memset(owners, 0, sizeof(owners));
+}
+
+static uint32_t proc_slot(uint64_t hash, uint32_t mask) {
+    return (uint32_t) (hash ^ (hash >> 32)) & mask;
+}
+
+static const struct uid_proc_entry *proc_find(const struct uid_proc_table *table, uint64_t hash) {
+    if (table->index == NULL)
+        return NULL;
+    for (uint32_t slot = proc_slot(hash, table->mask);
+         table->index[slot] != 0;
+         slot = (slot + 1) & table->mask) {
+        const struct uid_proc_entry *e = &table->entries[table->index[slot] - 1];
+        if (e->hash == hash)
+            return e;
+    }
+    return NULL;
+}
+
+// Addresses are printed as 32-bit words in host order
+static int parse_address(const char *hex, int words, uint8_t *address) {
+    if (strlen(hex) != (size_t) words * 8)
+        return 0;
+    for (int w = 0; w < words; w++) {
+        uint32_t word = 0;
+        for (int i = 0; i < 8; i++) {
+            char c = hex[w * 8 + i];
+            uint32_t nibble;
+            if (c >= '0' && c <= '9')
+                nibble = (uint32_t) (c - '0');
+            else if (c >= 'A' && c <= 'F')
+                nibble = (uint32_t) (c - 'A' + 10);
+            else if (c >= 'a' && c <= 'f')
+                nibble = (uint32_t) (c - 'a' + 10);
+            else
+                return 0;
+            word = (word << 4) | nibble;
+        }
+        memcpy(address + w * 4, &word, 4);
+    }
+    return 1;
+}
+
+void uid_proc_begin(struct uid_proc_table *table) {
+    table->next_count = 0;
+}
+
+int uid_proc_add(struct uid_proc_table *table, int version, const char *line) {
+    // The slot number before the first colon changes as sockets come and go
+    const char *rest = strchr(line, ':');
+    if (rest == NULL)
+        return 0;
+    uint64_t hash = fnv1a(14695981039346656037ull, (const uint8_t *) rest, strlen(rest));
+
+    if (table->next_count == table->next_capacity) {
+        int capacity = (table->next_capacity == 0 ? 64 : table->next_capacity * 2);
+        struct uid_proc_entry *next = realloc(table->next, sizeof(struct uid_proc_entry) * capacity);
+        if (next == NULL)
+            return -1;
+        table->next = next;
+        table->next_capacity = capacity;
+    }
+    struct uid_proc_entry *e = &table->next[table->next_count];
+
+    const struct uid_proc_entry *previous = proc_find(table, hash);
+    if (previous != NULL) {
+        *e = *previous;
+        table->next_count++;
+        table->reused++;
+        return 1;
+    }
+
+    char shex[16 * 2 + 1];
+    char dhex[16 * 2 + 1];
+    unsigned int sport;
+    unsigned int dport;
+    int uid;
+    const char *fmt = (version == 4
+                       ? "%*d: %8s:%X %8s:%X %*X %*lX:%*lX %*X:%*X %*X %d %*d %*ld"
+                       : "%*d: %32s:%X %32s:%X %*X %*lX:%*lX %*X:%*X %*X %d %*d %*ld");
+    int words = (version == 4 ? 1 : 4);
+    if (sscanf(line, fmt, shex, &sport, dhex, &dport, &uid) != 5 ||
+        !parse_address(shex, words, e->saddr) || !parse_address(dhex, words, e->daddr))
+        return 0;
+
+    e->hash = hash;
+    e->sport = (uint16_t) sport;
+    e->dport = (uint16_t) dport;
+    e->uid = uid;
+    table->next_count++;
+    table->parsed++;
+    return 1;
+}
+
+void uid_proc_commit(struct uid_proc_table *table, long now) {
+    struct uid_proc_entry *entries = table->entries;
+    int capacity = table->capacity;
+    table->entries = table->next;
+    table->count = table->next_count;
+    table->capacity = table->next_capacity;
+    table->next = entries;
+    table->next_capacity = capacity;
+    table->next_count = 0;
+    table->time = now;
+
+    // At most half full
+    uint32_t size = 16;
+    while (size < (uint32_t) table->count * 2)
+        size <<= 1;
+    if (table->index == NULL || size - 1 > table->mask) {
+        uint32_t *index = realloc(table->index, sizeof(uint32_t) * size);
+        if (index == NULL) {
+            // Still correct, only no longer incremental
+            free(table->index);
+            table->index = NULL;
+            table->mask = 0;
+            return;
+        }
+        table->index = index;
+        table->mask = size - 1;
+    }
+    memset(table->index, 0, sizeof(uint32_t) * (table->mask + 1));
+    for (int i = 0; i < table->count; i++) {
+        uint32_t slot = proc_slot(table->entries[i].hash, table->mask);
+        while (table->index[slot] != 0)
+            slot = (slot + 1) & table->mask;
+        table->index[slot] = (uint32_t) i + 1;
+    }
+}
+
+int32_t uid_proc_match(const struct uid_proc_table *table, int version,
+                       const void *saddr, uint16_t sport,
+                       const void *daddr, uint16_t dport) {
+    static const uint8_t zero[16] = {0};
+    size_t alen = (version == 4 ? 4u : 16u);
+
+    int32_t uid = -1;
+    for (int i = 0; i < table->count; i++) {
+        const struct uid_proc_entry *e = &table->entries[i];
+        if (e->sport != sport)
+            continue;
+        int sexact = (memcmp(e->saddr, saddr, alen) == 0);
+        int dexact = (memcmp(e->daddr, daddr, alen) == 0);
+        if (sexact && dexact && e->dport == dport)
+            return e->uid;
+        if ((e->dport == dport || e->dport == 0) &&
+            (sexact || memcmp(e->saddr, zero, alen) == 0) &&
+            (dexact || memcmp(e->daddr, zero, alen) == 0))
+            uid = e->uid;
+    }
+    return uid;
+}
+
+void uid_proc_free(struct uid_proc_table *table) {
+    free(table->entries);
+    free(table->next);
+    free(table->index);
+    memset(table, 0, sizeof(*table));
+}
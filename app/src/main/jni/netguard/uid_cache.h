@@ -0,0 +1,126 @@
+/*
+ * TrackerControl is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TrackerControl is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * Copyright © 2026
+ */
+
+#ifndef UID_CACHE_H
+#define UID_CACHE_H
+
+/*
+ * Socket owner lookups remembered on this side of the JNI boundary, and the
+ * /proc/net socket tables they are answered from before Android Q. Only
+ * depends on libc -- no netguard.h, no JNI -- so that it can be unit-tested
+ * on the host (app/src/test/native/uid_cache_test.c).
+ *
+ * Every new flow needs the uid of the socket it came from. Before Android Q
+ * that meant reading and parsing a whole /proc/net table, on Q and later a
+ * JNI upcall into ConnectivityManager.getConnectionOwnerUid(). The owner of a
+ * socket does not change while it lives, so the answer is kept per
+ * (version, protocol, saddr, sport, daddr, dport); not finding an owner is
+ * kept too, but briefly, since the socket may only just be appearing.
+ *
+ * The /proc/net tables are regenerated by the kernel on every read, so they
+ * still have to be read in full, but most of their lines are the same as the
+ * last time. A line is identified by a hash of its text after the slot
+ * number (which shifts as sockets come and go) and parsed only if the last
+ * read of the table did not have it.
+ */
+
+#include <stddef.h>
+#include <stdint.h>
+
+#define UID_OWNER_WAYS 4
+#define UID_OWNER_SETS 256             // power of two; SETS * WAYS = 1024 entries
+#define UID_OWNER_MAX_AGE 30000        // milliseconds
+#define UID_OWNER_NEGATIVE_AGE 2000    // milliseconds, for owners not found
+
+#ifdef __cplusplus
+extern "C" {
+#endif
+
+/**
+ * The remembered owner of this socket, if any. Addresses are in network
+ * order, 4 bytes for version 4 and 16 for version 6; ports in host order.
+ *
+ * @return 1 when *uid was filled in, 0 on a miss.
+ */
+int uid_owner_lookup(int version, int protocol,
+                     const void *saddr, uint16_t sport,
+                     const void *daddr, uint16_t dport,
+                     long now, int32_t *uid);
+
+/**
+ * Remember the owner of a socket; a negative uid means none was found.
+ */
+void uid_owner_store(int version, int protocol,
+                     const void *saddr, uint16_t sport,
+                     const void *daddr, uint16_t dport,
+                     int32_t uid, long now);
+
+void uid_owner_clear(void);
+
+struct uid_proc_entry {
+    uint64_t hash;                     // of the line after its slot number
+    uint8_t saddr[16];
+    uint16_t sport;
+    uint8_t daddr[16];
+    uint16_t dport;
+    int32_t uid;
+};
+
+// The sockets of one /proc/net table, as of its last complete read.
+// Zero-initialized is empty.
+struct uid_proc_table {
+    struct uid_proc_entry *entries;
+    int count;
+    int capacity;
+    uint32_t *index;                   // open addressing by hash, entry + 1
+    uint32_t mask;
+    long time;                         // of the last complete read, 0 = never
+
+    // Being read; becomes entries when committed
+    struct uid_proc_entry *next;
+    int next_count;
+    int next_capacity;
+
+    long parsed;                       // lines parsed
+    long reused;                       // lines taken from the previous read
+};
+
+void uid_proc_begin(struct uid_proc_table *table);
+
+/**
+ * Add a line of the table being read, not the header line.
+ *
+ * @return 1 when added, 0 when the line is invalid, -1 when out of memory.
+ */
+int uid_proc_add(struct uid_proc_table *table, int version, const char *line);
+
+void uid_proc_commit(struct uid_proc_table *table, long now);
+
+/**
+ * The owner of the socket a flow belongs to: one with exactly this address
+ * and ports, else one bound to a wildcard address or not connected.
+ *
+ * @return The uid, or -1 when the table has no such socket.
+ */
+int32_t uid_proc_match(const struct uid_proc_table *table, int version,
+                       const void *saddr, uint16_t sport,
+                       const void *daddr, uint16_t dport);
+
+void uid_proc_free(struct uid_proc_table *table);
+
+#ifdef __cplusplus
+}
+#endif
+
+#endif /* UID_CACHE_H */
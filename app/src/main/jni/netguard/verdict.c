@@ -0,0 +1,239 @@
+/*
+ * TrackerControl is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TrackerControl is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * Copyright © 2026
+ */
+
+// Block verdicts remembered on this side of the JNI boundary.
+//
+// Every new flow used to cost a Packet object, four strings and a call into
+// isAddressAllowed(), and apps open many short flows to the same few hosts.
+// The verdict only depends on the app, the destination and the policy in
+// force, so remember it per (uid, daddr, dport, protocol) and answer repeats
+// here. Java bumps verdict_gen whenever the policy the verdict reads changes
+// (rules, forwarding, blocking mode), which makes every entry decided before
+// it stop matching. What only changes the attribution of some addresses (a
+// new DNS record, hosts that came or went) invalidates just the entries for
+// those addresses: Java queues them, and the tunnel thread drops their
+// entries before its next lookup. Entries also age out after VERDICT_MAX_AGE
+// so a verdict derived from an expiring DNS record is looked at again.
+//
+// Java still has to see these flows for the access log, so a cache hit is
+// queued on the log ring instead (see logring.c).
+//
+// Everything but verdict_gen, verdict_epoch and the pending addresses is
+// touched by the tunnel thread only.
+
+#include "netguard.h"
+
+#include <stdatomic.h>
+
+#define VERDICT_WAYS 4
+#define VERDICT_SETS 256            // power of two; SETS * WAYS = 1024 entries
+#define VERDICT_MAX_AGE 30          // seconds
+#define VERDICT_PENDING 64          // addresses; more invalidate everything
+
+struct verdict_entry {
+    uint32_t gen;                   // 0 = never written
+    jint uid;
+    uint8_t version;
+    uint8_t protocol;
+    uint8_t allowed;
+    uint16_t dport;
+    uint8_t daddr[16];
+    time_t time;                    // when decided, not when last used
+};
+
+struct verdict_address {
+    uint8_t version;
+    uint8_t daddr[16];
+};
+
+static struct verdict_entry verdicts[VERDICT_SETS][VERDICT_WAYS];
+static _Atomic uint32_t verdict_gen = 1;
+// Bumped by every invalidation, of everything or of an address, so that a
+// verdict decided meanwhile is not stored
+static _Atomic uint32_t verdict_epoch = 1;
+
+static pthread_mutex_t pending_lock = PTHREAD_MUTEX_INITIALIZER;
+static struct verdict_address pending[VERDICT_PENDING];
+static int pending_count = 0;
+static _Atomic int pending_any = 0;
+
+/**
+ * @return What verdict_store() needs to tell whether anything was
+ * invalidated since, read before asking Java.
+ */
+uint32_t verdict_generation() {
+    return atomic_load_explicit(&verdict_epoch, memory_order_acquire);
+}
+
+void verdict_invalidate() {
+    // Wrapping to 0 would make every never-written slot look current, so skip it.
+    uint32_t next = atomic_fetch_add_explicit(&verdict_gen, 1, memory_order_release) + 1;
+    if (next == 0)
+        atomic_store_explicit(&verdict_gen, 1, memory_order_release);
+    atomic_fetch_add_explicit(&verdict_epoch, 1, memory_order_release);
+}
+
+/**
+ * Forget the verdicts for one destination address, of every app, port and
+ * protocol. May be called from any thread.
+ */
+void verdict_invalidate_addr(int version, const void *daddr) {
+    if (pthread_mutex_lock(&pending_lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_lock failed");
+
+    int overflow = (pending_count >= VERDICT_PENDING);
+    if (!overflow) {
+        struct verdict_address *a = &pending[pending_count++];
+        a->version = (uint8_t) version;
+        memset(a->daddr, 0, sizeof(a->daddr));
+        memcpy(a->daddr, daddr, version == 4 ? 4u : 16u);
+        atomic_store_explicit(&pending_any, 1, memory_order_release);
+    }
+
+    if (pthread_mutex_unlock(&pending_lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_unlock failed");
+
+    if (overflow)
+        verdict_invalidate();
+    else
+        atomic_fetch_add_explicit(&verdict_epoch, 1, memory_order_release);
+}
+
+// Drops the entries of the addresses queued by verdict_invalidate_addr()
+static void verdict_drain() {
+    if (!atomic_load_explicit(&pending_any, memory_order_acquire))
+        return;
+
+    struct verdict_address addresses[VERDICT_PENDING];
+    if (pthread_mutex_lock(&pending_lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_lock failed");
+    int count = pending_count;
+    memcpy(addresses, pending, count * sizeof(struct verdict_address));
+    pending_count = 0;
+    atomic_store_explicit(&pending_any, 0, memory_order_release);
+    if (pthread_mutex_unlock(&pending_lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_unlock failed");
+
+    // The set is chosen by uid and port as well, so any set can hold the address
+    for (size_t set = 0; set < VERDICT_SETS; set++)
+        for (int way = 0; way < VERDICT_WAYS; way++) {
+            struct verdict_entry *e = &verdicts[set][way];
+            if (e->gen == 0)
+                continue;
+            for (int i = 0; i < count; i++)
+                if (e->version == addresses[i].version &&
+                    memcmp(e->daddr, addresses[i].daddr, sizeof(e->daddr)) == 0) {
+                    e->gen = 0;
+                    break;
+                }
+        }
+}
+
+static size_t verdict_set(int version, int protocol,
+                          const void *daddr, uint16_t dport, jint uid) {
+    size_t alen = (version == 4 ? 4u : 16u);
+    // FNV-1a
+    uint32_t h = 2166136261u;
+    const uint8_t *d = daddr;
+    for (size_t i = 0; i < alen; i++)
+        h = (h ^ d[i]) * 16777619u;
+    for (int i = 0; i < 4; i++)
+        h = (h ^ (uint8_t) ((uint32_t) uid >> (i * 8))) * 16777619u;
+    h = (h ^ (uint8_t) version) * 16777619u;
+    h = (h ^ (uint8_t) protocol) * 16777619u;
+    h = (h ^ (uint8_t) (dport & 0xff)) * 16777619u;
+    h = (h ^ (uint8_t) (dport >> 8)) * 16777619u;
+    return (size_t) (h & (VERDICT_SETS - 1));
+}
+
+static int verdict_matches(const struct verdict_entry *e, uint32_t gen,
+                           int version, int protocol,
+                           const void *daddr, uint16_t dport, jint uid, time_t now) {
+    size_t alen = (version == 4 ? 4u : 16u);
+    return e->gen == gen && e->uid == uid &&
+           e->version == (uint8_t) version && e->protocol == (uint8_t) protocol &&
+           e->dport == dport && memcmp(e->daddr, daddr, alen) == 0 &&
+           now - e->time <= VERDICT_MAX_AGE;
+}
+
+/**
+ * The remembered verdict for this destination of this app, if any.
+ *
+ * @return 1 when *allowed was filled in, 0 on a miss.
+ */
+int verdict_lookup(int version, int protocol,
+                   const void *daddr, uint16_t dport, jint uid,
+                   int *allowed) {
+    verdict_drain();
+
+    uint32_t gen = atomic_load_explicit(&verdict_gen, memory_order_acquire);
+    struct verdict_entry *set = verdicts[verdict_set(version, protocol, daddr, dport, uid)];
+
+    time_t now = time(NULL);
+    for (int way = 0; way < VERDICT_WAYS; way++) {
+        struct verdict_entry *e = &set[way];
+        if (verdict_matches(e, gen, version, protocol, daddr, dport, uid, now)) {
+            *allowed = e->allowed;
+            return 1;
+        }
+    }
+    return 0;
+}
+
+/**
+ * Remember a verdict that isAddressAllowed() returned. epoch is what
+ * verdict_generation() returned before the upcall: if Java invalidated
+ * anything while it was deciding, the answer may predate the change and is
+ * dropped rather than pinned. Redirected verdicts are never stored, only
+ * plain allow and block.
+ */
+void verdict_store(uint32_t epoch, int version, int protocol,
+                   const void *daddr, uint16_t dport, jint uid,
+                   int allowed) {
+    if (epoch != verdict_generation())
+        return;
+
+    uint32_t gen = atomic_load_explicit(&verdict_gen, memory_order_acquire);
+    size_t alen = (version == 4 ? 4u : 16u);
+    struct verdict_entry *set = verdicts[verdict_set(version, protocol, daddr, dport, uid)];
+
+    // Reuse an empty, superseded or expired way, else evict the oldest
+    time_t now = time(NULL);
+    struct verdict_entry *victim = NULL;
+    struct verdict_entry *oldest = &set[0];
+    for (int way = 0; way < VERDICT_WAYS; way++) {
+        struct verdict_entry *e = &set[way];
+        if (verdict_matches(e, gen, version, protocol, daddr, dport, uid, now)) {
+            victim = e;
+            break;
+        }
+        if (victim == NULL && (e->gen != gen || now - e->time > VERDICT_MAX_AGE))
+            victim = e;
+        if (e->time < oldest->time)
+            oldest = e;
+    }
+    if (victim == NULL)
+        victim = oldest;
+
+    struct verdict_entry *e = victim;
+    e->gen = gen;
+    e->uid = uid;
+    e->version = (uint8_t) version;
+    e->protocol = (uint8_t) protocol;
+    e->allowed = (uint8_t) (allowed ? 1 : 0);
+    e->dport = dport;
+    memset(e->daddr, 0, sizeof(e->daddr));
+    memcpy(e->daddr, daddr, alen);
+    e->time = now;
+}
@@ -0,0 +1,122 @@
+package eu.faircode.netguard;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+public class AttributionCacheTest {
+    private static final long NOW = 1_700_000_000_000L;
+    private static final long HOUR = 3600 * 1000L;
+
+    @Test
+    public void answersUntilTheAttributionExpires() {
+        AttributionCache<String> cache = new AttributionCache<>();
+        assertTrue(cache.put("203.0.113.10", "tracker.example", "Tracker", NOW + HOUR, NOW));
+
+        assertEquals("Tracker", cache.get("203.0.113.10", NOW));
+        assertEquals("tracker.example", cache.getHost("203.0.113.10", NOW));
+        assertNull(cache.get("203.0.113.11", NOW));
+
+        assertNull(cache.getHost("203.0.113.10", NOW + HOUR + 1));
+        assertNull(cache.get("203.0.113.10", NOW + HOUR + 1));
+        assertEquals(0, cache.size());
+        assertEquals(1.0 / 3, cache.getHitRatio(), 0.001);
+    }
+
+    @Test
+    public void removesAndFiltersEntries() {
+        AttributionCache<String> cache = new AttributionCache<>();
+        cache.put("203.0.113.1", "a.example", "Tracker", NOW + HOUR, NOW);
+        cache.put("203.0.113.2", "b.example", "none", NOW + HOUR, NOW);
+        cache.put("203.0.113.3", "c.example", "none", NOW - 1, NOW);
+
+        cache.remove("203.0.113.1");
+        assertNull(cache.get("203.0.113.1", NOW));
+
+        // The expired entry goes too
+        assertEquals(2, cache.removeIf("none"::equals, NOW));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void listsTheAddressesAsTheyWerePut() {
+        AttributionCache<String> cache = new AttributionCache<>();
+        cache.put("2001:db8::1", "a.example", "Tracker", NOW + HOUR, NOW);
+        cache.put("203.0.113.2", "b.example", "none", NOW + HOUR, NOW);
+        cache.put("203.0.113.3", "c.example", "none", NOW - 1, NOW);
+        cache.remove("203.0.113.2");
+
+        assertEquals(Collections.singletonList("2001:db8::1"), cache.getAddresses(NOW));
+    }
+
+    @Test
+    public void keepsFrequentAddressesThroughAScan() {
+        AttributionCache<String> cache = new AttributionCache<>(64);
+        for (int round = 0; round < 5; round++)
+            for (int i = 0; i < 64; i++) {
+                String address = "10.0.0." + i;
+                if (cache.get(address, NOW) == null)
+                    cache.put(address, null, "hot", NOW + HOUR, NOW);
+            }
+
+        // Addresses seen once each
+        for (int i = 0; i < 250; i++) {
+            String address = "10.1." + (i / 256) + "." + (i % 256);
+            if (cache.get(address, NOW) == null)
+                cache.put(address, null, "cold", NOW + HOUR, NOW);
+        }
+
+        int kept = 0;
+        for (int i = 0; i < 64; i++)
+            if ("hot".equals(cache.get("10.0.0." + i, NOW)))
+                kept++;
+        assertEquals(cache.toString(), 64, kept);
+        assertEquals(64, cache.size());
+    }
+
+    @Test
+    public void expiredEntriesMakeRoomFirst() {
+        AttributionCache<String> cache = new AttributionCache<>(4);
+        for (int i = 0; i < 4; i++) {
+            String address = "10.0.0." + i;
+            cache.get(address, NOW);
+            cache.get(address, NOW);
+            cache.put(address, null, "v", (i == 2 ? NOW - 1 : NOW + HOUR), NOW);
+        }
+        cache.get("10.0.0.9", NOW);
+
+        assertTrue(cache.put("10.0.0.9", null, "new", NOW + HOUR, NOW));
+        assertEquals(4, cache.size());
+        assertNull(cache.getHost("10.0.0.2", NOW - 10));
+        assertEquals("new", cache.get("10.0.0.9", NOW));
+    }
+
+    @Test
+    public void behavesAsAMapUnderRandomChanges() {
+        AttributionCache<Integer> cache = new AttributionCache<>(512);
+        Map<String, Integer> model = new HashMap<>();
+        Random random = new Random(42);
+        for (int step = 0; step < 20000; step++) {
+            String address = "10.0." + random.nextInt(2) + "." + random.nextInt(200);
+            int action = random.nextInt(3);
+            if (action == 0) {
+                cache.put(address, null, step, NOW + HOUR, NOW);
+                model.put(address, step);
+            } else if (action == 1) {
+                cache.remove(address);
+                model.remove(address);
+            } else
+                assertEquals(model.get(address), cache.get(address, NOW));
+        }
+        assertEquals(model.size(), cache.size());
+        for (Map.Entry<String, Integer> entry : model.entrySet())
+            assertEquals(entry.getValue(), cache.get(entry.getKey(), NOW));
+    }
+}
@@ -1,11 +1,14 @@
 package eu.faircode.netguard;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 import android.database.Cursor;
 import android.os.Handler;
 
+import androidx.preference.PreferenceManager;
+
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.robolectric.RobolectricTestRunner;
@@ -15,8 +18,12 @@ import org.robolectric.shadows.ShadowLooper;
 
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
@@ -139,6 +146,132 @@ public class DatabaseHelperAccessBatchTest {
         }
     }
 
+    @Test
+    public void trackerSummaryFollowsFlushesClearsAndRebuilds() {
+        DatabaseHelper dh = DatabaseHelper.getInstance(RuntimeEnvironment.getApplication());
+        dh.clearAccess();
+
+        Map<Integer, Map<String, Long>> summary = new HashMap<>();
+        AtomicBoolean attribute = new AtomicBoolean(true);
+        DatabaseHelper.TrackerSummaryListener listener = new DatabaseHelper.TrackerSummaryListener() {
+            @Override
+            public String getCompany(String daddr) {
+                return (attribute.get() && daddr.endsWith("example.com") ? "Example" : null);
+            }
+
+            @Override
+            public void onTrackersSeen(Map<Integer, Map<String, Long>> seen) {
+                for (Map.Entry<Integer, Map<String, Long>> app : seen.entrySet()) {
+                    Map<String, Long> companies = summary.get(app.getKey());
+                    if (companies == null)
+                        summary.put(app.getKey(), companies = new HashMap<>());
+                    companies.putAll(app.getValue());
+                }
+            }
+
+            @Override
+            public void onTrackersReplaced(int uid, Map<Integer, Map<String, Long>> replaced) {
+                if (uid < 0)
+                    summary.clear();
+                else
+                    summary.remove(uid);
+                summary.putAll(replaced);
+            }
+        };
+        dh.setTrackerSummaryListener(listener);
+        try {
+            int uid = 11223;
+            dh.updateAccess(packet(uid, "a.example.com", 443, 1_000L, true), null,
+                    -1, DatabaseHelper.ACCESS_UNCERTAIN_NONE);
+            dh.updateAccess(packet(uid, "b.example.com", 443, 3_000L, true), null,
+                    -1, DatabaseHelper.ACCESS_UNCERTAIN_NONE);
+            dh.updateAccess(packet(uid, "cdn.example.org", 443, 5_000L, true), null,
+                    -1, DatabaseHelper.ACCESS_UNCERTAIN_NONE);
+            dh.flushAccessBatch();
+            assertEquals("hosts of one company fold into one entry",
+                    Collections.singletonMap("Example", 3_000L), summary.get(uid));
+
+            // A rebuild from the access table yields what the flushes kept
+            summary.clear();
+            dh.loadTrackerSummary("test-" + System.nanoTime());
+            assertEquals(Collections.singletonMap("Example", 3_000L), summary.get(uid));
+
+            // The stored summary is read back as is under the same key
+            summary.clear();
+            attribute.set(false);
+            dh.loadTrackerSummary(lastKey());
+            assertEquals(Collections.singletonMap("Example", 3_000L), summary.get(uid));
+
+            attribute.set(true);
+            dh.clearAccess(uid, false);
+            assertFalse(summary.containsKey(uid));
+        } finally {
+            dh.setTrackerSummaryListener(null);
+        }
+    }
+
+    @Test
+    public void insightsRollUpTheLatestContactOfEachAppAndHost() {
+        DatabaseHelper dh = DatabaseHelper.getInstance(RuntimeEnvironment.getApplication());
+        dh.clearAccess();
+
+        dh.setTrackerSummaryListener(new DatabaseHelper.TrackerSummaryListener() {
+            @Override
+            public String getCompany(String daddr) {
+                return (daddr.endsWith("example.com") ? "Example" : null);
+            }
+
+            @Override
+            public void onTrackersSeen(Map<Integer, Map<String, Long>> seen) {
+            }
+
+            @Override
+            public void onTrackersReplaced(int uid, Map<Integer, Map<String, Long>> replaced) {
+            }
+        });
+        try {
+            int uid = 11224;
+            long now = System.currentTimeMillis();
+            dh.updateAccess(packet(uid, "a.example.com", 443, now - 2_000L, true), null,
+                    -1, DatabaseHelper.ACCESS_UNCERTAIN_NONE);
+            dh.updateAccess(packet(uid, "old.example.com", 443, now - 8 * 24 * 3600 * 1000L, true), null,
+                    -1, DatabaseHelper.ACCESS_UNCERTAIN_NONE);
+            dh.updateAccess(packet(uid, "cdn.example.org", 443, now, true), null,
+                    -1, DatabaseHelper.ACCESS_UNCERTAIN_NONE);
+            dh.flushAccessBatch();
+            dh.updateAccess(packet(uid, "a.example.com", 80, now - 1_000L, false), null,
+                    -1, DatabaseHelper.ACCESS_UNCERTAIN_SHARED_IP);
+            dh.flushAccessBatch();
+
+            try (Cursor c = dh.getInsightsData7Days()) {
+                assertEquals("one row per app and tracker host in the window", 1, c.getCount());
+                assertTrue(c.moveToFirst());
+                assertEquals(uid, c.getInt(c.getColumnIndexOrThrow("uid")));
+                assertEquals("a.example.com", c.getString(c.getColumnIndexOrThrow("daddr")));
+                assertEquals("Example", c.getString(c.getColumnIndexOrThrow("company")));
+                assertEquals(now - 1_000L, c.getLong(c.getColumnIndexOrThrow("time")));
+                assertEquals(0, c.getInt(c.getColumnIndexOrThrow("allowed")));
+                assertEquals(DatabaseHelper.ACCESS_UNCERTAIN_SHARED_IP,
+                        c.getInt(c.getColumnIndexOrThrow("uncertain")));
+            }
+            try (Cursor c = dh.getReadableDatabase().rawQuery(
+                    "SELECT SUM(allowed_count), SUM(blocked_count) FROM insights" +
+                            " WHERE uid = ? AND daddr = 'a.example.com'",
+                    new String[] { Integer.toString(uid) })) {
+                assertTrue(c.moveToFirst());
+                assertEquals(1, c.getInt(0));
+                assertEquals(1, c.getInt(1));
+            }
+
+            dh.clearAccess(uid, false);
+            try (Cursor c = dh.getInsightsData7Days()) {
+                assertEquals(0, c.getCount());
+            }
+        } finally {
+            dh.setTrackerSummaryListener(null);
+        }
+    }
+
     @Test
     public void repeatedAccessNotificationsCoalesceWithinWindow() throws Exception {
         DatabaseHelper dh = DatabaseHelper.getInstance(RuntimeEnvironment.getApplication());
@@ -198,6 +331,11 @@ public class DatabaseHelperAccessBatchTest {
         }
     }
 
+    private static String lastKey() {
+        return PreferenceManager.getDefaultSharedPreferences(RuntimeEnvironment.getApplication())
+                .getString("tracker_summary", null);
+    }
+
     private static Handler databaseHandler() throws Exception {
         Field field = DatabaseHelper.class.getDeclaredField("handler");
         field.setAccessible(true);
@@ -0,0 +1,64 @@
+package eu.faircode.netguard;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Covers the package metadata the app list keeps in the app table (see
+ * Rule.getRules).
+ */
+@RunWith(RobolectricTestRunner.class)
+public class DatabaseHelperAppTest {
+    @Test
+    public void metadataIsStoredAndReplacedPerPackage() {
+        DatabaseHelper dh = DatabaseHelper.getInstance(RuntimeEnvironment.getApplication());
+        dh.clearApps();
+
+        dh.addApps(Arrays.asList(
+                app("com.example.one", 1, 1000L, "One"),
+                app("com.example.two", 7, 2000L, "Two")));
+        Map<String, AppMetadata> apps = dh.getApps();
+        assertEquals(2, apps.size());
+        AppMetadata one = apps.get("com.example.one");
+        assertEquals("One", one.label);
+        assertTrue(one.internet);
+        assertFalse(one.system);
+        assertTrue(one.isCurrent(1, 1000L));
+        assertFalse("an update invalidates the metadata", one.isCurrent(1, 1001L));
+        assertFalse(one.isCurrent(2, 1000L));
+
+        // A newer version replaces the row rather than adding one
+        dh.addApps(Collections.singletonList(app("com.example.one", 2, 3000L, "One 2")));
+        apps = dh.getApps();
+        assertEquals(2, apps.size());
+        assertEquals("One 2", apps.get("com.example.one").label);
+        assertTrue(apps.get("com.example.one").isCurrent(2, 3000L));
+
+        dh.deleteApp("com.example.two");
+        apps = dh.getApps();
+        assertNull(apps.get("com.example.two"));
+        assertEquals(1, apps.size());
+    }
+
+    private static AppMetadata app(String packageName, long versionCode, long lastUpdateTime, String label) {
+        AppMetadata app = new AppMetadata();
+        app.packageName = packageName;
+        app.versionCode = versionCode;
+        app.lastUpdateTime = lastUpdateTime;
+        app.label = label;
+        app.internet = true;
+        app.enabled = true;
+        return app;
+    }
+}
@@ -1,6 +1,7 @@
 package eu.faircode.netguard;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 import android.database.Cursor;
@@ -10,12 +11,15 @@ import org.junit.runner.RunWith;
 import org.robolectric.RobolectricTestRunner;
 import org.robolectric.RuntimeEnvironment;
 
+import java.util.Arrays;
+import java.util.List;
+
 /**
- * Covers getQAName's ordering: when a shared IP carries DNS evidence for
+ * Covers getQARecords' ordering: when a shared IP carries DNS evidence for
  * several qnames (see issue #655), the most recently observed qname should
  * be attributed first rather than the alphabetically-first one, and a qname
  * with several observed rows (e.g. distinct CNAME targets) should collapse
- * to its single freshest row.
+ * to its single freshest record.
  */
 @RunWith(RobolectricTestRunner.class)
 public class DatabaseHelperDnsAttributionTest {
@@ -32,13 +36,10 @@ public class DatabaseHelperDnsAttributionTest {
         dh.insertDns(rr(NOW - 2_000L, "aaa-old.example.com", "aaa-old.example.com", ip, 3600));
         dh.insertDns(rr(NOW - 1_000L, "zzz-new.example.com", "zzz-new.example.com", ip, 3600));
 
-        try (Cursor c = dh.getQAName(-1, ip)) {
-            assertEquals(2, c.getCount());
-            assertTrue(c.moveToFirst());
-            assertEquals("zzz-new.example.com", c.getString(c.getColumnIndexOrThrow("qname")));
-            assertTrue(c.moveToNext());
-            assertEquals("aaa-old.example.com", c.getString(c.getColumnIndexOrThrow("qname")));
-        }
+        List<DnsIndex.Record> records = dh.getQARecords(ip);
+        assertEquals(2, records.size());
+        assertEquals("zzz-new.example.com", records.get(0).qname);
+        assertEquals("aaa-old.example.com", records.get(1).qname);
     }
 
     @Test
@@ -51,14 +52,12 @@ public class DatabaseHelperDnsAttributionTest {
         dh.insertDns(rr(NOW - 5_000L, "tracker.example.com", "old-cname.example.com", ip, 3600));
         dh.insertDns(rr(NOW - 1_000L, "tracker.example.com", "new-cname.example.com", ip, 3600));
 
-        try (Cursor c = dh.getQAName(-1, ip)) {
-            assertEquals("duplicate rows for the same qname must collapse to one", 1, c.getCount());
-            assertTrue(c.moveToFirst());
-            assertEquals("tracker.example.com", c.getString(c.getColumnIndexOrThrow("qname")));
-            assertEquals("the freshest row's aname should win",
-                    "new-cname.example.com", c.getString(c.getColumnIndexOrThrow("aname")));
-            assertEquals(NOW - 1_000L, c.getLong(c.getColumnIndexOrThrow("time")));
-        }
+        List<DnsIndex.Record> records = dh.getQARecords(ip);
+        assertEquals("duplicate rows for the same qname must collapse to one", 1, records.size());
+        assertEquals("tracker.example.com", records.get(0).qname);
+        assertEquals("the freshest row's aname should win",
+                "new-cname.example.com", records.get(0).aname);
+        assertEquals(NOW - 1_000L, records.get(0).time);
     }
 
     @Test
@@ -70,13 +69,11 @@ public class DatabaseHelperDnsAttributionTest {
         dh.insertDns(rr(NOW - 5_000L, "Graph.Facebook.Com", "Alias.Example.Com", ip, 3600));
         dh.insertDns(rr(NOW - 1_000L, "graph.facebook.com", "alias.example.com", ip, 3600));
 
-        try (Cursor c = dh.getQAName(-1, ip)) {
-            assertEquals("case variants must share one stored qname", 1, c.getCount());
-            assertTrue(c.moveToFirst());
-            assertEquals("graph.facebook.com", c.getString(c.getColumnIndexOrThrow("qname")));
-            assertEquals("alias.example.com", c.getString(c.getColumnIndexOrThrow("aname")));
-            assertEquals(NOW - 1_000L, c.getLong(c.getColumnIndexOrThrow("time")));
-        }
+        List<DnsIndex.Record> records = dh.getQARecords(ip);
+        assertEquals("case variants must share one stored qname", 1, records.size());
+        assertEquals("graph.facebook.com", records.get(0).qname);
+        assertEquals("alias.example.com", records.get(0).aname);
+        assertEquals(NOW - 1_000L, records.get(0).time);
     }
 
     @Test
@@ -99,11 +96,12 @@ public class DatabaseHelperDnsAttributionTest {
                         + (now - 5_000) + ", 't2.example.com', 'expired-cname.example.com', '"
                         + ip + "', 1000)");
 
-        try (Cursor c = dh.getQAName(-1, ip)) {
-            assertEquals(1, c.getCount());
-            assertTrue(c.moveToFirst());
-            assertEquals("alive-cname.example.com", c.getString(c.getColumnIndexOrThrow("aname")));
-        }
+        // The rows bypassed the index, so load them as on a restart
+        dh.reloadDnsIndex();
+
+        List<DnsIndex.Record> records = dh.getQARecords(ip);
+        assertEquals(1, records.size());
+        assertEquals("alive-cname.example.com", records.get(0).aname);
     }
 
     /**
@@ -131,11 +129,91 @@ public class DatabaseHelperDnsAttributionTest {
                         + (now - 5_000) + ", 'expired.example.com', 'expired.example.com', '"
                         + ip + "', 1000)");
 
-        try (Cursor c = dh.getQAName(-1, ip)) {
-            assertEquals("an expired qname must not count towards shared-IP", 1, c.getCount());
+        // The rows bypassed the index, so load them as on a restart
+        dh.reloadDnsIndex();
+
+        List<DnsIndex.Record> records = dh.getQARecords(ip);
+        assertEquals("an expired qname must not count towards shared-IP", 1, records.size());
+        assertEquals("alive.example.com", records.get(0).qname);
+    }
+
+    @Test
+    public void inMemoryRecordsFollowInsertsAndClear() {
+        DatabaseHelper dh = DatabaseHelper.getInstance(RuntimeEnvironment.getApplication());
+        dh.clearDns();
+
+        String ip = "203.0.113.50";
+        dh.insertDns(rr(NOW - 2_000L, "Old.Example.Com", "old.example.com", ip, 3600));
+        dh.insertDns(rr(NOW - 1_000L, "new.example.com", "cdn.example.net", ip, 3600));
+
+        List<DnsIndex.Record> records = dh.getQARecords(ip);
+        assertEquals(2, records.size());
+        assertEquals("new.example.com", records.get(0).qname);
+        assertEquals("cdn.example.net", records.get(0).aname);
+        assertEquals("old.example.com", records.get(1).qname);
+
+        dh.clearDns();
+        assertTrue(dh.getQARecords(ip).isEmpty());
+    }
+
+    @Test
+    public void batchedInsertsShareRowsWithSingleInserts() {
+        DatabaseHelper dh = DatabaseHelper.getInstance(RuntimeEnvironment.getApplication());
+        dh.clearDns();
+
+        String ip = "203.0.113.70";
+        dh.insertDns(rr(NOW - 3_000L, "a.example.com", "a.example.com", ip, 3600));
+        assertEquals(2, dh.insertDns(Arrays.asList(
+                rr(NOW - 1_000L, "A.Example.Com", "a.example.com", ip, 3600),
+                rr(NOW - 2_000L, "b.example.com", "b.example.com", ip, 3600))));
+
+        List<DnsIndex.Record> records = dh.getQARecords(ip);
+        assertEquals(2, records.size());
+        assertEquals("a.example.com", records.get(0).qname);
+        assertEquals(NOW - 1_000L, records.get(0).time);
+
+        // The table holds the same rows as the index
+        dh.reloadDnsIndex();
+        records = dh.getQARecords(ip);
+        assertEquals(2, records.size());
+        assertEquals("a.example.com", records.get(0).qname);
+        assertEquals(NOW - 1_000L, records.get(0).time);
+    }
+
+    @Test
+    public void boundLookupsHandleQuotesAndRepeatedCalls() {
+        DatabaseHelper dh = DatabaseHelper.getInstance(RuntimeEnvironment.getApplication());
+        dh.clearDns();
+
+        String ip = "203.0.113.60";
+        dh.insertDns(rr(NOW - 1_000L, "b.example.com", "b.example.com", ip, 3600));
+        dh.insertDns(rr(NOW - 2_000L, "a.example.com", "a.example.com", ip, 3600));
+
+        // The pooled statement is reused with fresh bindings on each call
+        assertEquals("a.example.com", dh.getQName(-1, ip));
+        assertEquals("a.example.com", dh.getQName(-1, ip));
+        assertNull(dh.getQName(-1, "203.0.113.61' OR '1'='1"));
+
+        assertTrue(dh.getQARecords("203.0.113.61' OR '1'='1").isEmpty());
+        try (Cursor c = dh.getAName("B.Example.Com", true)) {
             assertTrue(c.moveToFirst());
-            assertEquals("alive.example.com", c.getString(c.getColumnIndexOrThrow("qname")));
+            assertEquals("b.example.com", c.getString(c.getColumnIndexOrThrow("aname")));
         }
+        assertTrue(dh.getQueryStats().contains("getQName calls="));
+    }
+
+    @Test
+    public void pooledLookupsSurviveClose() {
+        DatabaseHelper dh = DatabaseHelper.getInstance(RuntimeEnvironment.getApplication());
+        dh.clearDns();
+
+        String ip = "203.0.113.80";
+        dh.insertDns(rr(NOW - 1_000L, "c.example.com", "c.example.com", ip, 3600));
+        assertEquals("c.example.com", dh.getQName(-1, ip));
+
+        // The pooled statements are closed, and compiled again on next use
+        dh.close();
+        assertEquals("c.example.com", dh.getQName(-1, ip));
     }
 
     private static ResourceRecord rr(long time, String qname, String aname, String resource, int ttl) {
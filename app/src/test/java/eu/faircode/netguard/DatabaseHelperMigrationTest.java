@@ -44,9 +44,9 @@ public class DatabaseHelperMigrationTest {
                 + "VALUES (1001, 4, 6, 'tracker.example', 443, 123456, 0, 1, 10, 20, 3)");
         database.setVersion(21);
 
-        helper.onUpgrade(database, 21, 23);
+        helper.onUpgrade(database, 21, 26);
 
-        assertEquals(23, database.getVersion());
+        assertEquals(26, database.getVersion());
         assertTrue(columnExists("access", "uncertain"));
         try (Cursor cursor = database.rawQuery("SELECT * FROM access WHERE uid = 1001", null)) {
             assertTrue(cursor.moveToFirst());
@@ -74,14 +74,18 @@ public class DatabaseHelperMigrationTest {
                 + "VALUES (654321, 'example.org', 'alias.example.org', '1.2.3.4', 60)");
         database.setVersion(16);
 
-        helper.onUpgrade(database, 16, 23);
+        helper.onUpgrade(database, 16, 26);
 
-        assertEquals(23, database.getVersion());
+        assertEquals(26, database.getVersion());
         assertTrue(columnExists("access", "sent"));
         assertTrue(columnExists("access", "received"));
         assertTrue(columnExists("access", "connections"));
         assertTrue(columnExists("access", "uncertain"));
         assertTrue(tableExists("app"));
+        assertTrue(columnExists("app", "version"));
+        assertTrue(columnExists("app", "updated"));
+        assertTrue(tableExists("tracker"));
+        assertTrue(tableExists("insights"));
         assertTrue(indexExists("idx_access_block"));
         assertTrue(indexExists("idx_access_daddr"));
         assertTrue(indexExists("idx_dns_resource"));
@@ -112,9 +116,9 @@ public class DatabaseHelperMigrationTest {
                 + "VALUES (5000, 'graph.facebook.com', 'alias.example.com', '203.0.113.25', 60)");
         database.setVersion(22);
 
-        helper.onUpgrade(database, 22, 23);
+        helper.onUpgrade(database, 22, 26);
 
-        assertEquals(23, database.getVersion());
+        assertEquals(26, database.getVersion());
         try (Cursor cursor = database.rawQuery("SELECT qname, aname, resource, time FROM dns", null)) {
             assertEquals(1, cursor.getCount());
             assertTrue(cursor.moveToFirst());
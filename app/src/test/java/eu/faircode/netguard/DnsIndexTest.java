@@ -0,0 +1,216 @@
+package eu.faircode.netguard;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * The index attributes an address for DatabaseHelper.getQARecords() (see
+ * DatabaseHelperDnsAttributionTest), which blockKnownTracker() and the traffic
+ * log both read.
+ */
+public class DnsIndexTest {
+    private static final long NOW = 1_700_000_000_000L;
+    private static final long HOUR = 3600 * 1000L;
+
+    @Test
+    public void mostRecentlyObservedQnameIsReturnedFirst() {
+        DnsIndex index = new DnsIndex();
+        index.put("203.0.113.10", "aaa-old.example.com", "aaa-old.example.com", NOW - 2_000L, HOUR);
+        index.put("203.0.113.10", "zzz-new.example.com", "zzz-new.example.com", NOW - 1_000L, HOUR);
+
+        List<DnsIndex.Record> records = index.lookup("203.0.113.10", NOW);
+        assertEquals(2, records.size());
+        assertEquals("zzz-new.example.com", records.get(0).qname);
+        assertEquals("aaa-old.example.com", records.get(1).qname);
+    }
+
+    @Test
+    public void repeatedObservationsOfSameQnameCollapseToFreshestRecord() {
+        DnsIndex index = new DnsIndex();
+        index.put("203.0.113.20", "tracker.example.com", "old-cname.example.com", NOW - 5_000L, HOUR);
+        index.put("203.0.113.20", "tracker.example.com", "new-cname.example.com", NOW - 1_000L, HOUR);
+
+        List<DnsIndex.Record> records = index.lookup("203.0.113.20", NOW);
+        assertEquals(1, records.size());
+        assertEquals("new-cname.example.com", records.get(0).aname);
+        assertEquals(NOW - 1_000L, records.get(0).time);
+    }
+
+    @Test
+    public void resolvingAgainRefreshesTheRecord() {
+        DnsIndex index = new DnsIndex();
+        index.put("203.0.113.21", "a.example.com", "a.example.com", NOW - 5_000L, 1_000L);
+        assertTrue(index.lookup("203.0.113.21", NOW).isEmpty());
+
+        index.put("203.0.113.21", "a.example.com", "a.example.com", NOW - 1_000L, HOUR);
+        List<DnsIndex.Record> records = index.lookup("203.0.113.21", NOW);
+        assertEquals(1, records.size());
+        assertEquals(NOW - 1_000L + HOUR, records.get(0).time + records.get(0).ttl);
+    }
+
+    @Test
+    public void refreshingTheFreshestRecordLeavesAttributionAsItWas() {
+        DnsIndex index = new DnsIndex();
+        assertTrue(index.put("203.0.113.22", "a.example.com", "a.example.com", NOW - 3_000L, HOUR));
+        assertTrue(index.put("203.0.113.22", "b.example.com", "b.example.com", NOW - 2_000L, HOUR));
+
+        // b is already first
+        assertFalse(index.put("203.0.113.22", "b.example.com", "b.example.com", NOW - 1_000L, HOUR));
+        // a moves ahead of b
+        assertTrue(index.put("203.0.113.22", "a.example.com", "a.example.com", NOW, HOUR));
+        // An expired record coming back changes the attribution as well
+        assertTrue(index.put("203.0.113.23", "c.example.com", null, NOW - 5_000L, 1_000L));
+        assertTrue(index.put("203.0.113.23", "c.example.com", null, NOW, HOUR));
+    }
+
+    @Test
+    public void aliveFilterAppliesBeforeDedup() {
+        DnsIndex index = new DnsIndex();
+        index.put("203.0.113.30", "t2.example.com", "alive-cname.example.com", NOW - 10_000L, HOUR);
+        index.put("203.0.113.30", "t2.example.com", "expired-cname.example.com", NOW - 5_000L, 1_000L);
+
+        List<DnsIndex.Record> records = index.lookup("203.0.113.30", NOW);
+        assertEquals(1, records.size());
+        assertEquals("alive-cname.example.com", records.get(0).aname);
+    }
+
+    @Test
+    public void expiredQnameDoesNotMakeAddressLookShared() {
+        DnsIndex index = new DnsIndex();
+        index.put("203.0.113.40", "expired.example.com", null, NOW - 10_000L, 1_000L);
+        index.put("203.0.113.40", "alive.example.com", null, NOW - 1_000L, HOUR);
+
+        List<DnsIndex.Record> records = index.lookup("203.0.113.40", NOW);
+        assertEquals(1, records.size());
+        assertEquals("alive.example.com", records.get(0).qname);
+
+        index.purge(NOW);
+        assertEquals(1, index.lookup("203.0.113.40", NOW).size());
+        index.purge(NOW + 2 * HOUR);
+        assertEquals(0, index.size());
+    }
+
+    @Test
+    public void tiesGoToTheLaterObservation() {
+        DnsIndex index = new DnsIndex();
+        index.put("203.0.113.50", "b.example.com", null, NOW, HOUR);
+        index.put("203.0.113.50", "a.example.com", null, NOW, HOUR);
+
+        List<DnsIndex.Record> records = index.lookup("203.0.113.50", NOW);
+        assertEquals("a.example.com", records.get(0).qname);
+        assertEquals("b.example.com", records.get(1).qname);
+    }
+
+    @Test
+    public void unknownAddressIsKnownEmptyUntilSomethingIsEvicted() {
+        DnsIndex index = new DnsIndex(2);
+        assertEquals(Collections.emptyList(), index.lookup("192.0.2.1", NOW));
+
+        index.put("192.0.2.1", "one.example.com", null, NOW, HOUR);
+        index.put("192.0.2.2", "two.example.com", null, NOW, HOUR);
+        // Touch the first address, so the second is least recently used
+        assertNotNull(index.lookup("192.0.2.1", NOW));
+        index.put("192.0.2.3", "three.example.com", null, NOW, HOUR);
+
+        assertFalse(index.isComplete());
+        assertEquals(2, index.size());
+        assertEquals(1, index.lookup("192.0.2.1", NOW).size());
+        assertNull(index.lookup("192.0.2.2", NOW));
+        assertNull(index.lookup("192.0.2.9", NOW));
+
+        // What the caller read from the table is known for the address
+        index.merge("192.0.2.2", Arrays.asList(
+                new DnsIndex.Record("two.example.com", null, NOW, HOUR, 0)));
+        assertEquals("two.example.com", index.lookup("192.0.2.2", NOW).get(0).qname);
+        index.merge("192.0.2.9", Collections.<DnsIndex.Record>emptyList());
+        assertTrue(index.lookup("192.0.2.9", NOW).isEmpty());
+
+        index.clear(true);
+        assertTrue(index.isComplete());
+        assertTrue(index.lookup("192.0.2.2", NOW).isEmpty());
+    }
+
+    @Test
+    public void rowsReadFromTheTableDoNotOverrideNewerResolutions() {
+        DnsIndex index = new DnsIndex();
+        // Resolved while the rows were being read
+        index.put("192.0.2.4", "tracker.example.com", "new-cname.example.com", NOW, HOUR);
+        index.merge("192.0.2.4", Arrays.asList(
+                new DnsIndex.Record("old.example.com", null, NOW - 2_000L, HOUR, 0),
+                new DnsIndex.Record("tracker.example.com", "new-cname.example.com", NOW - 1_000L, HOUR, 0)));
+
+        List<DnsIndex.Record> records = index.lookup("192.0.2.4", NOW);
+        assertEquals(2, records.size());
+        assertEquals("tracker.example.com", records.get(0).qname);
+        assertEquals(NOW, records.get(0).time);
+        assertEquals("old.example.com", records.get(1).qname);
+    }
+
+    @Test
+    public void restoreKeepsWhatWasIndexedMeanwhile() {
+        DnsIndex index = new DnsIndex(2);
+        index.put("192.0.2.1", "live.example.com", null, NOW, HOUR);
+        index.put("192.0.2.1", "both.example.com", null, NOW, HOUR);
+
+        DnsIndex restored = new DnsIndex();
+        restored.put("192.0.2.1", "both.example.com", null, NOW - 5_000L, HOUR);
+        restored.put("192.0.2.1", "table.example.com", null, NOW - 4_000L, HOUR);
+        restored.put("192.0.2.2", "two.example.com", null, NOW - 3_000L, HOUR);
+        index.restore(restored);
+
+        assertTrue(index.isComplete());
+        List<DnsIndex.Record> records = index.lookup("192.0.2.1", NOW);
+        assertEquals(3, records.size());
+        assertEquals(NOW, records.get(0).time);
+        assertEquals(NOW, records.get(1).time);
+        assertEquals("table.example.com", records.get(2).qname);
+        assertEquals(1, index.lookup("192.0.2.2", NOW).size());
+        assertTrue(index.lookup("192.0.2.9", NOW).isEmpty());
+
+        // The live address stays the most recently used, so an address of the
+        // table is evicted first
+        restored.put("192.0.2.3", "three.example.com", null, NOW - 2_000L, HOUR);
+        index = new DnsIndex(2);
+        index.put("192.0.2.1", "live.example.com", null, NOW, HOUR);
+        index.restore(restored);
+        assertFalse(index.isComplete());
+        assertEquals(2, index.size());
+        assertEquals("live.example.com", index.lookup("192.0.2.1", NOW).get(0).qname);
+    }
+
+    @Test
+    public void recordsOfAnAddressAreBounded() {
+        DnsIndex index = new DnsIndex();
+        for (int i = 0; i <= DnsIndex.MAX_RECORDS; i++)
+            index.put("198.51.100.1", "host" + i + ".example.com", null, NOW + i, HOUR);
+
+        List<DnsIndex.Record> records = index.lookup("198.51.100.1", NOW);
+        assertEquals(DnsIndex.MAX_RECORDS, records.size());
+        assertEquals("host" + DnsIndex.MAX_RECORDS + ".example.com", records.get(0).qname);
+        assertEquals("host1.example.com", records.get(records.size() - 1).qname);
+    }
+
+    @Test
+    public void findsTheAddressesOfNames() {
+        DnsIndex index = new DnsIndex();
+        index.put("192.0.2.1", "site.example.com", "cdn.example.net", NOW, HOUR);
+        index.put("192.0.2.2", "tracker.example.com", null, NOW, HOUR);
+        index.put("192.0.2.3", "other.example.com", null, NOW, HOUR);
+        index.put("192.0.2.4", "tracker.example.com", null, NOW - 2 * HOUR, HOUR);
+
+        List<String> addresses = index.getAddresses(
+                new HashSet<>(Arrays.asList("cdn.example.net", "tracker.example.com")), NOW);
+        Collections.sort(addresses);
+        assertEquals(Arrays.asList("192.0.2.1", "192.0.2.2"), addresses);
+    }
+}
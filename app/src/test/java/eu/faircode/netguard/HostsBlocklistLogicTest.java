@@ -5,42 +5,88 @@ import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import org.junit.After;
+import org.junit.Before;
 import org.junit.Test;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.Reader;
 import java.io.StringReader;
-import java.util.HashMap;
-import java.util.Map;
+import java.nio.file.Files;
 
 public class HostsBlocklistLogicTest {
+    private File dir;
+    private File compiled;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("hosts").toFile();
+        compiled = new File(dir, "hosts.bin");
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = dir.listFiles();
+        if (files != null)
+            for (File file : files)
+                file.delete();
+        dir.delete();
+    }
+
     @Test
     public void failedParseDoesNotPinPartialMapAtNewMtime() throws Exception {
-        Map<String, Boolean> hosts = new HashMap<>();
-        HostsBlocklistLogic.State state = new HostsBlocklistLogic.State(hosts, 10L);
+        HostsBlocklistLogic.State state = new HostsBlocklistLogic.State(HostsBlocklist.EMPTY, 10L);
 
         try {
-            state.load(new FailingReader(), 20L);
+            state.load(FailingReader::new, compiled, 20L);
             fail("Expected the parse to fail");
         } catch (IOException expected) {
-            // The partial entry remains, matching the service's failure behavior.
+            // Nothing is published from a failed compile.
         }
 
         assertEquals(10L, state.getLastModified());
         assertTrue(state.shouldReload(20L));
-        assertTrue(hosts.containsKey("first.example"));
+        assertEquals(0, state.getBlocklist().size());
+        assertFalse(compiled.exists());
 
-        assertTrue(state.load(new StringReader(
-                "1.1.1.1 first.example\n2.2.2.2 second.example\n"), 20L));
+        assertTrue(state.load(() -> new StringReader(
+                "1.1.1.1 first.example\n2.2.2.2 second.example\n"), compiled, 20L));
         assertEquals(20L, state.getLastModified());
+        HostsBlocklist hosts = state.getBlocklist();
         assertEquals(3, hosts.size());
-        assertTrue(hosts.containsKey("first.example"));
-        assertTrue(hosts.containsKey("second.example"));
-        assertTrue(hosts.containsKey("test.netguard.me"));
+        assertTrue(hosts.contains("first.example"));
+        assertTrue(hosts.contains("second.example"));
+        assertTrue(hosts.contains("test.netguard.me"));
+        assertEquals(3, state.getDiff().added);
 
-        assertFalse(state.load(new FailingReader(), 20L));
+        assertFalse(state.load(FailingReader::new, compiled, 20L));
         assertEquals(20L, state.getLastModified());
-        assertEquals(3, hosts.size());
+        assertEquals(3, state.getBlocklist().size());
+    }
+
+    @Test
+    public void currentCompiledFileIsReusedWithoutReadingSource() throws Exception {
+        HostsBlocklist.compile(new StringReader("0.0.0.0 ads.example\n"), compiled, 30L);
+
+        HostsBlocklistLogic.State state = new HostsBlocklistLogic.State(HostsBlocklist.EMPTY, 0L);
+        assertTrue(state.load(FailingReader::new, compiled, 30L));
+        assertEquals(30L, state.getLastModified());
+        assertTrue(state.getBlocklist().contains("ads.example"));
+    }
+
+    @Test
+    public void unchangedRecompileHasEmptyDiff() throws Exception {
+        HostsBlocklistLogic.State state = new HostsBlocklistLogic.State(HostsBlocklist.EMPTY, 0L);
+        assertTrue(state.load(() -> new StringReader("0.0.0.0 ads.example\n"), compiled, 1L));
+
+        // Same content downloaded again, with a new modification time
+        assertTrue(state.load(() -> new StringReader("0.0.0.0 ads.example\n"), compiled, 2L));
+        assertTrue(state.getDiff().isEmpty());
+
+        assertTrue(state.load(() -> new StringReader("0.0.0.0 other.example\n"), compiled, 3L));
+        assertEquals(1, state.getDiff().added);
+        assertEquals(1, state.getDiff().removed);
     }
 
     private static final class FailingReader extends Reader {
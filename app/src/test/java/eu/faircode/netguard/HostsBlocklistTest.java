@@ -0,0 +1,145 @@
+package eu.faircode.netguard;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+
+public class HostsBlocklistTest {
+    private File dir;
+    private File compiled;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("hosts").toFile();
+        compiled = new File(dir, "hosts.bin");
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = dir.listFiles();
+        if (files != null)
+            for (File file : files)
+                file.delete();
+        dir.delete();
+    }
+
+    @Test
+    public void compilesHostsFileLines() throws Exception {
+        String hosts = "# comment\n"
+                + "0.0.0.0 ads.example # trailing comment\n"
+                + "127.0.0.1\tTracker.Example\n"
+                + "  0.0.0.0   spaced.example  \n"
+                + "\n"
+                + "0.0.0.0 two.example three.example\n"
+                + "single.example\n"
+                + "0.0.0.0 ads.example\n"
+                + "0.0.0.0 bücher.example\n";
+
+        int read = HostsBlocklist.compile(new StringReader(hosts), compiled, 1L);
+        assertEquals(4, read);
+
+        HostsBlocklist blocklist = HostsBlocklist.open(compiled, 1L);
+        assertNotNull(blocklist);
+        // Duplicates are dropped, the test host is always present
+        assertEquals(4, blocklist.size());
+        assertTrue(blocklist.contains("ads.example"));
+        assertTrue(blocklist.contains("tracker.example"));
+        assertTrue(blocklist.contains("spaced.example"));
+        assertTrue(blocklist.contains("test.netguard.me"));
+
+        assertFalse(blocklist.contains("Tracker.Example"));
+        assertFalse(blocklist.contains("two.example"));
+        assertFalse(blocklist.contains("single.example"));
+        assertFalse(blocklist.contains("example"));
+        assertFalse(blocklist.contains("sub.ads.example"));
+        assertFalse(blocklist.contains("ads.exampl"));
+        assertFalse(blocklist.contains(""));
+    }
+
+    @Test
+    public void staleCompileIsRejected() throws Exception {
+        HostsBlocklist.compile(new StringReader("0.0.0.0 ads.example\n"), compiled, 1L);
+
+        assertNull(HostsBlocklist.open(compiled, 2L));
+        assertNull(HostsBlocklist.open(new File(dir, "missing.bin"), 1L));
+        assertNotNull(HostsBlocklist.open(compiled, 1L));
+    }
+
+    @Test
+    public void recompileReplacesPreviousFile() throws Exception {
+        HostsBlocklist.compile(new StringReader("0.0.0.0 old.example\n"), compiled, 1L);
+        HostsBlocklist old = HostsBlocklist.open(compiled, 1L);
+
+        HostsBlocklist.compile(new StringReader("0.0.0.0 new.example\n"), compiled, 2L);
+        HostsBlocklist current = HostsBlocklist.open(compiled, 2L);
+
+        assertNotNull(current);
+        assertTrue(current.contains("new.example"));
+        assertFalse(current.contains("old.example"));
+        // An existing mapping keeps serving lookups until it is swapped out
+        assertTrue(old.contains("old.example"));
+
+        String[] files = dir.list();
+        assertEquals(1, files.length);
+    }
+
+    @Test
+    public void diffCountsAddedAndRemovedHosts() throws Exception {
+        HostsBlocklist.compile(new StringReader(
+                "0.0.0.0 a.example\n0.0.0.0 b.example\n0.0.0.0 c.example\n"), compiled, 1L);
+        HostsBlocklist previous = HostsBlocklist.open(compiled, 1L);
+        HostsBlocklist.compile(new StringReader(
+                "0.0.0.0 b.example\n0.0.0.0 c.example\n0.0.0.0 c.example.net\n0.0.0.0 d.example\n"),
+                compiled, 2L);
+        HostsBlocklist current = HostsBlocklist.open(compiled, 2L);
+
+        HostsBlocklist.Diff diff = current.diff(previous);
+        assertEquals(2, diff.added);
+        assertEquals(1, diff.removed);
+        assertEquals(new HashSet<>(Arrays.asList("c.example.net", "d.example")), diff.addedHosts);
+        assertEquals(Collections.singleton("a.example"), diff.removedHosts);
+        assertEquals(new HashSet<>(Arrays.asList("a.example", "c.example.net", "d.example")),
+                diff.getHosts());
+
+        assertTrue(current.diff(current).isEmpty());
+
+        diff = current.diff(HostsBlocklist.EMPTY);
+        assertEquals(current.size(), diff.added);
+        assertEquals(0, diff.removed);
+        assertEquals(current.size(), diff.addedHosts.size());
+    }
+
+    @Test
+    public void diffOfManyHostsOnlyCountsThem() throws Exception {
+        StringBuilder hosts = new StringBuilder();
+        for (int i = 0; i <= HostsBlocklist.Diff.MAX_HOSTS; i++)
+            hosts.append("0.0.0.0 host").append(i).append(".example\n");
+        HostsBlocklist.compile(new StringReader(hosts.toString()), compiled, 1L);
+        HostsBlocklist current = HostsBlocklist.open(compiled, 1L);
+
+        HostsBlocklist.Diff diff = current.diff(HostsBlocklist.EMPTY);
+        assertEquals(current.size(), diff.added);
+        assertFalse(diff.isComplete());
+        assertNull(diff.getHosts());
+    }
+
+    @Test
+    public void emptyBlocklistMatchesNothing() {
+        assertEquals(0, HostsBlocklist.EMPTY.size());
+        assertFalse(HostsBlocklist.EMPTY.contains("test.netguard.me"));
+    }
+}
@@ -0,0 +1,41 @@
+package eu.faircode.netguard;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class IPUtilTest {
+    @Test
+    public void packsIPv4AsMappedIPv6() {
+        long[] ipv4 = new long[2];
+        long[] mapped = new long[2];
+        assertTrue(IPUtil.pack("192.0.2.1", ipv4));
+        assertTrue(IPUtil.pack("::ffff:192.0.2.1", mapped));
+        assertArrayEquals(ipv4, mapped);
+        assertArrayEquals(new long[]{0, 0xFFFFC0000201L}, ipv4);
+
+        long[] ipv6 = new long[2];
+        assertTrue(IPUtil.pack("2001:db8::1", ipv6));
+        assertArrayEquals(new long[]{0x20010DB800000000L, 1}, ipv6);
+        assertTrue(IPUtil.pack("2001:db8:0:0:0:0:0:1", mapped));
+        assertArrayEquals(ipv6, mapped);
+        assertTrue(IPUtil.pack("fe80::1%wlan0", ipv6));
+        assertArrayEquals(new long[]{0xFE80000000000000L, 1}, ipv6);
+        assertTrue(IPUtil.pack("::", ipv6));
+        assertArrayEquals(new long[]{0, 0}, ipv6);
+        assertTrue(IPUtil.pack("1::", ipv6));
+        assertArrayEquals(new long[]{0x0001000000000000L, 0}, ipv6);
+        assertTrue(IPUtil.pack("1:2:3:4:5:6:7::", ipv6));
+        assertArrayEquals(new long[]{0x0001000200030004L, 0x0005000600070000L}, ipv6);
+        assertTrue(IPUtil.pack("::2:3:4:5:6:7:8", ipv6));
+        assertArrayEquals(new long[]{0x0000000200030004L, 0x0005000600070008L}, ipv6);
+        assertTrue(IPUtil.pack("64:ff9b::192.0.2.1", ipv6));
+        assertArrayEquals(new long[]{0x0064FF9B00000000L, 0xC0000201L}, ipv6);
+
+        for (String invalid : new String[]{"", "example.com", "1.2.3", "1.2.3.256", "1.2.3.4.5",
+                "1::2::3", "1:2:3:4:5:6:7:8:9", "12345::", "1:2:", ":1", "::g"})
+            assertFalse(invalid, IPUtil.pack(invalid, ipv6));
+    }
+}
@@ -0,0 +1,123 @@
+package eu.faircode.netguard;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+
+public class LogRingTest {
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(4 * LogRing.RECORD_SIZE)
+            .order(ByteOrder.nativeOrder());
+    private final LogRing ring = new LogRing(buffer);
+
+    @Test
+    public void decodesPacketRecords() {
+        putPacket(0, LogRing.TYPE_VERDICT, 1700000000123L, 10050, 6, 4, "S",
+                "10.1.10.1", 40000, "142.250.1.1", 443, "tracker.example", false);
+        putPacket(1, LogRing.TYPE_PACKET, 1700000000456L, 0, 17, 6, "",
+                "fd00:1:fd00:1:fd00:1:fd00:1", 65535, "2001:db8::1", 53, "", true);
+
+        Packet packet = new Packet();
+        assertEquals(LogRing.TYPE_VERDICT, ring.getType(0));
+        assertTrue(ring.hasFlags(0));
+        ring.getPacket(0, packet, true);
+        assertEquals(1700000000123L, packet.time);
+        assertEquals(10050, packet.uid);
+        assertEquals(6, packet.protocol);
+        assertEquals(4, packet.version);
+        assertEquals("S", packet.flags);
+        assertEquals("10.1.10.1", packet.saddr);
+        assertEquals(40000, packet.sport);
+        assertEquals("142.250.1.1", packet.daddr);
+        assertEquals(443, packet.dport);
+        assertEquals("tracker.example", packet.data);
+        assertFalse(packet.allowed);
+
+        // The same object is filled in again for the next record
+        assertEquals(LogRing.TYPE_PACKET, ring.getType(1));
+        assertFalse(ring.hasFlags(1));
+        ring.getPacket(1, packet, false);
+        assertEquals(0, packet.uid);
+        assertEquals(17, packet.protocol);
+        assertEquals(6, packet.version);
+        assertNull(packet.flags);
+        assertNull(packet.saddr);
+        assertEquals(65535, packet.sport);
+        assertEquals("2001:db8::1", packet.daddr);
+        assertEquals("", packet.data);
+        assertTrue(packet.allowed);
+    }
+
+    @Test
+    public void decodesUsageRecords() {
+        int base = 2 * LogRing.RECORD_SIZE;
+        buffer.putLong(base + LogRing.OFFSET_TIME, 1700000000000L);
+        buffer.putLong(base + LogRing.OFFSET_SENT, 5_000_000_000L);
+        buffer.putLong(base + LogRing.OFFSET_RECEIVED, 42L);
+        buffer.putInt(base + LogRing.OFFSET_UID, 10050);
+        buffer.putShort(base + LogRing.OFFSET_DPORT, (short) 443);
+        buffer.put(base + LogRing.OFFSET_TYPE, (byte) LogRing.TYPE_USAGE);
+        buffer.put(base + LogRing.OFFSET_VERSION, (byte) 4);
+        buffer.put(base + LogRing.OFFSET_PROTOCOL, (byte) 6);
+        putString(base + LogRing.OFFSET_DADDR, "142.250.1.1");
+
+        Usage usage = new Usage();
+        assertEquals(LogRing.TYPE_USAGE, ring.getType(2));
+        ring.getUsage(2, usage);
+        assertEquals(1700000000000L, usage.Time);
+        assertEquals(5_000_000_000L, usage.Sent);
+        assertEquals(42L, usage.Received);
+        assertEquals(10050, usage.Uid);
+        assertEquals(443, usage.DPort);
+        assertEquals(4, usage.Version);
+        assertEquals(6, usage.Protocol);
+        assertEquals("142.250.1.1", usage.DAddr);
+    }
+
+    @Test
+    public void positionsWrapAroundTheRing() {
+        putPacket(3, LogRing.TYPE_PACKET, 1L, 10050, 17, 4, "",
+                "10.1.10.1", 1000, "192.0.2.1", 53, "qtype 1 qname a.example rcode 3", true);
+
+        Packet packet = new Packet();
+        ring.getPacket(7, packet, false);
+        assertEquals("192.0.2.1", packet.daddr);
+
+        // Free-running positions keep counting past the int range
+        ring.getPacket(Integer.MAX_VALUE, packet, false);
+        assertEquals("qtype 1 qname a.example rcode 3", packet.data);
+        ring.getPacket(Integer.MIN_VALUE + 3, packet, false);
+        assertEquals("192.0.2.1", packet.daddr);
+    }
+
+    private void putPacket(int index, int type, long time, int uid, int protocol,
+                           int version, String flags, String saddr, int sport,
+                           String daddr, int dport, String data, boolean allowed) {
+        int base = index * LogRing.RECORD_SIZE;
+        buffer.putLong(base + LogRing.OFFSET_TIME, time);
+        buffer.putInt(base + LogRing.OFFSET_UID, uid);
+        buffer.putShort(base + LogRing.OFFSET_SPORT, (short) sport);
+        buffer.putShort(base + LogRing.OFFSET_DPORT, (short) dport);
+        buffer.put(base + LogRing.OFFSET_TYPE, (byte) type);
+        buffer.put(base + LogRing.OFFSET_VERSION, (byte) version);
+        buffer.put(base + LogRing.OFFSET_PROTOCOL, (byte) protocol);
+        buffer.put(base + LogRing.OFFSET_ALLOWED, (byte) (allowed ? 1 : 0));
+        putString(base + LogRing.OFFSET_FLAGS, flags);
+        putString(base + LogRing.OFFSET_SADDR, saddr);
+        putString(base + LogRing.OFFSET_DADDR, daddr);
+        putString(base + LogRing.OFFSET_DATA, data);
+    }
+
+    private void putString(int offset, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        for (int i = 0; i < bytes.length; i++)
+            buffer.put(offset + i, bytes[i]);
+        buffer.put(offset + bytes.length, (byte) 0);
+    }
+}
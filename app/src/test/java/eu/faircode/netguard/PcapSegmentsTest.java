@@ -0,0 +1,145 @@
+package eu.faircode.netguard;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+public class PcapSegmentsTest {
+    private static final PcapSegments.Names NAMES =
+            uid -> (uid == 10123 ? "com.example.app" : null);
+
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("pcap").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = dir.listFiles();
+        if (files != null)
+            for (File file : files)
+                file.delete();
+        dir.delete();
+    }
+
+    @Test
+    public void listsSegmentsInWrittenOrder() throws IOException {
+        for (String name : new String[]{"netguard-000010.pcapng", "netguard-000009.pcapng",
+                "netguard-000100.pcapng", "netguard.pcap", "other.pcapng"})
+            assertTrue(new File(dir, name).createNewFile());
+
+        List<File> segments = PcapSegments.list(dir);
+        assertEquals(3, segments.size());
+        assertEquals("netguard-000009.pcapng", segments.get(0).getName());
+        assertEquals("netguard-000010.pcapng", segments.get(1).getName());
+        assertEquals("netguard-000100.pcapng", segments.get(2).getName());
+        assertTrue(PcapSegments.exists(dir));
+
+        assertTrue(PcapSegments.clear(dir));
+        assertFalse(PcapSegments.exists(dir));
+        assertTrue(new File(dir, "netguard.pcap").exists());
+    }
+
+    @Test
+    public void appendsPackagesToUidComments() throws IOException {
+        for (ByteOrder order : new ByteOrder[]{ByteOrder.LITTLE_ENDIAN, ByteOrder.BIG_ENDIAN}) {
+            byte[] data = {0x45, 0, 0, 20, 1};
+            byte[] segment = concat(section(order),
+                    packet(order, data, 10123),
+                    packet(order, data, 10999),
+                    packet(order, data, -1));
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            long total = PcapSegments.export(Arrays.asList(write("a", segment)), out, NAMES);
+            byte[] exported = out.toByteArray();
+            assertEquals(exported.length, total);
+
+            byte[] expected = concat(section(order),
+                    packet(order, data, "uid 10123 com.example.app"),
+                    packet(order, data, 10999),
+                    packet(order, data, -1));
+            assertArrayEquals(expected, exported);
+        }
+    }
+
+    @Test
+    public void concatenatesSegmentsAndStopsAtTruncatedBlocks() throws IOException {
+        ByteOrder order = ByteOrder.nativeOrder();
+        byte[] data = new byte[61];
+        byte[] first = concat(section(order), packet(order, data, -1));
+        byte[] second = concat(section(order), packet(order, data, -1));
+        byte[] truncated = Arrays.copyOf(packet(order, data, -1), 40);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PcapSegments.export(Arrays.asList(
+                write("a", concat(first, truncated)), write("b", second)), out, NAMES);
+        assertArrayEquals(concat(first, second), out.toByteArray());
+    }
+
+    private File write(String name, byte[] content) throws IOException {
+        File file = new File(dir, name);
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(content);
+        }
+        return file;
+    }
+
+    // The blocks pcapng.c writes
+
+    private static byte[] section(ByteOrder order) {
+        ByteBuffer bb = ByteBuffer.allocate(48).order(order);
+        bb.putInt(PcapSegments.BLOCK_SHB).putInt(28).putInt(PcapSegments.BYTE_ORDER)
+                .putShort((short) 1).putShort((short) 0).putLong(-1).putInt(28);
+        bb.putInt(1).putInt(20).putShort((short) 101).putShort((short) 0).putInt(64).putInt(20);
+        return bb.array();
+    }
+
+    private static byte[] packet(ByteOrder order, byte[] data, int uid) {
+        return packet(order, data, uid < 0 ? null : "uid " + uid);
+    }
+
+    private static byte[] packet(ByteOrder order, byte[] data, String comment) {
+        byte[] text = (comment == null ? new byte[0] : comment.getBytes(StandardCharsets.UTF_8));
+        int length = 28 + pad(data.length) + 8 + (comment == null ? 0 : 4 + pad(text.length)) + 8;
+        ByteBuffer bb = ByteBuffer.allocate(length).order(order);
+        bb.putInt(PcapSegments.BLOCK_EPB).putInt(length).putInt(0)
+                .putInt(0x00060A3F).putInt(0x12345678).putInt(data.length).putInt(1500);
+        bb.put(data).position(bb.position() + pad(data.length) - data.length);
+        bb.putShort((short) 2).putShort((short) 4).putInt(2);
+        if (comment != null) {
+            bb.putShort((short) PcapSegments.OPT_COMMENT).putShort((short) text.length).put(text);
+            bb.position(bb.position() + pad(text.length) - text.length);
+        }
+        bb.putShort((short) PcapSegments.OPT_END).putShort((short) 0).putInt(length);
+        return bb.array();
+    }
+
+    private static int pad(int length) {
+        return (length + 3) & ~3;
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts)
+            out.write(part, 0, part.length);
+        return out.toByteArray();
+    }
+}
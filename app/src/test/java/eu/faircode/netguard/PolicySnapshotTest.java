@@ -0,0 +1,82 @@
+package eu.faircode.netguard;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import net.kollnig.missioncontrol.data.BlockingModeLogic;
+
+import org.junit.Test;
+
+public class PolicySnapshotTest {
+    @Test
+    public void looksUpFlagsByUid() {
+        PolicySnapshot policy = new PolicySnapshot.Builder()
+                .addFlags(10050, PolicySnapshot.FLAG_KNOWN | PolicySnapshot.FLAG_TRACK)
+                .addFlags(1010050, PolicySnapshot.FLAG_KNOWN)
+                .addFlags(10001, PolicySnapshot.FLAG_KNOWN)
+                .build();
+
+        assertEquals(3, policy.size());
+        assertEquals(PolicySnapshot.FLAG_KNOWN | PolicySnapshot.FLAG_TRACK, policy.getFlags(10050));
+        assertEquals(PolicySnapshot.FLAG_KNOWN, policy.getFlags(1010050));
+        assertTrue(policy.isKnown(10001));
+        assertFalse(policy.isInternetBlocked(10001));
+
+        assertEquals(PolicySnapshot.NOT_FOUND, policy.getFlags(10002));
+        assertFalse(policy.isKnown(10002));
+        assertFalse(policy.isInternetBlocked(10002));
+    }
+
+    @Test
+    public void mergesFlagsOfRepeatedUids() {
+        PolicySnapshot policy = new PolicySnapshot.Builder()
+                .addFlags(10050, PolicySnapshot.FLAG_KNOWN | PolicySnapshot.FLAG_TRACK)
+                .addFlags(10060, PolicySnapshot.FLAG_INTERNET_BLOCKED)
+                .addFlags(10050, PolicySnapshot.FLAG_INTERNET_BLOCKED)
+                .addFlags(10050, PolicySnapshot.FLAG_KNOWN)
+                .build();
+
+        assertEquals(2, policy.size());
+        assertEquals(PolicySnapshot.FLAG_KNOWN | PolicySnapshot.FLAG_TRACK
+                | PolicySnapshot.FLAG_INTERNET_BLOCKED, policy.getFlags(10050));
+        // Blocked without a rule: not known, so tracking is resolved elsewhere
+        assertTrue(policy.isInternetBlocked(10060));
+        assertFalse(policy.isKnown(10060));
+    }
+
+    @Test
+    public void growsBeyondInitialCapacity() {
+        PolicySnapshot.Builder builder = new PolicySnapshot.Builder();
+        for (int uid = 20000; uid > 10000; uid -= 10)
+            builder.addFlags(uid, PolicySnapshot.FLAG_KNOWN);
+        builder.addFlags(-1, PolicySnapshot.FLAG_INTERNET_BLOCKED);
+        PolicySnapshot policy = builder.build();
+
+        assertEquals(1001, policy.size());
+        assertTrue(policy.isKnown(10010));
+        assertTrue(policy.isKnown(20000));
+        assertFalse(policy.isKnown(10015));
+        assertTrue(policy.isInternetBlocked(-1));
+    }
+
+    @Test
+    public void carriesGlobalSettings() {
+        PolicySnapshot policy = new PolicySnapshot.Builder()
+                .setBlockingMode(BlockingModeLogic.MODE_STRICT, true)
+                .setBlockDot(false)
+                .setLogPackets(true)
+                .setLogLogcat(true)
+                .build();
+
+        assertEquals(BlockingModeLogic.MODE_STRICT, policy.blockingMode);
+        assertTrue(policy.blockAmbiguousTrackers);
+        assertFalse(policy.blockDot);
+        assertTrue(policy.logPackets);
+        assertTrue(policy.logLogcat);
+
+        assertEquals(BlockingModeLogic.MODE_MINIMAL, PolicySnapshot.EMPTY.blockingMode);
+        assertTrue(PolicySnapshot.EMPTY.blockDot);
+        assertEquals(0, PolicySnapshot.EMPTY.size());
+    }
+}
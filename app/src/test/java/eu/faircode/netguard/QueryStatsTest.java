@@ -0,0 +1,38 @@
+package eu.faircode.netguard;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class QueryStatsTest {
+    @Test
+    public void countsCallsAndKeepsTheSlowest() throws InterruptedException {
+        QueryStats stats = new QueryStats();
+        QueryStats.Counter fast = stats.counter("fast");
+        QueryStats.Counter slow = stats.counter("slow");
+
+        fast.add(System.nanoTime());
+        fast.add(System.nanoTime());
+        long start = System.nanoTime();
+        Thread.sleep(5);
+        slow.add(start);
+
+        assertEquals(2, fast.getCalls());
+        assertEquals(1, slow.getCalls());
+        assertTrue(slow.getMaxNanos() >= 5_000_000L);
+        assertTrue(slow.getNanos() >= slow.getMaxNanos());
+        assertTrue(fast.getMaxNanos() <= fast.getNanos());
+
+        String text = stats.toString();
+        assertTrue(text, text.startsWith("fast calls=2 "));
+        assertTrue(text, text.contains(", slow calls=1 "));
+    }
+
+    @Test
+    public void unusedCounterReportsZero() {
+        QueryStats stats = new QueryStats();
+        stats.counter("idle");
+        assertEquals("idle calls=0 avg=0.000ms max=0.000ms", stats.toString());
+    }
+}
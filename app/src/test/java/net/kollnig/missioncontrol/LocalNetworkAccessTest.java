@@ -160,6 +160,16 @@ public class LocalNetworkAccessTest {
         assertFalse(LocalNetworkAccess.isConfigured(prefs));
     }
 
+    @Test
+    public void anyLocalDohEndpointAmongSeveralNeedsLocalNetworkAccess() {
+        prefs.edit()
+                .putBoolean("doh_enabled", true)
+                .putString("doh_endpoint",
+                        "https://dns.quad9.net/dns-query https://192.168.1.10/dns-query")
+                .commit();
+        assertTrue(LocalNetworkAccess.isConfigured(prefs));
+    }
+
     @Test
     public void tetheringCompatibilityModeNeedsLocalNetworkAccess() {
         // Full-tunnel routes put LAN traffic back inside the tun.
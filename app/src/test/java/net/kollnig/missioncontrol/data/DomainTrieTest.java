@@ -0,0 +1,86 @@
+/*
+ * TrackerControl is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TrackerControl is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * Copyright © 2026
+ */
+
+package net.kollnig.missioncontrol.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+public class DomainTrieTest {
+
+    @Test
+    public void matchesExactDomainAndSubdomains() {
+        DomainTrie<String> trie = trie("example.com", "Example");
+
+        assertEquals("Example", trie.findSuffix("example.com"));
+        assertEquals("Example", trie.findSuffix("ads.example.com"));
+        assertEquals("Example", trie.findSuffix("a.b.example.com"));
+    }
+
+    @Test
+    public void doesNotMatchAcrossLabelBoundaries() {
+        DomainTrie<String> trie = trie("example.com", "Example");
+
+        assertNull(trie.findSuffix("badexample.com"));
+        assertNull(trie.findSuffix("com"));
+        assertNull(trie.findSuffix("example.com.evil.net"));
+        assertNull(trie.findSuffix("example.com."));
+        assertNull(trie.findSuffix(""));
+    }
+
+    @Test
+    public void longestSuffixWins() {
+        DomainTrie<String> trie = trie(
+                "example.com", "Parent",
+                "ads.example.com", "Child");
+
+        assertEquals("Child", trie.findSuffix("ads.example.com"));
+        assertEquals("Child", trie.findSuffix("x.ads.example.com"));
+        assertEquals("Parent", trie.findSuffix("cdn.example.com"));
+    }
+
+    @Test
+    public void distinguishesLabelsWithCollidingHashes() {
+        // "Aa" and "BB" share the same String.hashCode()
+        DomainTrie<String> trie = trie(
+                "Aa.net", "first",
+                "BB.net", "second");
+
+        assertEquals("first", trie.findSuffix("x.Aa.net"));
+        assertEquals("second", trie.findSuffix("x.BB.net"));
+        assertNull(trie.findSuffix("CC.net"));
+    }
+
+    @Test
+    public void emptyTrieMatchesNothing() {
+        DomainTrie<String> trie = DomainTrie.empty();
+
+        assertNull(trie.findSuffix("example.com"));
+        assertEquals(0, trie.size());
+    }
+
+    private static DomainTrie<String> trie(String... pairs) {
+        Map<String, String> domains = new HashMap<>();
+        for (int i = 0; i < pairs.length; i += 2)
+            domains.put(pairs[i], pairs[i + 1]);
+        DomainTrie<String> trie = DomainTrie.build(domains);
+        assertEquals(domains.size(), trie.size());
+        return trie;
+    }
+}
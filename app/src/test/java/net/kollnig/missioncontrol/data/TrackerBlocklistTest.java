@@ -22,6 +22,7 @@ import org.junit.Before;
 import org.junit.Test;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 
@@ -50,6 +51,19 @@ public class TrackerBlocklistTest {
         assertFalse(blocklist.getSubset(UID).contains(TrackerBlocklist.NECESSARY_CATEGORY));
     }
 
+    @Test
+    public void ensureDefaultsOfManyAppsPublishesEachOfThem() {
+        TrackerBlocklist blocklist = TrackerBlocklist.getInstance(null);
+        Tracker content = new Tracker("Content", TrackerBlocklist.NECESSARY_CATEGORY);
+        blocklist.ensureDefaults(UID + 1, true);
+
+        assertTrue(blocklist.ensureDefaults(Arrays.asList(UID + 2, UID, UID + 1), false));
+        assertFalse(blocklist.blockedTracker(UID, content));
+        assertFalse(blocklist.blockedTracker(UID + 2, content));
+        assertTrue("existing defaults are kept", blocklist.blockedTracker(UID + 1, content));
+        assertFalse(blocklist.ensureDefaults(Arrays.asList(UID, UID + 1, UID + 2), true));
+    }
+
     @Test
     public void applyStrictModeToAllTogglesContentWhitelist() {
         TrackerBlocklist blocklist = TrackerBlocklist.getInstance(null);
@@ -207,6 +221,69 @@ public class TrackerBlocklistTest {
         assertTrue(blocklist.blockedTracker(UID, tracker));
     }
 
+    @Test
+    public void allowlistsHoldManyKeys() {
+        TrackerBlocklist blocklist = TrackerBlocklist.getInstance(null);
+        blocklist.ensureDefaults(UID, true);
+        for (int i = 0; i < 200; i++)
+            blocklist.unblock(UID, "Advertising | Company " + i);
+
+        for (int i = 0; i < 200; i++)
+            assertFalse(blocklist.blocked(UID, "Advertising | Company " + i));
+        assertTrue(blocklist.blocked(UID, "Advertising | Company 200"));
+        assertTrue(blocklist.blocked(UID + 1, "Advertising | Company 0"));
+    }
+
+    @Test
+    public void onlyAllowedKeysGetIds() {
+        TrackerBlocklist blocklist = TrackerBlocklist.getInstance(null);
+        blocklist.ensureDefaults(UID, false);
+        assertEquals(1, blocklist.getKeyCount());
+
+        // As the hosts file yields a tracker per host
+        for (int i = 0; i < 1000; i++)
+            assertTrue(blocklist.blockedTracker(UID, new Tracker("host" + i + ".example", "Uncategorised")));
+        assertEquals(1, blocklist.getKeyCount());
+
+        Tracker tracker = new Tracker("host1.example", "Uncategorised");
+        assertTrue(blocklist.blockedTracker(UID, tracker));
+        blocklist.unblock(UID, tracker);
+        assertFalse(blocklist.blockedTracker(UID, tracker));
+        assertEquals(2, blocklist.getKeyCount());
+
+        // Keys no app allows any more lose their ids on the next full publish
+        blocklist.block(UID, tracker);
+        assertTrue(blocklist.blockedTracker(UID, tracker));
+        blocklist.applyStrictModeToAll(true);
+        assertEquals(0, blocklist.getKeyCount());
+        assertTrue(blocklist.blockedTracker(UID, tracker));
+    }
+
+    @Test
+    public void clearingUidRemovesItsAllowlist() {
+        TrackerBlocklist blocklist = TrackerBlocklist.getInstance(null);
+        Tracker contentTracker = new Tracker("Akamai", "Content");
+        blocklist.ensureDefaults(UID, false);
+        blocklist.ensureDefaults(UID + 1, false);
+
+        blocklist.clear(UID);
+        assertFalse(blocklist.hasSubset(UID));
+        assertTrue(blocklist.blockedTracker(UID, contentTracker));
+        assertFalse(blocklist.blockedTracker(UID + 1, contentTracker));
+    }
+
+    @Test
+    public void renamedTrackerIsLookedUpByItsNewKey() {
+        TrackerBlocklist blocklist = TrackerBlocklist.getInstance(null);
+        Tracker tracker = new Tracker("Branch", "Advertising");
+        blocklist.ensureDefaults(UID, true);
+        blocklist.unblock(UID, "Advertising | Other");
+
+        assertTrue(blocklist.blockedTracker(UID, tracker));
+        tracker.name = "Other";
+        assertFalse(blocklist.blockedTracker(UID, tracker));
+    }
+
     @Test
     public void concurrentReadersAndWritersDoNotThrow() throws Exception {
         TrackerBlocklist blocklist = TrackerBlocklist.getInstance(null);
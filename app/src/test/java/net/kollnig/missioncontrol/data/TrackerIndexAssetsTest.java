@@ -0,0 +1,114 @@
+/*
+ * TrackerControl is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TrackerControl is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * Copyright © 2026
+ */
+
+package net.kollnig.missioncontrol.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+
+import android.content.Context;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The index that trackerDbBuild compiles from the bundled lists must load into
+ * the same domain map as the JSON loaders it replaces, list by list and as
+ * loadTrackers() combines them.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class TrackerIndexAssetsTest {
+    private Context context;
+    private TrackerIndex index;
+
+    @Before
+    public void setUp() throws IOException {
+        context = RuntimeEnvironment.getApplication();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (InputStream is = context.getAssets().open(TrackerIndex.ASSET)) {
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = is.read(buffer)) > 0)
+                bytes.write(buffer, 0, read);
+        }
+        index = TrackerIndex.open(ByteBuffer.wrap(bytes.toByteArray()));
+    }
+
+    @Test
+    public void xraySectionMatchesTheXrayList() {
+        Map<String, Tracker> expected = new HashMap<>();
+        TrackerList.loadXrayTrackers(context, expected);
+        Map<String, Tracker> actual = new HashMap<>();
+        TrackerList.loadIndexSection(index, TrackerIndex.SECTION_XRAY, actual);
+
+        assertSameTrackers(expected, actual);
+    }
+
+    @Test
+    public void disconnectSectionMatchesTheDisconnectList() {
+        Map<String, Tracker> expected = new HashMap<>();
+        TrackerList.loadDisconnectTrackers(context, expected);
+        Map<String, Tracker> actual = new HashMap<>();
+        TrackerList.loadIndexSection(index, TrackerIndex.SECTION_DISCONNECT, actual);
+
+        assertSameTrackers(expected, actual);
+    }
+
+    @Test
+    public void duckDuckGoSectionMatchesTheDuckDuckGoList() {
+        Map<String, Tracker> expected = new HashMap<>();
+        TrackerList.loadDuckDuckGoTrackers(context, expected);
+        Map<String, Tracker> actual = new HashMap<>();
+        TrackerList.loadIndexSection(index, TrackerIndex.SECTION_DUCKDUCKGO, actual);
+
+        assertSameTrackers(expected, actual);
+    }
+
+    @Test
+    public void sectionsCombineAsTheListsDo() {
+        Map<String, Tracker> expected = new HashMap<>();
+        TrackerList.loadXrayTrackers(context, expected);
+        TrackerList.loadDisconnectTrackers(context, expected);
+        TrackerList.loadDuckDuckGoTrackers(context, expected);
+        Map<String, Tracker> actual = new HashMap<>();
+        TrackerList.loadIndexSection(index, TrackerIndex.SECTION_XRAY, actual);
+        TrackerList.loadIndexSection(index, TrackerIndex.SECTION_DISCONNECT, actual);
+        TrackerList.loadIndexSection(index, TrackerIndex.SECTION_DUCKDUCKGO, actual);
+
+        assertSameTrackers(expected, actual);
+    }
+
+    private static void assertSameTrackers(Map<String, Tracker> expected, Map<String, Tracker> actual) {
+        assertFalse("the list did not load", expected.isEmpty());
+        assertEquals(expected.keySet(), actual.keySet());
+        for (Map.Entry<String, Tracker> entry : expected.entrySet()) {
+            Tracker tracker = actual.get(entry.getKey());
+            assertNotNull(entry.getKey(), tracker);
+            assertEquals(entry.getKey(), entry.getValue().name, tracker.name);
+            assertEquals(entry.getKey(), entry.getValue().category, tracker.category);
+            assertEquals(entry.getKey(), entry.getValue().country, tracker.country);
+        }
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * TrackerControl is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TrackerControl is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * Copyright © 2026
+ */
+
+package net.kollnig.missioncontrol.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+public class TrackerIndexTest {
+
+    @Test
+    public void readsSectionsAndSharesInternedStrings() throws IOException {
+        TrackerIndex index = TrackerIndex.open(ByteBuffer.wrap(sampleIndex(TrackerIndex.VERSION)));
+
+        assertEquals(1, index.getTrackerCount(TrackerIndex.SECTION_XRAY));
+        assertEquals(2, index.getDomainCount(TrackerIndex.SECTION_XRAY));
+        assertEquals("Example", index.getTrackerName(TrackerIndex.SECTION_XRAY, 0));
+        assertEquals("Content", index.getTrackerCategory(TrackerIndex.SECTION_XRAY, 0));
+        assertEquals("us", index.getTrackerCountry(TrackerIndex.SECTION_XRAY, 0));
+        assertEquals("example.com", index.getDomain(TrackerIndex.SECTION_XRAY, 0));
+        assertEquals("ads.example.net", index.getDomain(TrackerIndex.SECTION_XRAY, 1));
+        assertEquals(0, index.getDomainTracker(TrackerIndex.SECTION_XRAY, 1));
+
+        assertEquals(0, index.getDomainCount(TrackerIndex.SECTION_DISCONNECT));
+
+        assertNull(index.getTrackerCountry(TrackerIndex.SECTION_DUCKDUCKGO, 0));
+        assertSame(index.getDomain(TrackerIndex.SECTION_XRAY, 0),
+                index.getDomain(TrackerIndex.SECTION_DUCKDUCKGO, 0));
+    }
+
+    @Test
+    public void rejectsOtherVersions() {
+        try {
+            TrackerIndex.open(ByteBuffer.wrap(sampleIndex(TrackerIndex.VERSION + 1)));
+            fail("Expected the version to be rejected");
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void rejectsTruncatedIndex() {
+        byte[] index = sampleIndex(TrackerIndex.VERSION);
+        try {
+            TrackerIndex.open(ByteBuffer.wrap(index, 0, index.length - 4).slice());
+            fail("Expected the truncated index to be rejected");
+        } catch (IOException expected) {
+        }
+    }
+
+    // Same layout as written by trackerDbBuild (app/gradle/trackerdb.gradle)
+    private static byte[] sampleIndex(int version) {
+        String[] strings = {"Example", "Content", "us", "example.com", "ads.example.net"};
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(TrackerIndex.MAGIC);
+            out.writeInt(version);
+
+            out.writeInt(strings.length);
+            int offset = 0;
+            for (String s : strings) {
+                out.writeInt(offset);
+                offset += s.getBytes(StandardCharsets.UTF_8).length;
+            }
+            out.writeInt(offset);
+            for (String s : strings)
+                out.write(s.getBytes(StandardCharsets.UTF_8));
+
+            out.writeInt(3);
+            // X-Ray: one tracker with two domains
+            writeTrackers(out, new int[]{0, 1, 2});
+            writeDomains(out, new int[]{3, 0, 4, 0});
+            // Disconnect: empty
+            writeTrackers(out, new int[0]);
+            writeDomains(out, new int[0]);
+            // DuckDuckGo: one tracker without country
+            writeTrackers(out, new int[]{0, 1, -1});
+            writeDomains(out, new int[]{3, 0});
+            out.flush();
+            return bytes.toByteArray();
+        } catch (IOException ex) {
+            throw new AssertionError(ex);
+        }
+    }
+
+    private static void writeTrackers(DataOutputStream out, int[] fields) throws IOException {
+        out.writeInt(fields.length / 3);
+        for (int field : fields)
+            out.writeInt(field);
+    }
+
+    private static void writeDomains(DataOutputStream out, int[] fields) throws IOException {
+        out.writeInt(fields.length / 2);
+        for (int field : fields)
+            out.writeInt(field);
+    }
+}
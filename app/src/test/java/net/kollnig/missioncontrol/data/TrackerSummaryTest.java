@@ -0,0 +1,75 @@
+package net.kollnig.missioncontrol.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+public class TrackerSummaryTest {
+    @Test
+    public void countsCompaniesNotHosts() {
+        TrackerSummary summary = new TrackerSummary();
+        summary.add(10001, "Google", 1000L);
+        summary.add(10001, "Google", 3000L);
+        summary.add(10001, "Facebook", 2000L);
+        summary.add(10002, "Google", 500L);
+
+        Pair<Map<Integer, Integer>, Integer> all = summary.count(Long.MIN_VALUE);
+        assertEquals(Integer.valueOf(2), all.first().get(10001));
+        assertEquals(Integer.valueOf(1), all.first().get(10002));
+        assertEquals(Integer.valueOf(3), all.second());
+
+        // Only companies last seen after the limit count for the past week
+        Pair<Map<Integer, Integer>, Integer> recent = summary.count(1500L);
+        assertEquals(Integer.valueOf(2), recent.first().get(10001));
+        assertFalse(recent.first().containsKey(10002));
+        assertEquals(Integer.valueOf(2), recent.second());
+
+        Map<Integer, Long> last = summary.getLastTimes();
+        assertEquals(Long.valueOf(3000L), last.get(10001));
+        assertEquals(Long.valueOf(500L), last.get(10002));
+    }
+
+    @Test
+    public void keepsTheLatestContact() {
+        TrackerSummary summary = new TrackerSummary();
+        summary.add(10001, "Google", 3000L);
+        summary.add(10001, "Google", 1000L);
+
+        assertEquals(Long.valueOf(3000L), summary.getLastTimes().get(10001));
+        assertEquals(Integer.valueOf(1), summary.count(2000L).second());
+    }
+
+    @Test
+    public void replacesOneAppOrAll() {
+        TrackerSummary summary = new TrackerSummary();
+        summary.add(10001, "Google", 1000L);
+        summary.add(10002, "Google", 1000L);
+
+        Map<Integer, Map<String, Long>> replacement = new HashMap<>();
+        Map<String, Long> companies = new HashMap<>();
+        companies.put("Facebook", 2000L);
+        replacement.put(10001, companies);
+        replacement.put(10003, companies);
+
+        // Only the given app is taken over
+        summary.replace(10001, replacement);
+        Map<Integer, Long> last = summary.getLastTimes();
+        assertEquals(Long.valueOf(2000L), last.get(10001));
+        assertEquals(Long.valueOf(1000L), last.get(10002));
+        assertNull(last.get(10003));
+
+        summary.replace(10002, new HashMap<>());
+        assertNull(summary.getLastTimes().get(10002));
+
+        summary.replace(-1, replacement);
+        last = summary.getLastTimes();
+        assertEquals(2, last.size());
+        assertEquals(Long.valueOf(2000L), last.get(10003));
+        assertEquals(Integer.valueOf(2), summary.count(Long.MIN_VALUE).second());
+    }
+}
@@ -0,0 +1,271 @@
+package net.kollnig.missioncontrol.dns;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+
+public class DnsAnswerCacheTest {
+    private static final long NOW = 1_700_000_000_000L;
+    private static final int TYPE_A = 1;
+    private static final int TYPE_AAAA = 28;
+
+    @Test
+    public void answersRepeatedQueryWithItsIdAndNameCase() {
+        DnsAnswerCache cache = new DnsAnswerCache();
+        byte[] query = query(0x1234, "example.com", TYPE_A, false);
+        assertNull(cache.get(query, NOW));
+        assertTrue(cache.put(query, answer(query, 0, 300, 600), NOW));
+
+        byte[] again = query(0xBEEF, "Example.COM", TYPE_A, false);
+        byte[] hit = cache.get(again, NOW + 1_000L).response;
+        assertEquals((byte) 0xBE, hit[0]);
+        assertEquals((byte) 0xEF, hit[1]);
+        assertEquals('E', hit[13]);
+        assertEquals('C', hit[21]);
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+    }
+
+    @Test
+    public void keepsAnswerForItsSmallestTtlAndCountsItDown() {
+        DnsAnswerCache cache = new DnsAnswerCache();
+        byte[] query = query(1, "example.com", TYPE_A, false);
+        byte[] answer = answer(query, 0, 300, 60);
+        assertTrue(cache.put(query, answer, NOW));
+
+        DnsAnswerCache.Answer hit = cache.get(query, NOW + 10_500L);
+        assertFalse(hit.stale);
+        int[] ttls = answerTtls(hit.response);
+        assertEquals(290, ttls[0]);
+        assertEquals(50, ttls[1]);
+
+        assertFalse(cache.get(query, NOW + 59_999L).stale);
+        assertTrue(cache.get(query, NOW + 60_000L).stale);
+    }
+
+    @Test
+    public void servesRecentlyExpiredAnswersAsStale() {
+        DnsAnswerCache cache = new DnsAnswerCache();
+        byte[] query = query(1, "example.com", TYPE_A, false);
+        cache.put(query, answer(query, 0, 300, 60), NOW);
+
+        long expired = NOW + 60_000L + DnsAnswerCache.MAX_STALE * 1000L;
+        DnsAnswerCache.Answer stale = cache.get(query, expired - 1);
+        assertTrue(stale.stale);
+        int[] ttls = answerTtls(stale.response);
+        assertEquals(DnsAnswerCache.STALE_TTL, ttls[0]);
+        assertEquals(DnsAnswerCache.STALE_TTL, ttls[1]);
+        assertEquals(1, cache.getStaleHits());
+
+        assertNull(cache.get(query, expired));
+        assertEquals(0, cache.size());
+
+        // A refresh makes it fresh again
+        cache.put(query, answer(query, 0, 300), expired);
+        assertFalse(cache.get(query, expired).stale);
+    }
+
+    @Test
+    public void keysOnTypeAndDnssecOk() {
+        DnsAnswerCache cache = new DnsAnswerCache();
+        byte[] query = query(1, "example.com", TYPE_A, false);
+        cache.put(query, answer(query, 0, 300), NOW);
+
+        assertNull(cache.get(query(1, "example.com", TYPE_AAAA, false), NOW));
+        assertNull(cache.get(query(1, "example.com", TYPE_A, true), NOW));
+        assertNotEquals(DnsAnswerCache.getKey(query(1, "example.com", TYPE_A, false)),
+                DnsAnswerCache.getKey(query(1, "example.com", TYPE_A, true)));
+    }
+
+    @Test
+    public void cachesNameErrorsForTheSoaMinimum() {
+        DnsAnswerCache cache = new DnsAnswerCache();
+        byte[] query = query(1, "nx.example.com", TYPE_A, false);
+        assertTrue(cache.put(query, negative(query, 3, 3600, 120), NOW));
+
+        DnsAnswerCache.Answer hit = cache.get(query, NOW + 119_000L);
+        assertFalse(hit.stale);
+        assertEquals(3, hit.response[3] & 0x0F);
+        assertTrue(cache.get(query, NOW + 120_000L).stale);
+    }
+
+    @Test
+    public void cachesNoDataForTheSoaTtlWhenLower() {
+        DnsAnswerCache cache = new DnsAnswerCache();
+        byte[] query = query(1, "example.com", TYPE_AAAA, false);
+        assertTrue(cache.put(query, negative(query, 0, 30, 900), NOW));
+        assertFalse(cache.get(query, NOW + 29_000L).stale);
+        assertTrue(cache.get(query, NOW + 30_000L).stale);
+    }
+
+    @Test
+    public void doesNotCacheWhatCannotBeCached() {
+        DnsAnswerCache cache = new DnsAnswerCache();
+        byte[] query = query(1, "example.com", TYPE_A, false);
+
+        // Server failure
+        assertFalse(cache.put(query, answer(query, 2, 300), NOW));
+        // Negative answer without an SOA
+        assertFalse(cache.put(query, answer(query, 3), NOW));
+        // Zero TTL
+        assertFalse(cache.put(query, answer(query, 0, 0), NOW));
+        // Truncated
+        byte[] truncated = answer(query, 0, 300);
+        truncated[2] |= 0x02;
+        assertFalse(cache.put(query, truncated, NOW));
+        // Answer to another question
+        assertFalse(cache.put(query,
+                answer(query(1, "example.org", TYPE_A, false), 0, 300), NOW));
+        // Not a response
+        assertFalse(cache.put(query, query, NOW));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsed() {
+        DnsAnswerCache cache = new DnsAnswerCache(2);
+        byte[] a = query(1, "a.example", TYPE_A, false);
+        byte[] b = query(1, "b.example", TYPE_A, false);
+        byte[] c = query(1, "c.example", TYPE_A, false);
+        cache.put(a, answer(a, 0, 300), NOW);
+        cache.put(b, answer(b, 0, 300), NOW);
+        assertNotNull(cache.get(a, NOW));
+        cache.put(c, answer(c, 0, 300), NOW);
+
+        assertNull(cache.get(b, NOW));
+        assertNotNull(cache.get(a, NOW));
+        assertNotNull(cache.get(c, NOW));
+        assertEquals(1, cache.getEvictions());
+    }
+
+    @Test
+    public void answersForAnotherQueryOnlyWithTheSameQuestion() {
+        byte[] query = query(0x1111, "example.com", TYPE_A, false);
+        byte[] response = answer(query, 0, 300);
+
+        byte[] other = query(0x2222, "EXAMPLE.com", TYPE_A, false);
+        byte[] answer = DnsAnswerCache.answerFor(response, other);
+        assertEquals(0x22, answer[0]);
+        assertEquals('E', answer[13]);
+        assertEquals(0x11, response[0]);
+
+        // Only the ID for an answer that does not carry the question
+        byte[] mismatch = query(0x3333, "example.org", TYPE_A, false);
+        answer = DnsAnswerCache.answerFor(response, mismatch);
+        assertEquals(0x33, answer[0]);
+        assertEquals('c', answer[21]);
+    }
+
+    @Test
+    public void skipsCompressedNames() {
+        byte[] message = new byte[] { 3, 'f', 'o', 'o', (byte) 0xC0, 12, 0, 1 };
+        assertEquals(6, DnsAnswerCache.skipName(message, 0));
+        assertEquals(-1, DnsAnswerCache.skipName(new byte[] { 5, 'a' }, 0));
+    }
+
+    static byte[] query(int id, String name, int type, boolean dnssecOk) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        putShort(out, id);
+        putShort(out, 0x0100); // RD
+        putShort(out, 1);
+        putShort(out, 0);
+        putShort(out, 0);
+        putShort(out, 1);
+        putName(out, name);
+        putShort(out, type);
+        putShort(out, 1);
+        // OPT
+        out.write(0);
+        putShort(out, 41);
+        putShort(out, 1232);
+        putInt(out, dnssecOk ? 0x8000 : 0);
+        putShort(out, 0);
+        return out.toByteArray();
+    }
+
+    /**
+     * Answer with an A record per TTL, each pointing back at the question.
+     */
+    static byte[] answer(byte[] query, int rcode, int... ttls) {
+        ByteArrayOutputStream out = header(query, rcode, ttls.length, 0);
+        for (int ttl : ttls) {
+            putShort(out, 0xC00C);
+            putShort(out, 1);
+            putShort(out, 1);
+            putInt(out, ttl);
+            putShort(out, 4);
+            putInt(out, 0xC0000201);
+        }
+        return out.toByteArray();
+    }
+
+    static byte[] negative(byte[] query, int rcode, int soaTtl, int minimum) {
+        ByteArrayOutputStream out = header(query, rcode, 0, 1);
+        putShort(out, 0xC00C);
+        putShort(out, 6);
+        putShort(out, 1);
+        putInt(out, soaTtl);
+        putShort(out, 2 + 2 + 20);
+        putShort(out, 0xC00C); // mname
+        putShort(out, 0xC00C); // rname
+        putInt(out, 1); // serial
+        putInt(out, 7200);
+        putInt(out, 900);
+        putInt(out, 86400);
+        putInt(out, minimum);
+        return out.toByteArray();
+    }
+
+    private static ByteArrayOutputStream header(byte[] query, int rcode, int answers, int authorities) {
+        int questionEnd = DnsAnswerCache.skipName(query, 12) + 4;
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(query[0]);
+        out.write(query[1]);
+        putShort(out, 0x8180 | rcode);
+        putShort(out, 1);
+        putShort(out, answers);
+        putShort(out, authorities);
+        putShort(out, 0);
+        out.write(query, 12, questionEnd - 12);
+        return out;
+    }
+
+    private static int[] answerTtls(byte[] response) {
+        int count = ((response[6] & 0xFF) << 8) | (response[7] & 0xFF);
+        int[] ttls = new int[count];
+        int pos = DnsAnswerCache.skipName(response, 12) + 4;
+        for (int i = 0; i < count; i++) {
+            pos = DnsAnswerCache.skipName(response, pos);
+            ttls[i] = ((response[pos + 4] & 0xFF) << 24) | ((response[pos + 5] & 0xFF) << 16)
+                    | ((response[pos + 6] & 0xFF) << 8) | (response[pos + 7] & 0xFF);
+            pos += 10 + (((response[pos + 8] & 0xFF) << 8) | (response[pos + 9] & 0xFF));
+        }
+        return ttls;
+    }
+
+    private static void putName(ByteArrayOutputStream out, String name) {
+        for (String label : name.split("\\.")) {
+            out.write(label.length());
+            for (char c : label.toCharArray())
+                out.write(c);
+        }
+        out.write(0);
+    }
+
+    private static void putShort(ByteArrayOutputStream out, int value) {
+        out.write(value >> 8);
+        out.write(value);
+    }
+
+    private static void putInt(ByteArrayOutputStream out, int value) {
+        putShort(out, value >>> 16);
+        putShort(out, value & 0xFFFF);
+    }
+}
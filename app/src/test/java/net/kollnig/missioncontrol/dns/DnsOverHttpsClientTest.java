@@ -5,6 +5,8 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertNotSame;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 
 import org.junit.After;
 import org.junit.Before;
@@ -23,6 +25,7 @@ import org.xbill.DNS.Section;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.util.Arrays;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -263,6 +266,138 @@ public class DnsOverHttpsClientTest {
         }
     }
 
+    // --- several endpoints ------------------------------------------------
+
+    @Test
+    public void failedEndpointFailsOverToTheNextOne() throws Exception {
+        try (MockWebServer second = new MockWebServer()) {
+            second.start();
+            server.enqueue(dnsResponse(503, new byte[0]));
+            second.enqueue(dnsResponse(200, RESPONSE));
+
+            AtomicInteger failures = new AtomicInteger(0);
+            assertArrayEquals(RESPONSE, client(second).resolve(QUERY, failures::incrementAndGet));
+
+            assertEquals(1, failures.get());
+            assertEquals(1, server.getRequestCount());
+            assertEquals(1, second.getRequestCount());
+        }
+    }
+
+    @Test
+    public void slowEndpointIsHedgedToTheNextOne() throws Exception {
+        try (MockWebServer second = new MockWebServer()) {
+            second.start();
+            server.enqueue(new MockResponse.Builder()
+                    .code(200)
+                    .addHeader("Content-Type", "application/dns-message")
+                    .body(new Buffer().write(RESPONSE))
+                    .headersDelay(10, TimeUnit.SECONDS)
+                    .build());
+            second.enqueue(dnsResponse(200, RESPONSE));
+
+            long start = System.nanoTime();
+            assertArrayEquals(RESPONSE, client(second).resolve(QUERY));
+            long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+            // Asked after the default hedging delay, long before the first answers
+            assertTrue(elapsed >= ResolverStats.DEFAULT_HEDGE_DELAY_MS);
+            assertTrue(elapsed < 5000);
+            assertEquals(1, second.getRequestCount());
+        }
+    }
+
+    @Test
+    public void screenOffAsksOnlyTheBestEndpoint() throws Exception {
+        DnsOverHttpsClient.setScreenOff(true);
+        try (MockWebServer second = new MockWebServer()) {
+            second.start();
+            server.enqueue(dnsResponse(503, new byte[0]));
+            second.enqueue(dnsResponse(200, RESPONSE));
+
+            assertNull(client(second).resolve(QUERY));
+
+            assertEquals(1, server.getRequestCount());
+            assertEquals(0, second.getRequestCount());
+        } finally {
+            DnsOverHttpsClient.setScreenOff(false);
+        }
+    }
+
+    @Test
+    public void prewarmConnectsAheadOfTheFirstQuery() throws Exception {
+        server.enqueue(dnsResponse(200, RESPONSE));
+        server.enqueue(dnsResponse(200, RESPONSE));
+        DnsOverHttpsClient client = client();
+
+        client.prewarm(false);
+        RecordedRequest prewarm = server.takeRequest(5, TimeUnit.SECONDS);
+        assertEquals("no-cache", prewarm.getHeaders().get("Cache-Control"));
+        // Let the pre-warming call return its connection to the pool
+        Thread.sleep(200);
+
+        assertArrayEquals(RESPONSE, client.resolve(QUERY));
+        // Over the connection opened by pre-warming
+        assertEquals(prewarm.getConnectionIndex(),
+                server.takeRequest(1, TimeUnit.SECONDS).getConnectionIndex());
+    }
+
+    @Test
+    public void prewarmSkipsWarmConnectionsUnlessTheNetworkChanged() throws Exception {
+        server.enqueue(dnsResponse(200, RESPONSE));
+        server.enqueue(dnsResponse(200, RESPONSE));
+        DnsOverHttpsClient client = client();
+        assertArrayEquals(RESPONSE, client.resolve(QUERY));
+        RecordedRequest query = server.takeRequest(1, TimeUnit.SECONDS);
+
+        client.prewarm(false);
+        assertNull(server.takeRequest(200, TimeUnit.MILLISECONDS));
+
+        client.prewarm(true);
+        assertNotEquals(query.getConnectionIndex(),
+                server.takeRequest(5, TimeUnit.SECONDS).getConnectionIndex());
+    }
+
+    @Test
+    public void prewarmDoesNothingWhileScreenOff() throws Exception {
+        DnsOverHttpsClient.setScreenOff(true);
+        try {
+            client().prewarm(true);
+
+            assertNull(server.takeRequest(200, TimeUnit.MILLISECONDS));
+        } finally {
+            DnsOverHttpsClient.setScreenOff(false);
+        }
+    }
+
+    @Test
+    public void endpointsAreSeparatedBySpacesOrCommas() {
+        assertEquals(Arrays.asList("https://a.example/dns-query", "https://b.example/dns-query"),
+                DnsOverHttpsClient.splitEndpoints(
+                        " https://a.example/dns-query,\nhttps://b.example/dns-query , "
+                                + "https://a.example/dns-query"));
+        assertTrue(DnsOverHttpsClient.splitEndpoints(null).isEmpty());
+        assertTrue(DnsOverHttpsClient.splitEndpoints("  ").isEmpty());
+    }
+
+    @Test
+    public void endpointsAreRankedByExpectedLatency() {
+        DnsOverHttpsClient.Endpoint first = new DnsOverHttpsClient.Endpoint("https://a.example", 0);
+        DnsOverHttpsClient.Endpoint second = new DnsOverHttpsClient.Endpoint("https://b.example", 1);
+        List<DnsOverHttpsClient.Endpoint> endpoints = Arrays.asList(first, second);
+
+        // Unmeasured, the configured order decides
+        assertSame(first, DnsOverHttpsClient.rank(endpoints, 0).get(0));
+
+        first.stats.success(800, 0);
+        second.stats.success(100, 0);
+        assertSame(second, DnsOverHttpsClient.rank(endpoints, 0).get(0));
+
+        second.stats.failure(1);
+        second.stats.failure(2);
+        assertSame(first, DnsOverHttpsClient.rank(endpoints, 3).get(0));
+    }
+
     @Test
     public void normalizeTransactionIdUsesZeroWithoutMutatingQuery() {
         byte[] query = new byte[]{0x12, 0x34, 0x01, 0x00};
@@ -381,6 +516,11 @@ public class DnsOverHttpsClientTest {
                 RuntimeEnvironment.getApplication(), server.url("/dns-query").toString());
     }
 
+    private DnsOverHttpsClient client(MockWebServer second) {
+        return DnsOverHttpsClient.getInstance(RuntimeEnvironment.getApplication(),
+                server.url("/dns-query") + " " + second.url("/dns-query"));
+    }
+
     private static MockResponse dnsResponse(int status, byte[] body) {
         return new MockResponse.Builder()
                 .code(status)
@@ -0,0 +1,260 @@
+package net.kollnig.missioncontrol.dns;
+
+import static net.kollnig.missioncontrol.dns.DnsAnswerCacheTest.answer;
+import static net.kollnig.missioncontrol.dns.DnsAnswerCacheTest.query;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serves the loop on an ephemeral port of the loopback address, with
+ * resolvers that answer straight away or later from another thread.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 36)
+public class DnsProxyLoopTest {
+    private static final int TYPE_A = 1;
+    private DnsProxyLoop loop;
+
+    @After
+    public void tearDown() {
+        if (loop != null)
+            loop.shutdown();
+    }
+
+    private int start(DnsProxyLoop.Resolver resolver) throws IOException {
+        loop = DnsProxyLoop.open(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0),
+                true, resolver);
+        new Thread(loop, "DnsProxyLoopTest").start();
+        return loop.getLocalPort();
+    }
+
+    @Test
+    public void answersUdpQueriesStraightAwayAndLater() throws Exception {
+        int port = start((query, callback) -> {
+            if (query[1] == 1)
+                callback.onAnswer(answer(query, 0, 300));
+            else
+                new Thread(() -> {
+                    try {
+                        callback.onAnswer(answer(query, 0, 60));
+                    } catch (IOException e) {
+                        throw new AssertionError(e);
+                    }
+                }).start();
+        });
+
+        try (DatagramSocket client = new DatagramSocket()) {
+            client.setSoTimeout(5000);
+            for (int id = 1; id <= 2; id++) {
+                byte[] query = query(id, "example.com", TYPE_A, false);
+                client.send(new DatagramPacket(query, query.length,
+                        InetAddress.getLoopbackAddress(), port));
+                byte[] response = receive(client);
+                assertEquals(id, response[1]);
+                assertTrue((response[2] & 0x80) != 0);
+                assertEquals(0, response[3] & 0x0F);
+            }
+        }
+    }
+
+    @Test
+    public void answersServFailWithoutAnAnswer() throws Exception {
+        int port = start((query, callback) -> callback.onAnswer(null));
+        try (DatagramSocket client = new DatagramSocket()) {
+            client.setSoTimeout(5000);
+            byte[] query = query(7, "down.example", TYPE_A, false);
+            client.send(new DatagramPacket(query, query.length,
+                    InetAddress.getLoopbackAddress(), port));
+            byte[] response = receive(client);
+            assertEquals(7, response[1]);
+            assertEquals(2, response[3] & 0x0F);
+        }
+    }
+
+    @Test
+    public void answersPipelinedTcpQueriesAsTheirAnswersArrive() throws Exception {
+        CountDownLatch secondAnswered = new CountDownLatch(1);
+        int port = start((query, callback) -> new Thread(() -> {
+            try {
+                // The first query waits for the second to be answered
+                if (query[1] == 1)
+                    secondAnswered.await(5, TimeUnit.SECONDS);
+                callback.onAnswer(answer(query, 0, 300));
+                if (query[1] == 2)
+                    secondAnswered.countDown();
+            } catch (IOException | InterruptedException e) {
+                throw new AssertionError(e);
+            }
+        }).start());
+
+        try (Socket client = new Socket(InetAddress.getLoopbackAddress(), port)) {
+            client.setSoTimeout(5000);
+            DataOutputStream out = new DataOutputStream(client.getOutputStream());
+            // Both queries in one write
+            byte[] first = query(1, "a.example", TYPE_A, false);
+            byte[] second = query(2, "b.example", TYPE_A, false);
+            ByteBuffer both = ByteBuffer.allocate(4 + first.length + second.length);
+            both.putShort((short) first.length).put(first)
+                    .putShort((short) second.length).put(second);
+            out.write(both.array());
+            out.flush();
+
+            DataInputStream in = new DataInputStream(client.getInputStream());
+            assertEquals(2, readFrame(in)[1]);
+            assertEquals(1, readFrame(in)[1]);
+        }
+    }
+
+    @Test
+    public void readsAQueryArrivingInPieces() throws Exception {
+        int port = start((query, callback) -> callback.onAnswer(answer(query, 0, 300)));
+        try (Socket client = new Socket(InetAddress.getLoopbackAddress(), port)) {
+            client.setSoTimeout(5000);
+            client.setTcpNoDelay(true);
+            DataOutputStream out = new DataOutputStream(client.getOutputStream());
+            byte[] query = query(3, "example.com", TYPE_A, false);
+            out.writeByte(0);
+            out.flush();
+            Thread.sleep(50);
+            out.writeByte(query.length);
+            out.write(query, 0, 5);
+            out.flush();
+            Thread.sleep(50);
+            out.write(query, 5, query.length - 5);
+            out.flush();
+
+            byte[] response = readFrame(new DataInputStream(client.getInputStream()));
+            assertEquals(3, response[1]);
+        }
+    }
+
+    @Test
+    public void holdsBackQueriesBeyondTheLimitUntilAnswersGoOut() throws Exception {
+        Map<Integer, InflightQueries.Callback> waiting = new ConcurrentHashMap<>();
+        Map<Integer, byte[]> queries = new ConcurrentHashMap<>();
+        int port = start((query, callback) -> {
+            waiting.put((int) query[1], callback);
+            queries.put((int) query[1], query);
+        });
+
+        int total = DnsProxyLoop.MAX_PIPELINED_QUERIES + 2;
+        try (Socket client = new Socket(InetAddress.getLoopbackAddress(), port)) {
+            client.setSoTimeout(5000);
+            DataOutputStream out = new DataOutputStream(client.getOutputStream());
+            for (int id = 1; id <= total; id++) {
+                byte[] query = query(id, "host" + id + ".example", TYPE_A, false);
+                out.writeShort(query.length);
+                out.write(query);
+            }
+            out.flush();
+
+            waitFor(() -> waiting.size() == DnsProxyLoop.MAX_PIPELINED_QUERIES);
+            Thread.sleep(100);
+            assertEquals(DnsProxyLoop.MAX_PIPELINED_QUERIES, waiting.size());
+
+            DataInputStream in = new DataInputStream(client.getInputStream());
+            Map<Integer, Boolean> answered = new HashMap<>();
+            for (int id = 1; id <= total; id++) {
+                int next = id;
+                waitFor(() -> waiting.containsKey(next));
+                waiting.get(id).onAnswer(answer(queries.get(id), 0, 300));
+                answered.put((int) readFrame(in)[1], true);
+            }
+            assertEquals(total, answered.size());
+        }
+    }
+
+    @Test
+    public void takesCompleteFramesOnly() throws IOException {
+        ByteBuffer in = ByteBuffer.allocate(16);
+        in.put(new byte[]{0, 3, 'a', 'b'});
+        in.flip();
+        assertNull(DnsProxyLoop.nextFrame(in));
+        assertEquals(0, in.position());
+
+        in.compact();
+        in.put(new byte[]{'c', 0, 1});
+        in.flip();
+        assertArrayEquals(new byte[]{'a', 'b', 'c'}, DnsProxyLoop.nextFrame(in));
+        assertNull(DnsProxyLoop.nextFrame(in));
+        assertEquals(2, in.remaining());
+
+        ByteBuffer tooLong = ByteBuffer.allocate(16);
+        tooLong.put(new byte[]{0, 15}).flip();
+        try {
+            DnsProxyLoop.nextFrame(tooLong);
+            fail();
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void reusesReleasedBuffers() {
+        DnsProxyLoop.BufferPool pool = new DnsProxyLoop.BufferPool(64, 1);
+        ByteBuffer a = pool.acquire();
+        ByteBuffer b = pool.acquire();
+        assertTrue(a.isDirect());
+        a.put((byte) 1);
+        pool.release(a);
+        pool.release(b);
+        assertEquals(1, pool.size());
+
+        ByteBuffer c = pool.acquire();
+        assertSame(a, c);
+        assertEquals(0, c.position());
+        assertNotSame(a, pool.acquire());
+    }
+
+    private static byte[] receive(DatagramSocket client) throws IOException {
+        DatagramPacket packet = new DatagramPacket(new byte[4096], 4096);
+        client.receive(packet);
+        byte[] response = new byte[packet.getLength()];
+        System.arraycopy(packet.getData(), 0, response, 0, packet.getLength());
+        return response;
+    }
+
+    private static byte[] readFrame(DataInputStream in) throws IOException {
+        byte[] frame = new byte[in.readUnsignedShort()];
+        in.readFully(frame);
+        return frame;
+    }
+
+    private interface Condition {
+        boolean holds();
+    }
+
+    private static void waitFor(Condition condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!condition.holds()) {
+            if (System.currentTimeMillis() > deadline)
+                fail("timed out");
+            Thread.sleep(10);
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package net.kollnig.missioncontrol.dns;
+
+import static net.kollnig.missioncontrol.dns.DnsAnswerCacheTest.answer;
+import static net.kollnig.missioncontrol.dns.DnsAnswerCacheTest.query;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class InflightQueriesTest {
+    private static final int TYPE_A = 1;
+
+    @Test
+    public void identicalQueriesShareOneResolution() throws Exception {
+        InflightQueries inflight = new InflightQueries(e -> {
+            throw new AssertionError(e);
+        });
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger upstreamCalls = new AtomicInteger();
+        List<byte[]> answers = Collections.synchronizedList(new ArrayList<>());
+
+        byte[] first = query(0x0101, "example.com", TYPE_A, false);
+        Thread leader = new Thread(() -> inflight.resolve(first, answers::add, query -> {
+            upstreamCalls.incrementAndGet();
+            started.countDown();
+            try {
+                release.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return answer(query, 0, 300);
+        }));
+        leader.start();
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        // Returns straight away, to be answered by the first resolution
+        byte[] second = query(0x0202, "Example.com", TYPE_A, false);
+        inflight.resolve(second, answers::add, query -> {
+            throw new AssertionError("resolved twice");
+        });
+        // A refresh of the same question has nothing to add
+        inflight.resolve(second, null, query -> {
+            throw new AssertionError("resolved twice");
+        });
+        assertEquals(1, inflight.size());
+        assertTrue(answers.isEmpty());
+
+        release.countDown();
+        leader.join(5000);
+        assertEquals(1, upstreamCalls.get());
+        assertEquals(2, answers.size());
+        assertEquals(0x01, answers.get(0)[0]);
+        assertEquals(0x02, answers.get(1)[0]);
+        assertEquals('E', answers.get(1)[13]);
+        assertEquals(0, inflight.size());
+        assertEquals(1, inflight.getResolutions());
+        assertEquals(1, inflight.getCoalesced());
+    }
+
+    @Test
+    public void differentQuestionsResolveSeparately() {
+        InflightQueries inflight = new InflightQueries(e -> {
+        });
+        List<byte[]> answers = new ArrayList<>();
+        inflight.resolve(query(1, "a.example", TYPE_A, false), answers::add,
+                query -> answer(query, 0, 300));
+        inflight.resolve(query(1, "a.example", TYPE_A, true), answers::add,
+                query -> answer(query, 0, 300));
+        assertEquals(2, inflight.getResolutions());
+        assertEquals(2, answers.size());
+    }
+
+    @Test
+    public void everyWaiterLearnsOfAFailure() throws Exception {
+        InflightQueries inflight = new InflightQueries(e -> {
+        });
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        List<byte[]> answers = Collections.synchronizedList(new ArrayList<>());
+
+        Thread leader = new Thread(() -> inflight.resolve(query(1, "down.example", TYPE_A, false),
+                answers::add, query -> {
+                    started.countDown();
+                    try {
+                        release.await(5, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    return null;
+                }));
+        leader.start();
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        inflight.resolve(query(2, "down.example", TYPE_A, false), answers::add, query -> null);
+        release.countDown();
+        leader.join(5000);
+
+        assertEquals(2, answers.size());
+        assertNull(answers.get(0));
+        assertNull(answers.get(1));
+        assertEquals(0, inflight.size());
+    }
+
+    @Test
+    public void failingCallbackDoesNotKeepOthersWaiting() {
+        List<Exception> errors = new ArrayList<>();
+        InflightQueries inflight = new InflightQueries(errors::add);
+        inflight.resolve(query(1, "example.com", TYPE_A, false), response -> {
+            throw new java.io.IOException("closed");
+        }, query -> answer(query, 0, 300));
+        assertEquals(1, errors.size());
+
+        List<byte[]> answers = new ArrayList<>();
+        inflight.resolve(query(1, "example.com", TYPE_A, false), answers::add,
+                query -> answer(query, 0, 300));
+        assertNotNull(answers.get(0));
+    }
+}
@@ -0,0 +1,96 @@
+package net.kollnig.missioncontrol.dns;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class ResolverStatsTest {
+    private static final double DELTA = 1e-9;
+
+    @Test
+    public void unmeasuredEndpointsScoreTheInitialLatency() {
+        ResolverStats stats = new ResolverStats();
+        assertEquals(-1, stats.getLatency(), DELTA);
+        assertEquals(ResolverStats.INITIAL_LATENCY_MS, stats.getScore(0), DELTA);
+        assertEquals(ResolverStats.DEFAULT_HEDGE_DELAY_MS, stats.getHedgeDelay());
+    }
+
+    @Test
+    public void latencyIsAMovingAverage() {
+        ResolverStats stats = new ResolverStats();
+        stats.success(100, 0);
+        assertEquals(100, stats.getLatency(), DELTA);
+        stats.success(200, 0);
+        assertEquals(100 + ResolverStats.ALPHA * 100, stats.getLatency(), DELTA);
+    }
+
+    @Test
+    public void errorsRaiseTheScoreAndFadeWithTime() {
+        ResolverStats stats = new ResolverStats();
+        stats.success(100, 0);
+        stats.failure(0);
+        assertEquals(ResolverStats.ALPHA, stats.getErrorRate(0), DELTA);
+        assertEquals(100 + ResolverStats.ALPHA * ResolverStats.ERROR_PENALTY_MS,
+                stats.getScore(0), DELTA);
+
+        assertEquals(ResolverStats.ALPHA / 2,
+                stats.getErrorRate(ResolverStats.ERROR_HALF_LIFE_MS), DELTA);
+
+        // A success lowers what is left
+        stats.success(100, ResolverStats.ERROR_HALF_LIFE_MS);
+        assertEquals(ResolverStats.ALPHA / 2 * (1 - ResolverStats.ALPHA),
+                stats.getErrorRate(ResolverStats.ERROR_HALF_LIFE_MS), DELTA);
+    }
+
+    @Test
+    public void handshakesAreAveragedApartFromQueries() {
+        ResolverStats stats = new ResolverStats();
+        assertEquals(-1, stats.getHandshake(), DELTA);
+        stats.handshake(300);
+        stats.handshake(100);
+        assertEquals(300 - ResolverStats.ALPHA * 200, stats.getHandshake(), DELTA);
+        assertEquals(-1, stats.getLatency(), DELTA);
+        assertTrue(stats.toString().contains("connections=2"));
+    }
+
+    @Test
+    public void hedgeDelayIsTheNinetiethPercentile() {
+        ResolverStats stats = new ResolverStats();
+        for (int i = 1; i < ResolverStats.MIN_SAMPLES; i++)
+            stats.success(i * 10, 0);
+        assertEquals(ResolverStats.DEFAULT_HEDGE_DELAY_MS, stats.getHedgeDelay());
+
+        for (int i = ResolverStats.MIN_SAMPLES; i <= 20; i++)
+            stats.success(i * 10, 0);
+        // 18th of 20 latencies
+        assertEquals(180, stats.getHedgeDelay());
+    }
+
+    @Test
+    public void hedgeDelayFollowsRecentLatencies() {
+        ResolverStats stats = new ResolverStats();
+        for (int i = 0; i < 100; i++)
+            stats.success(1000, 0);
+        for (int i = 0; i < 32; i++)
+            stats.success(1, 0);
+        assertEquals(ResolverStats.MIN_HEDGE_DELAY_MS, stats.getHedgeDelay());
+        assertTrue(stats.toString().contains("ok=132"));
+    }
+
+    @Test
+    public void resetStartsOver() {
+        ResolverStats stats = new ResolverStats();
+        for (int i = 0; i < ResolverStats.MIN_SAMPLES; i++)
+            stats.success(100, 0);
+        stats.failure(0);
+        stats.handshake(300);
+
+        stats.reset();
+        assertEquals(-1, stats.getLatency(), DELTA);
+        assertEquals(-1, stats.getHandshake(), DELTA);
+        assertEquals(0, stats.getErrorRate(0), DELTA);
+        assertEquals(ResolverStats.INITIAL_LATENCY_MS, stats.getScore(0), DELTA);
+        assertEquals(ResolverStats.DEFAULT_HEDGE_DELAY_MS, stats.getHedgeDelay());
+    }
+}
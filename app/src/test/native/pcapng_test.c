@@ -0,0 +1,118 @@
+/*
+ * Host unit tests for the pcapng blocks written by the packet capture in
+ * app/src/main/jni/netguard/pcapng.{h,c}.
+ *
+ * Plain C test program with a tiny assert-based harness (no test framework
+ * dependency), so it builds and runs with the system compiler on any host
+ * -- see .github/workflows/test.yml. Mirrors app/src/test/native/ip6_ext_test.c.
+ */
+
+#include <stdint.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+
+#include "pcapng.h"
+
+static int failures = 0;
+
+#define CHECK(cond, msg)                                                    \
+    do {                                                                    \
+        if (!(cond)) {                                                      \
+            fprintf(stderr, "FAIL: %s (%s:%d)\n", (msg), __FILE__, __LINE__); \
+            failures++;                                                     \
+        }                                                                   \
+    } while (0)
+
+static uint32_t get32(const uint8_t *p) {
+    uint32_t value;
+    memcpy(&value, p, sizeof(value));
+    return value;
+}
+
+static uint16_t get16(const uint8_t *p) {
+    uint16_t value;
+    memcpy(&value, p, sizeof(value));
+    return value;
+}
+
+/* 1. A section is a header and one raw IP interface, lengths at both ends. */
+static void test_section(void) {
+    uint8_t buffer[64];
+    CHECK(pcapng_section(buffer, 47, 64) == 0, "too small a buffer");
+    CHECK(pcapng_section(buffer, sizeof(buffer), 64) == PCAPNG_SECTION_SIZE, "section size");
+
+    CHECK(get32(buffer) == PCAPNG_BLOCK_SHB, "section header");
+    CHECK(get32(buffer + 4) == 28 && get32(buffer + 24) == 28, "header length");
+    CHECK(get32(buffer + 8) == PCAPNG_BYTE_ORDER, "byte order magic");
+    CHECK(get16(buffer + 12) == 1 && get16(buffer + 14) == 0, "version 1.0");
+
+    const uint8_t *idb = buffer + 28;
+    CHECK(get32(idb) == PCAPNG_BLOCK_IDB, "interface description");
+    CHECK(get32(idb + 4) == 20 && get32(idb + 16) == 20, "interface length");
+    CHECK(get16(idb + 8) == PCAPNG_LINKTYPE_RAW, "raw IP");
+    CHECK(get32(idb + 12) == 64, "snap length");
+}
+
+/* 2. A packet block has its data padded, its direction and its owner. */
+static void test_packet(void) {
+    uint8_t buffer[PCAPNG_PACKET_OVERHEAD + 64];
+    uint8_t data[5] = {0x45, 1, 2, 3, 4};
+    uint64_t time = 1700000000123456ULL;
+
+    size_t length = pcapng_packet(buffer, sizeof(buffer), time, data, 5, 1500,
+                                  10123, PCAPNG_OUTBOUND);
+    // 28 fixed + 8 data + 8 flags + 4 + 12 comment + 4 end + 4 length
+    CHECK(length == 68, "packet block length");
+    CHECK(length % 4 == 0, "32-bit aligned");
+    CHECK(get32(buffer) == PCAPNG_BLOCK_EPB, "enhanced packet block");
+    CHECK(get32(buffer + 4) == length && get32(buffer + length - 4) == length,
+          "length at both ends");
+    CHECK(((uint64_t) get32(buffer + 12) << 32 | get32(buffer + 16)) == time, "timestamp");
+    CHECK(get32(buffer + 20) == 5 && get32(buffer + 24) == 1500, "captured and original length");
+    CHECK(memcmp(buffer + 28, data, 5) == 0 && buffer[33] == 0 && buffer[35] == 0,
+          "data zero-padded");
+
+    const uint8_t *opt = buffer + 36;
+    CHECK(get16(opt) == PCAPNG_OPT_EPB_FLAGS && get16(opt + 2) == 4 &&
+          get32(opt + 4) == PCAPNG_OUTBOUND, "direction flag");
+    opt += 8;
+    CHECK(get16(opt) == PCAPNG_OPT_COMMENT && get16(opt + 2) == 9 &&
+          memcmp(opt + 4, "uid 10123", 9) == 0, "uid comment");
+    opt += 4 + 12;
+    CHECK(get16(opt) == PCAPNG_OPT_END && get16(opt + 2) == 0, "end of options");
+
+    CHECK(pcapng_packet(buffer, length - 1, time, data, 5, 1500, 10123, PCAPNG_OUTBOUND) == 0,
+          "too small a buffer");
+}
+
+/* 3. Without an owner there is no comment. */
+static void test_packet_unknown_owner(void) {
+    uint8_t buffer[PCAPNG_PACKET_OVERHEAD + 64];
+    uint8_t data[64];
+    memset(data, 0x60, sizeof(data));
+
+    size_t length = pcapng_packet(buffer, sizeof(buffer), 0, data, 64, 64, -1, PCAPNG_INBOUND);
+    CHECK(length == 28 + 64 + 8 + 4 + 4, "no comment");
+    CHECK(get32(buffer + 28 + 64 + 4) == PCAPNG_INBOUND, "inbound");
+    CHECK(get16(buffer + 28 + 64 + 8) == PCAPNG_OPT_END, "end follows the flags");
+
+    // The largest block fits the overhead the writer allocates for
+    length = pcapng_packet(buffer, sizeof(buffer), 0, data, 63, 63, INT32_MIN, PCAPNG_INBOUND);
+    CHECK(length > 0, "negative uid is no owner");
+    length = pcapng_packet(buffer, sizeof(buffer), 0, data, 61, 61, INT32_MAX, PCAPNG_INBOUND);
+    CHECK(length > 0 && length <= PCAPNG_PACKET_OVERHEAD + 61, "within the overhead");
+}
+
+int main(void) {
+    test_section();
+    test_packet();
+    test_packet_unknown_owner();
+
+    if (failures > 0) {
+        fprintf(stderr, "%d failure(s)\n", failures);
+        return 1;
+    }
+    printf("pcapng_test: all tests passed\n");
+    return 0;
+}
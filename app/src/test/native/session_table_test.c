@@ -0,0 +1,240 @@
+/*
+ * Host unit tests for the session index and timer wheel in
+ * app/src/main/jni/netguard/session_table.{h,c}.
+ *
+ * Plain C test program with a tiny assert-based harness (no test framework
+ * dependency), so it builds and runs with the system compiler on any host
+ * -- see .github/workflows/test.yml. Mirrors app/src/test/native/ip6_ext_test.c.
+ */
+
+#include <stddef.h>
+#include <stdint.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+
+#include "session_table.h"
+
+static int failures = 0;
+
+#define CHECK(cond, msg)                                                    \
+    do {                                                                    \
+        if (!(cond)) {                                                      \
+            fprintf(stderr, "FAIL: %s (%s:%d)\n", (msg), __FILE__, __LINE__); \
+            failures++;                                                     \
+        }                                                                   \
+    } while (0)
+
+/* The allocation accounting of netguard.c, counting what is still allocated. */
+static int allocated = 0;
+
+void *ng_calloc(size_t count, size_t size, const char *tag) {
+    (void) tag;
+    void *ptr = calloc(count, size);
+    if (ptr != NULL)
+        allocated++;
+    return ptr;
+}
+
+void ng_free(void *ptr, const char *file, int line) {
+    (void) file;
+    (void) line;
+    if (ptr != NULL)
+        allocated--;
+    free(ptr);
+}
+
+#define IPPROTO_TCP_ 6
+#define IPPROTO_UDP_ 17
+
+#define NOW 1700000000L
+
+static void make_key(struct session_key *key, uint8_t protocol, int n) {
+    uint8_t saddr[4] = {10, 1, 10, 1};
+    uint8_t daddr[4] = {203, 0, (uint8_t) (n >> 8), (uint8_t) n};
+    session_key_init(key, protocol, 4, saddr, (uint16_t) (40000 + n), daddr, 443);
+}
+
+/* 1. Keys find their value; protocol, ports and addresses all count. */
+static void test_index_lookup(void) {
+    struct session_index index;
+    memset(&index, 0, sizeof(index));
+    int a, b;
+
+    struct session_key tcp, udp;
+    make_key(&tcp, IPPROTO_TCP_, 1);
+    make_key(&udp, IPPROTO_UDP_, 1);
+    CHECK(session_index_get(&index, &tcp) == NULL, "empty index misses");
+
+    CHECK(session_index_put(&index, &tcp, &a) == 0, "put");
+    CHECK(session_index_put(&index, &udp, &b) == 0, "put");
+    CHECK(session_index_get(&index, &tcp) == &a, "TCP key found");
+    CHECK(session_index_get(&index, &udp) == &b, "UDP key is another key");
+
+    struct session_key other;
+    make_key(&other, IPPROTO_TCP_, 2);
+    CHECK(session_index_get(&index, &other) == NULL, "other port misses");
+
+    uint8_t s6[16] = {0x20, 0x01, 0x0d, 0xb8, [15] = 1};
+    uint8_t d6[16] = {0x20, 0x01, 0x0d, 0xb8, [15] = 2};
+    struct session_key v6;
+    session_key_init(&v6, IPPROTO_TCP_, 6, s6, 1, d6, 2);
+    CHECK(session_index_put(&index, &v6, &a) == 0, "put IPv6");
+    CHECK(session_index_get(&index, &v6) == &a, "IPv6 key found");
+
+    CHECK(session_index_put(&index, &tcp, &b) == 0, "put again");
+    CHECK(session_index_get(&index, &tcp) == &b, "put again replaces");
+    CHECK(index.count == 3, "replacing does not add");
+
+    CHECK(!session_index_remove(&index, &tcp, &a), "stale value is not removed");
+    CHECK(session_index_get(&index, &tcp) == &b, "newer value stays");
+    CHECK(session_index_remove(&index, &tcp, &b), "current value is removed");
+    CHECK(session_index_get(&index, &tcp) == NULL, "removed key misses");
+
+    session_index_free(&index);
+}
+
+/* 2. Growing and removing in any order keeps every remaining key reachable. */
+static void test_index_churn(void) {
+    struct session_index index;
+    memset(&index, 0, sizeof(index));
+    enum { N = 2000 };
+    static int values[N];
+    struct session_key key;
+
+    for (int i = 0; i < N; i++) {
+        make_key(&key, IPPROTO_TCP_, i);
+        CHECK(session_index_put(&index, &key, &values[i]) == 0, "put");
+    }
+    CHECK(index.count == N, "all keys in");
+    CHECK(index.capacity >= 2 * N, "at most half full");
+
+    // Remove every third, so that removals land in the middle of probe runs
+    for (int i = 0; i < N; i += 3) {
+        make_key(&key, IPPROTO_TCP_, i);
+        CHECK(session_index_remove(&index, &key, &values[i]), "removed");
+    }
+
+    int ok = 1;
+    for (int i = 0; i < N; i++) {
+        make_key(&key, IPPROTO_TCP_, i);
+        void *value = session_index_get(&index, &key);
+        if (value != (i % 3 == 0 ? NULL : &values[i]))
+            ok = 0;
+    }
+    CHECK(ok, "remaining keys found, removed keys gone");
+
+    session_index_free(&index);
+    CHECK(allocated == 0, "growing and freeing leave nothing allocated");
+}
+
+struct item {
+    int id;
+    struct session_timer timer;
+};
+
+static struct item *item_of(struct session_timer *timer) {
+    return (struct item *) ((char *) timer - offsetof(struct item, timer));
+}
+
+static int expire(struct session_wheel *wheel, time_t now, int *ids, int max) {
+    struct session_timer expired;
+    session_list_init(&expired);
+    session_wheel_advance(wheel, now, &expired);
+    int n = 0;
+    struct session_timer *timer;
+    while ((timer = session_list_pop(&expired)) != NULL)
+        if (n < max)
+            ids[n++] = item_of(timer)->id;
+    return n;
+}
+
+/* 3. Timers come due at their second, not before, whatever the revolution. */
+static void test_wheel_due(void) {
+    struct session_wheel wheel;
+    session_wheel_init(&wheel, NOW);
+    struct item items[4];
+    for (int i = 0; i < 4; i++) {
+        items[i].id = i;
+        items[i].timer.next = NULL;
+    }
+    int ids[4];
+
+    session_wheel_schedule(&wheel, &items[0].timer, NOW + 5);
+    session_wheel_schedule(&wheel, &items[1].timer, NOW + 5 + SESSION_WHEEL_SLOTS);
+    session_wheel_schedule(&wheel, &items[2].timer, NOW - 10);
+    session_wheel_schedule(&wheel, &items[3].timer, NOW + 3600);
+    CHECK(wheel.count == 4, "four scheduled");
+    CHECK(session_wheel_next(&wheel, 3600) == 0, "a timer is due now");
+
+    CHECK(expire(&wheel, NOW, ids, 4) == 1 && ids[0] == 2, "past due is due now");
+    CHECK(session_wheel_next(&wheel, 3600) == 5, "next in five seconds");
+    CHECK(expire(&wheel, NOW + 4, ids, 4) == 0, "nothing due early");
+    CHECK(expire(&wheel, NOW + 5, ids, 4) == 1 && ids[0] == 0, "due at its second");
+    CHECK(expire(&wheel, NOW + 6, ids, 4) == 0, "a revolution later stays");
+    CHECK(expire(&wheel, NOW + 5 + SESSION_WHEEL_SLOTS, ids, 4) == 1 && ids[0] == 1,
+          "due a revolution later");
+
+    // Skipping more than a revolution still finds it
+    CHECK(expire(&wheel, NOW + 7200, ids, 4) == 1 && ids[0] == 3, "due after a long sleep");
+    CHECK(wheel.count == 0, "none left");
+    CHECK(session_wheel_next(&wheel, 3600) == 3600, "empty wheel waits the limit");
+}
+
+/* 4. Rescheduling and cancelling move and drop timers. */
+static void test_wheel_reschedule(void) {
+    struct session_wheel wheel;
+    session_wheel_init(&wheel, NOW);
+    struct item a = {1, {NULL, NULL, 0}};
+    struct item b = {2, {NULL, NULL, 0}};
+    int ids[2];
+
+    session_wheel_schedule(&wheel, &a.timer, NOW + 10);
+    session_wheel_schedule(&wheel, &b.timer, NOW + 10);
+    session_wheel_schedule(&wheel, &a.timer, NOW + 20);
+    CHECK(wheel.count == 2, "rescheduling does not add");
+    session_wheel_cancel(&wheel, &b.timer);
+    session_wheel_cancel(&wheel, &b.timer);
+    CHECK(wheel.count == 1 && b.timer.next == NULL, "cancelled, twice is harmless");
+
+    CHECK(expire(&wheel, NOW + 15, ids, 2) == 0, "moved timer not due at its old time");
+    CHECK(expire(&wheel, NOW + 20, ids, 2) == 1 && ids[0] == 1, "due at its new time");
+}
+
+/* 5. A list takes a timer once, and lets go of it only while holding it. */
+static void test_list(void) {
+    struct session_timer head;
+    session_list_init(&head);
+    struct item a = {1, {NULL, NULL, 0}};
+    struct item b = {2, {NULL, NULL, 0}};
+    CHECK(session_list_empty(&head), "new list is empty");
+
+    session_list_push(&head, &a.timer);
+    session_list_push(&head, &b.timer);
+    session_list_push(&head, &a.timer);
+    CHECK(!session_list_empty(&head), "pushed");
+
+    session_list_remove(&a.timer);
+    session_list_remove(&a.timer);
+    CHECK(a.timer.next == NULL, "removed, twice is harmless");
+
+    struct session_timer *timer = session_list_pop(&head);
+    CHECK(timer != NULL && item_of(timer)->id == 2, "the other one stays");
+    CHECK(session_list_pop(&head) == NULL && session_list_empty(&head),
+          "pushing twice added once");
+}
+
+int main(void) {
+    test_index_lookup();
+    test_index_churn();
+    test_wheel_due();
+    test_wheel_reschedule();
+    test_list();
+
+    if (failures > 0) {
+        fprintf(stderr, "%d failure(s)\n", failures);
+        return 1;
+    }
+    printf("session_table_test: all tests passed\n");
+    return 0;
+}
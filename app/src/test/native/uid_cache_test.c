@@ -0,0 +1,206 @@
+/*
+ * Host unit tests for the socket owner cache and the incremental /proc/net
+ * table reads in app/src/main/jni/netguard/uid_cache.{h,c}.
+ *
+ * Plain C test program with a tiny assert-based harness (no test framework
+ * dependency), so it builds and runs with the system compiler on any host
+ * -- see .github/workflows/test.yml. Mirrors app/src/test/native/ip6_ext_test.c.
+ */
+
+#include <stdint.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+
+#include "uid_cache.h"
+
+static int failures = 0;
+
+#define CHECK(cond, msg)                                                    \
+    do {                                                                    \
+        if (!(cond)) {                                                      \
+            fprintf(stderr, "FAIL: %s (%s:%d)\n", (msg), __FILE__, __LINE__); \
+            failures++;                                                     \
+        }                                                                   \
+    } while (0)
+
+#define IPPROTO_TCP_ 6
+#define IPPROTO_UDP_ 17
+
+#define NOW 1700000000000L
+
+static const uint8_t LOCAL4[4] = {10, 1, 10, 1};
+static const uint8_t REMOTE4[4] = {203, 0, 113, 5};
+
+static int add_lines(struct uid_proc_table *table, int version, const char **lines, int count) {
+    uid_proc_begin(table);
+    for (int i = 0; i < count; i++)
+        if (uid_proc_add(table, version, lines[i]) != 1)
+            return 0;
+    uid_proc_commit(table, NOW);
+    return 1;
+}
+
+/* 1. Owners are remembered per 5-tuple, and not finding one only briefly. */
+static void test_owner_cache(void) {
+    uid_owner_clear();
+    int32_t uid = 0;
+
+    CHECK(!uid_owner_lookup(4, IPPROTO_TCP_, LOCAL4, 41394, REMOTE4, 443, NOW, &uid),
+          "empty cache misses");
+
+    uid_owner_store(4, IPPROTO_TCP_, LOCAL4, 41394, REMOTE4, 443, 10123, NOW);
+    CHECK(uid_owner_lookup(4, IPPROTO_TCP_, LOCAL4, 41394, REMOTE4, 443, NOW + 1000, &uid) &&
+          uid == 10123, "stored owner is found");
+    CHECK(!uid_owner_lookup(4, IPPROTO_UDP_, LOCAL4, 41394, REMOTE4, 443, NOW, &uid),
+          "protocol is part of the key");
+    CHECK(!uid_owner_lookup(4, IPPROTO_TCP_, LOCAL4, 41395, REMOTE4, 443, NOW, &uid),
+          "source port is part of the key");
+    CHECK(!uid_owner_lookup(4, IPPROTO_TCP_, LOCAL4, 41394, REMOTE4, 443,
+                            NOW + UID_OWNER_MAX_AGE + 1, &uid),
+          "owner expires");
+
+    uid_owner_store(4, IPPROTO_UDP_, LOCAL4, 5353, REMOTE4, 53, -1, NOW);
+    CHECK(uid_owner_lookup(4, IPPROTO_UDP_, LOCAL4, 5353, REMOTE4, 53, NOW + 1, &uid) &&
+          uid == -1, "missing owner is remembered");
+    CHECK(!uid_owner_lookup(4, IPPROTO_UDP_, LOCAL4, 5353, REMOTE4, 53,
+                            NOW + UID_OWNER_NEGATIVE_AGE + 1, &uid),
+          "missing owner is remembered only briefly");
+
+    uid_owner_clear();
+    CHECK(!uid_owner_lookup(4, IPPROTO_TCP_, LOCAL4, 41394, REMOTE4, 443, NOW, &uid),
+          "clear forgets owners");
+}
+
+/* 2. More sockets than the cache holds evict the oldest, not the newest. */
+static void test_owner_eviction(void) {
+    uid_owner_clear();
+    int32_t uid = 0;
+    int n = UID_OWNER_SETS * UID_OWNER_WAYS * 2;
+    for (int i = 0; i < n; i++)
+        uid_owner_store(4, IPPROTO_TCP_, LOCAL4, (uint16_t) (1024 + i), REMOTE4, 443,
+                        10000 + i, NOW + i);
+
+    int found = 0;
+    int latest = 0;
+    for (int i = 0; i < n; i++)
+        if (uid_owner_lookup(4, IPPROTO_TCP_, LOCAL4, (uint16_t) (1024 + i), REMOTE4, 443,
+                             NOW + n, &uid) && uid == 10000 + i) {
+            found++;
+            if (i >= n - UID_OWNER_WAYS)
+                latest++;
+        }
+    CHECK(found <= UID_OWNER_SETS * UID_OWNER_WAYS, "cache is bounded");
+    // No set can have had a full set of ways stored after any of these
+    CHECK(latest == UID_OWNER_WAYS, "most recent owners survive");
+}
+
+/* 3. Lines are parsed into network-order addresses and host-order ports. */
+static void test_proc_parse(void) {
+    struct uid_proc_table table;
+    memset(&table, 0, sizeof(table));
+    const char *lines[] = {
+            "   0: 010A010A:A1B2 057100CB:01BB 01 00000000:00000000 00:00000000 00000000 10123 0 12345 1\n",
+            "   1: 00000000:14E9 00000000:0000 0A 00000000:00000000 00:00000000 00000000 10200 0 23456 1\n",
+    };
+    CHECK(add_lines(&table, 4, lines, 2), "lines are valid");
+    CHECK(table.count == 2 && table.parsed == 2 && table.reused == 0, "both lines parsed");
+
+    CHECK(uid_proc_match(&table, 4, LOCAL4, 0xA1B2, REMOTE4, 443) == 10123,
+          "exact socket matches");
+    CHECK(uid_proc_match(&table, 4, LOCAL4, 0xA1B3, REMOTE4, 443) == -1,
+          "other port does not match");
+    CHECK(uid_proc_match(&table, 4, LOCAL4, 0x14E9, REMOTE4, 53) == 10200,
+          "unconnected wildcard socket matches");
+
+    CHECK(uid_proc_add(&table, 4, "   2: garbage\n") == 0, "invalid line is rejected");
+    CHECK(uid_proc_add(&table, 4, "no colon\n") == 0, "line without slot is rejected");
+
+    uid_proc_free(&table);
+}
+
+/* 4. A re-read parses only the lines that changed; slot numbers do not count. */
+static void test_proc_incremental(void) {
+    struct uid_proc_table table;
+    memset(&table, 0, sizeof(table));
+    char lines[300][200];
+    const char *first[300];
+    for (int i = 0; i < 300; i++) {
+        snprintf(lines[i], sizeof(lines[i]),
+                 "%4d: 010A010A:%04X 057100CB:01BB 01 00000000:00000000 00:00000000 00000000 %d 0 %d 1\n",
+                 i, 1024 + i, 10000 + i, 50000 + i);
+        first[i] = lines[i];
+    }
+    CHECK(add_lines(&table, 4, first, 300), "first read is valid");
+    CHECK(table.parsed == 300, "first read parses everything");
+
+    // One socket closed, which renumbers the rest, one changed state, one new
+    char changed[200];
+    char added[200];
+    const char *second[300];
+    int n = 0;
+    for (int i = 1; i < 300; i++) {
+        static char renumbered[300][200];
+        const char *rest = strchr(lines[i], ':');
+        snprintf(renumbered[i], sizeof(renumbered[i]), "%4d%s", i - 1, rest);
+        second[n++] = renumbered[i];
+    }
+    snprintf(changed, sizeof(changed),
+             "%4d: 010A010A:%04X 057100CB:01BB 06 00000000:00000000 00:00000000 00000000 %d 0 %d 1\n",
+             99, 1024 + 100, 10000 + 100, 50000 + 100);
+    second[99] = changed;
+    snprintf(added, sizeof(added),
+             "%4d: 010A010A:%04X 057100CB:01BB 01 00000000:00000000 00:00000000 00000000 %d 0 %d 1\n",
+             299, 9999, 12345, 99999);
+    second[n++] = added;
+
+    CHECK(add_lines(&table, 4, second, n), "second read is valid");
+    CHECK(table.count == 300, "second read has all sockets");
+    CHECK(table.parsed == 302, "only the changed and new lines are parsed");
+    CHECK(table.reused == 298, "the other lines are reused");
+    CHECK(uid_proc_match(&table, 4, LOCAL4, 1024, REMOTE4, 443) == -1, "closed socket is gone");
+    CHECK(uid_proc_match(&table, 4, LOCAL4, 1024 + 100, REMOTE4, 443) == 10100,
+          "changed socket is kept");
+    CHECK(uid_proc_match(&table, 4, LOCAL4, 9999, REMOTE4, 443) == 12345, "new socket is found");
+    CHECK(uid_proc_match(&table, 4, LOCAL4, 1024 + 200, REMOTE4, 443) == 10200,
+          "reused socket is found");
+
+    uid_proc_free(&table);
+}
+
+/* 5. IPv6 lines have four address words. */
+static void test_proc_ipv6(void) {
+    struct uid_proc_table table;
+    memset(&table, 0, sizeof(table));
+    // 2001:db8::1 port 443 to ::ffff:203.0.113.5 port 50000
+    const char *lines[] = {
+            "   0: B80D0120000000000000000001000000:01BB 0000000000000000FFFF0000057100CB:C350 01 "
+            "00000000:00000000 00:00000000 00000000 10321 0 34567 1\n",
+    };
+    CHECK(add_lines(&table, 6, lines, 1), "IPv6 line is valid");
+
+    uint8_t local[16] = {0x20, 0x01, 0x0d, 0xb8, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 1};
+    uint8_t remote[16] = {0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0xff, 0xff, 203, 0, 113, 5};
+    CHECK(uid_proc_match(&table, 6, local, 443, remote, 50000) == 10321, "IPv6 socket matches");
+
+    uid_proc_free(&table);
+
+    // Tables are per file, so a different version means a fresh table
+    CHECK(uid_proc_add(&table, 4, lines[0]) == 0, "IPv6 line is not an IPv4 line");
+    uid_proc_free(&table);
+}
+
+int main(void) {
+    test_owner_cache();
+    test_owner_eviction();
+    test_proc_parse();
+    test_proc_incremental();
+    test_proc_ipv6();
+
+    if (failures > 0) {
+        fprintf(stderr, "%d failure(s)\n", failures);
+        return 1;
+    }
+    printf("uid_cache_test: all tests passed\n");
+    return 0;
+}